@@ -20,4 +20,21 @@ public class PihMalawiConstants {
     public static final String TASK_MIGRATE_EID_TEST_RESULTS = "Migrate EID Test Results";
     public static final String TASK_MIGRATE_EID_TEST_RESULTS_DESCRIPTION = "Migrates EID Test Results on the Exposed Child Initial Form to the EID Screening Form";
     public static final String MEDIC_MOBILE_FACILITY = "Yendanafe Catchment";
+
+    public static final String IC3_SCREENING_DATA_FULL_REFRESH_INTERVAL_GP_NAME = "pihmalawi.ic3ScreeningData.fullRefreshIntervalMinutes";
+    public static final int IC3_SCREENING_DATA_FULL_REFRESH_INTERVAL_GP_VALUE = 240;
+    public static final String IC3_SCREENING_DATA_CACHE_MAX_PATIENTS_GP_NAME = "pihmalawi.ic3ScreeningData.cacheMaxPatients";
+    public static final int IC3_SCREENING_DATA_CACHE_MAX_PATIENTS_GP_VALUE = 50000;
+    public static final String IC3_SCREENING_DATA_CACHE_IDLE_MINUTES_GP_NAME = "pihmalawi.ic3ScreeningData.cacheIdleMinutes";
+    public static final int IC3_SCREENING_DATA_CACHE_IDLE_MINUTES_GP_VALUE = 60;
+    public static final String IC3_SCREENING_DATA_LOADER_THREADS_GP_NAME = "pihmalawi.ic3ScreeningData.loaderThreads";
+    public static final int IC3_SCREENING_DATA_LOADER_THREADS_GP_VALUE = 4;
+    public static final String IC3_SCREENING_DATA_CACHE_SNAPSHOT_GP_NAME = "pihmalawi.ic3ScreeningData.cacheSnapshotEnabled";
+    public static final boolean IC3_SCREENING_DATA_CACHE_SNAPSHOT_GP_VALUE = true;
+    public static final String IC3_SCREENING_DATA_CACHE_SNAPSHOT_DIRECTORY = "pihmalawi/ic3ScreeningDataCache";
+
+    public static final String METADATA_FORCE_REINSTALL_GP_NAME = "pihmalawi.metadata.forceReinstall";
+    public static final boolean METADATA_FORCE_REINSTALL_GP_VALUE = false;
+    public static final String METADATA_BUNDLE_FINGERPRINT_GP_PREFIX = "pihmalawi.metadataBundleFingerprint.";
+    public static final String REPORT_FINGERPRINT_GP_PREFIX = "pihmalawi.reportFingerprint.";
 }
@@ -19,8 +19,10 @@ import org.apache.commons.logging.LogFactory;
 import org.openmrs.layout.address.AddressSupport;
 import org.openmrs.layout.address.AddressTemplate;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -32,6 +34,23 @@ public class AddressTemplateInitializer implements Initializer {
 
 	public static final String CODE_NAME = "malawi";
 
+	/**
+	 * @see Initializer#getDependencies()
+	 */
+	@Override
+	public List<Class<? extends Initializer>> getDependencies() {
+		List<Class<? extends Initializer>> l = new ArrayList<Class<? extends Initializer>>();
+		return l;
+	}
+
+	/**
+	 * @see Initializer#isRequiredForLogin()
+	 */
+	@Override
+	public boolean isRequiredForLogin() {
+		return false;
+	}
+
 	/**
 	 * @see Initializer#started()
 	 */
@@ -0,0 +1,254 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.pihmalawi.activator;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+import org.openmrs.GlobalProperty;
+import org.openmrs.api.AdministrationService;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.Module;
+import org.openmrs.module.ModuleFactory;
+import org.openmrs.util.OpenmrsConstants;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Records a fingerprint of the content that an initializer last installed successfully, under a key
+ * for each thing it installs, so that content which has not changed since can be skipped on the next startup.
+ * Fingerprints are stored as global properties named with the given prefix followed by the key, so that they
+ * are kept consistent with the database they describe if it is restored from a backup
+ */
+public class FingerprintLedger {
+
+	public static final String DURATION_SEPARATOR = ":";
+
+	private final String prefix;
+
+	public FingerprintLedger(String prefix) {
+		this.prefix = prefix;
+	}
+
+	/**
+	 * @return the fingerprint last recorded for the given key, or null if none has been recorded
+	 */
+	public String getFingerprint(String key) {
+		String value = Context.getAdministrationService().getGlobalProperty(getPropertyName(key));
+		return StringUtils.isBlank(value) ? null : StringUtils.substringBefore(value.trim(), DURATION_SEPARATOR);
+	}
+
+	/**
+	 * @return the number of milliseconds recorded as taken to install the content for the given key, or 0 if none was recorded
+	 */
+	public long getDuration(String key) {
+		String value = Context.getAdministrationService().getGlobalProperty(getPropertyName(key));
+		String duration = StringUtils.substringAfter(StringUtils.defaultString(value).trim(), DURATION_SEPARATOR);
+		return StringUtils.isNumeric(duration) && StringUtils.isNotEmpty(duration) ? Long.parseLong(duration) : 0;
+	}
+
+	/**
+	 * @return true if the given fingerprint is the same as the one last recorded for the given key
+	 */
+	public boolean isUnchanged(String key, String fingerprint) {
+		return fingerprint != null && fingerprint.equals(getFingerprint(key));
+	}
+
+	/**
+	 * Records the given fingerprint for the given key, or removes it if the fingerprint is null
+	 */
+	public void record(String key, String fingerprint) {
+		record(key, fingerprint, null);
+	}
+
+	/**
+	 * Records the given fingerprint for the given key, along with the number of milliseconds taken to install the content,
+	 * or removes it if the fingerprint is null
+	 */
+	public void record(String key, String fingerprint, Long duration) {
+		AdministrationService as = Context.getAdministrationService();
+		String name = getPropertyName(key);
+		GlobalProperty gp = as.getGlobalPropertyObject(name);
+		if (fingerprint == null) {
+			if (gp != null) {
+				as.purgeGlobalProperty(gp);
+			}
+		}
+		else {
+			String value = (duration == null ? fingerprint : fingerprint + DURATION_SEPARATOR + duration);
+			if (gp == null || !value.equals(gp.getPropertyValue())) {
+				if (gp == null) {
+					gp = new GlobalProperty(name, "");
+				}
+				gp.setPropertyValue(value);
+				as.saveGlobalProperty(gp);
+			}
+		}
+	}
+
+	public String getPropertyName(String key) {
+		return prefix + key;
+	}
+
+	//***** STATIC UTILITY METHODS *****
+
+	/**
+	 * @return a fingerprint of the OpenMRS version and each loaded module and its version, as installed content
+	 * may be built from code anywhere in this or any other module
+	 */
+	public static String getEnvironmentFingerprint() {
+		Map<String, String> moduleVersions = new TreeMap<String, String>();
+		for (Module module : ModuleFactory.getLoadedModules()) {
+			moduleVersions.put(module.getModuleId(), module.getVersion());
+		}
+		return fingerprint(OpenmrsConstants.OPENMRS_VERSION, moduleVersions);
+	}
+
+	/**
+	 * @return a hex encoded MD5 hash of the string form of each of the given parts, in order
+	 */
+	public static String fingerprint(Object... parts) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("MD5");
+			for (Object part : parts) {
+				if (part instanceof byte[]) {
+					digest.update((byte[]) part);
+				}
+				else {
+					digest.update(String.valueOf(part).getBytes("UTF-8"));
+				}
+				digest.update((byte) 0);
+			}
+			return toHex(digest.digest());
+		}
+		catch (Exception e) {
+			throw new IllegalStateException("Unable to calculate fingerprint", e);
+		}
+	}
+
+	/**
+	 * @return the compiled bytes of the given class, as loaded from its class loader, or null if they cannot be read
+	 */
+	public static byte[] getClassBytes(Class<?> type) {
+		ClassLoader loader = (type.getClassLoader() == null ? ClassLoader.getSystemClassLoader() : type.getClassLoader());
+		return getResourceBytes(loader, type.getName().replace('.', '/') + ".class");
+	}
+
+	/**
+	 * @return the compiled bytes of the given class, and of every class in the given package or its subpackages that
+	 * it references either directly or through other such classes, by class name in the order they were found,
+	 * or null if any of them cannot be read
+	 */
+	public static Map<String, byte[]> getClassBytesWithReferences(Class<?> type, String packageName) {
+		ClassLoader loader = (type.getClassLoader() == null ? ClassLoader.getSystemClassLoader() : type.getClassLoader());
+		Pattern referencePattern = Pattern.compile(Pattern.quote(packageName.replace('.', '/') + "/") + "[\\w/$]+");
+		Map<String, byte[]> ret = new LinkedHashMap<String, byte[]>();
+		LinkedList<String> toRead = new LinkedList<String>();
+		toRead.add(type.getName().replace('.', '/'));
+		while (!toRead.isEmpty()) {
+			String className = toRead.removeFirst();
+			if (!ret.containsKey(className)) {
+				byte[] bytes = getResourceBytes(loader, className + ".class");
+				if (bytes == null) {
+					return null;
+				}
+				ret.put(className, bytes);
+				try {
+					for (String constant : getUtf8Constants(bytes)) {
+						Matcher m = referencePattern.matcher(constant);
+						while (m.find()) {
+							toRead.add(m.group());
+						}
+					}
+				}
+				catch (IOException e) {
+					return null;
+				}
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * @return the string constants in the constant pool of the given compiled class, which include the names and
+	 * descriptors of every class it references
+	 */
+	static Set<String> getUtf8Constants(byte[] classBytes) throws IOException {
+		Set<String> ret = new LinkedHashSet<String>();
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(classBytes));
+		if (in.readInt() != 0xCAFEBABE) {
+			throw new IOException("Not a class file");
+		}
+		in.skipBytes(4); // minor and major version
+		int poolSize = in.readUnsignedShort();
+		for (int i = 1; i < poolSize; i++) {
+			int tag = in.readUnsignedByte();
+			switch (tag) {
+				case 1: // Utf8
+					ret.add(in.readUTF());
+					break;
+				case 7: case 8: case 16: case 19: case 20: // Class, String, MethodType, Module, Package
+					in.skipBytes(2);
+					break;
+				case 15: // MethodHandle
+					in.skipBytes(3);
+					break;
+				case 3: case 4: case 9: case 10: case 11: case 12: case 17: case 18: // Integer, Float, refs, NameAndType, dynamic
+					in.skipBytes(4);
+					break;
+				case 5: case 6: // Long and Double take two entries
+					in.skipBytes(8);
+					i++;
+					break;
+				default:
+					throw new IOException("Unknown constant pool tag " + tag);
+			}
+		}
+		return ret;
+	}
+
+	private static byte[] getResourceBytes(ClassLoader loader, String resourceName) {
+		InputStream is = null;
+		try {
+			is = loader.getResourceAsStream(resourceName);
+			return (is == null ? null : IOUtils.toByteArray(is));
+		}
+		catch (Exception e) {
+			return null;
+		}
+		finally {
+			IOUtils.closeQuietly(is);
+		}
+	}
+
+	private static String toHex(byte[] bytes) {
+		StringBuilder sb = new StringBuilder();
+		for (byte b : bytes) {
+			sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		}
+		return sb.toString();
+	}
+}
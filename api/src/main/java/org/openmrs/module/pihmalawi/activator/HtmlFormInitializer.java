@@ -24,16 +24,20 @@ import org.openmrs.api.FormService;
 import org.openmrs.api.context.Context;
 import org.openmrs.module.htmlformentry.HtmlForm;
 import org.openmrs.module.htmlformentry.HtmlFormEntryService;
+import org.openmrs.module.htmlformentry.HtmlFormEntryUtil;
 import org.openmrs.module.htmlformentryui.HtmlFormUtil;
 import org.openmrs.ui.framework.resource.ResourceFactory;
 import org.openmrs.util.OpenmrsClassLoader;
+import org.w3c.dom.Node;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Initializes all the htmlforms
@@ -42,6 +46,31 @@ public class HtmlFormInitializer implements Initializer {
 
 	protected static final Log log = LogFactory.getLog(HtmlFormInitializer.class);
 
+	/**
+	 * The content read from each ui resource, with its hash and the form uuid it declares, by resource.  This only
+	 * avoids finding the form uuid again when the content is unchanged; HtmlFormUtil parses the content of any form
+	 * that is saved
+	 */
+	private static final Map<String, HtmlFormResource> formResources = new ConcurrentHashMap<String, HtmlFormResource>();
+
+	/**
+	 * @see Initializer#getDependencies()
+	 */
+	@Override
+	public List<Class<? extends Initializer>> getDependencies() {
+		List<Class<? extends Initializer>> l = new ArrayList<Class<? extends Initializer>>();
+		l.add(MetadataInitializer.class);
+		return l;
+	}
+
+	/**
+	 * @see Initializer#isRequiredForLogin()
+	 */
+	@Override
+	public boolean isRequiredForLogin() {
+		return false;
+	}
+
 	/**
 	 * @see Initializer#started()
 	 */
@@ -130,23 +159,143 @@ public class HtmlFormInitializer implements Initializer {
 				"pihmalawi:htmlforms/pdc_trisomy_21_visit.xml");
 
         if (uiHtmlForms != null) {
-            ResourceFactory resourceFactory = ResourceFactory.getInstance();
-            FormService formService = Context.getFormService();
-            for (String htmlform : uiHtmlForms) {
-                try {
-                    HtmlFormUtil.getHtmlFormFromUiResource(resourceFactory, formService, hfes, htmlform);
-                } catch (IOException e) {
-                    log.error("Unable to load HTML forms");
-                }
-            }
+            loadUiHtmlForms(uiHtmlForms, hfes);
         }
 
 	}
 
+	/**
+	 * Reads each of the given ui resources, and saves those whose content differs from the stored form
+	 */
+	protected void loadUiHtmlForms(List<String> uiHtmlForms, HtmlFormEntryService hfes) {
+		long startTime = System.currentTimeMillis();
+		ResourceFactory resourceFactory = ResourceFactory.getInstance();
+		List<HtmlFormResource> formResources = new ArrayList<HtmlFormResource>();
+		for (String htmlform : uiHtmlForms) {
+			try {
+				formResources.add(getFormResource(resourceFactory, htmlform));
+			}
+			catch (IOException e) {
+				log.error("Unable to load HTML form " + htmlform, e);
+			}
+		}
+		int numSaved = saveChangedForms(formResources, Context.getFormService(), hfes);
+		log.info("Saved " + numSaved + " changed of " + uiHtmlForms.size() + " HTML forms in " + (System.currentTimeMillis() - startTime) + " ms");
+	}
+
+	/**
+	 * Saves each of the given forms whose content differs from the stored form.  Each form is saved in its own
+	 * transaction, so that a failure to save one does not prevent the others from being saved
+	 * @return the number of forms saved
+	 */
+	protected int saveChangedForms(List<HtmlFormResource> formResources, FormService formService, HtmlFormEntryService hfes) {
+		int numSaved = 0;
+		for (HtmlFormResource formResource : formResources) {
+			if (formResource.isUnchanged(formService, hfes)) {
+				log.debug("Skipping unchanged form: " + formResource.getResource());
+				continue;
+			}
+			log.info("Updating form: " + formResource.getResource());
+			try {
+				saveForm(formResource, formService, hfes);
+				numSaved++;
+			}
+			catch (Exception e) {
+				log.error("Unable to load HTML form " + formResource.getResource(), e);
+			}
+		}
+		return numSaved;
+	}
+
+	/**
+	 * Creates or updates the form declared by the given resource
+	 */
+	protected void saveForm(HtmlFormResource formResource, FormService formService, HtmlFormEntryService hfes) throws Exception {
+		HtmlFormUtil.getHtmlFormFromResourceXml(formService, hfes, formResource.getXml());
+	}
+
+	/**
+	 * @return the content read from the given ui resource, reusing the form uuid found when it was last read if its
+	 * content is unchanged
+	 */
+	protected HtmlFormResource getFormResource(ResourceFactory resourceFactory, String resource) throws IOException {
+		int index = resource.indexOf(':');
+		String xml = resourceFactory.getResourceAsString(resource.substring(0, index), resource.substring(index + 1));
+		if (xml == null) {
+			throw new IOException("No resource found at " + resource);
+		}
+		String hash = FingerprintLedger.fingerprint(xml.trim());
+		HtmlFormResource formResource = formResources.get(resource);
+		if (formResource == null || !formResource.getHash().equals(hash)) {
+			formResource = new HtmlFormResource(resource, xml, hash);
+			formResources.put(resource, formResource);
+		}
+		return formResource;
+	}
+
 	/**
 	 * @see Initializer#stopped()
 	 */
 	@Override
 	public void stopped() {
+		formResources.clear();
+	}
+
+	/**
+	 * The content of an HTML form ui resource, along with the hash of that content and the form uuid it declares
+	 */
+	protected static class HtmlFormResource {
+
+		private final String resource;
+		private final String xml;
+		private final String hash;
+		private final String formUuid;
+
+		public HtmlFormResource(String resource, String xml, String hash) {
+			this.resource = resource;
+			this.xml = xml;
+			this.hash = hash;
+			String uuid = null;
+			try {
+				Node htmlFormNode = HtmlFormEntryUtil.findChild(HtmlFormEntryUtil.stringToDocument(xml), "htmlform");
+				Node uuidNode = (htmlFormNode == null ? null : htmlFormNode.getAttributes().getNamedItem("formUuid"));
+				uuid = (uuidNode == null ? null : uuidNode.getNodeValue());
+			}
+			catch (Exception e) {
+				log.warn("Unable to parse HTML form " + resource, e);
+			}
+			this.formUuid = uuid;
+		}
+
+		/**
+		 * @return true if a form with the declared uuid is saved with an HTML form whose content has the same hash
+		 */
+		public boolean isUnchanged(FormService formService, HtmlFormEntryService hfes) {
+			if (formUuid == null) {
+				return false;
+			}
+			Form form = formService.getFormByUuid(formUuid);
+			HtmlForm htmlForm = (form == null ? null : hfes.getHtmlFormByForm(form));
+			if (htmlForm == null || htmlForm.getXmlData() == null) {
+				return false;
+			}
+			return hash.equals(FingerprintLedger.fingerprint(htmlForm.getXmlData().trim()));
+		}
+
+		public String getResource() {
+			return resource;
+		}
+
+		public String getXml() {
+			return xml;
+		}
+
+		public String getHash() {
+			return hash;
+		}
+
+		public String getFormUuid() {
+			return formUuid;
+		}
 	}
 }
@@ -0,0 +1,68 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+
+package org.openmrs.module.pihmalawi.activator;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.pihmalawi.data.IC3ScreeningDataLoader;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Restores the IC3 screening data cache from its last snapshot, and starts loading it
+ */
+public class IC3ScreeningDataInitializer implements Initializer {
+
+	protected static final Log log = LogFactory.getLog(IC3ScreeningDataInitializer.class);
+
+	/**
+	 * @see Initializer#getDependencies()
+	 */
+	@Override
+	public List<Class<? extends Initializer>> getDependencies() {
+		List<Class<? extends Initializer>> l = new ArrayList<Class<? extends Initializer>>();
+		l.add(MetadataInitializer.class);
+		return l;
+	}
+
+	/**
+	 * @see Initializer#isRequiredForLogin()
+	 */
+	@Override
+	public boolean isRequiredForLogin() {
+		return false;
+	}
+
+	/**
+	 * @see Initializer#started()
+	 */
+	@Override
+	public synchronized void started() {
+		// Restore the patient data cache from disk, so screening data is available while the first refresh runs
+		IC3ScreeningDataLoader screeningDataLoader = Context.getRegisteredComponents(IC3ScreeningDataLoader.class).get(0);
+		screeningDataLoader.restoreSnapshot();
+		screeningDataLoader.runImmediately();
+	}
+
+	/**
+	 * @see Initializer#stopped()
+	 */
+	@Override
+	public void stopped() {
+	}
+}
@@ -14,11 +14,24 @@
 
 package org.openmrs.module.pihmalawi.activator;
 
+import java.util.List;
+
 /**
  * Interface for code to be run during the module activation process
  */
 public interface Initializer {
 
+	/**
+	 * @return the types of any other initializers that must have started before this one is started
+	 */
+	List<Class<? extends Initializer>> getDependencies();
+
+	/**
+	 * @return true if this must have started before users can log in, false if it can be started in the background
+	 * after the module has started
+	 */
+	boolean isRequiredForLogin();
+
 	/**
 	 * Run during the activator started method
 	 */
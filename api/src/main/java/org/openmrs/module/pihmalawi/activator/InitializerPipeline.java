@@ -0,0 +1,234 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+
+package org.openmrs.module.pihmalawi.activator;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.context.Daemon;
+import org.openmrs.module.DaemonToken;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Starts a set of initializers in the order required by their dependencies.  Those required for login are started
+ * one after another in the calling thread.  The rest are then started in the background, each in its own daemon
+ * thread and session as soon as the initializers it depends on have started, so that independent ones run concurrently
+ */
+public class InitializerPipeline {
+
+	protected static final Log log = LogFactory.getLog(InitializerPipeline.class);
+
+	public static final long STOP_TIMEOUT_SECONDS = 60;
+
+	//***** PROPERTIES *****
+
+	private final List<Initializer> initializers;
+	private ExecutorService executor;
+	private volatile boolean stopping = false;
+
+	//***** CONSTRUCTORS *****
+
+	/**
+	 * @throws IllegalStateException if an initializer depends on one that is not included,
+	 * if the dependencies are circular, or if an initializer required for login depends on one that is not
+	 */
+	public InitializerPipeline(List<Initializer> initializers) {
+		Map<Class<?>, Initializer> initializersByType = new LinkedHashMap<Class<?>, Initializer>();
+		for (Initializer initializer : initializers) {
+			initializersByType.put(initializer.getClass(), initializer);
+		}
+		List<Initializer> sorted = new ArrayList<Initializer>();
+		Set<Initializer> visiting = new HashSet<Initializer>();
+		for (boolean requiredForLogin : new boolean[] {true, false}) {
+			for (Initializer initializer : initializers) {
+				if (initializer.isRequiredForLogin() == requiredForLogin) {
+					addWithDependencies(initializer, initializersByType, visiting, sorted);
+				}
+			}
+		}
+		this.initializers = Collections.unmodifiableList(sorted);
+	}
+
+	//***** METHODS *****
+
+	/**
+	 * @return the initializers, in the order in which they are started
+	 */
+	public List<Initializer> getInitializers() {
+		return initializers;
+	}
+
+	/**
+	 * Starts each initializer that is required for login, in the calling thread
+	 */
+	public void startRequiredForLogin() {
+		for (Initializer initializer : initializers) {
+			if (initializer.isRequiredForLogin()) {
+				start(initializer);
+			}
+		}
+	}
+
+	/**
+	 * Starts each initializer that is not required for login in the background, each in its own daemon thread once the
+	 * initializers it depends on have started.  If no daemon token is available, these are started in the calling thread
+	 * @return the number of initializers started or scheduled to start
+	 */
+	public int startDeferred(final DaemonToken daemonToken) {
+		List<Initializer> deferred = new ArrayList<Initializer>();
+		for (Initializer initializer : initializers) {
+			if (!initializer.isRequiredForLogin()) {
+				deferred.add(initializer);
+			}
+		}
+		if (deferred.isEmpty()) {
+			return 0;
+		}
+		if (daemonToken == null) {
+			log.warn("Daemon token is null, starting remaining initializers in the calling thread");
+			for (Initializer initializer : deferred) {
+				start(initializer);
+			}
+			return deferred.size();
+		}
+
+		// Each initializer waits on the ones it depends on, which are always submitted before it, and there is a thread for each
+		executor = Executors.newFixedThreadPool(deferred.size());
+		Map<Class<?>, Future<?>> results = new LinkedHashMap<Class<?>, Future<?>>();
+		for (final Initializer initializer : deferred) {
+			final List<Future<?>> dependencies = new ArrayList<Future<?>>();
+			for (Class<? extends Initializer> type : initializer.getDependencies()) {
+				if (results.containsKey(type)) {
+					dependencies.add(results.get(type));
+				}
+			}
+			results.put(initializer.getClass(), executor.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					try {
+						for (Future<?> dependency : dependencies) {
+							dependency.get();
+						}
+					}
+					catch (ExecutionException e) {
+						log.error("Not starting " + getName(initializer) + " as an initializer it depends on failed to start");
+						throw e;
+					}
+					if (stopping) {
+						log.info("Not starting " + getName(initializer) + " as initializers are being stopped");
+						return null;
+					}
+					startInDaemonThread(initializer, daemonToken);
+					return null;
+				}
+			}));
+		}
+		executor.shutdown();
+		return deferred.size();
+	}
+
+	/**
+	 * Waits for the initializers started in the background to finish starting, or failing to start
+	 * @return true if they have all finished, or false if the timeout elapsed first
+	 */
+	public boolean awaitDeferred(long timeout, TimeUnit unit) throws InterruptedException {
+		return executor == null || executor.awaitTermination(timeout, unit);
+	}
+
+	/**
+	 * Cancels any initializers that have not yet started, waits for any that are starting to finish, and then stops
+	 * each initializer in the reverse order it was started
+	 */
+	public void stop() {
+		stopping = true;
+		try {
+			if (!awaitDeferred(STOP_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+				log.warn("Timed out waiting for initializers to finish starting, stopping them anyway");
+				executor.shutdownNow();
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		for (int i = initializers.size() - 1; i >= 0; i--) {
+			initializers.get(i).stopped();
+		}
+	}
+
+	//***** PRIVATE METHODS *****
+
+	protected void start(Initializer initializer) {
+		long startTime = System.currentTimeMillis();
+		initializer.started();
+		log.info("Started " + getName(initializer) + " in " + (System.currentTimeMillis() - startTime) + " ms");
+	}
+
+	protected void startInDaemonThread(final Initializer initializer, DaemonToken daemonToken) {
+		final List<Throwable> errors = new ArrayList<Throwable>();
+		Daemon.runInDaemonThreadAndWait(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					start(initializer);
+				}
+				catch (Throwable t) {
+					errors.add(t);
+				}
+			}
+		}, daemonToken);
+		if (!errors.isEmpty()) {
+			log.error("Error starting " + getName(initializer), errors.get(0));
+			throw new IllegalStateException("Error starting " + getName(initializer), errors.get(0));
+		}
+	}
+
+	private void addWithDependencies(Initializer initializer, Map<Class<?>, Initializer> initializersByType, Set<Initializer> visiting, List<Initializer> sorted) {
+		if (sorted.contains(initializer)) {
+			return;
+		}
+		if (!visiting.add(initializer)) {
+			throw new IllegalStateException("Circular dependency on " + getName(initializer));
+		}
+		for (Class<? extends Initializer> type : initializer.getDependencies()) {
+			Initializer dependency = initializersByType.get(type);
+			if (dependency == null) {
+				throw new IllegalStateException("Unable to find " + type.getSimpleName() + " required by " + getName(initializer));
+			}
+			if (initializer.isRequiredForLogin() && !dependency.isRequiredForLogin()) {
+				throw new IllegalStateException(getName(initializer) + " is required for login, but depends on " + getName(dependency) + " which is not");
+			}
+			addWithDependencies(dependency, initializersByType, visiting, sorted);
+		}
+		visiting.remove(initializer);
+		sorted.add(initializer);
+	}
+
+	private String getName(Initializer initializer) {
+		return initializer.getClass().getSimpleName();
+	}
+}
@@ -60,6 +60,24 @@ public class LocationInitializer implements Initializer {
             "Zalewa HC"
     );
 
+	/**
+	 * @see Initializer#getDependencies()
+	 */
+	@Override
+	public List<Class<? extends Initializer>> getDependencies() {
+		List<Class<? extends Initializer>> l = new ArrayList<Class<? extends Initializer>>();
+		l.add(MetadataInitializer.class);
+		return l;
+	}
+
+	/**
+	 * @see Initializer#isRequiredForLogin()
+	 */
+	@Override
+	public boolean isRequiredForLogin() {
+		return true;
+	}
+
 	/**
 	 * @see Initializer#started()
 	 */
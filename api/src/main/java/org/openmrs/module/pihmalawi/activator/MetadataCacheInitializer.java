@@ -0,0 +1,74 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.pihmalawi.activator;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.module.pihmalawi.metadata.MetadataCache;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Subscribes the metadata cache to metadata events, so that cached lookups are cleared when the metadata changes
+ */
+public class MetadataCacheInitializer implements Initializer {
+
+	protected static final Log log = LogFactory.getLog(MetadataCacheInitializer.class);
+
+	/**
+	 * @see Initializer#getDependencies()
+	 */
+	@Override
+	public List<Class<? extends Initializer>> getDependencies() {
+		List<Class<? extends Initializer>> l = new ArrayList<Class<? extends Initializer>>();
+		return l;
+	}
+
+	/**
+	 * @see Initializer#isRequiredForLogin()
+	 */
+	@Override
+	public boolean isRequiredForLogin() {
+		return true;
+	}
+
+	/**
+	 * @see Initializer#started()
+	 */
+	@Override
+	public synchronized void started() {
+		MetadataCache cache = MetadataCache.getInstance();
+		cache.clearAll();
+		try {
+			cache.subscribe();
+			cache.setEnabled(true);
+		}
+		catch (Exception e) {
+			log.warn("Unable to subscribe the metadata cache to metadata events, disabling the cache", e);
+			cache.setEnabled(false);
+		}
+	}
+
+	/**
+	 * @see Initializer#stopped()
+	 */
+	@Override
+	public void stopped() {
+		MetadataCache cache = MetadataCache.getInstance();
+		log.info("Metadata cache statistics: " + cache.getStatistics());
+		cache.unsubscribe();
+	}
+}
@@ -21,15 +21,54 @@ import org.openmrs.api.context.Context;
 import org.openmrs.module.emrapi.EmrApiConstants;
 import org.openmrs.module.metadatadeploy.api.MetadataDeployService;
 import org.openmrs.module.metadatadeploy.bundle.MetadataBundle;
+import org.openmrs.module.metadatadeploy.bundle.Requires;
+import org.openmrs.module.metadatadeploy.bundle.VersionedMetadataBundle;
 import org.openmrs.module.pihmalawi.PihMalawiConstants;
 import org.openmrs.module.pihmalawi.metadata.EncounterTypes;
+import org.openmrs.module.pihmalawi.metadata.MetadataCache;
 import org.openmrs.module.pihmalawi.metadata.deploy.bundle.VisitTypeBundle;
 import org.openmrs.util.OpenmrsConstants;
+import org.springframework.util.ClassUtils;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 public class MetadataInitializer implements Initializer {
 
     protected static final Log log = LogFactory.getLog(MetadataInitializer.class);
 
+    /**
+     * The key under which the state of the metadata tables after the last successful install is recorded
+     */
+    public static final String DATABASE_STATE_KEY = "databaseState";
+
+    /**
+     * Metadata tables whose row count and latest created and changed dates make up the database state
+     */
+    public static final String[] AUDITED_METADATA_TABLES = {
+            "concept", "encounter_type", "encounter_role", "location", "location_tag", "location_attribute_type",
+            "patient_identifier_type", "person_attribute_type", "program", "program_workflow_state", "visit_type"
+    };
+
+    /**
+     * Metadata tables whose row count is also included in the database state
+     */
+    public static final String[] COUNTED_METADATA_TABLES = {
+            "concept_name", "concept_answer", "concept_set", "concept_reference_map", "program_workflow", "relationship_type"
+    };
+
+    /**
+     * The package whose classes are included in a bundle's fingerprint when the bundle references them
+     */
+    public static final String MODULE_PACKAGE = "org.openmrs.module.pihmalawi";
+
+    private final FingerprintLedger ledger = new FingerprintLedger(PihMalawiConstants.METADATA_BUNDLE_FINGERPRINT_GP_PREFIX);
+
     public GlobalProperty saveGlobalProperty(String name, String value) {
         GlobalProperty gp = null;
 
@@ -44,6 +83,24 @@ public class MetadataInitializer implements Initializer {
 
         return gp;
     }
+
+    /**
+     * @see Initializer#getDependencies()
+     */
+    @Override
+    public List<Class<? extends Initializer>> getDependencies() {
+        List<Class<? extends Initializer>> l = new ArrayList<Class<? extends Initializer>>();
+        return l;
+    }
+
+    /**
+     * @see Initializer#isRequiredForLogin()
+     */
+    @Override
+    public boolean isRequiredForLogin() {
+        return true;
+    }
+
     /**
      * @see Initializer#started()
      */
@@ -73,9 +130,141 @@ public class MetadataInitializer implements Initializer {
         // Create generated source / class files for these via maven plugin
         // Associate with versions and
 
+        installBundles(deployService, Context.getRegisteredComponents(MetadataBundle.class));
+
+        // Metadata may be installed without events being published for it, so drop anything looked up beforehand
+        MetadataCache.getInstance().clearAll();
+    }
+
+    /**
+     * Installs the given bundles.  Unless a reinstall is forced, or the metadata in the database has changed since
+     * the last successful install, any bundle whose fingerprint is unchanged since it was last installed is skipped.
+     * The fingerprint of each bundle installed, and the resulting state of the database, are then recorded
+     */
+    protected void installBundles(MetadataDeployService deployService, List<MetadataBundle> bundles) {
+        long startTime = System.currentTimeMillis();
+        String environment = FingerprintLedger.getEnvironmentFingerprint();
+        Map<MetadataBundle, String> fingerprints = new LinkedHashMap<MetadataBundle, String>();
+        for (MetadataBundle bundle : sortByRequirements(bundles)) {
+            fingerprints.put(bundle, getFingerprint(bundle, environment));
+        }
 
+        String databaseState = getDatabaseState();
+        boolean installAll = isForceReinstall() || databaseState == null || !ledger.isUnchanged(DATABASE_STATE_KEY, databaseState);
+        int numInstalled = 0;
+        if (installAll) {
+            log.info("Installing all " + bundles.size() + " metadata bundles");
+            ledger.record(DATABASE_STATE_KEY, null);
+            deployService.installBundles(bundles);
+            numInstalled = bundles.size();
+        }
+        for (Map.Entry<MetadataBundle, String> e : fingerprints.entrySet()) {
+            MetadataBundle bundle = e.getKey();
+            String key = getBundleKey(bundle);
+            if (!installAll) {
+                if (ledger.isUnchanged(key, e.getValue())) {
+                    log.debug("Skipping unchanged metadata bundle " + key);
+                    continue;
+                }
+                log.info("Installing changed metadata bundle " + key);
+                deployService.installBundle(bundle);
+                numInstalled++;
+            }
+            ledger.record(key, e.getValue());
+        }
+        ledger.record(DATABASE_STATE_KEY, getDatabaseState());
+        log.info("Installed " + numInstalled + " of " + bundles.size() + " metadata bundles in " + (System.currentTimeMillis() - startTime) + " ms");
+    }
+
+    /**
+     * @return the given bundles, ordered so that each follows any bundles it requires
+     */
+    protected List<MetadataBundle> sortByRequirements(Collection<MetadataBundle> bundles) {
+        Map<Class<?>, MetadataBundle> bundlesByType = new LinkedHashMap<Class<?>, MetadataBundle>();
+        for (MetadataBundle bundle : bundles) {
+            bundlesByType.put(ClassUtils.getUserClass(bundle), bundle);
+        }
+        List<MetadataBundle> ret = new ArrayList<MetadataBundle>();
+        Set<MetadataBundle> visited = new HashSet<MetadataBundle>();
+        for (MetadataBundle bundle : bundlesByType.values()) {
+            addWithRequirements(bundle, bundlesByType, visited, ret);
+        }
+        return ret;
+    }
+
+    private void addWithRequirements(MetadataBundle bundle, Map<Class<?>, MetadataBundle> bundlesByType, Set<MetadataBundle> visited, List<MetadataBundle> ret) {
+        if (visited.add(bundle)) {
+            Requires requires = ClassUtils.getUserClass(bundle).getAnnotation(Requires.class);
+            if (requires != null) {
+                for (Class<? extends MetadataBundle> requiredType : requires.value()) {
+                    MetadataBundle required = bundlesByType.get(requiredType);
+                    if (required == null) {
+                        throw new IllegalStateException("Unable to find bundle " + requiredType.getName() + " required by " + getBundleKey(bundle));
+                    }
+                    addWithRequirements(required, bundlesByType, visited, ret);
+                }
+            }
+            ret.add(bundle);
+        }
+    }
+
+    /**
+     * @return a fingerprint of the content declared by the given bundle, from the compiled form of the bundle class and
+     * of every class in this module that it references, such as its superclasses, nested classes, and the descriptors
+     * it installs, its version if it is versioned, and the given environment fingerprint, or null if the bundle cannot
+     * be fingerprinted
+     */
+    protected String getFingerprint(MetadataBundle bundle, String environment) {
+        List<Object> parts = new ArrayList<Object>();
+        parts.add(environment);
+        if (bundle instanceof VersionedMetadataBundle) {
+            parts.add(((VersionedMetadataBundle) bundle).getVersion());
+        }
+        Map<String, byte[]> classBytes = FingerprintLedger.getClassBytesWithReferences(ClassUtils.getUserClass(bundle), MODULE_PACKAGE);
+        if (classBytes == null) {
+            return null;
+        }
+        for (Map.Entry<String, byte[]> e : classBytes.entrySet()) {
+            parts.add(e.getKey());
+            parts.add(e.getValue());
+        }
+        return FingerprintLedger.fingerprint(parts.toArray());
+    }
+
+    /**
+     * @return a fingerprint of the row counts and latest created and changed dates of the metadata tables,
+     * or null if these cannot be queried
+     */
+    protected String getDatabaseState() {
+        StringBuilder sql = new StringBuilder("select ");
+        for (String table : AUDITED_METADATA_TABLES) {
+            sql.append("(select concat(count(*), '|', coalesce(max(date_created), ''), '|', coalesce(max(date_changed), '')) from ");
+            sql.append(table).append("), ");
+        }
+        for (String table : COUNTED_METADATA_TABLES) {
+            sql.append("(select count(*) from ").append(table).append("), ");
+        }
+        sql.setLength(sql.length() - 2);
+        try {
+            List<List<Object>> results = Context.getAdministrationService().executeSQL(sql.toString(), true);
+            return FingerprintLedger.fingerprint(results);
+        }
+        catch (Exception e) {
+            log.warn("Unable to determine the state of the metadata tables, so all metadata bundles will be installed", e);
+            return null;
+        }
+    }
+
+    protected boolean isForceReinstall() {
+        String gpValue = Context.getAdministrationService().getGlobalProperty(PihMalawiConstants.METADATA_FORCE_REINSTALL_GP_NAME);
+        if (StringUtils.isNotBlank(gpValue)) {
+            return Boolean.parseBoolean(gpValue.trim());
+        }
+        return PihMalawiConstants.METADATA_FORCE_REINSTALL_GP_VALUE;
+    }
 
-        deployService.installBundles(Context.getRegisteredComponents(MetadataBundle.class));
+    protected String getBundleKey(MetadataBundle bundle) {
+        return ClassUtils.getUserClass(bundle).getName();
     }
 
 
@@ -25,6 +25,7 @@ import org.openmrs.module.appui.AppUiExtensions;
 import org.openmrs.module.pihmalawi.data.IC3ScreeningDataLoader;
 import org.openmrs.module.pihmalawi.setup.CloseStaleVisitsSetup;
 import org.openmrs.module.pihmalawi.setup.MigrateViralLoadAndEIDTestResultsSetup;
+import org.openmrs.module.pihmalawi.sql.SqlConnectionPool;
 import org.openmrs.module.reporting.common.ObjectUtil;
 
 import java.util.ArrayList;
@@ -35,6 +36,10 @@ public class PihMalawiModuleActivator extends BaseModuleActivator implements Dae
 
 	private Log log = LogFactory.getLog(this.getClass());
 
+	private DaemonToken daemonToken;
+
+	private InitializerPipeline pipeline;
+
     @Override
     public void contextRefreshed() {
         log.info("PIH Malawi Module refreshed");
@@ -59,21 +64,23 @@ public class PihMalawiModuleActivator extends BaseModuleActivator implements Dae
 
     public List<Initializer> getInitializers() {
 		List<Initializer> l = new ArrayList<Initializer>();
+		l.add(new MetadataCacheInitializer());
 		l.add(new MetadataInitializer());
 		l.add(new LocationInitializer());
 		l.add(new SoundexInitializer());
 		l.add(new AddressTemplateInitializer());
 		l.add(new HtmlFormInitializer());
 		l.add(new ReportInitializer());
+		l.add(new IC3ScreeningDataInitializer());
 		return l;
 	}
 
 	@Override
 	public void started() {
 		log.info("pihmalawi module started - initializing...");
-		for (Initializer initializer : getInitializers()) {
-			initializer.started();
-		}
+		long startTime = System.currentTimeMillis();
+		pipeline = new InitializerPipeline(getInitializers());
+		pipeline.startRequiredForLogin();
 
 		// New bug/feature in Chrome/IE/Safari causes system to log out user with default logo link url.  Update this here.
         List<AllFreeStandingExtensions> l = Context.getRegisteredComponents(AllFreeStandingExtensions.class);
@@ -84,19 +91,25 @@ public class PihMalawiModuleActivator extends BaseModuleActivator implements Dae
             extensions.add(e);
         }
 
-        Context.getRegisteredComponents(IC3ScreeningDataLoader.class).get(0).runImmediately();
+        // Anything not needed for login, such as forms, reports, and the IC3 screening data, is started in the background
+        int numDeferred = pipeline.startDeferred(daemonToken);
+        log.info("pihmalawi module initialized for login in " + (System.currentTimeMillis() - startTime) + " ms, starting " + numDeferred + " remaining initializers in the background");
     }
 
 	@Override
 	public void stopped() {
-		for (int i=getInitializers().size()-1; i>=0; i--) {
-			getInitializers().get(i).stopped();
+		if (pipeline == null) {
+			pipeline = new InitializerPipeline(getInitializers());
 		}
+		pipeline.stop();
+		pipeline = null;
+		SqlConnectionPool.closeAll();
 		log.info("pihmalawi module stopped");
 	}
 
     @Override
     public void setDaemonToken(DaemonToken daemonToken) {
+        this.daemonToken = daemonToken;
         IC3ScreeningDataLoader.setDaemonToken(daemonToken);
     }
 
@@ -19,10 +19,12 @@ import org.apache.commons.lang.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.openmrs.api.context.Context;
+import org.openmrs.module.pihmalawi.PihMalawiConstants;
 import org.openmrs.module.pihmalawi.reporting.ApzuReportUtil;
 import org.openmrs.module.pihmalawi.reporting.definition.dataset.definition.SqlFileDataSetDefinition;
 import org.openmrs.module.pihmalawi.reporting.reports.ApzuReportManager;
 import org.openmrs.module.reporting.ReportingConstants;
+import org.openmrs.module.reporting.definition.DefinitionSummary;
 import org.openmrs.module.reporting.evaluation.parameter.Mapped;
 import org.openmrs.module.reporting.evaluation.parameter.Parameter;
 import org.openmrs.module.reporting.report.ReportDesign;
@@ -34,8 +36,16 @@ import org.openmrs.module.reporting.report.util.ReportUtil;
 import org.springframework.core.io.Resource;
 import org.springframework.core.io.support.PathMatchingResourcePatternResolver;
 
+import java.io.InputStream;
+import java.io.StringReader;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Initializes reports
@@ -44,24 +54,178 @@ public class ReportInitializer implements Initializer {
 
 	protected static final Log log = LogFactory.getLog(ReportInitializer.class);
 
+	public static final String SQL_REPORT_KEY_PREFIX = "sql.";
+
+	private static final FingerprintLedger ledger = new FingerprintLedger(PihMalawiConstants.REPORT_FINGERPRINT_GP_PREFIX);
+
+	private static String codeFingerprint;
+
+	/**
+	 * Held while reports are set up, so that reports set up on demand and at startup are never set up concurrently
+	 */
+	private static final Object setupLock = new Object();
+
+	/**
+	 * The uuids of report managers that have been set up, or found to be unchanged, since the module was started,
+	 * so that reports set up on demand are only checked against the database the first time they are needed
+	 */
+	private static final Set<String> reportsUpToDate = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+	private int numSetup = 0;
+	private int numSkipped = 0;
+	private long timeSaved = 0;
+
+	/**
+	 * @see Initializer#getDependencies()
+	 */
+	@Override
+	public List<Class<? extends Initializer>> getDependencies() {
+		List<Class<? extends Initializer>> l = new ArrayList<Class<? extends Initializer>>();
+		l.add(MetadataInitializer.class);
+		return l;
+	}
+
+	/**
+	 * @see Initializer#isRequiredForLogin()
+	 */
+	@Override
+	public boolean isRequiredForLogin() {
+		return false;
+	}
+
 	/**
 	 * @see Initializer#started()
 	 */
 	@Override
-	public synchronized void started() {
-	    removeReport("9880C308-8734-444E-812B-05D95ADE63BE"); // Can be removed once "IC3 - Patient Future Appointments Report is confirmed removed
-	    for (ReportManager reportManager : Context.getRegisteredComponents(ApzuReportManager.class)) {
-	        if (reportManager.getClass().getAnnotation(Deprecated.class) != null) {
-	            log.warn("Report " +reportManager.getName() + " is deprecated.  Removing it from use.");
-	            removeReport(reportManager);
-            }
-            else {
-                log.warn("Setting up report " +reportManager.getName() + "...");
-                ReportManagerUtil.setupReport(reportManager);
-            }
-        }
-        loadSqlReports();
+	public void started() {
+		long startTime = System.currentTimeMillis();
+		synchronized (setupLock) {
+			removeReport("9880C308-8734-444E-812B-05D95ADE63BE"); // Can be removed once "IC3 - Patient Future Appointments Report is confirmed removed
+			Set<String> existingUuids = getExistingReportUuids();
+			for (ReportManager reportManager : Context.getRegisteredComponents(ApzuReportManager.class)) {
+				setupReportIfChanged(reportManager, existingUuids);
+			}
+			loadSqlReports(existingUuids);
+		}
 		ReportUtil.updateGlobalProperty(ReportingConstants.GLOBAL_PROPERTY_DATA_EVALUATION_BATCH_SIZE, "-1");
+		log.info("Set up " + numSetup + " changed reports in " + (System.currentTimeMillis() - startTime) + " ms, skipping " +
+				numSkipped + " unchanged reports which previously took " + timeSaved + " ms to set up");
+	}
+
+	/**
+	 * Sets up the given report if it has not already been set up, or if it has changed since it was last set up,
+	 * or removes it if it is deprecated.  This can be used to build a report on demand, when it is first needed.
+	 * Once a report has been checked, it is not checked again until the module is restarted
+	 */
+	public static void setupReportIfChanged(ReportManager reportManager) {
+		if (!isUpToDate(reportManager)) {
+			synchronized (setupLock) {
+				if (!isUpToDate(reportManager)) {
+					new ReportInitializer().setupReportIfChanged(reportManager, getExistingReportUuids());
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return true if the given report has been set up, or found to be unchanged, since the module was started
+	 */
+	public static boolean isUpToDate(ReportManager reportManager) {
+		return reportsUpToDate.contains(reportManager.getUuid());
+	}
+
+	protected void setupReportIfChanged(ReportManager reportManager, Set<String> existingUuids) {
+		boolean deprecated = reportManager.getClass().getAnnotation(Deprecated.class) != null;
+		String key = reportManager.getUuid();
+		String fingerprint = FingerprintLedger.fingerprint(FingerprintLedger.getEnvironmentFingerprint(), getCodeFingerprint(),
+				key, reportManager.getVersion(), ApzuReportUtil.getExcelPassword(), deprecated);
+		if (!isUnchanged(key, fingerprint, key, deprecated, existingUuids)) {
+			long startTime = System.currentTimeMillis();
+			setupReport(reportManager, deprecated);
+			recordSetup(key, fingerprint, startTime);
+		}
+		reportsUpToDate.add(key);
+	}
+
+	/**
+	 * Sets up the given report, or removes it if it is deprecated
+	 */
+	protected void setupReport(ReportManager reportManager, boolean deprecated) {
+		if (deprecated) {
+			log.warn("Report " +reportManager.getName() + " is deprecated.  Removing it from use.");
+			removeReport(reportManager);
+		}
+		else {
+			log.warn("Setting up report " +reportManager.getName() + "...");
+			ReportManagerUtil.setupReport(reportManager);
+		}
+	}
+
+	/**
+	 * @return true if the content with the given key has been set up with the same fingerprint, and the report with the
+	 * given uuid still exists, or still does not exist if it is deprecated.  If so, the time that was saved is recorded
+	 */
+	protected boolean isUnchanged(String key, String fingerprint, String reportUuid, boolean deprecated, Set<String> existingUuids) {
+		if (ledger.isUnchanged(key, fingerprint) && deprecated != existingUuids.contains(reportUuid)) {
+			numSkipped++;
+			timeSaved += ledger.getDuration(key);
+			log.debug("Skipping unchanged report " + key);
+			return true;
+		}
+		return false;
+	}
+
+	protected void recordSetup(String key, String fingerprint, long startTime) {
+		numSetup++;
+		ledger.record(key, fingerprint, System.currentTimeMillis() - startTime);
+	}
+
+	/**
+	 * @return the uuids of all report definitions that are currently saved, without loading the definitions themselves
+	 */
+	protected static Set<String> getExistingReportUuids() {
+		Set<String> ret = new HashSet<String>();
+		for (DefinitionSummary summary : Context.getService(ReportDefinitionService.class).getAllDefinitionSummaries(true)) {
+			ret.add(summary.getUuid());
+		}
+		return ret;
+	}
+
+	/**
+	 * Report managers build their definitions from the reporting libraries, metadata, and templates in this module,
+	 * so a report is considered changed whenever any of these have changed.  This is calculated once, as it does not
+	 * change while the module is running
+	 * @return a fingerprint of each class and resource in the reporting and metadata packages
+	 */
+	protected static synchronized String getCodeFingerprint() {
+		if (codeFingerprint == null) {
+			try {
+				PathMatchingResourcePatternResolver resourceResolver = new PathMatchingResourcePatternResolver();
+				Map<String, Resource> resources = new TreeMap<String, Resource>();
+				for (String pattern : new String[] {"reporting/**/*.*", "metadata/**/*.*"}) {
+					for (Resource r : resourceResolver.getResources("classpath*:/org/openmrs/module/pihmalawi/" + pattern)) {
+						String path = r.getURL().toString();
+						resources.put(path.substring(path.lastIndexOf("org/openmrs/module/pihmalawi/")), r);
+					}
+				}
+				List<Object> parts = new ArrayList<Object>();
+				for (Map.Entry<String, Resource> e : resources.entrySet()) {
+					InputStream is = e.getValue().getInputStream();
+					try {
+						parts.add(e.getKey());
+						parts.add(IOUtils.toByteArray(is));
+					}
+					finally {
+						IOUtils.closeQuietly(is);
+					}
+				}
+				codeFingerprint = FingerprintLedger.fingerprint(parts.toArray());
+			}
+			catch (Exception e) {
+				throw new IllegalStateException("Unable to read reporting resources from classpath", e);
+			}
+		}
+		return codeFingerprint;
 	}
 
 	public static void removeReport(ReportManager reportManager) {
@@ -79,14 +243,22 @@ public class ReportInitializer implements Initializer {
         }
     }
 
-    public static void loadSqlReports() {
+    public void loadSqlReports() {
+        loadSqlReports(getExistingReportUuids());
+    }
+
+    /**
+     * Sets up each SQL report on the classpath that has not already been set up, or has changed since it was last set up
+     */
+    protected void loadSqlReports(Set<String> existingUuids) {
         PathMatchingResourcePatternResolver resourceResolver = new PathMatchingResourcePatternResolver();
         try {
             Resource[] resources = resourceResolver.getResources("classpath*:/org/openmrs/module/pihmalawi/reporting/reports/sql/*");
             if (resources != null) {
                 for (Resource r : resources) {
-                    log.info("Loading " + r.getFilename());
-                    List<String> lineByLineContents = IOUtils.readLines(r.getInputStream(), "UTF-8");
+                    log.debug("Loading " + r.getFilename());
+                    String contents = IOUtils.toString(r.getInputStream(), "UTF-8");
+                    List<String> lineByLineContents = IOUtils.readLines(new StringReader(contents));
 
                     boolean deprecated = false;
 
@@ -130,6 +302,13 @@ public class ReportInitializer implements Initializer {
                         throw new IllegalArgumentException("SQL resource" + r.getFilename() + " must define a report_name, report_uuid and design_uuid at minimum");
                     }
 
+                    String key = SQL_REPORT_KEY_PREFIX + r.getFilename();
+                    String fingerprint = FingerprintLedger.fingerprint(FingerprintLedger.getEnvironmentFingerprint(),
+                            key, contents, ApzuReportUtil.getExcelPassword());
+                    if (isUnchanged(key, fingerprint, rd.getUuid(), deprecated, existingUuids)) {
+                        continue;
+                    }
+
                     SqlFileDataSetDefinition dsd = new SqlFileDataSetDefinition();
                     dsd.setSql(sql.toString());
                     dsd.setParameters(rd.getParameters());
@@ -139,12 +318,15 @@ public class ReportInitializer implements Initializer {
                     List<ReportDesign> designs = new ArrayList<ReportDesign>();
                     designs.add(ApzuReportUtil.createExcelDesign(designUuid, rd));
 
+                    long startTime = System.currentTimeMillis();
                     if (deprecated) {
                         removeReport(rd.getUuid());
                     }
                     else {
+                        log.info("Setting up SQL report " + r.getFilename());
                         ReportManagerUtil.setupReportDefinition(rd, designs, null);
                     }
+                    recordSetup(key, fingerprint, startTime);
                 }
             }
         }
@@ -158,5 +340,6 @@ public class ReportInitializer implements Initializer {
      */
     @Override
     public void stopped() {
+        reportsUpToDate.clear();
     }
 }
@@ -19,6 +19,9 @@ import org.apache.commons.logging.LogFactory;
 import org.openmrs.module.namephonetics.NamePhoneticsConstants;
 import org.openmrs.module.reporting.report.util.ReportUtil;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * Initializes Soundex Configuration requirements
  */
@@ -26,6 +29,23 @@ public class SoundexInitializer implements Initializer {
 
 	protected static final Log log = LogFactory.getLog(SoundexInitializer.class);
 
+	/**
+	 * @see Initializer#getDependencies()
+	 */
+	@Override
+	public List<Class<? extends Initializer>> getDependencies() {
+		List<Class<? extends Initializer>> l = new ArrayList<Class<? extends Initializer>>();
+		return l;
+	}
+
+	/**
+	 * @see Initializer#isRequiredForLogin()
+	 */
+	@Override
+	public boolean isRequiredForLogin() {
+		return false;
+	}
+
 	/**
 	 * @see Initializer#started()
 	 */
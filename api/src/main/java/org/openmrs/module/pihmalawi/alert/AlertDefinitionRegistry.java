@@ -0,0 +1,312 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.pihmalawi.alert;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.type.TypeReference;
+import org.openmrs.module.pihmalawi.common.JsonObject;
+import org.openmrs.module.reporting.report.util.ReportUtil;
+import org.openmrs.util.OpenmrsClassLoader;
+
+import java.io.BufferedReader;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Loads the alert definitions and constants from the classpath once, and retains them as an immutable Snapshot.
+ * The resources are checked for modification at most once every checkIntervalMillis, and if any have changed,
+ * a new Snapshot is loaded and swapped in atomically.  Readers always see either the old or the new Snapshot in full.
+ */
+public class AlertDefinitionRegistry {
+
+    private final static Log log = LogFactory.getLog(AlertDefinitionRegistry.class);
+
+    public static final long DEFAULT_CHECK_INTERVAL_MILLIS = 60*1000;
+
+    private static final AlertDefinitionRegistry instance = new AlertDefinitionRegistry();
+
+    //***** PROPERTIES *****
+
+    private final AtomicReference<Snapshot> snapshot = new AtomicReference<Snapshot>();
+    private final AtomicLong lastChecked = new AtomicLong(0);
+    private long checkIntervalMillis = DEFAULT_CHECK_INTERVAL_MILLIS;
+    private ObjectMapper objectMapper = new ObjectMapper();
+
+    //***** CONSTRUCTORS *****
+
+    public AlertDefinitionRegistry() {
+    }
+
+    /**
+     * @return the registry shared by all AlertEngines
+     */
+    public static AlertDefinitionRegistry getInstance() {
+        return instance;
+    }
+
+    //***** METHODS *****
+
+    /**
+     * @return the current snapshot of alert definitions and constants, reloading it first if any resource has changed
+     */
+    public Snapshot getSnapshot() {
+        Snapshot current = snapshot.get();
+        if (current == null) {
+            snapshot.compareAndSet(null, loadSnapshot());
+            lastChecked.set(System.currentTimeMillis());
+        }
+        else {
+            long now = System.currentTimeMillis();
+            long checked = lastChecked.get();
+            if (now - checked >= checkIntervalMillis && lastChecked.compareAndSet(checked, now)) {
+                if (current.isModified()) {
+                    log.info("Alert definitions have changed, reloading");
+                    snapshot.compareAndSet(current, loadSnapshot());
+                }
+            }
+        }
+        return snapshot.get();
+    }
+
+    /**
+     * @return all of the alert definitions defined as JSON in the classpath
+     */
+    public List<AlertDefinition> getAlertDefinitions() {
+        return getSnapshot().getAlertDefinitions();
+    }
+
+    /**
+     * @return the alert definition with the given name, or null if none is defined
+     */
+    public AlertDefinition getAlertDefinition(String name) {
+        return getSnapshot().getAlertDefinition(name);
+    }
+
+    /**
+     * @return the constants made available to alert conditions, which cannot be modified
+     */
+    public Map<String, Object> getConstants() {
+        return getSnapshot().getConstants();
+    }
+
+    /**
+     * Loads a new snapshot from the classpath and swaps it in, regardless of whether any resources have changed
+     */
+    public void reload() {
+        snapshot.set(loadSnapshot());
+        lastChecked.set(System.currentTimeMillis());
+    }
+
+    //***** PRIVATE METHODS *****
+
+    protected Snapshot loadSnapshot() {
+        List<AlertDefinition> definitions = new ArrayList<AlertDefinition>();
+        Map<String, Long> lastModified = new LinkedHashMap<String, Long>();
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(OpenmrsClassLoader.getInstance().getResourceAsStream(AlertEngine.ALERT_DEFINITIONS_RESOURCE)));
+            for (String resource = reader.readLine(); resource != null; resource = reader.readLine()) {
+                String path = AlertEngine.ALERT_DEFINITIONS_RESOURCE + "/" + resource;
+                String json = ReportUtil.readStringFromResource(path);
+                List<AlertDefinition> alertDefinitionList = objectMapper.readValue(json, new TypeReference<List<AlertDefinition>>() { });
+                definitions.addAll(alertDefinitionList);
+                lastModified.put(path, getLastModified(path));
+            }
+        }
+        catch (Exception e) {
+            throw new RuntimeException("Unable to load alert definitions", e);
+        }
+        finally {
+            IOUtils.closeQuietly(reader);
+        }
+        JsonObject constants = JsonObject.fromJsonResource(AlertEngine.CONSTANTS_RESOURCE);
+        lastModified.put(AlertEngine.CONSTANTS_RESOURCE, getLastModified(AlertEngine.CONSTANTS_RESOURCE));
+        log.debug("Loaded " + definitions.size() + " alert definitions and " + constants.size() + " constants");
+        return new Snapshot(definitions, constants, lastModified);
+    }
+
+    /**
+     * @return the last modified time of the given classpath resource, or 0 if this cannot be determined
+     */
+    protected static long getLastModified(String resource) {
+        URL url = OpenmrsClassLoader.getInstance().getResource(resource);
+        if (url == null) {
+            return 0;
+        }
+        InputStream is = null;
+        try {
+            URLConnection connection = url.openConnection();
+            long ret = connection.getLastModified();
+            is = connection.getInputStream(); // Ensures underlying jar files are released
+            return ret;
+        }
+        catch (Exception e) {
+            log.debug("Unable to determine last modified time of " + resource, e);
+            return 0;
+        }
+        finally {
+            IOUtils.closeQuietly(is);
+        }
+    }
+
+    //***** ACCESSORS *****
+
+    public long getCheckIntervalMillis() {
+        return checkIntervalMillis;
+    }
+
+    /**
+     * @param checkIntervalMillis the minimum time between checks for modified resources
+     */
+    public void setCheckIntervalMillis(long checkIntervalMillis) {
+        this.checkIntervalMillis = checkIntervalMillis;
+    }
+
+    /**
+     * An immutable set of alert definitions and constants, as loaded at a particular point in time
+     * The definitions and constants are copied when the snapshot is created, and cannot be modified by readers
+     */
+    public static class Snapshot {
+
+        private final List<AlertDefinition> alertDefinitions;
+        private final Map<String, AlertDefinition> alertDefinitionsByName;
+        private final Map<String, Object> constants;
+        private final Map<String, Long> lastModified;
+
+        public Snapshot(List<AlertDefinition> alertDefinitions, JsonObject constants, Map<String, Long> lastModified) {
+            List<AlertDefinition> definitions = new ArrayList<AlertDefinition>();
+            Map<String, AlertDefinition> byName = new LinkedHashMap<String, AlertDefinition>();
+            for (AlertDefinition d : alertDefinitions) {
+                AlertDefinition copy = new ImmutableAlertDefinition(d);
+                definitions.add(copy);
+                if (!byName.containsKey(copy.getName())) { // Retain the first definition with a given name, as the linear scan did
+                    byName.put(copy.getName(), copy);
+                }
+            }
+            this.alertDefinitions = Collections.unmodifiableList(definitions);
+            this.alertDefinitionsByName = Collections.unmodifiableMap(byName);
+            this.constants = (Map<String, Object>) toImmutable(constants);
+            this.lastModified = Collections.unmodifiableMap(new LinkedHashMap<String, Long>(lastModified));
+        }
+
+        /**
+         * @return true if any of the resources this snapshot was loaded from have since been modified
+         */
+        public boolean isModified() {
+            for (Map.Entry<String, Long> e : lastModified.entrySet()) {
+                if (getLastModified(e.getKey()) != e.getValue()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        public List<AlertDefinition> getAlertDefinitions() {
+            return alertDefinitions;
+        }
+
+        public AlertDefinition getAlertDefinition(String name) {
+            return alertDefinitionsByName.get(name);
+        }
+
+        public Map<String, Object> getConstants() {
+            return constants;
+        }
+
+        /**
+         * @return an unmodifiable copy of the given value, if it is a Map or List, with any Maps or Lists that it contains also copied
+         */
+        protected static Object toImmutable(Object value) {
+            if (value instanceof Map) {
+                Map<Object, Object> ret = new LinkedHashMap<Object, Object>();
+                for (Map.Entry<?, ?> e : ((Map<?, ?>) value).entrySet()) {
+                    ret.put(e.getKey(), toImmutable(e.getValue()));
+                }
+                return Collections.unmodifiableMap(ret);
+            }
+            if (value instanceof List) {
+                List<Object> ret = new ArrayList<Object>();
+                for (Object o : (List<?>) value) {
+                    ret.add(toImmutable(o));
+                }
+                return Collections.unmodifiableList(ret);
+            }
+            return value;
+        }
+    }
+
+    /**
+     * An alert definition that is shared by all readers of a Snapshot, and so cannot be modified
+     */
+    private static class ImmutableAlertDefinition extends AlertDefinition {
+
+        private ImmutableAlertDefinition(AlertDefinition d) {
+            super.setName(d.getName());
+            super.setCategories(d.getCategories() == null ? null : Collections.unmodifiableList(new ArrayList<String>(d.getCategories())));
+            super.setAlert(d.getAlert());
+            super.setAction(d.getAction());
+            super.setConditions(d.getConditions() == null ? null : Collections.unmodifiableList(new ArrayList<String>(d.getConditions())));
+            super.setNotes(d.getNotes());
+            super.setEnabled(d.isEnabled());
+        }
+
+        @Override
+        public void setName(String name) {
+            throw new UnsupportedOperationException("Alert definition " + getName() + " cannot be modified");
+        }
+
+        @Override
+        public void setCategories(List<String> categories) {
+            throw new UnsupportedOperationException("Alert definition " + getName() + " cannot be modified");
+        }
+
+        @Override
+        public void setAlert(String alert) {
+            throw new UnsupportedOperationException("Alert definition " + getName() + " cannot be modified");
+        }
+
+        @Override
+        public void setAction(String action) {
+            throw new UnsupportedOperationException("Alert definition " + getName() + " cannot be modified");
+        }
+
+        @Override
+        public void setConditions(List<String> conditions) {
+            throw new UnsupportedOperationException("Alert definition " + getName() + " cannot be modified");
+        }
+
+        @Override
+        public void setNotes(String notes) {
+            throw new UnsupportedOperationException("Alert definition " + getName() + " cannot be modified");
+        }
+
+        @Override
+        public void setEnabled(boolean enabled) {
+            throw new UnsupportedOperationException("Alert definition " + getName() + " cannot be modified");
+        }
+    }
+}
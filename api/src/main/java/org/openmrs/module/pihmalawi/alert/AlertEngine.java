@@ -17,19 +17,15 @@ package org.openmrs.module.pihmalawi.alert;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.codehaus.jackson.map.ObjectMapper;
-import org.codehaus.jackson.type.TypeReference;
 import org.openmrs.OpenmrsObject;
-import org.openmrs.module.pihmalawi.common.JsonObject;
-import org.openmrs.module.reporting.report.util.ReportUtil;
 import org.openmrs.util.OpenmrsClassLoader;
 
 import javax.script.ScriptEngine;
 import javax.script.ScriptEngineManager;
-import java.io.BufferedReader;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -46,7 +42,11 @@ public class AlertEngine {
     public static final String CONSTANTS_RESOURCE = "org/openmrs/module/pihmalawi/alert/constants.json";
 
     private ScriptEngineManager scriptEngineManager = new ScriptEngineManager();
-    private ObjectMapper objectMapper = new ObjectMapper();
+    private AlertDefinitionRegistry registry = AlertDefinitionRegistry.getInstance();
+    private boolean compileConditions = true;
+
+    // Script engines are not safe to share across threads, so compiled alerts are retained per thread
+    private ThreadLocal<CompiledAlertDefinitions> compiledAlerts = new ThreadLocal<CompiledAlertDefinitions>();
 
 
     //***** CONSTRUCTORS *****
@@ -60,41 +60,60 @@ public class AlertEngine {
      * Returns the alert with the given name
      */
     public AlertDefinition getAlertDefinition(String name) {
-        for (AlertDefinition d : getAlertDefinitions()) {
-            if (d.getName().equals(name)) {
-                return d;
-            }
-        }
-        return null;
+        return registry.getAlertDefinition(name);
     }
 
     /**
      * @return all of the alert definitions defined as JSON in the classpath
      */
     public List<AlertDefinition> getAlertDefinitions() {
-        List<AlertDefinition> ret = new ArrayList<AlertDefinition>();
-        BufferedReader reader = null;
-        try {
-            reader = new BufferedReader(new InputStreamReader(OpenmrsClassLoader.getInstance().getResourceAsStream(ALERT_DEFINITIONS_RESOURCE)));
-            for (String resource = reader.readLine(); resource != null; resource = reader.readLine()) {
-                String json = ReportUtil.readStringFromResource(ALERT_DEFINITIONS_RESOURCE + "/" + resource);
-                List<AlertDefinition> alertDefinitionList = objectMapper.readValue(json, new TypeReference<List<AlertDefinition>>() { });
-                ret.addAll(alertDefinitionList);
-            }
+        return registry.getAlertDefinitions();
+    }
+
+    /**
+     * Given a List of alerts, and variables to check, return a new List of alerts that conditionally pass given variables
+     */
+    public List<AlertDefinition> evaluateMatchingAlerts(List<AlertDefinition> alerts, Map<String, Object> variableBindings) {
+        if (compileConditions) {
+            return getCompiledAlertDefinitions(alerts).evaluate(variableBindings);
         }
-        catch (Exception e) {
-            throw new RuntimeException("Unable to load alert definitions", e);
+        return evaluateMatchingAlertsInNewEngine(alerts, variableBindings);
+    }
+
+    /**
+     * Given a List of alerts, and variables to check for each patient in a cohort,
+     * return the alerts that conditionally pass for each patient, evaluated in a single pass
+     */
+    public Map<Integer, List<AlertDefinition>> evaluateMatchingAlertsForCohort(List<AlertDefinition> alerts, Map<Integer, ? extends Map<String, Object>> variableBindingsByPatient) {
+        if (compileConditions) {
+            return getCompiledAlertDefinitions(alerts).evaluateAll(variableBindingsByPatient);
         }
-        finally {
-            IOUtils.closeQuietly(reader);
+        Map<Integer, List<AlertDefinition>> ret = new LinkedHashMap<Integer, List<AlertDefinition>>();
+        for (Map.Entry<Integer, ? extends Map<String, Object>> e : variableBindingsByPatient.entrySet()) {
+            ret.put(e.getKey(), evaluateMatchingAlertsInNewEngine(alerts, e.getValue()));
         }
         return ret;
     }
 
     /**
-     * Given a List of alerts, and variables to check, return a new List of alerts that conditionally pass given variables
+     * @return the compiled form of the given alerts for the current thread, compiling them only if they have changed
      */
-    public List<AlertDefinition> evaluateMatchingAlerts(List<AlertDefinition> alerts, Map<String, Object> variableBindings) {
+    public CompiledAlertDefinitions getCompiledAlertDefinitions(List<AlertDefinition> alerts) {
+        CompiledAlertDefinitions compiled = compiledAlerts.get();
+        Map<String, Object> constants = registry.getConstants();
+        if (compiled == null || compiled.getConstants() != constants || !compiled.isCompiledFrom(alerts)) {
+            log.debug("Compiling alert definitions");
+            compiled = new CompiledAlertDefinitions(createScriptEngine(null, constants), alerts, constants);
+            compiledAlerts.set(compiled);
+        }
+        return compiled;
+    }
+
+    /**
+     * Evaluates the given alerts by creating a new script engine and evaluating each condition from its source
+     * This is the original evaluation mode, retained for comparison and for use when compileConditions is false
+     */
+    protected List<AlertDefinition> evaluateMatchingAlertsInNewEngine(List<AlertDefinition> alerts, Map<String, Object> variableBindings) {
         ScriptEngine scriptEngine = createScriptEngine(variableBindings);
         List<AlertDefinition> ret = new ArrayList<AlertDefinition>();
         if (alerts != null) {
@@ -158,9 +177,15 @@ public class AlertEngine {
      * Initialize a new script engine with all of the functions, and the passed variables bound
      */
     protected ScriptEngine createScriptEngine(Map<String, Object> variables) {
+        return createScriptEngine(variables, registry.getConstants());
+    }
+
+    /**
+     * Initialize a new script engine with all of the functions, the passed constants, and the passed variables bound
+     */
+    protected ScriptEngine createScriptEngine(Map<String, Object> variables, Map<String, Object> constants) {
         ScriptEngine scriptEngine = scriptEngineManager.getEngineByName(SCRIPT_ENGINE_NAME);
         evaluateResource(scriptEngine, FUNCTIONS_RESOURCE);
-        JsonObject constants = JsonObject.fromJsonResource(CONSTANTS_RESOURCE);
         for (String key : constants.keySet()) {
             Object val = constants.get(key);
             scriptEngine.put(key, val);
@@ -171,13 +196,7 @@ public class AlertEngine {
                 if (scriptEngine.get(key) != null) {
                     throw new IllegalArgumentException("Unable to create script engine.  Variable " + key + " already defined.");
                 }
-                Object val = variables.get(key);
-                if (val instanceof Date) {
-                    val = ((Date)val).getTime();
-                }
-                else if (val instanceof OpenmrsObject) {
-                    val = ((OpenmrsObject)val).getUuid();
-                }
+                Object val = toScriptValue(variables.get(key));
                 scriptEngine.put(key, val);
                 log.debug("Added variable " + key + " = " + val + (val == null ? "" : " (" + val.getClass().getSimpleName() + ")"));
 
@@ -185,4 +204,39 @@ public class AlertEngine {
         }
         return scriptEngine;
     }
+
+    /**
+     * Converts the passed variable value to the form that is bound into the script engine
+     */
+    protected static Object toScriptValue(Object val) {
+        if (val instanceof Date) {
+            return ((Date)val).getTime();
+        }
+        else if (val instanceof OpenmrsObject) {
+            return ((OpenmrsObject)val).getUuid();
+        }
+        return val;
+    }
+
+    // ***** ACCESSORS *****
+
+    public AlertDefinitionRegistry getRegistry() {
+        return registry;
+    }
+
+    public void setRegistry(AlertDefinitionRegistry registry) {
+        this.registry = registry;
+    }
+
+    public boolean isCompileConditions() {
+        return compileConditions;
+    }
+
+    /**
+     * @param compileConditions if true (the default), conditions are compiled once and re-used for each evaluation
+     * if false, a new script engine is created and each condition is evaluated from source for every evaluation
+     */
+    public void setCompileConditions(boolean compileConditions) {
+        this.compileConditions = compileConditions;
+    }
 }
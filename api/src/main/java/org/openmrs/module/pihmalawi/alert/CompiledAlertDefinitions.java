@@ -0,0 +1,216 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.pihmalawi.alert;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import javax.script.Bindings;
+import javax.script.Compilable;
+import javax.script.CompiledScript;
+import javax.script.ScriptContext;
+import javax.script.ScriptEngine;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A set of AlertDefinitions whose conditions have been compiled once against a single script engine
+ * that has the functions and constants already loaded.  Each evaluation binds the variables for one patient
+ * into the engine, runs the compiled conditions, and then removes those variables again, so no engine needs
+ * to be created and no condition needs to be re-parsed per patient.
+ *
+ * Instances are not thread-safe, as they share a single engine scope.  AlertEngine retains one per thread.
+ */
+public class CompiledAlertDefinitions {
+
+    private final static Log log = LogFactory.getLog(CompiledAlertDefinitions.class);
+
+    //***** PROPERTIES *****
+
+    private final ScriptEngine scriptEngine;
+    private final List<AlertDefinition> alertDefinitions;
+    private final List<List<CompiledScript>> compiledConditions;
+    private final List<AlertDefinition> source;
+    private final List<String> signature;
+    private final Set<String> reservedNames;
+    private final Map<String, Object> constants;
+
+    //***** CONSTRUCTORS *****
+
+    /**
+     * @param scriptEngine an engine that has already been initialized with all functions and constants
+     * @param alertDefinitions the alerts to compile
+     */
+    public CompiledAlertDefinitions(ScriptEngine scriptEngine, List<AlertDefinition> alertDefinitions) {
+        this(scriptEngine, alertDefinitions, null);
+    }
+
+    /**
+     * @param scriptEngine an engine that has already been initialized with all functions and the given constants
+     * @param alertDefinitions the alerts to compile
+     * @param constants the constants that were bound into the engine
+     */
+    public CompiledAlertDefinitions(ScriptEngine scriptEngine, List<AlertDefinition> alertDefinitions, Map<String, Object> constants) {
+        this.scriptEngine = scriptEngine;
+        this.constants = constants;
+        this.alertDefinitions = new ArrayList<AlertDefinition>();
+        this.compiledConditions = new ArrayList<List<CompiledScript>>();
+        this.source = alertDefinitions;
+        this.signature = getSignature(alertDefinitions);
+        this.reservedNames = new HashSet<String>(scriptEngine.getBindings(ScriptContext.ENGINE_SCOPE).keySet());
+        if (alertDefinitions != null) {
+            for (AlertDefinition alert : alertDefinitions) {
+                if (alert.isEnabled()) {
+                    List<CompiledScript> compiled = new ArrayList<CompiledScript>();
+                    for (String condition : alert.getConditions()) {
+                        compiled.add(compile(condition));
+                    }
+                    this.alertDefinitions.add(alert);
+                    this.compiledConditions.add(compiled);
+                }
+                else {
+                    log.debug("Alert " + alert.getName() + " is not enabled");
+                }
+            }
+        }
+        log.debug("Compiled " + this.alertDefinitions.size() + " enabled alert definitions");
+    }
+
+    //***** METHODS *****
+
+    /**
+     * @return true if this was compiled from alerts with the same names, enabled states, and conditions as those passed in
+     */
+    public boolean isCompiledFrom(List<AlertDefinition> alerts) {
+        return alerts == source || signature.equals(getSignature(alerts));
+    }
+
+    /**
+     * @return the alerts whose conditions all pass for the given variables
+     */
+    public List<AlertDefinition> evaluate(Map<String, Object> variables) {
+        List<AlertDefinition> ret = new ArrayList<AlertDefinition>();
+        Bindings bindings = scriptEngine.getBindings(ScriptContext.ENGINE_SCOPE);
+        checkVariables(variables);
+        try {
+            bindVariables(bindings, variables);
+            for (int i = 0; i < alertDefinitions.size(); i++) {
+                AlertDefinition alert = alertDefinitions.get(i);
+                log.debug("Evaluating alert: " + alert.getName());
+                List<CompiledScript> conditions = compiledConditions.get(i);
+                boolean include = true;
+                for (int j = 0; include && j < conditions.size(); j++) {
+                    String condition = alert.getConditions().get(j);
+                    try {
+                        include = (Boolean) conditions.get(j).eval(bindings);
+                        log.debug(condition + " -> " + include);
+                    }
+                    catch (Exception e) {
+                        throw new RuntimeException("Error evaluating condition: " + condition, e);
+                    }
+                }
+                if (include) {
+                    ret.add(alert);
+                }
+            }
+        }
+        finally {
+            unbindVariables(bindings, variables);
+        }
+        return ret;
+    }
+
+    /**
+     * @return the matching alerts for each of the passed sets of variables, evaluated in a single pass
+     */
+    public <K> Map<K, List<AlertDefinition>> evaluateAll(Map<K, ? extends Map<String, Object>> variablesByKey) {
+        Map<K, List<AlertDefinition>> ret = new LinkedHashMap<K, List<AlertDefinition>>();
+        for (Map.Entry<K, ? extends Map<String, Object>> e : variablesByKey.entrySet()) {
+            ret.put(e.getKey(), evaluate(e.getValue()));
+        }
+        return ret;
+    }
+
+    /**
+     * @return the constants that were bound into the engine when these alerts were compiled
+     */
+    public Map<String, Object> getConstants() {
+        return constants;
+    }
+
+    //***** PRIVATE METHODS *****
+
+    private CompiledScript compile(final String condition) {
+        if (scriptEngine instanceof Compilable) {
+            try {
+                return ((Compilable) scriptEngine).compile(condition);
+            }
+            catch (Exception e) {
+                throw new RuntimeException("Error compiling condition: " + condition, e);
+            }
+        }
+        // Engines that do not support compilation still avoid being re-created for each patient
+        return new CompiledScript() {
+            @Override
+            public Object eval(ScriptContext context) throws javax.script.ScriptException {
+                return scriptEngine.eval(condition, context);
+            }
+            @Override
+            public ScriptEngine getEngine() {
+                return scriptEngine;
+            }
+        };
+    }
+
+    private void checkVariables(Map<String, Object> variables) {
+        if (variables != null) {
+            for (String key : variables.keySet()) {
+                if (reservedNames.contains(key)) {
+                    throw new IllegalArgumentException("Unable to bind variables.  Variable " + key + " already defined.");
+                }
+            }
+        }
+    }
+
+    private void bindVariables(Bindings bindings, Map<String, Object> variables) {
+        if (variables != null) {
+            for (String key : variables.keySet()) {
+                bindings.put(key, AlertEngine.toScriptValue(variables.get(key)));
+            }
+        }
+    }
+
+    private void unbindVariables(Bindings bindings, Map<String, Object> variables) {
+        if (variables != null) {
+            for (String key : variables.keySet()) {
+                bindings.remove(key);
+            }
+        }
+    }
+
+    private static List<String> getSignature(List<AlertDefinition> alerts) {
+        List<String> ret = new ArrayList<String>();
+        if (alerts != null) {
+            for (AlertDefinition alert : alerts) {
+                ret.add(alert.getName() + "|" + alert.isEnabled() + "|" + alert.getConditions());
+            }
+        }
+        return ret;
+    }
+}
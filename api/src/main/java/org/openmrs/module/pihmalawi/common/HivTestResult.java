@@ -15,30 +15,40 @@
 package org.openmrs.module.pihmalawi.common;
 
 import org.openmrs.Concept;
-import org.openmrs.Obs;
 
 import java.util.Date;
 
 /**
  * A simple object that represents an HIV Test Result
  * There are multiple concepts that have stored test results, both questions and answers
+ * This holds only the values read from the relevant observations, rather than the observations themselves
  */
 public class HivTestResult implements JsonSerializable {
 
     //** PROPERTIES
 
-    private Obs testResultObs;
-    private Obs testTypeObs;
-    private Obs specimenDateObs;
-    private Obs resultDateObs;
+    private Integer testResultObsId;
+    private Integer obsGroupId;
+    private Concept testResultQuestion;
+    private Concept testResultAnswer;
+    private Date testResultObsDatetime;
+    private Concept testTypeAnswer;
+    private Date specimenDate;
+    private Date resultDate;
     private Date effectiveDate;
     private Concept testType;
     private Concept testResult;
 
     //***** CONSTRUCTORS *****
 
-    public HivTestResult(Obs testResultObs) {
-        this.testResultObs = testResultObs;
+    public HivTestResult() {}
+
+    public HivTestResult(Integer testResultObsId, Integer obsGroupId, Concept testResultQuestion, Concept testResultAnswer, Date testResultObsDatetime) {
+        this.testResultObsId = testResultObsId;
+        this.obsGroupId = obsGroupId;
+        this.testResultQuestion = testResultQuestion;
+        this.testResultAnswer = testResultAnswer;
+        this.testResultObsDatetime = testResultObsDatetime;
     }
 
     //***** METHODS *****
@@ -46,8 +56,8 @@ public class HivTestResult implements JsonSerializable {
     @Override
     public JsonObject toJsonObject() {
         JsonObject ret = new JsonObject();
-        ret.put("specimenDate", specimenDateObs == null ? null : specimenDateObs.getValueDate());
-        ret.put("resultDate", resultDateObs == null ? null : resultDateObs.getValueDate());
+        ret.put("specimenDate", specimenDate);
+        ret.put("resultDate", resultDate);
         ret.put("effectiveDate", getEffectiveDate());
         ret.put("result", testResult);
         ret.put("testType", testType);
@@ -56,36 +66,68 @@ public class HivTestResult implements JsonSerializable {
 
     //***** ACCESSORS ******
 
-    public Obs getTestResultObs() {
-        return testResultObs;
+    public Integer getTestResultObsId() {
+        return testResultObsId;
+    }
+
+    public void setTestResultObsId(Integer testResultObsId) {
+        this.testResultObsId = testResultObsId;
+    }
+
+    public Integer getObsGroupId() {
+        return obsGroupId;
+    }
+
+    public void setObsGroupId(Integer obsGroupId) {
+        this.obsGroupId = obsGroupId;
+    }
+
+    public Concept getTestResultQuestion() {
+        return testResultQuestion;
+    }
+
+    public void setTestResultQuestion(Concept testResultQuestion) {
+        this.testResultQuestion = testResultQuestion;
+    }
+
+    public Concept getTestResultAnswer() {
+        return testResultAnswer;
+    }
+
+    public void setTestResultAnswer(Concept testResultAnswer) {
+        this.testResultAnswer = testResultAnswer;
+    }
+
+    public Date getTestResultObsDatetime() {
+        return testResultObsDatetime;
     }
 
-    public void setTestResultObs(Obs testResultObs) {
-        this.testResultObs = testResultObs;
+    public void setTestResultObsDatetime(Date testResultObsDatetime) {
+        this.testResultObsDatetime = testResultObsDatetime;
     }
 
-    public Obs getTestTypeObs() {
-        return testTypeObs;
+    public Concept getTestTypeAnswer() {
+        return testTypeAnswer;
     }
 
-    public void setTestTypeObs(Obs testTypeObs) {
-        this.testTypeObs = testTypeObs;
+    public void setTestTypeAnswer(Concept testTypeAnswer) {
+        this.testTypeAnswer = testTypeAnswer;
     }
 
-    public Obs getSpecimenDateObs() {
-        return specimenDateObs;
+    public Date getSpecimenDate() {
+        return specimenDate;
     }
 
-    public void setSpecimenDateObs(Obs specimenDateObs) {
-        this.specimenDateObs = specimenDateObs;
+    public void setSpecimenDate(Date specimenDate) {
+        this.specimenDate = specimenDate;
     }
 
-    public Obs getResultDateObs() {
-        return resultDateObs;
+    public Date getResultDate() {
+        return resultDate;
     }
 
-    public void setResultDateObs(Obs resultDateObs) {
-        this.resultDateObs = resultDateObs;
+    public void setResultDate(Date resultDate) {
+        this.resultDate = resultDate;
     }
 
     public Date getEffectiveDate() {
@@ -111,4 +153,4 @@ public class HivTestResult implements JsonSerializable {
     public void setTestResult(Concept testResult) {
         this.testResult = testResult;
     }
-}
\ No newline at end of file
+}
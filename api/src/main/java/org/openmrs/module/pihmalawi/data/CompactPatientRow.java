@@ -0,0 +1,192 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.pihmalawi.data;
+
+import org.openmrs.module.pihmalawi.common.JsonObject;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A compact, read-only representation of one patient's data, as retained in the LivePatientDataCache.
+ * Rather than a map from column name to boxed value, each row holds parallel arrays indexed by the columns of a
+ * shared PatientDataSchema:  a type for each column, a primitive slot for numbers, dates, and booleans, and an
+ * object slot for strings, lists, and nested objects.  Nested objects are themselves stored as CompactPatientRows.
+ * A JsonObject is only materialized again when the data is requested.
+ */
+public class CompactPatientRow {
+
+    //***** CONSTANTS *****
+
+    private static final byte ABSENT = 0;
+    private static final byte NULL = 1;
+    private static final byte INTEGER = 2;
+    private static final byte LONG = 3;
+    private static final byte DOUBLE = 4;
+    private static final byte BOOLEAN = 5;
+    private static final byte DATE = 6;
+    private static final byte STRING = 7;
+    private static final byte ROW = 8;
+    private static final byte LIST = 9;
+    private static final byte OBJECT = 10;
+
+    //***** PROPERTIES *****
+
+    private final PatientDataSchema schema;
+    private final byte[] types;
+    private final long[] primitives;
+    private final Object[] objects;
+
+    //***** CONSTRUCTORS *****
+
+    /**
+     * Encodes the given data into a compact row using the given schema, adding any new columns to the schema
+     */
+    public CompactPatientRow(Map<String, ?> data, PatientDataSchema schema) {
+        this.schema = schema;
+        int[] indexes = new int[data.size()];
+        int numColumns = 0;
+        int i = 0;
+        for (String column : data.keySet()) {
+            indexes[i] = schema.getOrAddIndex(column);
+            numColumns = Math.max(numColumns, indexes[i] + 1);
+            i++;
+        }
+        this.types = new byte[numColumns];
+        this.primitives = new long[numColumns];
+        Object[] objects = null;
+        i = 0;
+        for (Map.Entry<String, ?> e : data.entrySet()) {
+            int index = indexes[i++];
+            Object value = e.getValue();
+            if (value == null) {
+                types[index] = NULL;
+            }
+            else if (value instanceof Integer) {
+                types[index] = INTEGER;
+                primitives[index] = (Integer) value;
+            }
+            else if (value instanceof Long) {
+                types[index] = LONG;
+                primitives[index] = (Long) value;
+            }
+            else if (value instanceof Double) {
+                types[index] = DOUBLE;
+                primitives[index] = Double.doubleToRawLongBits((Double) value);
+            }
+            else if (value instanceof Boolean) {
+                types[index] = BOOLEAN;
+                primitives[index] = ((Boolean) value) ? 1 : 0;
+            }
+            else if (value instanceof Date) {
+                types[index] = DATE;
+                primitives[index] = ((Date) value).getTime();
+            }
+            else {
+                if (objects == null) {
+                    objects = new Object[numColumns];
+                }
+                if (value instanceof String) {
+                    types[index] = STRING;
+                    objects[index] = schema.intern((String) value);
+                }
+                else if (value instanceof Map) {
+                    types[index] = ROW;
+                    objects[index] = new CompactPatientRow((Map<String, ?>) value, schema.getChildSchema(e.getKey()));
+                }
+                else if (value instanceof Collection) {
+                    types[index] = LIST;
+                    objects[index] = encodeList((Collection<?>) value, schema.getChildSchema(e.getKey()));
+                }
+                else {
+                    types[index] = OBJECT;
+                    objects[index] = value;
+                }
+            }
+        }
+        this.objects = objects;
+    }
+
+    //***** METHODS *****
+
+    /**
+     * @return a new JsonObject containing this row's data, in the order the columns were added to the schema
+     */
+    public JsonObject toJsonObject() {
+        JsonObject ret = new JsonObject();
+        for (int i = 0; i < types.length; i++) {
+            if (types[i] != ABSENT) {
+                ret.put(schema.getColumn(i), getValue(i));
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * @return the value of the given column, or null if it is not present
+     */
+    public Object get(String column) {
+        Integer index = schema.getIndex(column);
+        if (index == null || index >= types.length) {
+            return null;
+        }
+        return getValue(index);
+    }
+
+    //***** PRIVATE METHODS *****
+
+    private Object getValue(int index) {
+        switch (types[index]) {
+            case INTEGER: return (int) primitives[index];
+            case LONG: return primitives[index];
+            case DOUBLE: return Double.longBitsToDouble(primitives[index]);
+            case BOOLEAN: return primitives[index] == 1;
+            case DATE: return new Date(primitives[index]);
+            case STRING: return objects[index];
+            case ROW: return ((CompactPatientRow) objects[index]).toJsonObject();
+            case LIST: return decodeList((Object[]) objects[index]);
+            case OBJECT: return objects[index];
+            default: return null;
+        }
+    }
+
+    private static Object[] encodeList(Collection<?> values, PatientDataSchema elementSchema) {
+        Object[] ret = new Object[values.size()];
+        int i = 0;
+        for (Object value : values) {
+            if (value instanceof Map) {
+                ret[i++] = new CompactPatientRow((Map<String, ?>) value, elementSchema);
+            }
+            else if (value instanceof String) {
+                ret[i++] = elementSchema.intern((String) value);
+            }
+            else {
+                ret[i++] = value;
+            }
+        }
+        return ret;
+    }
+
+    private static List<Object> decodeList(Object[] values) {
+        List<Object> ret = new ArrayList<Object>(values.length);
+        for (Object value : values) {
+            if (value instanceof CompactPatientRow) {
+                ret.add(((CompactPatientRow) value).toJsonObject());
+            }
+            else {
+                ret.add(value);
+            }
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,192 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.pihmalawi.data;
+
+import org.openmrs.Cohort;
+import org.openmrs.Location;
+import org.openmrs.module.reporting.cohort.CohortUtil;
+import org.openmrs.module.reporting.common.DateUtil;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An index of the IC3 appointment, enrollment, and visit cohorts for a set of locations and each date in a range,
+ * as produced by IC3ScreeningData.getCohortIndex.  This allows cohorts for many locations and dates to be built from a
+ * single query for each type of cohort, and shared by any callers that need them.
+ */
+public class IC3CohortIndex {
+
+    //***** PROPERTIES *****
+
+    private final List<Location> locations;
+    private final Date fromDate;
+    private final Date toDate;
+
+    private final Map<String, Cohort> appointments = new HashMap<String, Cohort>();
+    private final Map<String, Cohort> enrolled = new HashMap<String, Cohort>();
+    private final Map<String, Cohort> visits = new HashMap<String, Cohort>();
+
+    //***** CONSTRUCTORS *****
+
+    /**
+     * Creates an empty index for the given locations, and each date from fromDate to toDate inclusive
+     */
+    public IC3CohortIndex(Collection<Location> locations, Date fromDate, Date toDate) {
+        this.locations = new ArrayList<Location>(locations);
+        this.fromDate = DateUtil.getStartOfDay(fromDate);
+        this.toDate = DateUtil.getStartOfDay(toDate);
+        if (this.toDate.before(this.fromDate)) {
+            throw new IllegalArgumentException("The to date " + toDate + " must not be before the from date " + fromDate);
+        }
+    }
+
+    //***** METHODS *****
+
+    /**
+     * @return each date covered by this index
+     */
+    public List<Date> getDates() {
+        List<Date> ret = new ArrayList<Date>();
+        for (Date d = fromDate; !d.after(toDate); d = DateUtil.adjustDate(d, 1, Calendar.DATE)) {
+            ret.add(d);
+        }
+        return ret;
+    }
+
+    /**
+     * @return all patients with an appointment scheduled at any location on the given date
+     */
+    public Cohort getPatientsWithAppointments(Date date) {
+        return copy(appointments.get(getKey(null, checkDate(date))));
+    }
+
+    /**
+     * @return all patients actively enrolled in the HIV or Chronic Care program at the given location on the given date
+     */
+    public Cohort getPatientsEnrolledAtLocation(Location location, Date date) {
+        return copy(enrolled.get(getKey(checkLocation(location), checkDate(date))));
+    }
+
+    /**
+     * @return all patients with an appointment on the given date, who are actively enrolled at the given location
+     */
+    public Cohort getPatientsWithAppointmentsAtLocation(Location location, Date date) {
+        return CohortUtil.intersect(getPatientsWithAppointments(date), getPatientsEnrolledAtLocation(location, date));
+    }
+
+    /**
+     * @return for each location in the index, all patients with an appointment on the given date who are actively enrolled there
+     */
+    public Map<Location, Cohort> getPatientsWithAppointmentsByEnrolledLocation(Date date) {
+        Map<Location, Cohort> ret = new LinkedHashMap<Location, Cohort>();
+        for (Location location : locations) {
+            ret.put(location, getPatientsWithAppointmentsAtLocation(location, date));
+        }
+        return ret;
+    }
+
+    /**
+     * @return all patients with a visit at the given location that was active on the given date
+     */
+    public Cohort getPatientsWithAVisitAtLocation(Location location, Date date) {
+        return copy(visits.get(getKey(checkLocation(location), checkDate(date))));
+    }
+
+    public List<Location> getLocations() {
+        return locations;
+    }
+
+    public Date getFromDate() {
+        return fromDate;
+    }
+
+    public Date getToDate() {
+        return toDate;
+    }
+
+    //***** METHODS TO POPULATE THE INDEX *****
+
+    /**
+     * Adds a patient with an appointment scheduled on the given date, if it is within the range of this index
+     */
+    void addAppointment(Integer patientId, Date appointmentDate) {
+        Date date = DateUtil.getStartOfDay(appointmentDate);
+        if (!date.before(fromDate) && !date.after(toDate)) {
+            add(appointments, null, date, patientId);
+        }
+    }
+
+    /**
+     * Adds a patient as enrolled at the given location for each date in this index within the given enrollment.
+     * As with InProgramCohortDefinition, an enrollment completed exactly at the start of a date is not active on it.
+     * @param dateCompleted the date the enrollment was completed, or null if it is still active
+     */
+    void addEnrollment(Integer patientId, Location location, Date dateEnrolled, Date dateCompleted) {
+        for (Date date : getDates()) {
+            if (!dateEnrolled.after(DateUtil.getEndOfDay(date)) && (dateCompleted == null || dateCompleted.after(date))) {
+                add(enrolled, location, date, patientId);
+            }
+        }
+    }
+
+    /**
+     * Adds a patient as having a visit at the given location for each date in this index on which it was active
+     * @param stopDatetime the date the visit was stopped, or null if it is still active
+     */
+    void addVisit(Integer patientId, Location location, Date startDatetime, Date stopDatetime) {
+        for (Date date : getDates()) {
+            if (!startDatetime.after(DateUtil.getEndOfDay(date)) && (stopDatetime == null || !stopDatetime.before(date))) {
+                add(visits, location, date, patientId);
+            }
+        }
+    }
+
+    //***** PRIVATE METHODS *****
+
+    private void add(Map<String, Cohort> index, Location location, Date date, Integer patientId) {
+        String key = getKey(location, date);
+        Cohort c = index.get(key);
+        if (c == null) {
+            c = new Cohort();
+            index.put(key, c);
+        }
+        c.addMember(patientId);
+    }
+
+    private Cohort copy(Cohort c) {
+        return (c == null ? new Cohort() : new Cohort(c.getMemberIds()));
+    }
+
+    private Location checkLocation(Location location) {
+        if (!locations.contains(location)) {
+            throw new IllegalArgumentException("Location " + location + " is not included in this index");
+        }
+        return location;
+    }
+
+    private Date checkDate(Date date) {
+        Date d = DateUtil.getStartOfDay(date);
+        if (d.before(fromDate) || d.after(toDate)) {
+            throw new IllegalArgumentException("Date " + date + " is not within the range of this index");
+        }
+        return d;
+    }
+
+    private String getKey(Location location, Date date) {
+        return (location == null ? "" : location.getUuid()) + "|" + DateUtil.formatDate(date, "yyyy-MM-dd");
+    }
+}
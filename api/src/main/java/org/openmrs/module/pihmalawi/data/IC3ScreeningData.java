@@ -11,14 +11,21 @@ package org.openmrs.module.pihmalawi.data;
 
 import org.openmrs.Cohort;
 import org.openmrs.Location;
+import org.openmrs.Obs;
+import org.openmrs.PatientProgram;
+import org.openmrs.Visit;
 import org.openmrs.module.pihmalawi.alert.AlertDefinition;
-import org.openmrs.module.pihmalawi.alert.AlertEngine;
+import org.openmrs.module.pihmalawi.alert.AlertDefinitionRegistry;
 import org.openmrs.module.pihmalawi.metadata.IC3ScreeningMetadata;
 import org.openmrs.module.reporting.ReportingConstants;
 import org.openmrs.module.reporting.cohort.CohortUtil;
+import org.openmrs.module.reporting.common.DateUtil;
 import org.openmrs.module.reporting.data.patient.definition.PatientDataDefinition;
 import org.openmrs.module.reporting.dataset.definition.PatientDataSetDefinition;
 import org.openmrs.module.reporting.definition.library.DocumentedDefinition;
+import org.openmrs.module.reporting.evaluation.EvaluationContext;
+import org.openmrs.module.reporting.evaluation.querybuilder.HqlQueryBuilder;
+import org.openmrs.module.reporting.evaluation.service.EvaluationService;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
@@ -33,14 +40,12 @@ public class IC3ScreeningData extends LivePatientDataSet {
     @Autowired
     private IC3ScreeningMetadata screeningMetadata;
 
+    @Autowired
+    private EvaluationService evaluationService;
+
     public Map<Location, Cohort> getPatientsWithAppointmentsByEnrolledLocation(Date appointmentDate) {
-        Map<Location, Cohort> ret = new HashMap<Location, Cohort>();
-        Cohort appts = evaluateCohort(baseCohorts.getPatientsWithScheduledAppointmentOnEndDate(), appointmentDate, null);
-        for (Location location : hivMetadata.getSystemLocations()) {
-            Cohort enrolled = evaluateCohort(baseCohorts.getPatientsActiveInHivOrChronicCareProgramAtLocationOnEndDate(), appointmentDate, location);
-            ret.put(location, CohortUtil.intersect(appts, enrolled));
-        }
-        return ret;
+        IC3CohortIndex index = getCohortIndex(hivMetadata.getSystemLocations(), appointmentDate, appointmentDate);
+        return index.getPatientsWithAppointmentsByEnrolledLocation(appointmentDate);
     }
 
     public Cohort getPatientsWithAppointmentsAtLocation(Date appointmentDate, Location location) {
@@ -53,6 +58,74 @@ public class IC3ScreeningData extends LivePatientDataSet {
         return evaluateCohort(baseCohorts.getPatientsWithAVisitOnEndDateAtLocation(), endDate, location);
     }
 
+    /**
+     * @return an index of the patients with appointments, actively enrolled in the HIV or Chronic Care program, and
+     * with an active visit, for each of the given locations and each date from fromDate to toDate inclusive.
+     * Rather than evaluating a cohort definition for each location and date, each type of cohort is loaded with a
+     * single query over the whole range and split by location and date in memory.
+     */
+    public IC3CohortIndex getCohortIndex(Collection<Location> locations, Date fromDate, Date toDate) {
+        IC3CohortIndex index = new IC3CohortIndex(locations, fromDate, toDate);
+        Date startOfRange = index.getFromDate();
+        Date endOfRange = DateUtil.getEndOfDay(index.getToDate());
+        EvaluationContext context = new EvaluationContext();
+
+        Map<Integer, Location> locationsById = new HashMap<Integer, Location>();
+        for (Location location : index.getLocations()) {
+            locationsById.put(location.getLocationId(), location);
+        }
+
+        HqlQueryBuilder apptQuery = new HqlQueryBuilder();
+        apptQuery.select("o.personId", "o.valueDatetime").from(Obs.class, "o");
+        apptQuery.whereEqual("o.concept", hivMetadata.getAppointmentDateConcept());
+        apptQuery.whereEqual("o.person.voided", false);
+        apptQuery.whereGreaterOrEqualTo("o.valueDatetime", startOfRange);
+        apptQuery.whereLessOrEqualTo("o.valueDatetime", endOfRange);
+        for (Object[] row : evaluationService.evaluateToList(apptQuery, context)) {
+            index.addAppointment((Integer) row[0], (Date) row[1]);
+        }
+
+        // Enrollments and visits that are still active are loaded separately from those completed within the range
+        if (!locationsById.isEmpty()) {
+            for (boolean active : new boolean[] {true, false}) {
+                HqlQueryBuilder programQuery = new HqlQueryBuilder();
+                programQuery.select("pp.patient.patientId", "pp.location.locationId", "pp.dateEnrolled", "pp.dateCompleted");
+                programQuery.from(PatientProgram.class, "pp");
+                programQuery.whereIn("pp.program", Arrays.asList(hivMetadata.getHivProgram(), ccMetadata.getChronicCareProgram()));
+                programQuery.whereIn("pp.location", index.getLocations());
+                programQuery.whereEqual("pp.patient.voided", false);
+                programQuery.whereLessOrEqualTo("pp.dateEnrolled", endOfRange);
+                if (active) {
+                    programQuery.whereNull("pp.dateCompleted");
+                }
+                else {
+                    programQuery.whereGreaterOrEqualTo("pp.dateCompleted", startOfRange);
+                }
+                for (Object[] row : evaluationService.evaluateToList(programQuery, context)) {
+                    index.addEnrollment((Integer) row[0], locationsById.get(row[1]), (Date) row[2], (Date) row[3]);
+                }
+
+                HqlQueryBuilder visitQuery = new HqlQueryBuilder();
+                visitQuery.select("v.patient.patientId", "v.location.locationId", "v.startDatetime", "v.stopDatetime");
+                visitQuery.from(Visit.class, "v");
+                visitQuery.whereIn("v.location", index.getLocations());
+                visitQuery.whereEqual("v.patient.voided", false);
+                visitQuery.whereLessOrEqualTo("v.startDatetime", endOfRange);
+                if (active) {
+                    visitQuery.whereNull("v.stopDatetime");
+                }
+                else {
+                    visitQuery.whereGreaterOrEqualTo("v.stopDatetime", startOfRange);
+                }
+                for (Object[] row : evaluationService.evaluateToList(visitQuery, context)) {
+                    index.addVisit((Integer) row[0], locationsById.get(row[1]), (Date) row[2], (Date) row[3]);
+                }
+            }
+        }
+
+        return index;
+    }
+
     @DocumentedDefinition("mostRecentBPScreening")
     public PatientDataDefinition getMostRecentBPScreening() {
         return df.getMostRecentEncounterOfType(screeningMetadata.getBloodPressureScreeningEncounterType());
@@ -248,8 +321,6 @@ public class IC3ScreeningData extends LivePatientDataSet {
      * @return the AlertDefinitions to evaluate for this data set
      */
     public List<AlertDefinition> getAlertDefinitions() {
-        AlertEngine alertEngine = new AlertEngine();
-        List<AlertDefinition> alertDefinitions = alertEngine.getAlertDefinitions();
-        return alertDefinitions;
+        return AlertDefinitionRegistry.getInstance().getAlertDefinitions();
     }
 }
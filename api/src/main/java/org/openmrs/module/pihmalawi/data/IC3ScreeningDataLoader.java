@@ -9,23 +9,37 @@
  */
 package org.openmrs.module.pihmalawi.data;
 
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang.time.StopWatch;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.openmrs.Cohort;
 import org.openmrs.Location;
+import org.openmrs.api.context.Context;
 import org.openmrs.api.context.Daemon;
 import org.openmrs.module.DaemonToken;
+import org.openmrs.module.pihmalawi.PihMalawiConstants;
 import org.openmrs.module.pihmalawi.metadata.HivMetadata;
+import org.openmrs.module.pihmalawi.metadata.MetadataCache;
 import org.openmrs.module.pihmalawi.reporting.library.BaseCohortDefinitionLibrary;
+import org.openmrs.module.reporting.cohort.CohortUtil;
 import org.openmrs.module.reporting.common.DateUtil;
+import org.openmrs.util.OpenmrsUtil;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.scheduling.concurrent.ScheduledExecutorFactoryBean;
 import org.springframework.scheduling.concurrent.ScheduledExecutorTask;
 import org.springframework.stereotype.Component;
 
+import java.util.ArrayList;
 import java.util.Date;
-import java.util.Map;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Provides a construct for maintaining patient data
@@ -36,7 +50,14 @@ public class IC3ScreeningDataLoader extends ScheduledExecutorFactoryBean {
     private final static Log log = LogFactory.getLog(IC3ScreeningDataLoader.class);
 
     private static DaemonToken daemonToken = null;
-    private static boolean running = false;
+    private static final ReentrantLock refreshLock = new ReentrantLock();
+
+    // Changes are looked for slightly before the last refresh started, to include transactions that were in progress
+    private static final long CHANGE_OVERLAP_MILLIS = 60*1000;
+
+    private Date lastRefreshStarted = null;
+    private Date lastFullRefreshStarted = null;
+    private LivePatientDataCacheSnapshot snapshot = null;
 
     @Autowired
     HivMetadata metadata;
@@ -47,6 +68,9 @@ public class IC3ScreeningDataLoader extends ScheduledExecutorFactoryBean {
     @Autowired
     IC3ScreeningData ic3ScreeningData;
 
+    @Autowired
+    PatientDataChangeTracker changeTracker;
+
     public IC3ScreeningDataLoader() {
         ScheduledExecutorTask task = new ScheduledExecutorTask();
         task.setDelay(10);
@@ -73,32 +97,226 @@ public class IC3ScreeningDataLoader extends ScheduledExecutorFactoryBean {
     class RefreshForLocationsRunnable implements Runnable {
         @Override
         public void run() {
-            log.debug("Running already = " + running);
-            if (!running) {
-                running = true;
-                try {
-                    Date today = DateUtil.getStartOfDay(new Date());
+            if (!refreshLock.tryLock()) {
+                log.debug("Patient data cache refresh is already running");
+                return;
+            }
+            try {
+                StopWatch sw = new StopWatch();
+                sw.start();
 
-                    // First pre-load all actively enrolled patients who have appointments
-                    Map<Location, Cohort> patientsWithAppts = ic3ScreeningData.getPatientsWithAppointmentsByEnrolledLocation(today);
-                    for (Location location : patientsWithAppts.keySet()) {
-                        ic3ScreeningData.getDataForCohort(patientsWithAppts.get(location), today, location, false); // TODO: Set to true?
-                    }
+                ic3ScreeningData.getCache().setMaxPatients(getIntegerGlobalProperty(PihMalawiConstants.IC3_SCREENING_DATA_CACHE_MAX_PATIENTS_GP_NAME, PihMalawiConstants.IC3_SCREENING_DATA_CACHE_MAX_PATIENTS_GP_VALUE));
+
+                Date refreshStarted = new Date();
+                Date today = DateUtil.getStartOfDay(refreshStarted);
+
+                // Between full refreshes, only re-evaluate patients whose data has changed since the last refresh
+                boolean fullRefresh = prepareRefresh(refreshStarted);
 
-                    // Next load all patients who had a visit at the given location and given date
+                // Load each location on its own worker, with all actively enrolled patients who have appointments there
+                // and all patients who had a visit there evaluated together.  The cohorts for all locations are loaded up front.
+                final IC3CohortIndex cohortIndex = ic3ScreeningData.getCohortIndex(metadata.getSystemLocations(), today, today);
+                int numThreads = Math.max(1, getIntegerGlobalProperty(PihMalawiConstants.IC3_SCREENING_DATA_LOADER_THREADS_GP_NAME, PihMalawiConstants.IC3_SCREENING_DATA_LOADER_THREADS_GP_VALUE));
+                List<RefreshLocationRunnable> locationRunnables = new ArrayList<RefreshLocationRunnable>();
+                ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+                try {
+                    List<Future<?>> results = new ArrayList<Future<?>>();
                     for (Location location : metadata.getSystemLocations()) {
-                        Cohort activeVisitPatients = ic3ScreeningData.getPatientsWithAVisitAtLocation(today, location);
-                        ic3ScreeningData.getDataForCohort(activeVisitPatients, today, location, false); // TODO: Set to true?
+                        final RefreshLocationRunnable locationRunnable = new RefreshLocationRunnable(location, today, cohortIndex, !fullRefresh);
+                        locationRunnables.add(locationRunnable);
+                        results.add(executor.submit(new Runnable() {
+                            public void run() {
+                                Daemon.runInDaemonThreadAndWait(locationRunnable, daemonToken);
+                            }
+                        }));
+                    }
+                    for (Future<?> result : results) {
+                        result.get();
                     }
-
-                    // Clear any caches that have not been accessed in the last hour
-                    ic3ScreeningData.getCache().clearCaches(60);
                 }
                 finally {
-                    running = false;
+                    executor.shutdownNow();
+                }
+
+                // Clear any caches that have not been accessed recently
+                LivePatientDataCache cache = ic3ScreeningData.getCache();
+                cache.clearCaches(getIntegerGlobalProperty(PihMalawiConstants.IC3_SCREENING_DATA_CACHE_IDLE_MINUTES_GP_NAME, PihMalawiConstants.IC3_SCREENING_DATA_CACHE_IDLE_MINUTES_GP_VALUE));
+
+                sw.stop();
+                log.debug(cache);
+                log.debug(MetadataCache.getInstance());
+
+                // If any location failed, the refresh is not recorded, so that the next refresh covers the same changes
+                // again, or is a full refresh again if this was one
+                List<String> failedLocations = new ArrayList<String>();
+                for (RefreshLocationRunnable locationRunnable : locationRunnables) {
+                    if (locationRunnable.isFailed()) {
+                        failedLocations.add(locationRunnable.getLocation().getName());
+                    }
                 }
+                if (!failedLocations.isEmpty()) {
+                    log.warn((fullRefresh ? "Full" : "Incremental") + " refresh of patient data cache failed for " + failedLocations + " after " + sw.toString() + ", it will be repeated on the next refresh");
+                    return;
+                }
+                log.info((fullRefresh ? "Full" : "Incremental") + " refresh of patient data cache completed in " + sw.toString() + " using " + numThreads + " threads");
+
+                // Write the cache to disk, so that it can be restored after a restart
+                if (isSnapshotEnabled()) {
+                    getSnapshot().write(cache, new Date(refreshStarted.getTime() - CHANGE_OVERLAP_MILLIS));
+                }
+
+                refreshCompleted(refreshStarted, fullRefresh);
+            }
+            catch (InterruptedException e) {
+                log.warn("Patient data cache refresh was interrupted");
+                Thread.currentThread().interrupt();
+            }
+            catch (ExecutionException e) {
+                log.error("Error refreshing patient data cache", e.getCause());
+            }
+            finally {
+                refreshLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Loads the data for all patients with an appointment or a visit at a single location into the cache
+     * This is run within its own daemon thread, and so its own session, for each location
+     */
+    class RefreshLocationRunnable implements Runnable {
+
+        private Location location;
+        private Date endDate;
+        private IC3CohortIndex cohortIndex;
+        private boolean useCachedValues;
+        private volatile boolean failed = false;
+
+        public RefreshLocationRunnable(Location location, Date endDate, IC3CohortIndex cohortIndex, boolean useCachedValues) {
+            this.location = location;
+            this.endDate = endDate;
+            this.cohortIndex = cohortIndex;
+            this.useCachedValues = useCachedValues;
+        }
+
+        @Override
+        public void run() {
+            try {
+                StopWatch sw = new StopWatch();
+                sw.start();
+                Cohort cohort = CohortUtil.union(cohortIndex.getPatientsWithAVisitAtLocation(location, endDate),
+                        cohortIndex.getPatientsWithAppointmentsAtLocation(location, endDate));
+                ic3ScreeningData.getDataForCohort(cohort, endDate, location, useCachedValues);
+                sw.stop();
+                log.debug("Loaded " + cohort.size() + " patients at " + location.getName() + " in " + sw.toString());
             }
+            catch (Exception e) {
+                failed = true;
+                log.error("Error loading patient data cache for " + location.getName(), e);
+            }
+        }
+
+        public Location getLocation() {
+            return location;
+        }
+
+        /**
+         * @return true if the data for this location could not be loaded
+         */
+        public boolean isFailed() {
+            return failed;
+        }
+    }
+
+    /**
+     * Restores the cache for today from the snapshot written by the most recent refresh, if enabled, so that data is
+     * available before the first refresh after startup completes.  Patients changed since the snapshot are not restored.
+     */
+    public void restoreSnapshot() {
+        try {
+            if (isSnapshotEnabled()) {
+                getSnapshot().restore(ic3ScreeningData.getCache(), DateUtil.getStartOfDay(new Date()), changeTracker);
+            }
+        }
+        catch (Exception e) {
+            log.warn("Unable to restore patient data cache snapshot", e);
+        }
+    }
+
+    /**
+     * Prepares the cache for a refresh that started at the given time.  Unless a full refresh is due, the cached data
+     * for patients whose data has changed since the last refresh is cleared, so that only these patients are re-evaluated
+     * @return true if this should be a full refresh of all patients
+     */
+    protected boolean prepareRefresh(Date refreshStarted) {
+        boolean fullRefresh = isFullRefreshDue(refreshStarted);
+        if (!fullRefresh) {
+            Date changedSince = new Date(lastRefreshStarted.getTime() - CHANGE_OVERLAP_MILLIS);
+            Set<Integer> changedPatients = changeTracker.getPatientsChangedSince(changedSince);
+            log.debug("Incremental refresh for " + changedPatients.size() + " patients changed since " + changedSince);
+            ic3ScreeningData.getCache().clearPatients(changedPatients);
+        }
+        else {
+            log.debug("Full refresh of all patients");
+        }
+        return fullRefresh;
+    }
+
+    /**
+     * Records that the refresh that started at the given time has completed, so that the next incremental refresh
+     * only re-evaluates patients changed since it started
+     */
+    protected void refreshCompleted(Date refreshStarted, boolean fullRefresh) {
+        lastRefreshStarted = refreshStarted;
+        if (fullRefresh) {
+            lastFullRefreshStarted = refreshStarted;
+        }
+    }
+
+    /**
+     * @return true if no refresh has yet succeeded, or if the configured full refresh interval has passed since the last one
+     */
+    protected boolean isFullRefreshDue(Date now) {
+        if (lastRefreshStarted == null || lastFullRefreshStarted == null) {
+            return true;
+        }
+        int intervalMinutes = getIntegerGlobalProperty(PihMalawiConstants.IC3_SCREENING_DATA_FULL_REFRESH_INTERVAL_GP_NAME, PihMalawiConstants.IC3_SCREENING_DATA_FULL_REFRESH_INTERVAL_GP_VALUE);
+        return now.getTime() - lastFullRefreshStarted.getTime() >= intervalMinutes*60*1000L;
+    }
+
+    /**
+     * @return the integer value of the given global property, or the default value if it is not set or is not an integer
+     */
+    protected int getIntegerGlobalProperty(String name, int defaultValue) {
+        String gpValue = getGlobalProperty(name);
+        if (StringUtils.isNotBlank(gpValue)) {
+            try {
+                return Integer.parseInt(gpValue.trim());
+            }
+            catch (NumberFormatException e) {
+                log.warn("Global property " + name + " has invalid value <" + gpValue + ">, using default of " + defaultValue);
+            }
+        }
+        return defaultValue;
+    }
+
+    protected String getGlobalProperty(String name) {
+        return Context.getAdministrationService().getGlobalProperty(name);
+    }
+
+    protected boolean isSnapshotEnabled() {
+        String gpValue = getGlobalProperty(PihMalawiConstants.IC3_SCREENING_DATA_CACHE_SNAPSHOT_GP_NAME);
+        if (StringUtils.isNotBlank(gpValue)) {
+            return Boolean.parseBoolean(gpValue.trim());
+        }
+        return PihMalawiConstants.IC3_SCREENING_DATA_CACHE_SNAPSHOT_GP_VALUE;
+    }
+
+    protected LivePatientDataCacheSnapshot getSnapshot() {
+        if (snapshot == null) {
+            snapshot = new LivePatientDataCacheSnapshot(OpenmrsUtil.getDirectoryInApplicationDataDirectory(PihMalawiConstants.IC3_SCREENING_DATA_CACHE_SNAPSHOT_DIRECTORY));
         }
+        return snapshot;
     }
 
     public static void setDaemonToken(DaemonToken daemonToken) {
@@ -106,6 +324,6 @@ public class IC3ScreeningDataLoader extends ScheduledExecutorFactoryBean {
     }
 
     public static boolean isRunning() {
-        return running;
+        return refreshLock.isLocked();
     }
 }
@@ -9,82 +9,395 @@
  */
 package org.openmrs.module.pihmalawi.data;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.codehaus.jackson.map.ObjectMapper;
 import org.openmrs.Location;
 import org.openmrs.module.pihmalawi.common.JsonObject;
 import org.openmrs.module.reporting.common.DateUtil;
 
+import java.security.MessageDigest;
+import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Provides a construct for maintaining patient data
+ * Data is held in a separate concurrent segment for each location and date, so that it can be safely read by
+ * web requests while it is being refreshed in the background.  The total number of patients retained across
+ * all segments is bounded by maxPatients, beyond which the least recently accessed patients are evicted.  Patients
+ * are tracked in order of access across all segments, so that eviction does not need to sort the whole cache.
+ * Each patient's data is stored as a CompactPatientRow against a schema shared by the whole cache, and a
+ * JsonObject is only materialized when the data is read.
+ * Each patient's data is also stamped with a version, which only increases when the content of that data changes,
+ * so that clients can determine which patients have changed since they last retrieved data.
  */
 public class LivePatientDataCache {
 
+    private final static Log log = LogFactory.getLog(LivePatientDataCache.class);
+
+    public static final int DEFAULT_MAX_PATIENTS = 50000;
+
+    // Properties that are regenerated on every evaluation, and so are excluded when determining whether data has changed
+    private static final String[] UNVERSIONED_PROPERTIES = {"now"};
+
+    // The fingerprint of data that could not be fingerprinted, which never matches another
+    private static final long NO_FINGERPRINT = 0;
+
+    // When the maximum is exceeded, evict down to this fraction of it, so that eviction is not needed on every update
+    private static final double EVICTION_TARGET = 0.9;
+
     //***** PROPERTIES *****
 
-    private Map<String, Long> lastAccessTimes = new HashMap<String, Long>();
-    private Map<String, Map<Integer, JsonObject>> cachesByKey;
+    private final ConcurrentMap<String, Segment> cachesByKey = new ConcurrentHashMap<String, Segment>();
+
+    // Every entry in the current segments, from least to most recently accessed.  Entries are only added to or removed
+    // from a segment while holding the lock on this map, so that it always reflects their contents.
+    private final LinkedHashMap<Entry, Boolean> accessOrder = new LinkedHashMap<Entry, Boolean>(16, 0.75f, true);
+    private final PatientDataSchema schema = new PatientDataSchema();
+    private volatile int maxPatients = DEFAULT_MAX_PATIENTS;
+    private final long epoch = System.currentTimeMillis();
+    private final AtomicLong currentVersion = new AtomicLong(0);
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong misses = new AtomicLong(0);
+    private final AtomicLong evictions = new AtomicLong(0);
 
     //***** CONSTRUCTORS *****
 
     public LivePatientDataCache() {}
 
+    public LivePatientDataCache(int maxPatients) {
+        this.maxPatients = maxPatients;
+    }
+
     //***** METHODS *****
 
     public boolean hasCache(Date endDate, Location location) {
-        return cachesByKey != null && cachesByKey.containsKey(getCacheKey(endDate, location));
+        return cachesByKey.containsKey(getCacheKey(endDate, location));
     }
 
+    /**
+     * @return a copy of all of the data currently cached for the given date and location
+     */
     public Map<Integer, JsonObject> getDataCache(Date endDate, Location location) {
-        return getDataCache(getCacheKey(endDate, location));
+        Segment segment = getSegment(getCacheKey(endDate, location));
+        Map<Integer, JsonObject> ret = new HashMap<Integer, JsonObject>();
+        for (Map.Entry<Integer, Entry> e : segment.entries.entrySet()) {
+            ret.put(e.getKey(), access(e.getValue()));
+        }
+        return ret;
+    }
+
+    /**
+     * @return the cached data for those of the given patients that are in the cache for the given date and location
+     */
+    public Map<Integer, JsonObject> getCachedData(Collection<Integer> patientIds, Date endDate, Location location) {
+        Segment segment = getSegment(getCacheKey(endDate, location));
+        Map<Integer, JsonObject> ret = new HashMap<Integer, JsonObject>();
+        for (Integer patientId : patientIds) {
+            Entry entry = segment.entries.get(patientId);
+            if (entry != null) {
+                ret.put(patientId, access(entry));
+                hits.incrementAndGet();
+            }
+            else {
+                misses.incrementAndGet();
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * @return the version of the cached data for those of the given patients that are in the cache for the given date
+     * and location.  This does not materialize the data, does not count as a hit, miss, or access, and does not create
+     * a cache for the given date and location if there is none.
+     */
+    public Map<Integer, Long> getVersions(Collection<Integer> patientIds, Date endDate, Location location) {
+        Map<Integer, Long> ret = new HashMap<Integer, Long>();
+        Segment segment = cachesByKey.get(getCacheKey(endDate, location));
+        if (segment != null) {
+            for (Integer patientId : patientIds) {
+                Entry entry = segment.entries.get(patientId);
+                if (entry != null) {
+                    ret.put(patientId, entry.version);
+                }
+            }
+        }
+        return ret;
     }
 
     public void updateCache(Map<Integer, JsonObject> dataToCache, Date endDate, Location location) {
-        getDataCache(endDate, location).putAll(dataToCache);
+        Segment segment = getSegment(getCacheKey(endDate, location));
+        for (Map.Entry<Integer, JsonObject> e : dataToCache.entrySet()) {
+            put(segment, e.getKey(), e.getValue());
+        }
+        evictIfNeeded();
     }
 
     public void updateCache(Integer patientId, JsonObject patientData, Date endDate, Location location) {
-        getDataCache(endDate, location).put(patientId, patientData);
+        put(getSegment(getCacheKey(endDate, location)), patientId, patientData);
+        evictIfNeeded();
     }
 
     public void clearCache(Date endDate, Location location) {
-        getDataCache(endDate, location).clear();
+        synchronized (accessOrder) {
+            Segment segment = cachesByKey.remove(getCacheKey(endDate, location));
+            if (segment != null) {
+                removeAccessOrder(segment);
+            }
+        }
+    }
+
+    /**
+     * Removes the cached data for the given patients from every cache, so that it is re-evaluated when next requested
+     */
+    public void clearPatients(Collection<Integer> patientIds) {
+        if (patientIds != null && !patientIds.isEmpty()) {
+            synchronized (accessOrder) {
+                for (Segment segment : cachesByKey.values()) {
+                    for (Integer patientId : patientIds) {
+                        Entry removed = segment.entries.remove(patientId);
+                        if (removed != null) {
+                            accessOrder.remove(removed);
+                        }
+                    }
+                }
+            }
+        }
     }
 
     public void clearAllCaches() {
-        cachesByKey = new HashMap<String, Map<Integer, JsonObject>>();
-        lastAccessTimes = new HashMap<String, Long>();
+        synchronized (accessOrder) {
+            cachesByKey.clear();
+            accessOrder.clear();
+        }
     }
 
+    /**
+     * Removes all caches for locations and dates that have not been accessed within the given number of minutes
+     */
     public void clearCaches(int minutesSinceLastAccess) {
-        long now = System.currentTimeMillis();
-        long lastAccessTimeBoundary = now - minutesSinceLastAccess*60*1000;
-        for (Iterator<String> cacheKeyIter = lastAccessTimes.keySet().iterator(); cacheKeyIter.hasNext();) {
-            String cacheKey = cacheKeyIter.next();
-            Long lastAccessTime = lastAccessTimes.get(cacheKey);
-            if (lastAccessTime < lastAccessTimeBoundary) {
-                getDataCache(cacheKey).clear();
-                cacheKeyIter.remove();
+        long lastAccessTimeBoundary = System.currentTimeMillis() - minutesSinceLastAccess*60*1000L;
+        for (Map.Entry<String, Segment> e : cachesByKey.entrySet()) {
+            if (e.getValue().lastAccessTime < lastAccessTimeBoundary) {
+                synchronized (accessOrder) {
+                    if (cachesByKey.remove(e.getKey(), e.getValue())) {
+                        int removed = removeAccessOrder(e.getValue());
+                        evictions.addAndGet(removed);
+                        log.debug("Evicted cache " + e.getKey() + " with " + removed + " patients not accessed in " + minutesSinceLastAccess + " minutes");
+                    }
+                }
             }
         }
     }
 
+    /**
+     * @return the total number of patients cached across all locations and dates.  This is counted from the caches currently held, so that it cannot drift from their contents as caches are
+     * removed while they are being updated
+     */
+    public int getSize() {
+        int size = 0;
+        for (Segment segment : cachesByKey.values()) {
+            size += segment.entries.size();
+        }
+        return size;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public void resetStatistics() {
+        hits.set(0);
+        misses.set(0);
+        evictions.set(0);
+    }
+
+    public int getMaxPatients() {
+        return maxPatients;
+    }
+
+    /**
+     * @param maxPatients the maximum number of patients to retain across all locations and dates
+     */
+    public void setMaxPatients(int maxPatients) {
+        this.maxPatients = maxPatients;
+        evictIfNeeded();
+    }
+
+    /**
+     * @return the time this cache was created.  Versions are only comparable between requests for the same epoch.
+     */
+    public long getEpoch() {
+        return epoch;
+    }
+
+    /**
+     * @return the most recent version assigned to any patient's data
+     */
+    public long getCurrentVersion() {
+        return currentVersion.get();
+    }
+
+    //***** SNAPSHOT METHODS *****
+
+    /**
+     * @return the keys of all caches currently held, each identifying a location and date
+     */
+    Set<String> getCacheKeys() {
+        return new HashSet<String>(cachesByKey.keySet());
+    }
+
+    /**
+     * @return a copy of the data in the cache with the given key, without counting as an access, or null if there is no such cache
+     */
+    Map<Integer, JsonObject> getDataCache(String cacheKey) {
+        Segment segment = cachesByKey.get(cacheKey);
+        if (segment == null) {
+            return null;
+        }
+        Map<Integer, JsonObject> ret = new HashMap<Integer, JsonObject>();
+        for (Map.Entry<Integer, Entry> e : segment.entries.entrySet()) {
+            ret.put(e.getKey(), e.getValue().data.toJsonObject());
+        }
+        return ret;
+    }
+
+    /**
+     * Adds the given data to the cache with the given key, for patients that are not already cached there
+     */
+    void restoreCache(Map<Integer, JsonObject> dataToCache, String cacheKey) {
+        Segment segment = getSegment(cacheKey);
+        for (Map.Entry<Integer, JsonObject> e : dataToCache.entrySet()) {
+            if (!segment.entries.containsKey(e.getKey())) {
+                put(segment, e.getKey(), e.getValue());
+            }
+        }
+        evictIfNeeded();
+    }
+
+    @Override
+    public String toString() {
+        return "LivePatientDataCache[size=" + getSize() + ", max=" + getMaxPatients() + ", hits=" + getHits() + ", misses=" + getMisses() + ", evictions=" + getEvictions() + "]";
+    }
+
     //***** PRIVATE METHODS *****
 
-    private Map<Integer, JsonObject> getDataCache(String cacheKey) {
-        lastAccessTimes.put(cacheKey, System.currentTimeMillis());
-        if (cachesByKey == null) {
-            cachesByKey = new HashMap<String, Map<Integer, JsonObject>>();
+    private Segment getSegment(String cacheKey) {
+        Segment segment = cachesByKey.get(cacheKey);
+        if (segment == null) {
+            Segment newSegment = new Segment(cacheKey);
+            segment = cachesByKey.putIfAbsent(cacheKey, newSegment);
+            if (segment == null) {
+                segment = newSegment;
+            }
         }
-        Map<Integer, JsonObject> dataCache = cachesByKey.get(cacheKey);
-        if (dataCache == null) {
-            dataCache = new HashMap<Integer, JsonObject>();
-            cachesByKey.put(cacheKey, dataCache);
+        segment.lastAccessTime = System.currentTimeMillis();
+        return segment;
+    }
+
+    /**
+     * Caches the given data, retaining the version of any data already cached for the patient if the content is unchanged
+     */
+    private void put(Segment segment, Integer patientId, JsonObject patientData) {
+        long fingerprint = getFingerprint(patientData);
+        Entry existing = segment.entries.get(patientId);
+        long version = (existing != null && fingerprint != NO_FINGERPRINT && existing.fingerprint == fingerprint ? existing.version : currentVersion.incrementAndGet());
+        Entry entry = new Entry(segment, patientId, new CompactPatientRow(patientData, schema), version, fingerprint);
+        synchronized (accessOrder) {
+            Entry replaced = segment.entries.put(patientId, entry);
+            if (replaced != null) {
+                accessOrder.remove(replaced);
+            }
+            // A segment that has been cleared while it was being updated is no longer part of the cache
+            if (cachesByKey.get(segment.cacheKey) == segment) {
+                accessOrder.put(entry, Boolean.TRUE);
+            }
+        }
+    }
+
+    /**
+     * @return the data in the given entry, recording it as the most recently accessed
+     */
+    private JsonObject access(Entry entry) {
+        synchronized (accessOrder) {
+            accessOrder.get(entry);
+        }
+        return entry.data.toJsonObject();
+    }
+
+    /**
+     * Stops tracking the access order of the entries in the given segment, which has been removed from the cache
+     * @return the number of entries in the segment
+     */
+    private int removeAccessOrder(Segment segment) {
+        for (Entry entry : segment.entries.values()) {
+            accessOrder.remove(entry);
+        }
+        return segment.entries.size();
+    }
+
+    /**
+     * @return a hash of the json content of the given data, excluding those properties that change on every evaluation
+     */
+    private long getFingerprint(JsonObject patientData) {
+        Map<String, Object> content = new LinkedHashMap<String, Object>(patientData);
+        for (String property : UNVERSIONED_PROPERTIES) {
+            content.remove(property);
+        }
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(objectMapper.writeValueAsBytes(content));
+            long ret = 0;
+            for (int i = 0; i < 8; i++) {
+                ret = (ret << 8) | (digest[i] & 0xff);
+            }
+            return ret;
+        }
+        catch (Exception e) {
+            // Data that cannot be serialized is always considered to have changed
+            log.debug("Unable to fingerprint data for patient " + patientData.get(LivePatientDataSet.INTERNAL_ID), e);
+            return NO_FINGERPRINT;
+        }
+    }
+
+    /**
+     * If the maximum number of patients is exceeded, evicts the least recently accessed patients across all caches
+     */
+    private void evictIfNeeded() {
+        synchronized (accessOrder) {
+            if (accessOrder.size() <= maxPatients) {
+                return;
+            }
+            int target = (int) (maxPatients * EVICTION_TARGET);
+            int numEvicted = 0;
+            for (Iterator<Entry> i = accessOrder.keySet().iterator(); i.hasNext() && accessOrder.size() > target;) {
+                Entry entry = i.next();
+                i.remove();
+                if (entry.segment.entries.remove(entry.patientId, entry)) {
+                    numEvicted++;
+                }
+            }
+            evictions.addAndGet(numEvicted);
+            log.debug("Evicted " + numEvicted + " least recently accessed patients from cache");
         }
-        return dataCache;
     }
 
     private String getCacheKey(Date endDate, Location location) {
@@ -96,4 +409,43 @@ public class LivePatientDataCache {
         sb.append(DateUtil.formatDate(endDate, "yyyy-MM-dd"));
         return sb.toString();
     }
+
+    /**
+     * @return true if the given cache key is for the given date
+     */
+    static boolean isCacheKeyForDate(String cacheKey, Date endDate) {
+        return cacheKey.endsWith("|" + DateUtil.formatDate(endDate, "yyyy-MM-dd"));
+    }
+
+    /**
+     * The data cached for a particular location and date
+     */
+    private static class Segment {
+        private final String cacheKey;
+        private final ConcurrentMap<Integer, Entry> entries = new ConcurrentHashMap<Integer, Entry>();
+        private volatile long lastAccessTime = System.currentTimeMillis();
+
+        private Segment(String cacheKey) {
+            this.cacheKey = cacheKey;
+        }
+    }
+
+    /**
+     * The data cached for a particular patient
+     */
+    private static class Entry {
+        private final Segment segment;
+        private final Integer patientId;
+        private final CompactPatientRow data;
+        private final long version;
+        private final long fingerprint;
+
+        private Entry(Segment segment, Integer patientId, CompactPatientRow data, long version, long fingerprint) {
+            this.segment = segment;
+            this.patientId = patientId;
+            this.data = data;
+            this.version = version;
+            this.fingerprint = fingerprint;
+        }
+    }
 }
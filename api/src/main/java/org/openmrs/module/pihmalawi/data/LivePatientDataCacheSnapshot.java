@@ -0,0 +1,399 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.pihmalawi.data;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.module.pihmalawi.alert.AlertNotification;
+import org.openmrs.module.pihmalawi.common.JsonObject;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes the contents of a LivePatientDataCache to disk, and restores it again, so that the cache does not start
+ * empty after a restart.  Each cached location and date is written to its own file as a gzipped binary stream, in
+ * which each column name and string value is written only once per file and then referred to by index.
+ * Each file records the time as of which its data is known to be current.  When restored, the data for any patient
+ * whose data has changed since that time is discarded, as are the files for any date other than the one requested.
+ */
+public class LivePatientDataCacheSnapshot {
+
+    private final static Log log = LogFactory.getLog(LivePatientDataCacheSnapshot.class);
+
+    //***** CONSTANTS *****
+
+    private static final int MAGIC_NUMBER = 0x49433343; // IC3C
+    private static final int FORMAT_VERSION = 1;
+    private static final String FILE_SUFFIX = ".snapshot";
+    private static final String TEMP_FILE_SUFFIX = ".tmp";
+
+    private static final byte NULL = 0;
+    private static final byte INTEGER = 1;
+    private static final byte LONG = 2;
+    private static final byte DOUBLE = 3;
+    private static final byte BOOLEAN = 4;
+    private static final byte DATE = 5;
+    private static final byte STRING = 6;
+    private static final byte MAP = 7;
+    private static final byte LIST = 8;
+    private static final byte ALERT = 9;
+
+    private static final int NULL_STRING = -2;
+    private static final int NEW_STRING = -1;
+
+    //***** PROPERTIES *****
+
+    private final File directory;
+
+    //***** CONSTRUCTORS *****
+
+    public LivePatientDataCacheSnapshot(File directory) {
+        this.directory = directory;
+    }
+
+    //***** METHODS *****
+
+    /**
+     * Writes each location and date held in the given cache to its own file, replacing any previous snapshot
+     * Patients with data that cannot be represented in a snapshot are omitted
+     * @param dataAsOf the time after which changes to patient data may not be reflected in the cache
+     * @return the number of patients written
+     */
+    public int write(LivePatientDataCache cache, Date dataAsOf) {
+        long startTime = System.currentTimeMillis();
+        directory.mkdirs();
+        Set<String> filesWritten = new HashSet<String>();
+        int numWritten = 0;
+        for (String cacheKey : cache.getCacheKeys()) {
+            Map<Integer, JsonObject> data = cache.getDataCache(cacheKey);
+            if (data == null || data.isEmpty()) {
+                continue;
+            }
+            File file = new File(directory, getFileName(cacheKey));
+            File tempFile = new File(directory, file.getName() + TEMP_FILE_SUFFIX);
+            try {
+                numWritten += writeFile(tempFile, cacheKey, data, dataAsOf);
+                if (file.exists() && !file.delete()) {
+                    throw new IOException("Unable to replace " + file);
+                }
+                if (!tempFile.renameTo(file)) {
+                    throw new IOException("Unable to rename " + tempFile + " to " + file);
+                }
+                filesWritten.add(file.getName());
+            }
+            catch (IOException e) {
+                log.warn("Unable to write patient data cache snapshot for " + cacheKey, e);
+                tempFile.delete();
+            }
+        }
+
+        // Remove the snapshots of any caches that are no longer held
+        for (File file : getSnapshotFiles()) {
+            if (!filesWritten.contains(file.getName())) {
+                file.delete();
+            }
+        }
+
+        log.debug("Wrote snapshot of " + numWritten + " patients in " + filesWritten.size() + " caches in " + (System.currentTimeMillis() - startTime) + " ms");
+        return numWritten;
+    }
+
+    /**
+     * Restores into the given cache the data in each snapshot file for the given date
+     * The data for any patient changed since the snapshot was written is not restored, and snapshot files for any
+     * other date, or which cannot be read, are removed
+     * @return the number of patients restored
+     */
+    public int restore(LivePatientDataCache cache, Date endDate, PatientDataChangeTracker changeTracker) {
+        long startTime = System.currentTimeMillis();
+        Map<Long, Set<Integer>> changedPatientsByDate = new HashMap<Long, Set<Integer>>();
+        int numRestored = 0;
+        int numDiscarded = 0;
+        for (File file : getSnapshotFiles()) {
+            DataInputStream in = null;
+            try {
+                in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(file))));
+                if (in.readInt() != MAGIC_NUMBER || in.readInt() != FORMAT_VERSION) {
+                    throw new IOException("Unrecognized snapshot format");
+                }
+                long dataAsOf = in.readLong();
+                String cacheKey = in.readUTF();
+                if (!LivePatientDataCache.isCacheKeyForDate(cacheKey, endDate)) {
+                    IOUtils.closeQuietly(in);
+                    file.delete();
+                    continue;
+                }
+                Set<Integer> changedPatients = changedPatientsByDate.get(dataAsOf);
+                if (changedPatients == null) {
+                    changedPatients = changeTracker.getPatientsChangedSince(new Date(dataAsOf));
+                    changedPatientsByDate.put(dataAsOf, changedPatients);
+                }
+
+                List<String> strings = new ArrayList<String>();
+                Map<Integer, JsonObject> data = new HashMap<Integer, JsonObject>();
+                int numPatients = in.readInt();
+                for (int i = 0; i < numPatients; i++) {
+                    Integer patientId = in.readInt();
+                    JsonObject patientData = (JsonObject) readValue(in, strings);
+                    if (changedPatients.contains(patientId)) {
+                        numDiscarded++;
+                    }
+                    else {
+                        data.put(patientId, patientData);
+                    }
+                }
+                cache.restoreCache(data, cacheKey);
+                numRestored += data.size();
+            }
+            catch (Exception e) {
+                log.warn("Unable to restore patient data cache snapshot from " + file + ", removing it", e);
+                IOUtils.closeQuietly(in);
+                file.delete();
+            }
+            finally {
+                IOUtils.closeQuietly(in);
+            }
+        }
+        log.info("Restored " + numRestored + " patients from patient data cache snapshot in " + (System.currentTimeMillis() - startTime) + " ms, discarding " + numDiscarded + " patients changed since it was written");
+        return numRestored;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    //***** PRIVATE METHODS *****
+
+    private int writeFile(File file, String cacheKey, Map<Integer, JsonObject> data, Date dataAsOf) throws IOException {
+        List<Integer> patientIds = new ArrayList<Integer>();
+        for (Map.Entry<Integer, JsonObject> e : data.entrySet()) {
+            if (isSupported(e.getValue())) {
+                patientIds.add(e.getKey());
+            }
+            else {
+                log.debug("Not writing patient " + e.getKey() + " to snapshot, as their data contains unsupported values");
+            }
+        }
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(file))));
+            out.writeInt(MAGIC_NUMBER);
+            out.writeInt(FORMAT_VERSION);
+            out.writeLong(dataAsOf.getTime());
+            out.writeUTF(cacheKey);
+            out.writeInt(patientIds.size());
+            Map<String, Integer> strings = new HashMap<String, Integer>();
+            for (Integer patientId : patientIds) {
+                out.writeInt(patientId);
+                writeValue(out, data.get(patientId), strings);
+            }
+            out.close();
+            out = null;
+        }
+        finally {
+            IOUtils.closeQuietly(out);
+        }
+        return patientIds.size();
+    }
+
+    private boolean isSupported(Object value) {
+        if (value == null || value instanceof Integer || value instanceof Long || value instanceof Double || value instanceof Boolean || value instanceof Date || value instanceof String) {
+            return true;
+        }
+        if (value instanceof Map) {
+            for (Map.Entry<?, ?> e : ((Map<?, ?>) value).entrySet()) {
+                if (!(e.getKey() instanceof String) || !isSupported(e.getValue())) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        if (value instanceof Collection) {
+            for (Object o : (Collection<?>) value) {
+                if (!isSupported(o)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        if (value instanceof AlertNotification) {
+            return isSupported(((AlertNotification) value).getCategories());
+        }
+        return false;
+    }
+
+    private void writeValue(DataOutputStream out, Object value, Map<String, Integer> strings) throws IOException {
+        if (value == null) {
+            out.writeByte(NULL);
+        }
+        else if (value instanceof Integer) {
+            out.writeByte(INTEGER);
+            out.writeInt((Integer) value);
+        }
+        else if (value instanceof Long) {
+            out.writeByte(LONG);
+            out.writeLong((Long) value);
+        }
+        else if (value instanceof Double) {
+            out.writeByte(DOUBLE);
+            out.writeDouble((Double) value);
+        }
+        else if (value instanceof Boolean) {
+            out.writeByte(BOOLEAN);
+            out.writeBoolean((Boolean) value);
+        }
+        else if (value instanceof Date) {
+            out.writeByte(DATE);
+            out.writeLong(((Date) value).getTime());
+        }
+        else if (value instanceof String) {
+            out.writeByte(STRING);
+            writeString(out, (String) value, strings);
+        }
+        else if (value instanceof Map) {
+            Map<String, ?> map = (Map<String, ?>) value;
+            out.writeByte(MAP);
+            out.writeInt(map.size());
+            for (Map.Entry<String, ?> e : map.entrySet()) {
+                writeString(out, e.getKey(), strings);
+                writeValue(out, e.getValue(), strings);
+            }
+        }
+        else if (value instanceof Collection) {
+            Collection<?> values = (Collection<?>) value;
+            out.writeByte(LIST);
+            out.writeInt(values.size());
+            for (Object o : values) {
+                writeValue(out, o, strings);
+            }
+        }
+        else if (value instanceof AlertNotification) {
+            AlertNotification alert = (AlertNotification) value;
+            out.writeByte(ALERT);
+            writeString(out, alert.getName(), strings);
+            writeValue(out, alert.getCategories(), strings);
+            writeString(out, alert.getAlert(), strings);
+            writeString(out, alert.getAction(), strings);
+        }
+        else {
+            throw new IOException("Unable to write value of type " + value.getClass());
+        }
+    }
+
+    private Object readValue(DataInputStream in, List<String> strings) throws IOException {
+        byte type = in.readByte();
+        switch (type) {
+            case NULL: return null;
+            case INTEGER: return in.readInt();
+            case LONG: return in.readLong();
+            case DOUBLE: return in.readDouble();
+            case BOOLEAN: return in.readBoolean();
+            case DATE: return new Date(in.readLong());
+            case STRING: return readString(in, strings);
+            case MAP: {
+                int size = in.readInt();
+                JsonObject ret = new JsonObject();
+                for (int i = 0; i < size; i++) {
+                    String key = readString(in, strings);
+                    ret.put(key, readValue(in, strings));
+                }
+                return ret;
+            }
+            case LIST: {
+                int size = in.readInt();
+                List<Object> ret = new ArrayList<Object>(size);
+                for (int i = 0; i < size; i++) {
+                    ret.add(readValue(in, strings));
+                }
+                return ret;
+            }
+            case ALERT: {
+                AlertNotification ret = new AlertNotification();
+                ret.setName(readString(in, strings));
+                ret.setCategories((List<String>) readValue(in, strings));
+                ret.setAlert(readString(in, strings));
+                ret.setAction(readString(in, strings));
+                return ret;
+            }
+            default: throw new IOException("Unrecognized value type " + type);
+        }
+    }
+
+    /**
+     * Writes the index of a string already written to this file, or the string itself if it is new
+     */
+    private void writeString(DataOutputStream out, String s, Map<String, Integer> strings) throws IOException {
+        if (s == null) {
+            out.writeInt(NULL_STRING);
+            return;
+        }
+        Integer index = strings.get(s);
+        if (index != null) {
+            out.writeInt(index);
+        }
+        else {
+            out.writeInt(NEW_STRING);
+            byte[] bytes = s.getBytes("UTF-8");
+            out.writeInt(bytes.length);
+            out.write(bytes);
+            strings.put(s, strings.size());
+        }
+    }
+
+    private String readString(DataInputStream in, List<String> strings) throws IOException {
+        int index = in.readInt();
+        if (index == NULL_STRING) {
+            return null;
+        }
+        if (index == NEW_STRING) {
+            byte[] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+            String s = new String(bytes, "UTF-8");
+            strings.add(s);
+            return s;
+        }
+        return strings.get(index);
+    }
+
+    private List<File> getSnapshotFiles() {
+        List<File> ret = new ArrayList<File>();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().endsWith(FILE_SUFFIX)) {
+                    ret.add(file);
+                }
+            }
+        }
+        return ret;
+    }
+
+    private String getFileName(String cacheKey) {
+        return cacheKey.replaceAll("[^0-9A-Za-z\\-]", "_") + FILE_SUFFIX;
+    }
+}
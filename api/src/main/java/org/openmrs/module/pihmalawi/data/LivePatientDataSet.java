@@ -21,6 +21,7 @@ import org.openmrs.module.pihmalawi.common.JsonObject;
 import org.openmrs.module.pihmalawi.metadata.ChronicCareMetadata;
 import org.openmrs.module.pihmalawi.metadata.CommonMetadata;
 import org.openmrs.module.pihmalawi.metadata.HivMetadata;
+import org.openmrs.module.pihmalawi.reporting.definition.data.evaluator.SharedObsScan;
 import org.openmrs.module.pihmalawi.reporting.library.BaseCohortDefinitionLibrary;
 import org.openmrs.module.pihmalawi.reporting.library.BasePatientDataLibrary;
 import org.openmrs.module.pihmalawi.reporting.library.ChronicCarePatientDataLibrary;
@@ -41,18 +42,28 @@ import org.openmrs.module.reporting.dataset.DataSetColumn;
 import org.openmrs.module.reporting.dataset.DataSetRow;
 import org.openmrs.module.reporting.dataset.definition.DataSetDefinition;
 import org.openmrs.module.reporting.dataset.definition.PatientDataSetDefinition;
+import org.openmrs.module.reporting.dataset.definition.RowPerObjectDataSetDefinition;
 import org.openmrs.module.reporting.dataset.definition.service.DataSetDefinitionService;
 import org.openmrs.module.reporting.evaluation.EvaluationContext;
 import org.openmrs.module.reporting.evaluation.EvaluationException;
 import org.openmrs.module.reporting.evaluation.parameter.Mapped;
 import org.springframework.beans.factory.annotation.Autowired;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
 import org.openmrs.module.reporting.common.DateUtil;
 
 /**
@@ -104,10 +115,21 @@ public abstract class LivePatientDataSet {
 
     public static final String INTERNAL_ID = "internal_id";
 
+    // The number of most recently used sync tokens that are retained
+    public static final int MAX_SYNC_TOKENS = 500;
+
     //***** INSTANCE VARIABLES *****
 
-    private LivePatientDataCache cache;
+    private final LivePatientDataCache cache = new LivePatientDataCache();
     private AlertEngine alertEngine = new AlertEngine();
+    private boolean useSharedObsScan = true;
+    private final AtomicLong syncSequence = new AtomicLong(0);
+    private final Map<String, SyncPoint> syncPoints = Collections.synchronizedMap(new LinkedHashMap<String, SyncPoint>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, SyncPoint> eldest) {
+            return size() > MAX_SYNC_TOKENS;
+        }
+    });
 
     //***** ABSTRACT METHODS *****
 
@@ -162,49 +184,180 @@ public abstract class LivePatientDataSet {
         log.debug("Effective Date: " + effectiveDate);
         log.debug("Location: " + location);
 
-        Map<Integer, JsonObject> cachedData = getCache().getDataCache(effectiveDate, location);
+        Map<Integer, JsonObject> cachedData = new HashMap<Integer, JsonObject>();
+        if (useCachedValues) {
+            cachedData = getCache().getCachedData(cohort.getMemberIds(), effectiveDate, location);
+        }
 
         Cohort notCached = CohortUtil.subtract(new Cohort(cohort.getMemberIds()), new Cohort(cachedData.keySet()));
         log.debug("Generating new data for " + (useCachedValues ? notCached.size() : cohort.size()) + " patients");
 
         if (!useCachedValues || notCached.size() > 0) {
-            DataSet ds = evaluateDataSet(getDataSetDefinition(), effectiveDate, location, useCachedValues ? notCached : cohort);
-            for (DataSetRow row : ds) {
-                JsonObject patientData = new JsonObject();
-                patientData.put("today", effectiveDate);
-                patientData.put("now", Calendar.getInstance().getTime());
-                patientData.put("location", (location != null ? location.getUuid() : null));
-                for (DataSetColumn c : row.getColumnValues().keySet()) {
-                    if (patientData.containsKey(c.getName())) {
-                        throw new RuntimeException("Duplicate column " + c.getName() + " found.  Please change column name in data set");
-                    }
-                    patientData.put(c.getName(), row.getColumnValues().get(c));
-                }
-                List<AlertDefinition> matchingAlerts = alertEngine.evaluateMatchingAlerts(getAlertDefinitions(), patientData);
-                List<AlertNotification> alertNotificationList = new ArrayList<AlertNotification>();
-                for (AlertNotification ad : matchingAlerts) {
-                    alertNotificationList.add(new AlertNotification(ad));
-                }
-                patientData.put("alerts", alertNotificationList);
-                Integer internalId = (Integer) row.getColumnValue(INTERNAL_ID);
-                if (internalId == null) {
-                    throw new RuntimeException("No " + INTERNAL_ID + " found for data set row: " + row);
+            data = generateData(useCachedValues ? notCached : cohort, effectiveDate, location);
+        }
+
+        // The cached data is read once above, so that concurrent eviction cannot remove it before it is returned
+        for (Integer pId : cohort.getMemberIds()) {
+            if (!data.containsKey(pId)) {
+                data.put(pId, cachedData.get(pId));
+            }
+        }
+
+        return data;
+    }
+
+    /**
+     * Passes the data for a given cohort on a given date and location to the given handler in batches, rather than
+     * returning it all at once.  Data that is already cached is passed first, in batches of up to the given size,
+     * followed by the data for the remaining patients as each batch of them is evaluated.
+     * If date is null, then the current date will be used
+     * @return the number of patients for which data was passed to the handler
+     */
+    public int streamDataForCohort(Cohort cohort, Date effectiveDatetime, Location location, boolean useCachedValues,
+                                   int batchSize, PatientDataHandler handler) throws IOException {
+
+        Date effectiveDate = DateUtil.getStartOfDay(effectiveDatetime);
+        log.debug("Streaming Data for Cohort size " + cohort.getSize() + " in batches of " + batchSize);
+
+        int numHandled = 0;
+        List<Integer> notCached = new ArrayList<Integer>();
+        for (List<Integer> batch : getBatches(cohort.getMemberIds(), batchSize)) {
+            Map<Integer, JsonObject> cachedData = new HashMap<Integer, JsonObject>();
+            if (useCachedValues) {
+                cachedData = getCache().getCachedData(batch, effectiveDate, location);
+            }
+            for (Integer pId : batch) {
+                if (!cachedData.containsKey(pId)) {
+                    notCached.add(pId);
                 }
-                data.put(internalId, patientData);
             }
-            log.debug("Number of results generated " + data.size());
+            if (!cachedData.isEmpty()) {
+                handler.handleData(cachedData);
+                numHandled += cachedData.size();
+            }
+        }
 
-            getCache().updateCache(data, effectiveDate, location);
+        log.debug("Generating new data for " + notCached.size() + " patients");
+        for (List<Integer> batch : getBatches(notCached, batchSize)) {
+            Map<Integer, JsonObject> data = generateData(new Cohort(batch), effectiveDate, location);
+            handler.handleData(data);
+            numHandled += data.size();
         }
-        for (Integer pId : cohort.getMemberIds()) {
-            data.put(pId, cachedData.get(pId));
+
+        return numHandled;
+    }
+
+    /**
+     * @return the version of each patient's data in the given cohort on a given date and location, by patient id
+     * Data is first evaluated and cached for any patients whose data is not cached, or for all patients if cached
+     * values are not to be used, so that afterwards the data for the cohort can be retrieved from the cache.
+     * A patient's version only increases when their data changes.
+     */
+    public Map<Integer, Long> getVersionsForCohort(Cohort cohort, Date effectiveDatetime, Location location, boolean useCachedValues) {
+        Date effectiveDate = DateUtil.getStartOfDay(effectiveDatetime);
+        Map<Integer, Long> versions = new HashMap<Integer, Long>();
+        if (useCachedValues) {
+            versions = getCache().getVersions(cohort.getMemberIds(), effectiveDate, location);
+        }
+        Cohort notCached = CohortUtil.subtract(new Cohort(cohort.getMemberIds()), new Cohort(versions.keySet()));
+        if (notCached.size() > 0) {
+            generateData(notCached, effectiveDate, location);
+            versions.putAll(getCache().getVersions(notCached.getMemberIds(), effectiveDate, location));
         }
+        return versions;
+    }
 
-        return data;
+    /**
+     * @return a token that identifies the given versions of patient data, such that the patients whose data has changed
+     * since can later be determined with getPatientsChangedSince
+     */
+    public String getSyncToken(Map<Integer, Long> versions) {
+        String syncToken = getCache().getEpoch() + "-" + syncSequence.incrementAndGet();
+        syncPoints.put(syncToken, new SyncPoint(versions));
+        return syncToken;
+    }
+
+    /**
+     * @return the patients with the given versions whose data has changed since the given sync token was issued, or who
+     * were not included when it was issued, or null if the token is unknown, in which case all should be considered changed
+     * Each patient's version is compared with the version issued for that patient, rather than with the highest version
+     * issued, as versions are assigned before the data is cached and so may become visible out of order
+     */
+    public Set<Integer> getPatientsChangedSince(String syncToken, Map<Integer, Long> versions) {
+        SyncPoint syncPoint = (syncToken == null ? null : syncPoints.get(syncToken));
+        if (syncPoint == null) {
+            return null;
+        }
+        Set<Integer> ret = new HashSet<Integer>();
+        for (Map.Entry<Integer, Long> e : versions.entrySet()) {
+            Long issuedVersion = syncPoint.getVersion(e.getKey());
+            if (issuedVersion == null || issuedVersion.longValue() != e.getValue().longValue()) {
+                ret.add(e.getKey());
+            }
+        }
+        return ret;
     }
 
     //***** HELPER METHODS *****
 
+    /**
+     * Evaluates the data and alerts for the given cohort, and updates the cache with the results
+     */
+    protected Map<Integer, JsonObject> generateData(Cohort cohort, Date effectiveDate, Location location) {
+        Map<Integer, JsonObject> data = new HashMap<Integer, JsonObject>();
+        DataSet ds = evaluateDataSet(getDataSetDefinition(), effectiveDate, location, cohort);
+        for (DataSetRow row : ds) {
+            JsonObject patientData = new JsonObject();
+            patientData.put("today", effectiveDate);
+            patientData.put("now", Calendar.getInstance().getTime());
+            patientData.put("location", (location != null ? location.getUuid() : null));
+            for (DataSetColumn c : row.getColumnValues().keySet()) {
+                if (patientData.containsKey(c.getName())) {
+                    throw new RuntimeException("Duplicate column " + c.getName() + " found.  Please change column name in data set");
+                }
+                patientData.put(c.getName(), row.getColumnValues().get(c));
+            }
+            Integer internalId = (Integer) row.getColumnValue(INTERNAL_ID);
+            if (internalId == null) {
+                throw new RuntimeException("No " + INTERNAL_ID + " found for data set row: " + row);
+            }
+            data.put(internalId, patientData);
+        }
+
+        // Evaluate alerts for all patients in a single pass over the compiled alert definitions
+        Map<Integer, List<AlertDefinition>> matchingAlerts = alertEngine.evaluateMatchingAlertsForCohort(getAlertDefinitions(), data);
+        for (Integer pId : matchingAlerts.keySet()) {
+            List<AlertNotification> alertNotificationList = new ArrayList<AlertNotification>();
+            for (AlertNotification ad : matchingAlerts.get(pId)) {
+                alertNotificationList.add(new AlertNotification(ad));
+            }
+            data.get(pId).put("alerts", alertNotificationList);
+        }
+        log.debug("Number of results generated " + data.size());
+
+        getCache().updateCache(data, effectiveDate, location);
+        return data;
+    }
+
+    /**
+     * @return the given patient ids split into lists of at most the given size
+     */
+    protected List<List<Integer>> getBatches(Collection<Integer> patientIds, int batchSize) {
+        List<List<Integer>> batches = new ArrayList<List<Integer>>();
+        List<Integer> batch = new ArrayList<Integer>();
+        for (Integer pId : patientIds) {
+            batch.add(pId);
+            if (batch.size() >= batchSize) {
+                batches.add(batch);
+                batch = new ArrayList<Integer>();
+            }
+        }
+        if (!batch.isEmpty()) {
+            batches.add(batch);
+        }
+        return batches;
+    }
+
     /**
      * Utility/convenience method to map straight through the mappings
       */
@@ -251,16 +404,28 @@ public abstract class LivePatientDataSet {
 
     /**
      * Helper method to evaluate a Data Set Definition
+     * If useSharedObsScan is set, the obs-based columns of the data set are loaded together for each date window,
+     * rather than each column querying for its own obs
      */
     protected DataSet evaluateDataSet(DataSetDefinition dsd, Date endDate, Location location, Cohort baseCohort) {
         EvaluationContext context = createEvaluationContext(endDate, location, baseCohort);
+        SharedObsScan scan = null;
         try {
             log.warn("Evaluating data set for " + baseCohort.size() + " patients at " + (location == null ? "all locations" : location.getName()) + " on " + DateUtil.formatDate(endDate, "yyyy-MM-dd"));
+            if (useSharedObsScan && dsd instanceof RowPerObjectDataSetDefinition) {
+                scan = SharedObsScan.start((RowPerObjectDataSetDefinition) dsd);
+            }
             return dataSetService.evaluate(dsd, context);
         }
         catch (EvaluationException e) {
             throw new RuntimeException("Unable to evaluate data set", e);
         }
+        finally {
+            if (scan != null) {
+                SharedObsScan.end();
+                log.debug("Evaluated data set using " + scan);
+            }
+        }
     }
 
     /**
@@ -274,13 +439,46 @@ public abstract class LivePatientDataSet {
         return context;
     }
 
+    public boolean isUseSharedObsScan() {
+        return useSharedObsScan;
+    }
+
+    public void setUseSharedObsScan(boolean useSharedObsScan) {
+        this.useSharedObsScan = useSharedObsScan;
+    }
+
     /**
      * @return Cache of patient data
      */
     public LivePatientDataCache getCache() {
-        if (cache == null) {
-            cache = new LivePatientDataCache();
-        }
         return cache;
     }
+
+    /**
+     * The version of each patient's data included when a sync token was issued, held in arrays sorted by patient id
+     */
+    private static class SyncPoint {
+        private final int[] patientIds;
+        private final long[] versions;
+
+        private SyncPoint(Map<Integer, Long> versionsByPatient) {
+            Map<Integer, Long> sorted = new TreeMap<Integer, Long>(versionsByPatient);
+            patientIds = new int[sorted.size()];
+            versions = new long[sorted.size()];
+            int i = 0;
+            for (Map.Entry<Integer, Long> e : sorted.entrySet()) {
+                patientIds[i] = e.getKey();
+                versions[i] = e.getValue();
+                i++;
+            }
+        }
+
+        /**
+         * @return the version issued for the given patient, or null if the patient was not included
+         */
+        private Long getVersion(Integer patientId) {
+            int i = Arrays.binarySearch(patientIds, patientId);
+            return (i < 0 ? null : versions[i]);
+        }
+    }
 }
@@ -0,0 +1,58 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.pihmalawi.data;
+
+import org.openmrs.module.reporting.evaluation.EvaluationContext;
+import org.openmrs.module.reporting.evaluation.querybuilder.SqlQueryBuilder;
+import org.openmrs.module.reporting.evaluation.service.EvaluationService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Determines which patients have had data created, changed, or voided since a given point in time,
+ * so that only the cached data for these patients needs to be re-evaluated
+ */
+@Component
+public class PatientDataChangeTracker {
+
+    @Autowired
+    EvaluationService evaluationService;
+
+    /**
+     * @return the ids of all patients with a person, encounter, obs, program enrollment, program state, or identifier
+     * that has been created, changed, or voided on or after the given date
+     */
+    public Set<Integer> getPatientsChangedSince(Date since) {
+        SqlQueryBuilder q = new SqlQueryBuilder();
+        q.append("select person_id from person");
+        q.append("where date_created >= :since or date_changed >= :since or date_voided >= :since");
+        q.append("union");
+        q.append("select patient_id from encounter");
+        q.append("where date_created >= :since or date_changed >= :since or date_voided >= :since");
+        q.append("union");
+        q.append("select person_id from obs");
+        q.append("where date_created >= :since or date_voided >= :since");
+        q.append("union");
+        q.append("select patient_id from patient_program");
+        q.append("where date_created >= :since or date_changed >= :since or date_voided >= :since");
+        q.append("union");
+        q.append("select pp.patient_id from patient_state ps inner join patient_program pp on ps.patient_program_id = pp.patient_program_id");
+        q.append("where ps.date_created >= :since or ps.date_changed >= :since or ps.date_voided >= :since");
+        q.append("union");
+        q.append("select patient_id from patient_identifier");
+        q.append("where date_created >= :since or date_changed >= :since or date_voided >= :since");
+        q.addParameter("since", since);
+        return new HashSet<Integer>(evaluationService.evaluateToList(q, Integer.class, new EvaluationContext()));
+    }
+}
@@ -0,0 +1,27 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.pihmalawi.data;
+
+import org.openmrs.module.pihmalawi.common.JsonObject;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Receives patient data from a LivePatientDataSet as each batch of it becomes available,
+ * so that it can be written out without first holding the data for the whole cohort in memory
+ */
+public interface PatientDataHandler {
+
+    /**
+     * @param data the data for a batch of patients, by patient id
+     */
+    void handleData(Map<Integer, JsonObject> data) throws IOException;
+}
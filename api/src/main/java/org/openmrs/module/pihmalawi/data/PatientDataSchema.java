@@ -0,0 +1,115 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.pihmalawi.data;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Pattern;
+
+/**
+ * A dictionary of column names shared by all CompactPatientRows in a cache, so that each row only needs to
+ * store its values by column index.  Columns are only ever added, never removed or re-ordered, so an index
+ * remains valid for the lifetime of the schema.  Nested objects (eg. each viral load within a list of viral loads)
+ * use a child schema, keyed on the name of the column that contains them.
+ *
+ * This also holds a pool of UUID strings (coded answers, locations, etc), so that the many rows that refer to
+ * the same UUID share a single String instance.
+ */
+public class PatientDataSchema {
+
+    private static final Pattern UUID_PATTERN = Pattern.compile("[0-9a-fA-F]{8}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{12}");
+
+    //***** PROPERTIES *****
+
+    private final ConcurrentMap<String, Integer> indexes = new ConcurrentHashMap<String, Integer>();
+    private volatile String[] columns = new String[0];
+    private final ConcurrentMap<String, PatientDataSchema> childSchemas = new ConcurrentHashMap<String, PatientDataSchema>();
+    private final ConcurrentMap<String, String> stringPool;
+
+    //***** CONSTRUCTORS *****
+
+    public PatientDataSchema() {
+        this(new ConcurrentHashMap<String, String>());
+    }
+
+    private PatientDataSchema(ConcurrentMap<String, String> stringPool) {
+        this.stringPool = stringPool;
+    }
+
+    //***** METHODS *****
+
+    /**
+     * @return the index of the given column, adding it to the schema if it is not already present
+     */
+    public int getOrAddIndex(String column) {
+        Integer index = indexes.get(column);
+        if (index == null) {
+            synchronized (this) {
+                index = indexes.get(column);
+                if (index == null) {
+                    String[] newColumns = new String[columns.length + 1];
+                    System.arraycopy(columns, 0, newColumns, 0, columns.length);
+                    index = columns.length;
+                    newColumns[index] = column;
+                    columns = newColumns;
+                    indexes.put(column, index);
+                }
+            }
+        }
+        return index;
+    }
+
+    /**
+     * @return the index of the given column, or null if it is not in the schema
+     */
+    public Integer getIndex(String column) {
+        return indexes.get(column);
+    }
+
+    /**
+     * @return the name of the column at the given index
+     */
+    public String getColumn(int index) {
+        return columns[index];
+    }
+
+    /**
+     * @return the number of columns currently in the schema
+     */
+    public int size() {
+        return columns.length;
+    }
+
+    /**
+     * @return the schema for objects nested within the given column
+     */
+    public PatientDataSchema getChildSchema(String column) {
+        PatientDataSchema child = childSchemas.get(column);
+        if (child == null) {
+            PatientDataSchema newChild = new PatientDataSchema(stringPool);
+            child = childSchemas.putIfAbsent(column, newChild);
+            if (child == null) {
+                child = newChild;
+            }
+        }
+        return child;
+    }
+
+    /**
+     * @return a shared instance of the given String if it is a UUID, otherwise the String itself
+     */
+    public String intern(String s) {
+        if (s != null && s.length() == 36 && UUID_PATTERN.matcher(s).matches()) {
+            String existing = stringPool.putIfAbsent(s, s);
+            return existing == null ? s : existing;
+        }
+        return s;
+    }
+}
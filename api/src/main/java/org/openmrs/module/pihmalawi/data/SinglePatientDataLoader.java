@@ -0,0 +1,195 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.pihmalawi.data;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.Cohort;
+import org.openmrs.Encounter;
+import org.openmrs.Obs;
+import org.openmrs.PatientIdentifier;
+import org.openmrs.PatientState;
+import org.openmrs.api.APIException;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.pihmalawi.reporting.definition.data.evaluator.SharedObsScan;
+import org.openmrs.module.reporting.data.patient.definition.PatientDataDefinition;
+import org.openmrs.module.reporting.dataset.DataSet;
+import org.openmrs.module.reporting.dataset.DataSetRow;
+import org.openmrs.module.reporting.dataset.definition.PatientDataSetDefinition;
+import org.openmrs.module.reporting.dataset.definition.service.DataSetDefinitionService;
+import org.openmrs.module.reporting.evaluation.EvaluationContext;
+import org.openmrs.module.reporting.evaluation.EvaluationException;
+import org.openmrs.module.reporting.evaluation.parameter.Mapped;
+import org.openmrs.module.reporting.evaluation.querybuilder.HqlQueryBuilder;
+import org.openmrs.module.reporting.evaluation.service.EvaluationService;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Loads the data needed by a page about a single patient, such as a patient summary.
+ * Rather than evaluating each PatientDataDefinition separately, definitions are added by name and then evaluated
+ * together as the columns of a single PatientDataSetDefinition, within a SharedObsScan, so that their obs are loaded
+ * together.  Before the first evaluation, the patient's obs, encounters, program states, and identifiers are each
+ * loaded with a single query, so that they are already in the session when definitions and pages navigate to them.
+ * Definitions that depend upon the results of others can be added and loaded in a subsequent call to load().
+ */
+public class SinglePatientDataLoader {
+
+    private final static Log log = LogFactory.getLog(SinglePatientDataLoader.class);
+
+    //***** PROPERTIES *****
+
+    private final Integer patientId;
+    private final EvaluationContext context;
+    private final Map<String, PatientDataDefinition> pendingDefinitions = new LinkedHashMap<String, PatientDataDefinition>();
+    private final Map<String, Object> data = new HashMap<String, Object>();
+    private boolean prefetched = false;
+    private int numLoads = 0;
+    private long loadTimeMillis = 0;
+
+    //***** CONSTRUCTORS *****
+
+    public SinglePatientDataLoader(Integer patientId) {
+        this(patientId, new EvaluationContext());
+    }
+
+    /**
+     * @param context the context to evaluate with, which will be limited to the given patient
+     */
+    public SinglePatientDataLoader(Integer patientId, EvaluationContext context) {
+        this.patientId = patientId;
+        this.context = context;
+        this.context.setBaseCohort(new Cohort());
+        this.context.getBaseCohort().addMember(patientId);
+    }
+
+    //***** METHODS *****
+
+    /**
+     * Adds a definition to be evaluated on the next call to load(), with its value retrieved by the given key
+     */
+    public SinglePatientDataLoader add(String key, PatientDataDefinition definition) {
+        if (pendingDefinitions.containsKey(key) || data.containsKey(key)) {
+            throw new IllegalArgumentException("A definition has already been added with key " + key);
+        }
+        pendingDefinitions.put(key, definition);
+        return this;
+    }
+
+    /**
+     * Evaluates all definitions added since the last load as a single data set
+     */
+    public SinglePatientDataLoader load() {
+        if (pendingDefinitions.isEmpty()) {
+            return this;
+        }
+        long startTime = System.currentTimeMillis();
+        if (!prefetched) {
+            prefetch();
+            prefetched = true;
+        }
+
+        PatientDataSetDefinition dsd = new PatientDataSetDefinition();
+        for (Map.Entry<String, PatientDataDefinition> e : pendingDefinitions.entrySet()) {
+            dsd.addColumn(e.getKey(), e.getValue(), Mapped.straightThroughMappings(e.getValue()));
+        }
+
+        SharedObsScan.start(dsd);
+        try {
+            DataSet ds = Context.getService(DataSetDefinitionService.class).evaluate(dsd, context);
+            for (String key : pendingDefinitions.keySet()) {
+                data.put(key, null); // If the patient has no row, for example if they are voided, there is no data for them
+            }
+            for (DataSetRow row : ds) {
+                for (String key : pendingDefinitions.keySet()) {
+                    data.put(key, row.getColumnValue(key));
+                }
+            }
+        }
+        catch (EvaluationException e) {
+            throw new APIException("Unable to evaluate data for patient " + patientId, e);
+        }
+        finally {
+            SharedObsScan.end();
+        }
+
+        long time = System.currentTimeMillis() - startTime;
+        log.debug("Loaded " + pendingDefinitions.size() + " definitions for patient " + patientId + " in " + time + " ms");
+        pendingDefinitions.clear();
+        numLoads++;
+        loadTimeMillis += time;
+        return this;
+    }
+
+    /**
+     * @return the loaded value for the given key, cast to the expected type, or null if there is no value for the patient
+     */
+    public <T> T get(String key) {
+        if (pendingDefinitions.containsKey(key)) {
+            throw new IllegalStateException("Data for " + key + " has not yet been loaded");
+        }
+        if (!data.containsKey(key)) {
+            throw new IllegalArgumentException("No definition has been added and loaded with key " + key);
+        }
+        return (T) data.get(key);
+    }
+
+    /**
+     * @return a copy of all data loaded so far, by key
+     */
+    public Map<String, Object> getData() {
+        return new HashMap<String, Object>(data);
+    }
+
+    public Integer getPatientId() {
+        return patientId;
+    }
+
+    public EvaluationContext getContext() {
+        return context;
+    }
+
+    public int getNumLoads() {
+        return numLoads;
+    }
+
+    public long getLoadTimeMillis() {
+        return loadTimeMillis;
+    }
+
+    //***** PRIVATE METHODS *****
+
+    /**
+     * Loads all of the patient's obs, encounters, program states, and identifiers into the session
+     */
+    private void prefetch() {
+        EvaluationService evaluationService = Context.getService(EvaluationService.class);
+
+        HqlQueryBuilder obsQuery = new HqlQueryBuilder();
+        obsQuery.select("o").from(Obs.class, "o").whereEqual("o.personId", patientId);
+        int numObs = evaluationService.evaluateToList(obsQuery, Obs.class, context).size();
+
+        HqlQueryBuilder encounterQuery = new HqlQueryBuilder();
+        encounterQuery.select("e").from(Encounter.class, "e").whereEqual("e.patient.patientId", patientId);
+        int numEncounters = evaluationService.evaluateToList(encounterQuery, Encounter.class, context).size();
+
+        HqlQueryBuilder stateQuery = new HqlQueryBuilder();
+        stateQuery.select("s").from(PatientState.class, "s").whereEqual("s.patientProgram.patient.patientId", patientId);
+        int numStates = evaluationService.evaluateToList(stateQuery, PatientState.class, context).size();
+
+        HqlQueryBuilder identifierQuery = new HqlQueryBuilder();
+        identifierQuery.select("i").from(PatientIdentifier.class, "i").whereEqual("i.patient.patientId", patientId);
+        int numIdentifiers = evaluationService.evaluateToList(identifierQuery, PatientIdentifier.class, context).size();
+
+        log.debug("Prefetched " + numObs + " obs, " + numEncounters + " encounters, " + numStates + " states, and " + numIdentifiers + " identifiers for patient " + patientId);
+    }
+}
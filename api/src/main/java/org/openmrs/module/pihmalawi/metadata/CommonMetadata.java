@@ -702,16 +702,20 @@ public class CommonMetadata extends Metadata {
 	}
 
 	public Map<Location, String> getLocationShortNames() {
-		Map<Location, String> locationShortNames = new HashMap<Location, String>();
-        LocationAttributeType locationCode = getLocationAttributeType(LocationAttributeTypes.LOCATION_CODE.uuid());
-        for (Location l : Context.getLocationService().getAllLocations()) {
-            String code = l.getName();
-            List<LocationAttribute> codes = l.getActiveAttributes(locationCode);
-            if (codes != null && codes.size() > 0) {
-                code = codes.get(0).getValueReference();
-            }
-            locationShortNames.put(l, code);
-        }
-        return locationShortNames;
+		Map<Location, String> locationShortNames = getMetadataCache().get(Location.class, "locationShortNames");
+		if (locationShortNames == null) {
+			locationShortNames = new HashMap<Location, String>();
+			LocationAttributeType locationCode = getLocationAttributeType(LocationAttributeTypes.LOCATION_CODE.uuid());
+			for (Location l : Context.getLocationService().getAllLocations()) {
+				String code = l.getName();
+				List<LocationAttribute> codes = l.getActiveAttributes(locationCode);
+				if (codes != null && codes.size() > 0) {
+					code = codes.get(0).getValueReference();
+				}
+				locationShortNames.put(l, code);
+			}
+			getMetadataCache().put(Location.class, "locationShortNames", locationShortNames);
+		}
+		return new HashMap<Location, String>(locationShortNames);
 	}
 }
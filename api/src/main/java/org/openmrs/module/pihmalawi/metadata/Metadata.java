@@ -31,21 +31,28 @@ import org.openmrs.api.context.Context;
 import org.openmrs.module.reporting.common.ObjectUtil;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
 public abstract class Metadata {
 
 	protected final Log log = LogFactory.getLog(getClass());
 
-	private Map<String, Concept> conceptCache = new HashMap<String, Concept>();
+	/**
+	 * @return the cache of metadata lookups shared by all Metadata instances
+	 */
+	protected MetadataCache getMetadataCache() {
+		return MetadataCache.getInstance();
+	}
 
 	/**
 	 * @return the Program that matches the passed uuid, concept name, name, or primary key id
 	 */
 	public Program getProgram(String lookup) {
-		Program program = Context.getProgramWorkflowService().getProgramByUuid(lookup);
+		Program program = getMetadataCache().get(Program.class, lookup);
+		if (program != null) {
+			return program;
+		}
+		program = Context.getProgramWorkflowService().getProgramByUuid(lookup);
 		if (program == null) {
 			program = Context.getProgramWorkflowService().getProgramByName(lookup);
 		}
@@ -66,6 +73,14 @@ public abstract class Metadata {
 			throw new IllegalArgumentException("Unable to find program using key: " + lookup);
 		}
 
+		// Load the workflows and states, so they can be used from the cache outside of this session
+		for (ProgramWorkflow wf : program.getAllWorkflows()) {
+			wf.getConcept().getName();
+			for (ProgramWorkflowState state : wf.getStates()) {
+				state.getConcept().getName();
+			}
+		}
+		getMetadataCache().put(Program.class, lookup, program);
 		return program;
 	}
 
@@ -73,8 +88,13 @@ public abstract class Metadata {
 	 * @return the ProgramWorkflow matching the given programLookup and workflowLookup
 	 */
 	public ProgramWorkflow getProgramWorkflow(String programLookup, String workflowLookup) {
+		String key = programLookup + "|" + workflowLookup;
+		ProgramWorkflow wf = getMetadataCache().get(ProgramWorkflow.class, key);
+		if (wf != null) {
+			return wf;
+		}
 		Program p = getProgram(programLookup);
-		ProgramWorkflow wf = p.getWorkflowByName(workflowLookup);
+		wf = p.getWorkflowByName(workflowLookup);
 
 		if (wf == null) {
 			for (ProgramWorkflow programWorkflow : p.getAllWorkflows()) {
@@ -92,6 +112,7 @@ public abstract class Metadata {
 		if (wf == null) {
 			throw new IllegalArgumentException("Unable to find workflow using " + programLookup + " - " + workflowLookup);
 		}
+		getMetadataCache().put(ProgramWorkflow.class, key, wf);
 		return wf;
 	}
 
@@ -99,8 +120,13 @@ public abstract class Metadata {
 	 * @return the ProgramWorkflowState matching the given programLookup and workflowLookup and stateLookup
 	 */
 	public ProgramWorkflowState getProgramWorkflowState(String programLookup, String workflowLookup, String stateLookup) {
+		String key = programLookup + "|" + workflowLookup + "|" + stateLookup;
+		ProgramWorkflowState s = getMetadataCache().get(ProgramWorkflowState.class, key);
+		if (s != null) {
+			return s;
+		}
 		ProgramWorkflow wf = getProgramWorkflow(programLookup, workflowLookup);
-		ProgramWorkflowState s = wf.getStateByName(stateLookup);
+		s = wf.getStateByName(stateLookup);
 		if (s == null) {
 			for (ProgramWorkflowState state : wf.getStates()) {
 				if (stateLookup.equalsIgnoreCase(state.getConcept().getName().toString())) {
@@ -123,6 +149,7 @@ public abstract class Metadata {
 		if (s == null) {
 			throw new IllegalArgumentException("Unable to find state using " + programLookup + " - " + workflowLookup + " - " + stateLookup);
 		}
+		getMetadataCache().put(ProgramWorkflowState.class, key, s);
 		return s;
 	}
 
@@ -130,7 +157,11 @@ public abstract class Metadata {
 	 * @return the PatientIdentifier that matches the passed uuid, name, or primary key id
 	 */
 	public PatientIdentifierType getPatientIdentifierType(String lookup) {
-		PatientIdentifierType pit = Context.getPatientService().getPatientIdentifierTypeByUuid(lookup);
+		PatientIdentifierType pit = getMetadataCache().get(PatientIdentifierType.class, lookup);
+		if (pit != null) {
+			return pit;
+		}
+		pit = Context.getPatientService().getPatientIdentifierTypeByUuid(lookup);
 		if (pit == null) {
 			pit = Context.getPatientService().getPatientIdentifierTypeByName(lookup);
 		}
@@ -143,6 +174,7 @@ public abstract class Metadata {
 		if (pit == null) {
 			throw new RuntimeException("Unable to find Patient Identifier using key: " + lookup);
 		}
+		getMetadataCache().put(PatientIdentifierType.class, lookup, pit);
 		return pit;
 	}
 
@@ -150,7 +182,7 @@ public abstract class Metadata {
 	 * @return the Concept that matches the passed uuid, name, source:code mapping, or primary key id
 	 */
 	public Concept getConcept(String lookup) {
-		Concept c = conceptCache.get(lookup);
+		Concept c = getMetadataCache().get(Concept.class, lookup);
 		if (c == null) {
 			c = Context.getConceptService().getConceptByUuid(lookup);
 			if (c == null) {
@@ -174,7 +206,7 @@ public abstract class Metadata {
 			if (c == null) {
 				throw new IllegalArgumentException("Unable to find Concept using key: " + lookup);
 			}
-			conceptCache.put(lookup, c);
+			getMetadataCache().put(Concept.class, lookup, c);
 		}
 		return c;
 	}
@@ -279,7 +311,11 @@ public abstract class Metadata {
 	 * @return the EncounterType that matches the passed uuid, name, or primary key id
 	 */
 	public EncounterType getEncounterType(String lookup) {
-		EncounterType et = Context.getEncounterService().getEncounterTypeByUuid(lookup);
+		EncounterType et = getMetadataCache().get(EncounterType.class, lookup);
+		if (et != null) {
+			return et;
+		}
+		et = Context.getEncounterService().getEncounterTypeByUuid(lookup);
 		if (et == null) {
 			et = Context.getEncounterService().getEncounterType(lookup);
 		}
@@ -293,6 +329,7 @@ public abstract class Metadata {
 			throw new IllegalArgumentException("Unable to find EncounterType using key: " + lookup);
 		}
 
+		getMetadataCache().put(EncounterType.class, lookup, et);
 		return et;
 	}
 
@@ -353,7 +390,11 @@ public abstract class Metadata {
 	 * @return the Location that matches the passed uuid, name, or primary key id
 	 */
 	public Location getLocation(String lookup) {
-		Location et = Context.getLocationService().getLocationByUuid(lookup);
+		Location et = getMetadataCache().get(Location.class, lookup);
+		if (et != null) {
+			return et;
+		}
+		et = Context.getLocationService().getLocationByUuid(lookup);
 		if (et == null) {
 			et = Context.getLocationService().getLocation(lookup);
 		}
@@ -367,6 +408,7 @@ public abstract class Metadata {
 			throw new IllegalArgumentException("Unable to find Location using key: " + lookup);
 		}
 
+		getMetadataCache().put(Location.class, lookup, et);
 		return et;
 	}
 
@@ -374,7 +416,11 @@ public abstract class Metadata {
 	 * @return the Location Tag that matches the passed uuid, name, or primary key id
 	 */
 	public LocationTag getLocationTag(String lookup) {
-		LocationTag et = Context.getLocationService().getLocationTagByUuid(lookup);
+		LocationTag et = getMetadataCache().get(LocationTag.class, lookup);
+		if (et != null) {
+			return et;
+		}
+		et = Context.getLocationService().getLocationTagByUuid(lookup);
 		if (et == null) {
 			et = Context.getLocationService().getLocationTagByName(lookup);
 		}
@@ -388,23 +434,38 @@ public abstract class Metadata {
 			throw new IllegalArgumentException("Unable to find Location Tag using key: " + lookup);
 		}
 
+		getMetadataCache().put(LocationTag.class, lookup, et);
 		return et;
 	}
 
+	/**
+	 * @return a new List of the Locations with the Location Tag that matches the passed uuid, name, or primary key id
+	 */
 	public List<Location> getLocationsForTag(String lookup) {
-		LocationTag tag = getLocationTag(lookup);
-		return Context.getLocationService().getLocationsByTag(tag);
+		String key = "locationsForTag|" + lookup;
+		List<Location> locations = getMetadataCache().get(Location.class, key);
+		if (locations == null) {
+			LocationTag tag = getLocationTag(lookup);
+			locations = Context.getLocationService().getLocationsByTag(tag);
+			getMetadataCache().put(Location.class, key, new ArrayList<Location>(locations));
+		}
+		return new ArrayList<Location>(locations);
 	}
 
     /**
      * @return the Location Tag that matches the passed uuid, name, or primary key id
      */
     public LocationAttributeType getLocationAttributeType(String lookup) {
-        LocationAttributeType t = Context.getLocationService().getLocationAttributeTypeByUuid(lookup);
+        LocationAttributeType t = getMetadataCache().get(LocationAttributeType.class, lookup);
+        if (t != null) {
+            return t;
+        }
+        t = Context.getLocationService().getLocationAttributeTypeByUuid(lookup);
         if (t == null) {
             for (LocationAttributeType possible : Context.getLocationService().getAllLocationAttributeTypes()) {
                 if (possible.getName().equalsIgnoreCase(lookup)) {
-                    return possible;
+                    t = possible;
+                    break;
                 }
             }
         }
@@ -418,6 +479,7 @@ public abstract class Metadata {
             throw new IllegalArgumentException("Unable to find Location Attribute Type using key: " + lookup);
         }
 
+        getMetadataCache().put(LocationAttributeType.class, lookup, t);
         return t;
     }
 
@@ -451,9 +513,9 @@ public abstract class Metadata {
 	}
 
 	/**
-	 * Should be used to clear cache, mostly for testing
+	 * Should be used to clear cache, mostly for testing.  This clears all cached metadata, not only concepts
 	 */
 	public void clearConceptCache() {
-		conceptCache = new HashMap<String, Concept>();
+		getMetadataCache().clearAll();
 	}
 }
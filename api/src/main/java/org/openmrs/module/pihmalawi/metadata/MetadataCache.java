@@ -0,0 +1,276 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.pihmalawi.metadata;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.Concept;
+import org.openmrs.EncounterType;
+import org.openmrs.Location;
+import org.openmrs.LocationAttribute;
+import org.openmrs.LocationAttributeType;
+import org.openmrs.LocationTag;
+import org.openmrs.PatientIdentifierType;
+import org.openmrs.Program;
+import org.openmrs.ProgramWorkflow;
+import org.openmrs.ProgramWorkflowState;
+import org.openmrs.api.context.Context;
+import org.openmrs.event.Event;
+import org.openmrs.event.EventListener;
+
+import javax.jms.MapMessage;
+import javax.jms.Message;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A thread-safe cache of metadata lookups, shared by all Metadata instances.  Values are held in a region for each
+ * type of metadata, keyed on the lookup used to find them.  Once subscribed to metadata events, each region is
+ * cleared whenever metadata of a type it depends on is created, changed, retired, or purged.  If it cannot be kept
+ * up to date this way, the cache can be disabled, in which case nothing further is cached
+ */
+public class MetadataCache implements EventListener {
+
+	private static final Log log = LogFactory.getLog(MetadataCache.class);
+
+	private static final MetadataCache instance = new MetadataCache();
+
+	/**
+	 * For each type of metadata that is saved, the regions of the cache which must then be cleared
+	 */
+	public static final Map<Class<?>, List<Class<?>>> INVALIDATED_REGIONS = new LinkedHashMap<Class<?>, List<Class<?>>>();
+
+	static {
+		List<Class<?>> programRegions = Arrays.<Class<?>>asList(Program.class, ProgramWorkflow.class, ProgramWorkflowState.class);
+		List<Class<?>> locationRegions = Arrays.<Class<?>>asList(Location.class, LocationTag.class, LocationAttributeType.class);
+		INVALIDATED_REGIONS.put(Concept.class, Arrays.<Class<?>>asList(Concept.class, ProgramWorkflow.class, ProgramWorkflowState.class));
+		INVALIDATED_REGIONS.put(Program.class, programRegions);
+		INVALIDATED_REGIONS.put(ProgramWorkflow.class, programRegions);
+		INVALIDATED_REGIONS.put(ProgramWorkflowState.class, programRegions);
+		INVALIDATED_REGIONS.put(PatientIdentifierType.class, Arrays.<Class<?>>asList(PatientIdentifierType.class));
+		INVALIDATED_REGIONS.put(EncounterType.class, Arrays.<Class<?>>asList(EncounterType.class));
+		INVALIDATED_REGIONS.put(Location.class, locationRegions);
+		INVALIDATED_REGIONS.put(LocationTag.class, locationRegions);
+		INVALIDATED_REGIONS.put(LocationAttribute.class, locationRegions);
+		INVALIDATED_REGIONS.put(LocationAttributeType.class, locationRegions);
+	}
+
+	//***** PROPERTIES *****
+
+	private final ConcurrentMap<Class<?>, Region> regions = new ConcurrentHashMap<Class<?>, Region>();
+
+	private volatile boolean subscribed = false;
+
+	private volatile boolean enabled = true;
+
+	//***** CONSTRUCTORS *****
+
+	/**
+	 * @return the cache shared by all Metadata instances
+	 */
+	public static MetadataCache getInstance() {
+		return instance;
+	}
+
+	protected MetadataCache() {
+	}
+
+	//***** METHODS *****
+
+	/**
+	 * @return the value cached in the given region for the given key, or null if there is none
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> T get(Class<?> region, String key) {
+		return (T) getRegion(region).get(key);
+	}
+
+	/**
+	 * Caches the given value in the given region for the given key
+	 */
+	public void put(Class<?> region, String key, Object value) {
+		if (enabled && key != null && value != null) {
+			getRegion(region).put(key, value);
+		}
+	}
+
+	/**
+	 * Clears the given regions of the cache
+	 */
+	public void clear(Class<?>... regionsToClear) {
+		for (Class<?> region : regionsToClear) {
+			getRegion(region).clear();
+		}
+	}
+
+	/**
+	 * Clears all regions of the cache
+	 */
+	public void clearAll() {
+		for (Region region : regions.values()) {
+			region.clear();
+		}
+	}
+
+	/**
+	 * @return the proportion of lookups in the given region that were found in the cache, or 0 if there have been none
+	 */
+	public double getHitRate(Class<?> region) {
+		return getRegion(region).getHitRate();
+	}
+
+	/**
+	 * @return the number of lookups, hits, and values cached in each region, by region name
+	 */
+	public Map<String, String> getStatistics() {
+		Map<String, String> ret = new LinkedHashMap<String, String>();
+		List<Class<?>> types = new ArrayList<Class<?>>(regions.keySet());
+		Collections.sort(types, new Comparator<Class<?>>() {
+			@Override
+			public int compare(Class<?> o1, Class<?> o2) {
+				return o1.getSimpleName().compareTo(o2.getSimpleName());
+			}
+		});
+		for (Class<?> type : types) {
+			ret.put(type.getSimpleName(), regions.get(type).toString());
+		}
+		return ret;
+	}
+
+	/**
+	 * @return true if values are being cached
+	 */
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Enables or disables caching.  When disabled, the cache is cleared and any values put into it are discarded
+	 */
+	public void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+		if (!enabled) {
+			clearAll();
+		}
+	}
+
+	/**
+	 * Subscribes to events for each type of metadata this cache depends on, so that it is cleared when they change
+	 */
+	public synchronized void subscribe() {
+		if (!subscribed) {
+			for (Class<?> type : INVALIDATED_REGIONS.keySet()) {
+				for (Event.Action action : Event.Action.values()) {
+					Event.subscribe(type, action.name(), this);
+				}
+			}
+			subscribed = true;
+		}
+	}
+
+	/**
+	 * Unsubscribes from metadata events, and clears the cache, as it can no longer be kept up to date
+	 */
+	public synchronized void unsubscribe() {
+		if (subscribed) {
+			for (Class<?> type : INVALIDATED_REGIONS.keySet()) {
+				for (Event.Action action : Event.Action.values()) {
+					Event.unsubscribe(type, action, this);
+				}
+			}
+			subscribed = false;
+		}
+		clearAll();
+	}
+
+	/**
+	 * Clears the regions that depend on the type of metadata in the given event
+	 * @see EventListener#onMessage(Message)
+	 */
+	@Override
+	public void onMessage(Message message) {
+		try {
+			String className = ((MapMessage) message).getString("classname");
+			Class<?> type = Context.loadClass(className);
+			for (Map.Entry<Class<?>, List<Class<?>>> e : INVALIDATED_REGIONS.entrySet()) {
+				if (e.getKey().isAssignableFrom(type)) {
+					log.debug(className + " changed, clearing cached " + e.getValue());
+					clear(e.getValue().toArray(new Class<?>[e.getValue().size()]));
+				}
+			}
+		}
+		catch (Exception e) {
+			log.warn("Unable to process metadata event, clearing all cached metadata", e);
+			clearAll();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "Metadata cache: " + getStatistics();
+	}
+
+	//***** PRIVATE METHODS *****
+
+	private Region getRegion(Class<?> type) {
+		Region region = regions.get(type);
+		if (region == null) {
+			regions.putIfAbsent(type, new Region());
+			region = regions.get(type);
+		}
+		return region;
+	}
+
+	/**
+	 * The values cached for a single type of metadata, along with counts of the lookups made against them
+	 */
+	private static class Region {
+
+		private final ConcurrentMap<String, Object> values = new ConcurrentHashMap<String, Object>();
+		private final AtomicLong hits = new AtomicLong();
+		private final AtomicLong misses = new AtomicLong();
+
+		public Object get(String key) {
+			Object value = (key == null ? null : values.get(key));
+			(value == null ? misses : hits).incrementAndGet();
+			return value;
+		}
+
+		public void put(String key, Object value) {
+			values.put(key, value);
+		}
+
+		public void clear() {
+			values.clear();
+		}
+
+		public double getHitRate() {
+			long lookups = hits.get() + misses.get();
+			return lookups == 0 ? 0 : (double) hits.get() / lookups;
+		}
+
+		@Override
+		public String toString() {
+			return values.size() + " cached, " + hits.get() + " hits of " + (hits.get() + misses.get()) + " lookups";
+		}
+	}
+}
@@ -30,6 +30,9 @@ public class HccCohortDefinition extends BaseCohortDefinition {
 	@ConfigurationProperty
 	private Boolean includeOldPreArtPatients = Boolean.FALSE;
 
+	@ConfigurationProperty
+	private Boolean partitionByLocation = Boolean.TRUE;
+
 	public HccCohortDefinition() {
 		super();
 	}
@@ -57,4 +60,15 @@ public class HccCohortDefinition extends BaseCohortDefinition {
 	public void setIncludeOldPreArtPatients(Boolean includeOldPreArtPatients) {
 		this.includeOldPreArtPatients = includeOldPreArtPatients;
 	}
+
+	/**
+	 * If true, the underlying cohorts are loaded once for all locations and memoized for the rest of the evaluation
+	 */
+	public Boolean getPartitionByLocation() {
+		return partitionByLocation;
+	}
+
+	public void setPartitionByLocation(Boolean partitionByLocation) {
+		this.partitionByLocation = partitionByLocation;
+	}
 }
\ No newline at end of file
@@ -13,8 +13,14 @@
  */
 package org.openmrs.module.pihmalawi.reporting.definition.cohort.evaluator;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.openmrs.Cohort;
+import org.openmrs.PatientIdentifier;
+import org.openmrs.PatientState;
+import org.openmrs.ProgramWorkflowState;
 import org.openmrs.annotation.Handler;
+import org.openmrs.module.pihmalawi.metadata.HivMetadata;
 import org.openmrs.module.pihmalawi.reporting.definition.cohort.definition.HccCohortDefinition;
 import org.openmrs.module.pihmalawi.reporting.library.HivCohortDefinitionLibrary;
 import org.openmrs.module.reporting.cohort.EvaluatedCohort;
@@ -23,19 +29,63 @@ import org.openmrs.module.reporting.cohort.definition.evaluator.CohortDefinition
 import org.openmrs.module.reporting.cohort.definition.service.CohortDefinitionService;
 import org.openmrs.module.reporting.evaluation.EvaluationContext;
 import org.openmrs.module.reporting.evaluation.EvaluationException;
+import org.openmrs.module.reporting.evaluation.querybuilder.HqlQueryBuilder;
+import org.openmrs.module.reporting.evaluation.service.EvaluationService;
 import org.springframework.beans.factory.annotation.Autowired;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Evaluates an HccCohortDefinition.  By default, the program states and HCC numbers underlying the definition are
+ * each loaded with a single query for all locations, split by location in memory, and memoized in the evaluation
+ * context, so that reports that evaluate the definition for many locations only run these queries once per end date.
+ */
 @Handler(supports = { HccCohortDefinition.class })
 public class HccCohortDefinitionEvaluator implements CohortDefinitionEvaluator {
 
+	private static final Log log = LogFactory.getLog(HccCohortDefinitionEvaluator.class);
+
 	@Autowired
 	CohortDefinitionService cohortDefinitionService;
 
+	@Autowired
+	EvaluationService evaluationService;
+
 	@Autowired
 	HivCohortDefinitionLibrary hivCohorts;
 
+	@Autowired
+	HivMetadata hivMetadata;
+
 	public EvaluatedCohort evaluate(CohortDefinition cohortDefinition, EvaluationContext context) throws EvaluationException {
 		HccCohortDefinition cd = (HccCohortDefinition) cohortDefinition;
+		if (Boolean.FALSE.equals(cd.getPartitionByLocation())) {
+			return evaluateForLocation(cd, context);
+		}
+
+		LocationPartition partition = getLocationPartition(cd.getEndDate(), context);
+		Integer locationId = (cd.getLocation() == null ? null : cd.getLocation().getLocationId());
+		Set<Integer> hccNumbers = partition.get(partition.hccNumbers, locationId);
+
+		Cohort c = new Cohort();
+		addAll(c, partition.get(partition.everPreArt, locationId), hccNumbers);
+		addAll(c, partition.get(partition.everExposedChild, locationId), hccNumbers);
+		if (cd.getIncludeOldPreArtPatients()) {
+			addAll(c, partition.get(partition.everPreArt, locationId), null);
+		}
+		return new EvaluatedCohort(c, cd, context);
+	}
+
+	/**
+	 * Evaluates the library definitions underlying the given definition for its location alone
+	 */
+	protected EvaluatedCohort evaluateForLocation(HccCohortDefinition cd, EvaluationContext context) throws EvaluationException {
 		EvaluationContext childContext = context.shallowCopy();
 		childContext.addParameterValue("location", cd.getLocation());
 		childContext.addParameterValue("endDate", cd.getEndDate());
@@ -52,4 +102,107 @@ public class HccCohortDefinitionEvaluator implements CohortDefinitionEvaluator {
 		Cohort pats = cohortDefinitionService.evaluate(cd, context);
 		c.getMemberIds().addAll(pats.getMemberIds());
 	}
-}
\ No newline at end of file
+
+	/**
+	 * @return the patients ever in the pre-ART and exposed child states by the end date, and with an HCC number, by location.
+	 * This is retrieved from the context cache if it has already been loaded for the same end date and base cohort.
+	 */
+	protected LocationPartition getLocationPartition(Date endDate, EvaluationContext context) {
+		String cacheKey = HccCohortDefinitionEvaluator.class.getName() + "|" + (endDate == null ? "" : endDate.getTime());
+		Set<Integer> baseCohort = (context.getBaseCohort() == null ? null : new HashSet<Integer>(context.getBaseCohort().getMemberIds()));
+
+		LocationPartition partition = (LocationPartition) context.getFromCache(cacheKey);
+		if (partition != null && (baseCohort == null ? partition.baseCohort == null : baseCohort.equals(partition.baseCohort))) {
+			return partition;
+		}
+
+		long startTime = System.currentTimeMillis();
+		partition = new LocationPartition(baseCohort);
+		ProgramWorkflowState preArtState = hivMetadata.getPreArtState();
+		ProgramWorkflowState exposedChildState = hivMetadata.getExposedChildState();
+
+		HqlQueryBuilder stateQuery = new HqlQueryBuilder();
+		stateQuery.select("pp.patient.patientId", "l.locationId", "ps.state.programWorkflowStateId");
+		stateQuery.from(PatientState.class, "ps");
+		stateQuery.leftOuterJoin("ps.patientProgram", "pp");
+		stateQuery.leftOuterJoin("pp.location", "l");
+		stateQuery.wherePatientIn("pp.patient.patientId", context);
+		stateQuery.whereEqual("ps.voided", false);
+		stateQuery.whereEqual("pp.voided", false);
+		stateQuery.whereEqual("pp.patient.voided", false);
+		stateQuery.whereIn("ps.state", Arrays.asList(preArtState, exposedChildState));
+		stateQuery.whereLessOrEqualTo("ps.startDate", endDate);
+		for (Object[] row : evaluationService.evaluateToList(stateQuery, context)) {
+			Integer stateId = (Integer) row[2];
+			if (stateId.equals(preArtState.getProgramWorkflowStateId())) {
+				partition.add(partition.everPreArt, (Integer) row[1], (Integer) row[0]);
+			}
+			if (stateId.equals(exposedChildState.getProgramWorkflowStateId())) {
+				partition.add(partition.everExposedChild, (Integer) row[1], (Integer) row[0]);
+			}
+		}
+
+		HqlQueryBuilder identifierQuery = new HqlQueryBuilder();
+		identifierQuery.select("pi.patient.patientId", "l.locationId");
+		identifierQuery.from(PatientIdentifier.class, "pi");
+		identifierQuery.leftOuterJoin("pi.location", "l");
+		identifierQuery.wherePatientIn("pi.patient.patientId", context);
+		identifierQuery.whereEqual("pi.voided", false);
+		identifierQuery.whereEqual("pi.patient.voided", false);
+		identifierQuery.whereEqual("pi.identifierType", hivMetadata.getHccNumberIdentifierType());
+		for (Object[] row : evaluationService.evaluateToList(identifierQuery, context)) {
+			partition.add(partition.hccNumbers, (Integer) row[1], (Integer) row[0]);
+		}
+
+		context.addToCache(cacheKey, partition);
+		log.debug("Loaded HCC cohorts for all locations on " + endDate + " in " + (System.currentTimeMillis() - startTime) + " ms");
+		return partition;
+	}
+
+	private void addAll(Cohort c, Set<Integer> patientIds, Set<Integer> mustAlsoBeIn) {
+		for (Integer pId : patientIds) {
+			if (mustAlsoBeIn == null || mustAlsoBeIn.contains(pId)) {
+				c.addMember(pId);
+			}
+		}
+	}
+
+	/**
+	 * Patients for each underlying cohort, by location id
+	 */
+	protected static class LocationPartition {
+
+		private final Set<Integer> baseCohort;
+		private final Map<Integer, Set<Integer>> everPreArt = new HashMap<Integer, Set<Integer>>();
+		private final Map<Integer, Set<Integer>> everExposedChild = new HashMap<Integer, Set<Integer>>();
+		private final Map<Integer, Set<Integer>> hccNumbers = new HashMap<Integer, Set<Integer>>();
+
+		private LocationPartition(Set<Integer> baseCohort) {
+			this.baseCohort = baseCohort;
+		}
+
+		private void add(Map<Integer, Set<Integer>> m, Integer locationId, Integer patientId) {
+			Set<Integer> s = m.get(locationId);
+			if (s == null) {
+				s = new HashSet<Integer>();
+				m.put(locationId, s);
+			}
+			s.add(patientId);
+		}
+
+		/**
+		 * @return the patients at the given location, or at any location if the location is null
+		 */
+		private Set<Integer> get(Map<Integer, Set<Integer>> m, Integer locationId) {
+			if (locationId == null) {
+				Set<Integer> ret = new HashSet<Integer>();
+				for (Set<Integer> s : m.values()) {
+					ret.addAll(s);
+				}
+				return ret;
+			}
+			Set<Integer> s = m.get(locationId);
+			return (s == null ? Collections.<Integer>emptySet() : s);
+		}
+	}
+}
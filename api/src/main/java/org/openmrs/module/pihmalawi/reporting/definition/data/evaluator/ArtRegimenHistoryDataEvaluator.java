@@ -15,44 +15,60 @@ package org.openmrs.module.pihmalawi.reporting.definition.data.evaluator;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.openmrs.Concept;
 import org.openmrs.Obs;
 import org.openmrs.annotation.Handler;
 import org.openmrs.module.pihmalawi.common.ArtRegimen;
 import org.openmrs.module.pihmalawi.metadata.HivMetadata;
 import org.openmrs.module.pihmalawi.reporting.definition.data.definition.ArtRegimenHistoryDataDefinition;
-import org.openmrs.module.pihmalawi.reporting.library.DataFactory;
-import org.openmrs.module.reporting.common.BeanPropertyComparator;
+import org.openmrs.module.reporting.common.DateUtil;
 import org.openmrs.module.reporting.data.patient.EvaluatedPatientData;
-import org.openmrs.module.reporting.data.patient.PatientData;
 import org.openmrs.module.reporting.data.patient.definition.PatientDataDefinition;
 import org.openmrs.module.reporting.data.patient.evaluator.PatientDataEvaluator;
-import org.openmrs.module.reporting.data.patient.service.PatientDataService;
 import org.openmrs.module.reporting.evaluation.EvaluationContext;
 import org.openmrs.module.reporting.evaluation.EvaluationException;
+import org.openmrs.module.reporting.evaluation.querybuilder.HqlQueryBuilder;
+import org.openmrs.module.reporting.evaluation.service.EvaluationService;
 import org.springframework.beans.factory.annotation.Autowired;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 /**
  * Evaluates a ArtRegimenHistoryDataDefinition to produce a PatientData
+ * The regimen obs and regimen start date obs are all loaded in a single query, ordered by patient and encounter, and
+ * each regimen is joined to the start date recorded for it in the same encounter in a single pass over the results
  */
 @Handler(supports = ArtRegimenHistoryDataDefinition.class, order = 50)
 public class ArtRegimenHistoryDataEvaluator implements PatientDataEvaluator {
 
     protected static final Log log = LogFactory.getLog(ArtRegimenHistoryDataEvaluator.class);
 
+    /**
+     * Sorts regimens by regimen date ascending, with regimens without a date first
+     */
+    public static final Comparator<ArtRegimen> REGIMEN_DATE_COMPARATOR = new Comparator<ArtRegimen>() {
+        @Override
+        public int compare(ArtRegimen r1, ArtRegimen r2) {
+            Date d1 = r1.getRegimenDate();
+            Date d2 = r2.getRegimenDate();
+            if (d1 == null || d2 == null) {
+                return (d1 == null ? (d2 == null ? 0 : -1) : 1);
+            }
+            return d1.compareTo(d2);
+        }
+    };
+
 	@Autowired
 	private HivMetadata hivMetadata;
 
 	@Autowired
-	private PatientDataService patientDataService;
-
-    @Autowired
-    private DataFactory df;
+	private EvaluationService evaluationService;
 	
 	@Override
 	public EvaluatedPatientData evaluate(PatientDataDefinition definition, EvaluationContext context) throws EvaluationException {
@@ -64,67 +80,126 @@ public class ArtRegimenHistoryDataEvaluator implements PatientDataEvaluator {
 			return c;
 		}
 
-        PatientDataDefinition arvDrugsReceived =  df.getAllObsByEndDate(hivMetadata.getArvDrugsReceivedConcept(), null, null);
-		addData(c, arvDrugsReceived, null, context);
-
-		PatientDataDefinition arvDrugsChange1 =  df.getAllObsByEndDate(hivMetadata.getArvDrugsChange1Concept(), null, null);
-        PatientDataDefinition arvDrugsChange1Date =  df.getAllObsByEndDate(hivMetadata.getDateOfStartingFirstLineArvsConcept(), null, null);
-        addData(c, arvDrugsChange1, arvDrugsChange1Date, context);
-
-        PatientDataDefinition arvDrugsChange2 =  df.getAllObsByEndDate(hivMetadata.getArvDrugsChange2Concept(), null, null);
-        PatientDataDefinition arvDrugsChange2Date =  df.getAllObsByEndDate(hivMetadata.getDateOfStartingAlternativeFirstLineArvsConcept(), null, null);
-        addData(c, arvDrugsChange2, arvDrugsChange2Date, context);
+        // Each regimen question is grouped with the question for the date that regimen was started, if there is one
+        List<Concept> regimenQuestions = new ArrayList<Concept>();
+        List<Concept> dateQuestions = new ArrayList<Concept>();
+        addGroup(regimenQuestions, dateQuestions, hivMetadata.getArvDrugsReceivedConcept(), null);
+        addGroup(regimenQuestions, dateQuestions, hivMetadata.getArvDrugsChange1Concept(), hivMetadata.getDateOfStartingFirstLineArvsConcept());
+        addGroup(regimenQuestions, dateQuestions, hivMetadata.getArvDrugsChange2Concept(), hivMetadata.getDateOfStartingAlternativeFirstLineArvsConcept());
+        addGroup(regimenQuestions, dateQuestions, hivMetadata.getArvDrugsChange3Concept(), hivMetadata.getDateOfStartingSecondLineArvsConcept());
+
+        Map<Integer, Integer> regimenGroups = new HashMap<Integer, Integer>();
+        Map<Integer, Integer> dateGroups = new HashMap<Integer, Integer>();
+        List<Concept> questions = new ArrayList<Concept>();
+        for (int i = 0; i < regimenQuestions.size(); i++) {
+            regimenGroups.put(regimenQuestions.get(i).getConceptId(), i);
+            questions.add(regimenQuestions.get(i));
+            if (dateQuestions.get(i) != null) {
+                dateGroups.put(dateQuestions.get(i).getConceptId(), i);
+                questions.add(dateQuestions.get(i));
+            }
+        }
 
-        PatientDataDefinition arvDrugsChange3 =  df.getAllObsByEndDate(hivMetadata.getArvDrugsChange3Concept(), null, null);
-        PatientDataDefinition arvDrugsChange3Date =  df.getAllObsByEndDate(hivMetadata.getDateOfStartingSecondLineArvsConcept(), null, null);
-        addData(c, arvDrugsChange3, arvDrugsChange3Date, context);
+        Date endDate = def.getEndDate();
+        if (endDate == null) {
+            endDate = (Date) context.getParameterValue("endDate");
+        }
 
-        // Sort Data by date asc
-        for (Integer pId : c.getData().keySet()) {
-            List<ArtRegimen> regimenList = (List<ArtRegimen>) c.getData().get(pId);
-            Collections.sort(regimenList, new BeanPropertyComparator("regimenDate asc"));
+        HqlQueryBuilder q = new HqlQueryBuilder();
+        q.select("o.personId", "e.encounterId", "o.concept.conceptId", "o");
+        q.from(Obs.class, "o");
+        q.innerJoin("o.encounter", "e");
+        q.wherePersonIn("o.personId", context);
+        q.whereIn("o.concept", questions);
+        q.whereLessOrEqualTo("o.obsDatetime", endDate == null ? null : DateUtil.getEndOfDayIfTimeExcluded(endDate));
+        q.orderAsc("o.personId").orderAsc("e.encounterId").orderAsc("o.obsDatetime");
+
+        int numGroups = regimenQuestions.size();
+        PatientRegimens patient = null;
+        for (Object[] row : evaluationService.evaluateToList(q, context)) {
+            Integer pId = (Integer) row[0];
+            Integer encounterId = (Integer) row[1];
+            Integer conceptId = (Integer) row[2];
+            if (patient == null || !patient.patientId.equals(pId)) {
+                addPatientRegimens(c, patient);
+                patient = new PatientRegimens(pId, numGroups);
+            }
+            if (!encounterId.equals(patient.encounterId)) {
+                patient.endEncounter();
+                patient.encounterId = encounterId;
+            }
+            Integer regimenGroup = regimenGroups.get(conceptId);
+            if (regimenGroup != null) {
+                patient.regimenObs[regimenGroup] = (Obs) row[3];
+            }
+            Integer dateGroup = dateGroups.get(conceptId);
+            if (dateGroup != null) {
+                patient.dateObs[dateGroup] = (Obs) row[3];
+            }
         }
+        addPatientRegimens(c, patient);
 
 		return c;
 	}
 
-	protected void addData(EvaluatedPatientData c, PatientDataDefinition regimenObsDef, PatientDataDefinition dateObsDef, EvaluationContext context) throws EvaluationException {
+    private void addGroup(List<Concept> regimenQuestions, List<Concept> dateQuestions, Concept regimenQuestion, Concept dateQuestion) {
+        regimenQuestions.add(regimenQuestion);
+        dateQuestions.add(dateQuestion);
+    }
 
-	    PatientData regimenObsData = patientDataService.evaluate(regimenObsDef, context);
-	    PatientData dateObsData = null;
-	    if (dateObsDef != null) {
-            dateObsData = patientDataService.evaluate(dateObsDef, context);
+    /**
+     * Adds the regimens for the given patient, if they have any, sorted by regimen date
+     */
+    private void addPatientRegimens(EvaluatedPatientData c, PatientRegimens patient) {
+        if (patient == null) {
+            return;
         }
+        patient.endEncounter();
+        List<ArtRegimen> regimens = new ArrayList<ArtRegimen>();
+        for (List<ArtRegimen> regimensInGroup : patient.regimensByGroup) {
+            regimens.addAll(regimensInGroup);
+        }
+        if (!regimens.isEmpty()) {
+            Collections.sort(regimens, REGIMEN_DATE_COMPARATOR);
+            c.getData().put(patient.patientId, regimens);
+        }
+    }
 
-        for (Integer pId: regimenObsData.getData().keySet()) {
-
-            List<ArtRegimen> regimensForPatient = (List<ArtRegimen>) c.getData().get(pId);
-            if (regimensForPatient == null) {
-                regimensForPatient = new ArrayList<ArtRegimen>();
-                c.getData().put(pId, regimensForPatient);
+    /**
+     * The regimens found so far for a patient, and the regimen and date obs for the encounter currently being read
+     * Within each group, the last obs in an encounter is used if there is more than one
+     */
+    private static class PatientRegimens {
+
+        private final Integer patientId;
+        private final List<List<ArtRegimen>> regimensByGroup;
+        private Integer encounterId;
+        private Obs[] regimenObs;
+        private Obs[] dateObs;
+
+        private PatientRegimens(Integer patientId, int numGroups) {
+            this.patientId = patientId;
+            this.regimensByGroup = new ArrayList<List<ArtRegimen>>(numGroups);
+            for (int i = 0; i < numGroups; i++) {
+                regimensByGroup.add(new ArrayList<ArtRegimen>());
             }
+            this.regimenObs = new Obs[numGroups];
+            this.dateObs = new Obs[numGroups];
+        }
 
-            Map<Integer, ArtRegimen> regimenForEncounter = new HashMap<Integer, ArtRegimen>();
-            List<Obs> regimenObsList = (List<Obs>) regimenObsData.getData().get(pId);
-            for (Obs regimenObs : regimenObsList) {
-                ArtRegimen regimen = new ArtRegimen(regimenObs);
-                regimenForEncounter.put(regimenObs.getEncounter().getEncounterId(), regimen);
-            }
-            if (dateObsData != null) {
-                List<Obs> regimenDates = (List<Obs>)dateObsData.getData().get(pId);
-                if (regimenDates != null) {
-                    for (Obs regimenDateObs : regimenDates) {
-                        ArtRegimen regimen = regimenForEncounter.get(regimenDateObs.getEncounter().getEncounterId());
-                        if (regimen == null) {
-                            log.debug("Regimen Date Obs found without a matching Regimen Obs: " + regimenDateObs);
-                        }
-                        else {
-                            regimen.setDateObs(regimenDateObs);
-                        }
-                    }
+        private void endEncounter() {
+            for (int i = 0; i < regimenObs.length; i++) {
+                if (regimenObs[i] != null) {
+                    ArtRegimen regimen = new ArtRegimen(regimenObs[i]);
+                    regimen.setDateObs(dateObs[i]);
+                    regimensByGroup.get(i).add(regimen);
+                }
+                else if (dateObs[i] != null) {
+                    log.debug("Regimen Date Obs found without a matching Regimen Obs: " + dateObs[i]);
                 }
+                regimenObs[i] = null;
+                dateObs[i] = null;
             }
-            regimensForPatient.addAll(regimenForEncounter.values());
         }
     }
 }
@@ -18,7 +18,6 @@ import org.apache.commons.logging.LogFactory;
 import org.openmrs.Concept;
 import org.openmrs.Obs;
 import org.openmrs.annotation.Handler;
-import org.openmrs.module.htmlwidgets.util.ReflectionUtil;
 import org.openmrs.module.pihmalawi.common.HivTestResult;
 import org.openmrs.module.pihmalawi.metadata.HivMetadata;
 import org.openmrs.module.pihmalawi.reporting.definition.data.definition.HivTestResultPatientDataDefinition;
@@ -37,6 +36,7 @@ import org.springframework.beans.factory.annotation.Autowired;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
@@ -66,34 +66,70 @@ public class HivTestResultPatientDataEvaluator implements PatientDataEvaluator {
 			return c;
 		}
 
-        Map<Integer, HivTestResult> resultsByGroup = new HashMap<Integer, HivTestResult>();
+        // Read the result, test type, sample date, and result date observations in a single query, retrieving only
+        // the values needed rather than loading each Obs
+
+        List<Concept> resultConcepts = metadata.getAllHivTestResultConcepts();
+        Concept testTypeConcept = metadata.getHivTestType();
+        Concept sampleDateConcept = metadata.getHivTestSampleDateConcept();
+        Concept resultDateConcept = metadata.getHivTestResultDateConcept();
 
-        // Initialize results to return by querying the result concept
+        List<Concept> questions = new ArrayList<Concept>(resultConcepts);
+        questions.addAll(Arrays.asList(testTypeConcept, sampleDateConcept, resultDateConcept));
 
-        List<Obs> resultObsList = getObs(metadata.getAllHivTestResultConcepts(), context);
-        for (Obs resultObs : resultObsList) {
-            HivTestResult result = new HivTestResult(resultObs);
-            if (resultObs.getObsGroup() != null) {
-                resultsByGroup.put(resultObs.getObsGroup().getObsId(), result);
+        HqlQueryBuilder q = new HqlQueryBuilder();
+        q.select("o.personId", "o.obsId", "g.obsId", "o.concept", "vc", "o.valueDatetime", "o.obsDatetime");
+        q.from(Obs.class, "o");
+        q.leftOuterJoin("o.obsGroup", "g");
+        q.leftOuterJoin("o.valueCoded", "vc");
+        q.wherePersonIn("o.personId", context);
+        q.whereIn("o.concept", questions);
+
+        Map<Integer, HivTestResult> resultsByGroup = new HashMap<Integer, HivTestResult>();
+        List<Object[]> groupMembers = new ArrayList<Object[]>();
+
+        for (Object[] row : evaluationService.evaluateToList(q, context)) {
+            Integer pId = (Integer) row[0];
+            Integer groupId = (Integer) row[2];
+            Concept question = (Concept) row[3];
+            if (resultConcepts.contains(question)) {
+                HivTestResult result = new HivTestResult((Integer) row[1], groupId, question, (Concept) row[4], (Date) row[6]);
+                if (groupId != null) {
+                    resultsByGroup.put(groupId, result);
+                }
+                List<HivTestResult> resultsForPatient = (List<HivTestResult>)c.getData().get(pId);
+                if (resultsForPatient == null) {
+                    resultsForPatient = new ArrayList<HivTestResult>();
+                    c.getData().put(pId, resultsForPatient);
+                }
+                resultsForPatient.add(result);
             }
-            List<HivTestResult> resultsForPatient = (List<HivTestResult>)c.getData().get(resultObs.getPersonId());
-            if (resultsForPatient == null) {
-                resultsForPatient = new ArrayList<HivTestResult>();
-                c.getData().put(resultObs.getPersonId(), resultsForPatient);
+            else {
+                groupMembers.add(row);
             }
-            resultsForPatient.add(result);
         }
 
         // Add in all associated data by matching on obs groups
 
-        List<Obs> typeObsList = getObs(metadata.getHivTestType(), context);
-        addIfMatches(resultsByGroup, typeObsList, "testTypeObs");
-
-        List<Obs> sampleDateObsList = getObs(metadata.getHivTestSampleDateConcept(), context);
-        addIfMatches(resultsByGroup, sampleDateObsList, "specimenDateObs");
-
-        List<Obs> resultDateObsList = getObs(metadata.getHivTestResultDateConcept(), context);
-        addIfMatches(resultsByGroup, resultDateObsList, "resultDateObs");
+        for (Object[] row : groupMembers) {
+            Integer groupId = (Integer) row[2];
+            HivTestResult match = (groupId == null ? null : resultsByGroup.get(groupId));
+            Concept question = (Concept) row[3];
+            if (match != null) {
+                if (question.equals(testTypeConcept)) {
+                    match.setTestTypeAnswer((Concept) row[4]);
+                }
+                else if (question.equals(sampleDateConcept)) {
+                    match.setSpecimenDate((Date) row[5]);
+                }
+                else if (question.equals(resultDateConcept)) {
+                    match.setResultDate((Date) row[5]);
+                }
+            }
+            else {
+                log.trace("Found " + question + " Obs with no corresponding HIV Result Obs. Obs ID: " + row[1]);
+            }
+        }
 
         // Sort and filter for each patient
 
@@ -115,25 +151,25 @@ public class HivTestResultPatientDataEvaluator implements PatientDataEvaluator {
                 HivTestResult r = i.next();
 
                 // Effective Date
-                if (r.getSpecimenDateObs() != null) {
-                    r.setEffectiveDate(r.getSpecimenDateObs().getValueDatetime());
+                if (r.getSpecimenDate() != null) {
+                    r.setEffectiveDate(r.getSpecimenDate());
                 }
-                else if (r.getResultDateObs() != null) {
-                    r.setEffectiveDate(r.getResultDateObs().getValueDate());
+                else if (r.getResultDate() != null) {
+                    r.setEffectiveDate(r.getResultDate());
                 }
                 else {
-                    r.setEffectiveDate(r.getTestResultObs().getObsDatetime());
+                    r.setEffectiveDate(r.getTestResultObsDatetime());
                 }
 
                 // Test Type
-                if (r.getTestTypeObs() != null) {
-                    r.setTestType(r.getTestTypeObs().getValueCoded());
+                if (r.getTestTypeAnswer() != null) {
+                    r.setTestType(r.getTestTypeAnswer());
                 }
-                else if (r.getTestResultObs() != null) {
-                    if (r.getTestResultObs().getConcept().equals(hivRapidTest)) {
-                        r.setTestType(r.getTestResultObs().getConcept());
+                else if (r.getTestResultQuestion() != null) {
+                    if (r.getTestResultQuestion().equals(hivRapidTest)) {
+                        r.setTestType(r.getTestResultQuestion());
                     }
-                    else if (dnaPcrResultConcepts.contains(r.getTestResultObs().getConcept())) {
+                    else if (dnaPcrResultConcepts.contains(r.getTestResultQuestion())) {
                         r.setTestType(hivDnaPcrTest);
                     }
                 }
@@ -142,8 +178,8 @@ public class HivTestResultPatientDataEvaluator implements PatientDataEvaluator {
                 }
 
                 // Test Result
-                if (r.getTestResultObs() != null) {
-                    Concept valueCoded = r.getTestResultObs().getValueCoded();
+                if (r.getTestResultAnswer() != null) {
+                    Concept valueCoded = r.getTestResultAnswer();
                     if (valueCoded.equals(reactive)) {
                         valueCoded = positive;
                     }
@@ -170,32 +206,4 @@ public class HivTestResultPatientDataEvaluator implements PatientDataEvaluator {
 
 		return c;
 	}
-
-	protected void addIfMatches(Map<Integer, HivTestResult> resultsByGroup, List<Obs> obsToAdd, String propertyToSet) {
-        for (Obs o : obsToAdd) {
-            HivTestResult match = null;
-            if (o.getObsGroup() != null) {
-                match = resultsByGroup.get(o.getObsGroup().getObsId());
-            }
-            if (match != null) {
-                ReflectionUtil.setPropertyValue(match, propertyToSet, o);
-            }
-            else {
-                log.trace("Found " + propertyToSet + " Obs with no corresponding HIV Result Obs. Obs ID: " + o.getObsId());
-            }
-        }
-    }
-
-    protected List<Obs> getObs(Concept question, EvaluationContext context) {
-	    return getObs(Arrays.asList(question), context);
-    }
-
-	protected List<Obs> getObs(List<Concept> questions, EvaluationContext context) {
-        HqlQueryBuilder q = new HqlQueryBuilder();
-        q.select("o");
-        q.from(Obs.class, "o");
-        q.wherePersonIn("o.personId", context);
-        q.whereIn("o.concept", questions);
-        return evaluationService.evaluateToList(q, Obs.class, context);
-    }
 }
@@ -0,0 +1,203 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.pihmalawi.reporting.definition.data.evaluator;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.Concept;
+import org.openmrs.EncounterType;
+import org.openmrs.Obs;
+import org.openmrs.annotation.Handler;
+import org.openmrs.module.reporting.common.DateUtil;
+import org.openmrs.module.reporting.common.TimeQualifier;
+import org.openmrs.module.reporting.data.person.EvaluatedPersonData;
+import org.openmrs.module.reporting.data.person.definition.ObsForPersonDataDefinition;
+import org.openmrs.module.reporting.data.person.definition.PersonDataDefinition;
+import org.openmrs.module.reporting.data.person.evaluator.ObsForPersonDataEvaluator;
+import org.openmrs.module.reporting.data.person.evaluator.PersonDataEvaluator;
+import org.openmrs.module.reporting.evaluation.EvaluationContext;
+import org.openmrs.module.reporting.evaluation.EvaluationException;
+import org.openmrs.module.reporting.evaluation.context.PersonEvaluationContext;
+import org.openmrs.module.reporting.evaluation.querybuilder.HqlQueryBuilder;
+import org.openmrs.module.reporting.evaluation.service.EvaluationService;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Evaluates an ObsForPersonDataDefinition from the obs held by the SharedObsScan in progress on the current thread,
+ * loading all of the questions in the data set for the definition's date window in a single query the first time that
+ * window is needed.  Encounter type, coded value, and first / last / all are then applied in memory.
+ * If no scan is in progress, or the definition uses criteria that are not supported here, this delegates to the
+ * standard reporting evaluator, so evaluation outside of a shared scan is unchanged.
+ */
+@Handler(supports = ObsForPersonDataDefinition.class, order = 25)
+public class SharedObsForPersonDataEvaluator implements PersonDataEvaluator {
+
+	private static final Log log = LogFactory.getLog(SharedObsForPersonDataEvaluator.class);
+
+	@Autowired
+	private EvaluationService evaluationService;
+
+	@Autowired
+	private ObsForPersonDataEvaluator obsForPersonDataEvaluator;
+
+	@Override
+	public EvaluatedPersonData evaluate(PersonDataDefinition definition, EvaluationContext context) throws EvaluationException {
+
+		ObsForPersonDataDefinition def = (ObsForPersonDataDefinition) definition;
+		SharedObsScan scan = SharedObsScan.getCurrent();
+
+		Set<Integer> personIds = getPersonIds(context);
+
+		if (scan == null || personIds == null || !isSupported(def)) {
+			return obsForPersonDataEvaluator.evaluate(definition, context);
+		}
+
+		EvaluatedPersonData c = new EvaluatedPersonData(def, context);
+		if (personIds.isEmpty()) {
+			return c;
+		}
+
+		Date onOrAfter = def.getOnOrAfter();
+		Date onOrBefore = (def.getOnOrBefore() == null ? null : DateUtil.getEndOfDayIfTimeExcluded(def.getOnOrBefore()));
+
+		SharedObsScan.Slice slice = scan.getSlice(personIds, onOrAfter, onOrBefore);
+		if (slice == null) {
+			slice = scan.addSlice(personIds, onOrAfter, onOrBefore);
+			Set<Concept> questions = new HashSet<Concept>(scan.getQuestions(onOrAfter));
+			questions.add(def.getQuestion());
+			loadSlice(slice, questions, onOrAfter, onOrBefore, context);
+			scan.incrementNumQueries();
+		}
+		else if (!slice.isLoaded(def.getQuestion())) {
+			loadSlice(slice, def.getQuestion(), onOrAfter, onOrBefore, context);
+			scan.incrementNumQueries();
+		}
+		scan.incrementNumDefinitionsEvaluated();
+
+		Set<Integer> encounterTypeIds = getIds(def.getEncounterTypeList());
+		Set<Integer> valueCodedIds = getIds(def.getValueCodedList());
+
+		for (Map.Entry<Integer, List<SharedObsScan.Entry>> e : slice.getEntries(def.getQuestion()).entrySet()) {
+			List<Obs> obsForPerson = new ArrayList<Obs>();
+			for (SharedObsScan.Entry entry : e.getValue()) {
+				if (encounterTypeIds != null && !encounterTypeIds.contains(entry.getEncounterTypeId())) {
+					continue;
+				}
+				if (valueCodedIds != null) {
+					Concept valueCoded = entry.getObs().getValueCoded();
+					if (valueCoded == null || !valueCodedIds.contains(valueCoded.getConceptId())) {
+						continue;
+					}
+				}
+				obsForPerson.add(entry.getObs());
+			}
+			if (!obsForPerson.isEmpty()) {
+				if (def.getWhich() == TimeQualifier.LAST) {
+					c.getData().put(e.getKey(), obsForPerson.get(obsForPerson.size() - 1));
+				}
+				else if (def.getWhich() == TimeQualifier.FIRST) {
+					c.getData().put(e.getKey(), obsForPerson.get(0));
+				}
+				else {
+					c.getData().put(e.getKey(), obsForPerson);
+				}
+			}
+		}
+
+		return c;
+	}
+
+	/**
+	 * @return true if the given definition can be evaluated from a shared slice
+	 * Only a question, encounter types, coded values, and an obs date window are supported
+	 */
+	protected boolean isSupported(ObsForPersonDataDefinition def) {
+		if (def.getQuestion() == null) {
+			return false;
+		}
+		if (def.getWhich() != null && def.getWhich() != TimeQualifier.FIRST && def.getWhich() != TimeQualifier.LAST && def.getWhich() != TimeQualifier.ANY) {
+			return false;
+		}
+		return isEmpty(def.getLocationList()) && def.getValueDatetimeOrAfter() == null && def.getValueDatetimeOnOrBefore() == null;
+	}
+
+	protected void loadSlice(SharedObsScan.Slice slice, Concept question, Date onOrAfter, Date onOrBefore, EvaluationContext context) {
+		Set<Concept> questions = new HashSet<Concept>();
+		questions.add(question);
+		loadSlice(slice, questions, onOrAfter, onOrBefore, context);
+	}
+
+	/**
+	 * Loads all obs for the given questions within the given window, along with the encounter type of each
+	 */
+	protected void loadSlice(SharedObsScan.Slice slice, Set<Concept> questions, Date onOrAfter, Date onOrBefore, EvaluationContext context) {
+		long startTime = System.currentTimeMillis();
+
+		HqlQueryBuilder q = new HqlQueryBuilder();
+		q.select("o.personId", "o.concept.conceptId", "o", "et.encounterTypeId");
+		q.from(Obs.class, "o");
+		q.leftOuterJoin("o.encounter", "e");
+		q.leftOuterJoin("e.encounterType", "et");
+		q.wherePersonIn("o.personId", context);
+		q.whereIn("o.concept", questions);
+		q.whereGreaterOrEqualTo("o.obsDatetime", onOrAfter);
+		q.whereLessOrEqualTo("o.obsDatetime", onOrBefore);
+		q.orderAsc("o.obsDatetime");
+
+		List<Object[]> results = evaluationService.evaluateToList(q, context);
+		for (Object[] row : results) {
+			slice.add((Integer) row[1], (Integer) row[0], (Obs) row[2], (Integer) row[3]);
+		}
+		for (Concept question : questions) {
+			slice.markLoaded(question);
+		}
+
+		log.debug("Loaded " + results.size() + " obs for " + questions.size() + " questions from " + onOrAfter + " to " + onOrBefore + " in " + (System.currentTimeMillis() - startTime) + " ms");
+	}
+
+	/**
+	 * @return the people that the given context is limited to, or null if it is not limited, in which case there is
+	 * no benefit in sharing a scan
+	 */
+	private Set<Integer> getPersonIds(EvaluationContext context) {
+		if (context instanceof PersonEvaluationContext && ((PersonEvaluationContext) context).getBasePeople() != null) {
+			return ((PersonEvaluationContext) context).getBasePeople().getMemberIds();
+		}
+		return (context.getBaseCohort() == null ? null : context.getBaseCohort().getMemberIds());
+	}
+
+	private Set<Integer> getIds(List<?> objects) {
+		if (isEmpty(objects)) {
+			return null;
+		}
+		Set<Integer> ret = new HashSet<Integer>();
+		for (Object o : objects) {
+			if (o instanceof EncounterType) {
+				ret.add(((EncounterType) o).getEncounterTypeId());
+			}
+			else if (o instanceof Concept) {
+				ret.add(((Concept) o).getConceptId());
+			}
+		}
+		return ret;
+	}
+
+	private boolean isEmpty(Collection<?> c) {
+		return c == null || c.isEmpty();
+	}
+}
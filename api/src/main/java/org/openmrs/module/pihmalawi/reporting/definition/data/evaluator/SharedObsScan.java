@@ -0,0 +1,223 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.pihmalawi.reporting.definition.data.evaluator;
+
+import org.openmrs.Concept;
+import org.openmrs.Obs;
+import org.openmrs.module.reporting.data.ConvertedDataDefinition;
+import org.openmrs.module.reporting.data.DataDefinition;
+import org.openmrs.module.reporting.data.patient.definition.PersonToPatientDataDefinition;
+import org.openmrs.module.reporting.data.person.definition.ObsForPersonDataDefinition;
+import org.openmrs.module.reporting.dataset.column.definition.RowPerObjectColumnDefinition;
+import org.openmrs.module.reporting.dataset.definition.RowPerObjectDataSetDefinition;
+import org.openmrs.module.reporting.evaluation.parameter.Mapped;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Holds the obs loaded for all of the ObsForPersonDataDefinition columns of a data set while it is evaluated,
+ * so that each distinct date window is queried once for all of the questions that use it, rather than once per column.
+ * A scan is bound to the current thread for the duration of a data set evaluation, and is used by
+ * SharedObsForPersonDataEvaluator when present.
+ */
+public class SharedObsScan {
+
+    private static final ThreadLocal<SharedObsScan> currentScan = new ThreadLocal<SharedObsScan>();
+
+    //***** PROPERTIES *****
+
+    private final Set<Concept> boundedQuestions = new HashSet<Concept>(); // Questions with an onOrAfter date
+    private final Set<Concept> unboundedQuestions = new HashSet<Concept>();
+    private final Map<String, Slice> slices = new HashMap<String, Slice>();
+    private int numQueries = 0;
+    private int numDefinitionsEvaluated = 0;
+
+    //***** CONSTRUCTORS *****
+
+    public SharedObsScan() {}
+
+    //***** STATIC METHODS *****
+
+    /**
+     * Starts a scan for the columns of the given data set on the current thread
+     * Callers are expected to call end() in a finally block once the data set has been evaluated
+     */
+    public static SharedObsScan start(RowPerObjectDataSetDefinition dsd) {
+        SharedObsScan scan = new SharedObsScan();
+        for (RowPerObjectColumnDefinition column : dsd.getColumnDefinitions()) {
+            scan.addQuestions(column.getDataDefinition());
+        }
+        currentScan.set(scan);
+        return scan;
+    }
+
+    /**
+     * @return the scan in progress on the current thread, or null if there is none
+     */
+    public static SharedObsScan getCurrent() {
+        return currentScan.get();
+    }
+
+    /**
+     * Ends the scan in progress on the current thread, releasing all of the obs that it holds
+     */
+    public static void end() {
+        currentScan.remove();
+    }
+
+    //***** INSTANCE METHODS *****
+
+    /**
+     * @return the questions that should be loaded together for the given date window
+     */
+    public Set<Concept> getQuestions(Date onOrAfter) {
+        return onOrAfter == null ? unboundedQuestions : boundedQuestions;
+    }
+
+    /**
+     * @return the slice loaded for the given people and date window, or null if it has not been loaded
+     */
+    public Slice getSlice(Set<Integer> personIds, Date onOrAfter, Date onOrBefore) {
+        Slice slice = slices.get(getSliceKey(onOrAfter, onOrBefore));
+        return (slice != null && slice.personIds.equals(personIds) ? slice : null);
+    }
+
+    public Slice addSlice(Set<Integer> personIds, Date onOrAfter, Date onOrBefore) {
+        Slice slice = new Slice(personIds);
+        slices.put(getSliceKey(onOrAfter, onOrBefore), slice);
+        return slice;
+    }
+
+    public void incrementNumQueries() {
+        numQueries++;
+    }
+
+    public void incrementNumDefinitionsEvaluated() {
+        numDefinitionsEvaluated++;
+    }
+
+    public int getNumQueries() {
+        return numQueries;
+    }
+
+    public int getNumDefinitionsEvaluated() {
+        return numDefinitionsEvaluated;
+    }
+
+    @Override
+    public String toString() {
+        return "SharedObsScan[questions=" + (boundedQuestions.size() + unboundedQuestions.size()) + ", slices=" + slices.size() + ", queries=" + numQueries + ", definitions=" + numDefinitionsEvaluated + "]";
+    }
+
+    //***** PRIVATE METHODS *****
+
+    /**
+     * Finds any ObsForPersonDataDefinitions within the given definition, unwrapping converted and person-to-patient definitions
+     */
+    private void addQuestions(Mapped<? extends DataDefinition> mapped) {
+        DataDefinition dd = (mapped == null ? null : mapped.getParameterizable());
+        while (dd != null) {
+            if (dd instanceof ConvertedDataDefinition) {
+                Mapped<? extends DataDefinition> toConvert = ((ConvertedDataDefinition<?>) dd).getDefinitionToConvert();
+                dd = (toConvert == null ? null : toConvert.getParameterizable());
+            }
+            else if (dd instanceof PersonToPatientDataDefinition) {
+                dd = ((PersonToPatientDataDefinition) dd).getJoinedDefinition();
+            }
+            else {
+                if (dd instanceof ObsForPersonDataDefinition) {
+                    ObsForPersonDataDefinition def = (ObsForPersonDataDefinition) dd;
+                    if (def.getQuestion() != null) {
+                        boolean bounded = def.getOnOrAfter() != null || def.getParameter("onOrAfter") != null;
+                        (bounded ? boundedQuestions : unboundedQuestions).add(def.getQuestion());
+                    }
+                }
+                dd = null;
+            }
+        }
+    }
+
+    private String getSliceKey(Date onOrAfter, Date onOrBefore) {
+        return (onOrAfter == null ? "" : onOrAfter.getTime()) + "|" + (onOrBefore == null ? "" : onOrBefore.getTime());
+    }
+
+    /**
+     * The obs loaded for a set of people and a date window, by question and person, in ascending order of obsDatetime
+     */
+    public static class Slice {
+
+        private final Set<Integer> personIds;
+        private final Set<Integer> loadedQuestions = new HashSet<Integer>();
+        private final Map<Integer, Map<Integer, List<Entry>>> entries = new HashMap<Integer, Map<Integer, List<Entry>>>();
+
+        private Slice(Set<Integer> personIds) {
+            this.personIds = personIds;
+        }
+
+        public boolean isLoaded(Concept question) {
+            return loadedQuestions.contains(question.getConceptId());
+        }
+
+        public void markLoaded(Concept question) {
+            loadedQuestions.add(question.getConceptId());
+        }
+
+        public void add(Integer questionId, Integer personId, Obs obs, Integer encounterTypeId) {
+            Map<Integer, List<Entry>> entriesForQuestion = entries.get(questionId);
+            if (entriesForQuestion == null) {
+                entriesForQuestion = new HashMap<Integer, List<Entry>>();
+                entries.put(questionId, entriesForQuestion);
+            }
+            List<Entry> entriesForPerson = entriesForQuestion.get(personId);
+            if (entriesForPerson == null) {
+                entriesForPerson = new ArrayList<Entry>();
+                entriesForQuestion.put(personId, entriesForPerson);
+            }
+            entriesForPerson.add(new Entry(obs, encounterTypeId));
+        }
+
+        /**
+         * @return the loaded obs for the given question, by person, in ascending order of obsDatetime
+         */
+        public Map<Integer, List<Entry>> getEntries(Concept question) {
+            Map<Integer, List<Entry>> ret = entries.get(question.getConceptId());
+            return ret == null ? new HashMap<Integer, List<Entry>>() : ret;
+        }
+    }
+
+    /**
+     * An obs, along with the type of encounter it was recorded in, so that filtering on encounter type
+     * does not require the encounter to be loaded
+     */
+    public static class Entry {
+
+        private final Obs obs;
+        private final Integer encounterTypeId;
+
+        private Entry(Obs obs, Integer encounterTypeId) {
+            this.obs = obs;
+            this.encounterTypeId = encounterTypeId;
+        }
+
+        public Obs getObs() {
+            return obs;
+        }
+
+        public Integer getEncounterTypeId() {
+            return encounterTypeId;
+        }
+    }
+}
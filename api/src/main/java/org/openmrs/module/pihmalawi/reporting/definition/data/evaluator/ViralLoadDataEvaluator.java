@@ -22,7 +22,6 @@ import org.openmrs.module.pihmalawi.common.ViralLoad;
 import org.openmrs.module.pihmalawi.metadata.HivMetadata;
 import org.openmrs.module.pihmalawi.reporting.definition.data.definition.ViralLoadDataDefinition;
 import org.openmrs.module.reporting.common.BeanPropertyComparator;
-import org.openmrs.module.reporting.common.ObjectUtil;
 import org.openmrs.module.reporting.data.patient.EvaluatedPatientData;
 import org.openmrs.module.reporting.data.patient.definition.PatientDataDefinition;
 import org.openmrs.module.reporting.data.patient.evaluator.PatientDataEvaluator;
@@ -36,6 +35,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -64,130 +64,78 @@ public class ViralLoadDataEvaluator implements PatientDataEvaluator {
 			return c;
 		}
 
-		// Viral Load Specimen Date (Bled)
-
-        {
-            HqlQueryBuilder q = new HqlQueryBuilder();
-            q.select("o.personId", "e.encounterId", "g.obsId", "e.encounterDatetime");
-            q.from(Obs.class, "o");
-            q.innerJoin("o.encounter", "e");
-            q.leftOuterJoin("o.obsGroup", "g");
-            q.wherePersonIn("o.personId", context);
-            q.whereEqual("o.concept", metadata.getHivViralLoadSpecimenCollectedConcept());
-            q.whereEqual("o.valueCoded", metadata.getTrueConcept());
-            q.whereLessOrEqualTo("o.obsDatetime", def.getEndDate());
-            q.orderAsc("o.obsDatetime");
-
-            List<Object[]> results = evaluationService.evaluateToList(q, context);
-            for (Object[] row : results) {
-                ViralLoad vl = getViralLoadForPatient(c.getData(), (Integer) row[0], (Integer) row[1], (Integer) row[2]);
-                vl.setSpecimenDate((Date) row[3]);
-            }
-        }
-
-        // Numeric Viral Load Results
-
-        {
-            HqlQueryBuilder q = new HqlQueryBuilder();
-            q.select("o.personId", "e.encounterId", "g.obsId", "o.obsDatetime", "o.valueNumeric", "e.encounterDatetime");
-            q.from(Obs.class, "o");
-            q.innerJoin("o.encounter", "e");
-            q.leftOuterJoin("o.obsGroup", "g");
-            q.wherePersonIn("o.personId", context);
-            q.whereEqual("o.concept", metadata.getHivViralLoadConcept());
-            q.whereLessOrEqualTo("o.obsDatetime", def.getEndDate());
-            q.orderAsc("o.obsDatetime");
-
-            List<Object[]> results = evaluationService.evaluateToList(q, context);
-            for (Object[] row : results) {
-                ViralLoad vl = getViralLoadForPatient(c.getData(), (Integer) row[0], (Integer) row[1], (Integer) row[2]);
-                vl.setResultDate((Date) row[3]);
-                vl.setResultNumeric((Double) row[4]);
-                if (vl.getSpecimenDate() == null) {
-                    vl.setSpecimenDate((Date) row[5]); // If result does not match up with a collection obs, use encounter date as specimen collection date
+        Concept specimenCollected = metadata.getHivViralLoadSpecimenCollectedConcept();
+        Concept viralLoad = metadata.getHivViralLoadConcept();
+        Concept lessThanViralLoad = metadata.getHivLessThanViralLoadConcept();
+        Concept ldl = metadata.getHivLDLConcept();
+        Concept reasonForTest = metadata.getReasonForTestingConcept();
+        Concept reasonNoResult = metadata.getReasonNoResultConcept();
+        Concept trueConcept = metadata.getTrueConcept();
+        Concept viralLoadTestSet = metadata.getHivViralLoadTestSetConcept();
+
+        // Retrieve all of the viral load observations in a single query, and assemble each viral load from the
+        // observations that share its obs group, or its encounter if they are not in a group
+
+        HqlQueryBuilder q = new HqlQueryBuilder();
+        q.select("o.personId", "e.encounterId", "g.obsId", "o.concept", "vc", "o.valueNumeric", "o.obsDatetime", "e.encounterDatetime", "gc");
+        q.from(Obs.class, "o");
+        q.innerJoin("o.encounter", "e");
+        q.leftOuterJoin("o.obsGroup", "g");
+        q.leftOuterJoin("g.concept", "gc");
+        q.leftOuterJoin("o.valueCoded", "vc");
+        q.wherePersonIn("o.personId", context);
+        q.whereIn("o.concept", Arrays.asList(specimenCollected, viralLoad, lessThanViralLoad, ldl, reasonForTest, reasonNoResult));
+        q.whereLessOrEqualTo("o.obsDatetime", def.getEndDate());
+        q.orderAsc("o.personId");
+        q.orderAsc("o.obsDatetime");
+
+        Map<List<Integer>, ViralLoad> viralLoads = new HashMap<List<Integer>, ViralLoad>();
+        List<Object[]> results = evaluationService.evaluateToList(q, context);
+        for (Object[] row : results) {
+            Integer pId = (Integer) row[0];
+            Integer encId = (Integer) row[1];
+            Integer groupId = (Integer) row[2];
+            Concept question = (Concept) row[3];
+            Concept answer = (Concept) row[4];
+            Double valueNumeric = (Double) row[5];
+            Date obsDatetime = (Date) row[6];
+            Date encounterDatetime = (Date) row[7];
+            Concept groupConcept = (Concept) row[8];
+
+            if (question.equals(specimenCollected)) {
+                if (trueConcept.equals(answer)) {
+                    getViralLoadForPatient(c.getData(), viralLoads, pId, encId, groupId).setSpecimenDate(encounterDatetime);
                 }
             }
-        }
-
-
-        // Numeric Less Than Viral Load Results
-
-        {
-            HqlQueryBuilder q = new HqlQueryBuilder();
-            q.select("o.personId", "e.encounterId", "g.obsId", "o.obsDatetime", "o.valueNumeric", "e.encounterDatetime");
-            q.from(Obs.class, "o");
-            q.innerJoin("o.encounter", "e");
-            q.leftOuterJoin("o.obsGroup", "g");
-            q.wherePersonIn("o.personId", context);
-            q.whereEqual("o.concept", metadata.getHivLessThanViralLoadConcept());
-            q.whereLessOrEqualTo("o.obsDatetime", def.getEndDate());
-            q.orderAsc("o.obsDatetime");
-
-            List<Object[]> results = evaluationService.evaluateToList(q, context);
-            for (Object[] row : results) {
-                ViralLoad vl = getViralLoadForPatient(c.getData(), (Integer) row[0], (Integer) row[1], (Integer) row[2]);
-                vl.setResultDate((Date) row[3]);
-                vl.setLessThanResultNumeric((Double) row[4]);
-                if (vl.getSpecimenDate() == null) {
-                    vl.setSpecimenDate((Date) row[5]); // If result does not match up with a collection obs, use encounter date as specimen collection date
-                }
+            else if (question.equals(viralLoad)) {
+                ViralLoad vl = getViralLoadForPatient(c.getData(), viralLoads, pId, encId, groupId);
+                vl.setResultDate(obsDatetime);
+                vl.setResultNumeric(valueNumeric);
+                setDefaultSpecimenDate(vl, encounterDatetime);
             }
-        }
-
-        // LDL Viral Load Results
-
-        {
-            HqlQueryBuilder q = new HqlQueryBuilder();
-            q.select("o.personId", "e.encounterId", "g.obsId", "o.obsDatetime", "e.encounterDatetime");
-            q.from(Obs.class, "o");
-            q.innerJoin("o.encounter", "e");
-            q.leftOuterJoin("o.obsGroup", "g");
-            q.wherePersonIn("o.personId", context);
-            q.whereEqual("o.concept", metadata.getHivLDLConcept());
-            q.whereEqual("o.valueCoded", metadata.getTrueConcept());
-            q.whereLessOrEqualTo("o.obsDatetime", def.getEndDate());
-            q.orderAsc("o.obsDatetime");
-
-            List<Object[]> results = evaluationService.evaluateToList(q, context);
-            for (Object[] row : results) {
-                ViralLoad vl = getViralLoadForPatient(c.getData(), (Integer) row[0], (Integer) row[1], (Integer) row[2]);
-                vl.setResultDate((Date) row[3]);
-                vl.setResultLdl(true);
-                if (vl.getSpecimenDate() == null) {
-                    vl.setSpecimenDate((Date) row[4]); // If result does not match up with a collection obs, use encounter date as specimen collection date
+            else if (question.equals(lessThanViralLoad)) {
+                ViralLoad vl = getViralLoadForPatient(c.getData(), viralLoads, pId, encId, groupId);
+                vl.setResultDate(obsDatetime);
+                vl.setLessThanResultNumeric(valueNumeric);
+                setDefaultSpecimenDate(vl, encounterDatetime);
+            }
+            else if (question.equals(ldl)) {
+                if (trueConcept.equals(answer)) {
+                    ViralLoad vl = getViralLoadForPatient(c.getData(), viralLoads, pId, encId, groupId);
+                    vl.setResultDate(obsDatetime);
+                    vl.setResultLdl(true);
+                    setDefaultSpecimenDate(vl, encounterDatetime);
                 }
             }
-        }
-
-        // Reason For Test and Reason No Result
-
-        Concept reasonForTest = metadata.getReasonForTestingConcept();
-		Concept reasonNoResult = metadata.getReasonNoResultConcept();
-
-        {
-            HqlQueryBuilder q = new HqlQueryBuilder();
-            q.select("o.personId", "e.encounterId", "g.obsId", "o.concept", "o.valueCoded", "o.obsDatetime");
-            q.from(Obs.class, "o");
-            q.innerJoin("o.encounter", "e");
-            q.leftOuterJoin("o.obsGroup", "g");
-            q.wherePersonIn("o.personId", context);
-            q.whereIn("o.concept", Arrays.asList(metadata.getReasonForTestingConcept(), metadata.getReasonNoResultConcept()));
-            q.whereNotNull("o.obsGroup");
-            q.whereEqual("o.obsGroup.concept", metadata.getHivViralLoadTestSetConcept());
-            q.whereLessOrEqualTo("o.obsDatetime", def.getEndDate());
-            q.orderAsc("o.obsDatetime");
-
-            List<Object[]> results = evaluationService.evaluateToList(q, context);
-            for (Object[] row : results) {
-                ViralLoad vl = getViralLoadForPatient(c.getData(), (Integer) row[0], (Integer) row[1], (Integer) row[2]);
-                Concept question = (Concept)row[3];
-                Concept answer = (Concept)row[4];
+            else if (viralLoadTestSet.equals(groupConcept)) {
+                // Reason for test and reason for no result are only used within a viral load test set
+                ViralLoad vl = getViralLoadForPatient(c.getData(), viralLoads, pId, encId, groupId);
                 if (question.equals(reasonForTest)) {
                     vl.setReasonForTest(answer);
                 }
                 else if (question.equals(reasonNoResult)) {
                     vl.setReasonNoResult(answer);
-                    vl.setResultDate((Date)row[5]);
+                    vl.setResultDate(obsDatetime);
                 }
                 else {
                     throw new EvaluationException("Unhandled question: " + question.getUuid());
@@ -212,31 +160,33 @@ public class ViralLoadDataEvaluator implements PatientDataEvaluator {
 		return c;
 	}
 
-	protected ViralLoad getViralLoadForPatient(Map<Integer, Object> data, Integer pId, Integer encId, Integer groupId) {
-        List<ViralLoad> l = (List<ViralLoad>) data.get(pId);
-        if (l == null) {
-            l = new ArrayList<ViralLoad>();
-            data.put(pId, l);
-        }
-        ViralLoad vl = getMatchingViralLoad(l, encId, groupId);
+	/**
+	 * @return the viral load for the given encounter and obs group, adding a new one to the patient's data if needed
+	 */
+	protected ViralLoad getViralLoadForPatient(Map<Integer, Object> data, Map<List<Integer>, ViralLoad> viralLoads, Integer pId, Integer encId, Integer groupId) {
+        List<Integer> key = Arrays.asList(encId, groupId);
+        ViralLoad vl = viralLoads.get(key);
         if (vl == null) {
             vl = new ViralLoad();
+            vl.setEncounterId(encId);
+            vl.setGroupId(groupId);
+            viralLoads.put(key, vl);
+            List<ViralLoad> l = (List<ViralLoad>) data.get(pId);
+            if (l == null) {
+                l = new ArrayList<ViralLoad>();
+                data.put(pId, l);
+            }
             l.add(vl);
         }
-        vl.setEncounterId(encId);
-        vl.setGroupId(groupId);
         return vl;
     }
 
-    protected ViralLoad getMatchingViralLoad(List<ViralLoad> viralLoads, Integer encId, Integer obsGroupId) {
-	    for (ViralLoad vl : viralLoads) {
-	        if (ObjectUtil.areEqual(vl.getGroupId(), obsGroupId)) {
-	            return vl;
-            }
-            if (vl.getGroupId() == null && obsGroupId == null && ObjectUtil.areEqual(vl.getEncounterId(), encId)) {
-                return vl;
-            }
+    /**
+     * If a result does not match up with a collection obs, use the encounter date as the specimen collection date
+     */
+    protected void setDefaultSpecimenDate(ViralLoad vl, Date encounterDatetime) {
+        if (vl.getSpecimenDate() == null) {
+            vl.setSpecimenDate(encounterDatetime);
         }
-        return null;
     }
 }
@@ -20,7 +20,6 @@ import org.openmrs.EncounterType;
 import org.openmrs.Location;
 import org.openmrs.User;
 import org.openmrs.annotation.Handler;
-import org.openmrs.api.context.Context;
 import org.openmrs.module.pihmalawi.metadata.HivMetadata;
 import org.openmrs.module.pihmalawi.reporting.definition.dataset.definition.EncounterBreakdownDataSetDefinition;
 import org.openmrs.module.reporting.common.DateUtil;
@@ -40,7 +39,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Date;
-import java.util.LinkedHashMap;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -52,6 +51,10 @@ public class EncounterBreakdownDataSetEvaluator implements DataSetEvaluator {
 
 	protected Log log = LogFactory.getLog(this.getClass());
 
+	private static final String OTHER_ENCOUNTER_TYPE_KEY = "otherenc";
+	private static final String OTHER_USER_KEY = "userother";
+	private static final String OTHER_LOCATION_KEY = "locother";
+
 	@Autowired
 	HivMetadata metadata;
 
@@ -69,74 +72,92 @@ public class EncounterBreakdownDataSetEvaluator implements DataSetEvaluator {
 
 		EncounterBreakdownDataSetDefinition dsd = (EncounterBreakdownDataSetDefinition) dataSetDefinition;
 
-		// Construct the encounter filters to iterate across
-		Map<String, List<EncounterType>> encounterTypeFilters = new LinkedHashMap<String, List<EncounterType>>();
-		List<EncounterType> otherEncounterTypes = Context.getEncounterService().getAllEncounterTypes();
+		// Construct the encounter type keys to iterate across, with any other encounter type counted as "otherenc"
+		Map<Integer, String> encounterTypeKeys = new HashMap<Integer, String>();
+		List<String> encounterTypeFilters = new ArrayList<String>();
 		for (int encTypeNum=1; encTypeNum<=dsd.getTypes().size(); encTypeNum++) {
 			EncounterType encounterType = dsd.getTypes().get(encTypeNum-1);
-			encounterTypeFilters.put("enc"+encTypeNum, Arrays.asList(encounterType));
-			otherEncounterTypes.remove(encounterType);
+			encounterTypeKeys.put(encounterType.getEncounterTypeId(), "enc"+encTypeNum);
+			encounterTypeFilters.add("enc"+encTypeNum);
 		}
-		encounterTypeFilters.put("otherenc", otherEncounterTypes);
+		encounterTypeFilters.add(OTHER_ENCOUNTER_TYPE_KEY);
 
-		// Construct the user and location filters to iterate across
-		Map<String, List<User>> userFilters = new LinkedHashMap<String, List<User>>();
-		Map<String, List<Location>> locationFilters = new LinkedHashMap<String, List<Location>>();
+		// Construct the user or location keys to iterate across, with any other user or location counted as "other"
+		boolean byUser = (dsd.getGrouping() == EncounterBreakdownDataSetDefinition.Grouping.User);
+		Map<Integer, List<String>> groupKeys = new HashMap<Integer, List<String>>();
+		List<String> groupFilters = new ArrayList<String>();
+		String otherGroupKey;
 
-		if (dsd.getGrouping() == EncounterBreakdownDataSetDefinition.Grouping.User) {
+		if (byUser) {
 
 			// Determine what users to iterate across.  Default to top 10, and "other"
 			List<User> mostFrequentUsers = getUsersOrderedByNumEncounters(DateUtil.adjustDate(dsd.getEndDate(), -7*dsd.getNumberOfWeeks(), Calendar.DATE), dsd.getEndDate(), context);
-			List<User> otherUsers = Context.getUserService().getAllUsers();
 
 			for (int userNum=1; userNum<=mostFrequentUsers.size() && userNum <= 10; userNum++) {
 				User user = mostFrequentUsers.get(userNum - 1);
 				String userKey = "user"+userNum;
-				userFilters.put(userKey, Arrays.asList(user));
-				otherUsers.remove(user);
+				addGroupKey(groupKeys, user.getUserId(), userKey);
+				groupFilters.add(userKey);
 				data.addData(new DataSetColumn(userKey+"name", userKey+"name", String.class), user.getUsername());
 			}
-			userFilters.put("userother", otherUsers);
+			otherGroupKey = OTHER_USER_KEY;
 		}
 		else {
 
 			List<Location> locations = metadata.getSystemLocations();
-			List<Location> otherLocations = Context.getLocationService().getAllLocations();
 			for (int locationNum=1; locationNum<=locations.size(); locationNum++) {
 				Location location = locations.get(locationNum - 1);
 				String locationKey = "loc"+locationNum;
-				List<Location> locList = metadata.getAllLocations(location);
-				locationFilters.put(locationKey, locList);
-				otherLocations.removeAll(locList);
+				for (Location l : metadata.getAllLocations(location)) {
+					addGroupKey(groupKeys, l.getLocationId(), locationKey);
+				}
+				groupFilters.add(locationKey);
 				data.addData(new DataSetColumn(locationKey+"name", locationKey+"name", String.class), location.getName());
 			}
-			locationFilters.put("locother", otherLocations);
-
+			otherGroupKey = OTHER_LOCATION_KEY;
 		}
+		groupFilters.add(otherGroupKey);
 
-		// Now, iterate across the product of all of these and add them to the data set
-
-		Date startDate, endDate = null;
-
-		for (int weekNum=0; weekNum<dsd.getNumberOfWeeks(); weekNum++) {
+		// Count all encounters in the reporting period in a single query, by the day they were created, their type,
+		// and their creator or location, and then total these counts for each week, type, and user or location
 
-			endDate = (endDate == null ? dsd.getEndDate() : DateUtil.adjustDate(endDate, -7, Calendar.DATE));
-			startDate = DateUtil.adjustDate(endDate, -6, Calendar.DATE);
+		Date lastDay = DateUtil.getStartOfDay(dsd.getEndDate());
+		Date firstDay = DateUtil.adjustDate(lastDay, 1-7*dsd.getNumberOfWeeks(), Calendar.DATE);
+		String groupProperty = (byUser ? "e.creator.userId" : "e.location.locationId");
 
-			for (String encounterTypeKey : encounterTypeFilters.keySet()) {
-
-				List<EncounterType> encounterTypes = encounterTypeFilters.get(encounterTypeKey);
+		HqlQueryBuilder qb = new HqlQueryBuilder();
+		qb.select("year(e.dateCreated), month(e.dateCreated), day(e.dateCreated), e.encounterType.encounterTypeId, " + groupProperty + ", count(*)");
+		qb.from(Encounter.class, "e");
+		qb.whereGreaterOrEqualTo("e.dateCreated", firstDay);
+		qb.whereLessOrEqualTo("e.dateCreated", DateUtil.getEndOfDay(lastDay));
+		qb.groupBy("year(e.dateCreated), month(e.dateCreated), day(e.dateCreated), e.encounterType.encounterTypeId, " + groupProperty);
 
-				for (String userKey : userFilters.keySet()) {
-					List<User> users = userFilters.get(userKey);
-					String key = userKey + encounterTypeKey + "ago" + weekNum;
-					addData(data, key, startDate, endDate, encounterTypes, users, null, context);
+		Map<String, Integer> counts = new HashMap<String, Integer>();
+		for (Object[] row : evaluationService.evaluateToList(qb, context)) {
+			Date dayCreated = DateUtil.getDateTime(((Number) row[0]).intValue(), ((Number) row[1]).intValue(), ((Number) row[2]).intValue());
+			int weekNum = getDaysBetween(dayCreated, lastDay) / 7;
+			String encounterTypeKey = ObjectUtil.nvl(encounterTypeKeys.get((Integer) row[3]), OTHER_ENCOUNTER_TYPE_KEY);
+			Integer groupId = (Integer) row[4];
+			int count = ((Number) row[5]).intValue();
+			if (groupId != null) {
+				List<String> keysForGroup = groupKeys.get(groupId);
+				if (keysForGroup == null) {
+					keysForGroup = Arrays.asList(otherGroupKey);
+				}
+				for (String groupKey : keysForGroup) {
+					String key = groupKey + encounterTypeKey + "ago" + weekNum;
+					counts.put(key, ObjectUtil.nvl(counts.get(key), 0) + count);
 				}
+			}
+		}
+
+		// Now, iterate across the product of all of these and add them to the data set
 
-				for (String locationKey : locationFilters.keySet()) {
-					List<Location> locations = locationFilters.get(locationKey);
-					String key = locationKey + encounterTypeKey + "ago" + weekNum;
-					addData(data, key, startDate, endDate, encounterTypes, null, locations, context);
+		for (int weekNum=0; weekNum<dsd.getNumberOfWeeks(); weekNum++) {
+			for (String encounterTypeKey : encounterTypeFilters) {
+				for (String groupKey : groupFilters) {
+					String key = groupKey + encounterTypeKey + "ago" + weekNum;
+					data.addData(new DataSetColumn(key, key, Integer.class), ObjectUtil.nvl(counts.get(key), 0));
 				}
 			}
 		}
@@ -159,19 +180,19 @@ public class EncounterBreakdownDataSetEvaluator implements DataSetEvaluator {
 		return ret;
 	}
 
-	public void addData(MapDataSet dataSet, String key, Date startDate, Date endDate, List<EncounterType> encounterTypes, List<User> users, List<Location> locations, EvaluationContext context) {
-
-		HqlQueryBuilder qb = new HqlQueryBuilder();
-		qb.select("e.encounterId");
-		qb.from(Encounter.class, "e");
-		qb.whereGreaterOrEqualTo("e.dateCreated", startDate);
-		qb.whereLessOrEqualTo("e.dateCreated", endDate);
-		qb.whereIn("e.encounterType", encounterTypes);
-		qb.whereIn("e.creator", users);
-		qb.whereIn("e.location", locations);
+	protected void addGroupKey(Map<Integer, List<String>> groupKeys, Integer id, String key) {
+		List<String> keys = groupKeys.get(id);
+		if (keys == null) {
+			keys = new ArrayList<String>();
+			groupKeys.put(id, keys);
+		}
+		keys.add(key);
+	}
 
-		List<Integer> matchingEncounters = evaluationService.evaluateToList(qb, Integer.class, context);
-		DataSetColumn column = new DataSetColumn(key, key, Integer.class);
-		dataSet.addData(column, matchingEncounters.size());
+	/**
+	 * @return the number of whole days from the start of one day to the start of another, allowing for daylight savings
+	 */
+	protected int getDaysBetween(Date fromDay, Date toDay) {
+		return (int) Math.round((toDay.getTime() - fromDay.getTime()) / (24*60*60*1000.0));
 	}
 }
@@ -21,7 +21,9 @@ import org.openmrs.OpenmrsMetadata;
 import org.openmrs.annotation.Handler;
 import org.openmrs.api.context.Context;
 import org.openmrs.module.pihmalawi.reporting.definition.dataset.definition.SqlFileDataSetDefinition;
+import org.openmrs.module.pihmalawi.sql.SqlConnectionPool;
 import org.openmrs.module.pihmalawi.sql.SqlResult;
+import org.openmrs.module.pihmalawi.sql.SqlRowHandler;
 import org.openmrs.module.pihmalawi.sql.SqlRunner;
 import org.openmrs.module.reporting.common.ObjectUtil;
 import org.openmrs.module.reporting.dataset.DataSet;
@@ -40,9 +42,9 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.InputStream;
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Evaluates a SqlFileDataSetDefinition and produces results
@@ -52,6 +54,11 @@ import java.util.Properties;
 public class SqlFileDataSetEvaluator implements DataSetEvaluator {
 
 	protected Log log = LogFactory.getLog(this.getClass());
+
+	/**
+	 * The properties loaded from each connection property file, by file name
+	 */
+	private static final Map<String, ConnectionPropertyFile> connectionPropertyFiles = new ConcurrentHashMap<String, ConnectionPropertyFile>();
 	
 	/**
 	 * @see DataSetEvaluator#evaluate(DataSetDefinition, EvaluationContext)
@@ -64,11 +71,16 @@ public class SqlFileDataSetEvaluator implements DataSetEvaluator {
         SqlFileDataSetDefinition dsd = (SqlFileDataSetDefinition) dataSetDefinition;
 
         Properties connectionProperties = getConnectionProperties(dsd.getConnectionPropertyFile());
+        SqlConnectionPool pool = getConnectionPool(dsd.getConnectionPropertyFile(), connectionProperties);
         Connection connection = null;
         try {
-            connection = createConnection(connectionProperties);
+            connection = pool.borrowConnection();
 
             SqlRunner runner = new SqlRunner(connection);
+            if (connectionProperties.getProperty("connection.url", "").startsWith("jdbc:mysql")) {
+                runner.setFetchSize(SqlRunner.MYSQL_STREAMING_FETCH_SIZE);
+            }
+            DataSetRowHandler rowHandler = new DataSetRowHandler(data);
             SqlResult resultData = null;
             Map<String, Object> parameterValues = constructParameterValues(dsd, context);
 
@@ -78,15 +90,15 @@ public class SqlFileDataSetEvaluator implements DataSetEvaluator {
                     throw new EvaluationException("Unable to find Sql File to execute: " + dsd.getSqlFile());
                 }
                 log.info("Executing SQL File at " + sqlFile + " with parameters " + parameterValues);
-                resultData = runner.executeSqlFile(sqlFile, parameterValues);
+                resultData = runner.executeSqlFile(sqlFile, parameterValues, rowHandler);
             }
             else if (StringUtils.isNotBlank(dsd.getSqlResource())) {
                 log.info("Executing SQL Resource at " + dsd.getSqlResource() + " with parameters " + parameterValues);
-                resultData = runner.executeSqlResource(dsd.getSqlResource(), parameterValues);
+                resultData = runner.executeSqlResource(dsd.getSqlResource(), parameterValues, rowHandler);
             }
             else if (StringUtils.isNotBlank(dsd.getSql())) {
                 log.info("Executing SQL with parameters " + parameterValues);
-                resultData = runner.executeSql(dsd.getSql(), parameterValues);
+                resultData = runner.executeSql(dsd.getSql(), parameterValues, rowHandler);
             }
             else {
                 throw new EvaluationException("A SqlFileDataSetDefinition must define either a SQL File or SQL Resource");
@@ -95,20 +107,6 @@ public class SqlFileDataSetEvaluator implements DataSetEvaluator {
             if (!resultData.getErrors().isEmpty()) {
                 throw new EvaluationException("Errors occurred during mysql execution: " + OpenmrsUtil.join(resultData.getErrors(), "; "));
             }
-
-            SimpleDataSetMetaData metaData = new SimpleDataSetMetaData();
-            for (String column : resultData.getColumns()) {
-                metaData.addColumn(new DataSetColumn(column, column, Object.class));
-            }
-            data.setMetaData(metaData);
-
-            for (Map<String, Object> rowData : resultData.getData()) {
-                DataSetRow row = new DataSetRow();
-                for (DataSetColumn column : metaData.getColumns()) {
-                    row.addColumnValue(column, rowData.get(column.getName()));
-                }
-                data.addRow(row);
-            }
         }
         catch (EvaluationException ee) {
             throw ee;
@@ -117,14 +115,8 @@ public class SqlFileDataSetEvaluator implements DataSetEvaluator {
             throw new EvaluationException("An error occurred while evaluating a SqlFileDataSetDefinition", e);
         }
         finally {
-            try {
-                if (connection != null) {
-                    connection.close();
-                }
-            }
-            catch (Exception e) {
-                log.warn("Error closing the database connection for SqlFileDataSetEvaluator", e);
-            }
+            pool.returnConnection(connection);
+            log.debug(pool);
         }
 
 		return data;
@@ -132,41 +124,88 @@ public class SqlFileDataSetEvaluator implements DataSetEvaluator {
 
     /**
      * @return the connection properties to use
+     * Properties loaded from a connection property file are cached, and only loaded again if the file is modified
      */
 	protected Properties getConnectionProperties(String connectionPropertyFile) throws EvaluationException {
-	    Properties properties = Context.getRuntimeProperties();
-	    if (StringUtils.isNotBlank(connectionPropertyFile)) {
-            properties = new Properties();
-            InputStream is = null;
-            try {
-                File file = new File(OpenmrsUtil.getApplicationDataDirectory(), connectionPropertyFile);
-                is = new FileInputStream(file);
-                properties.load(is);
-            }
-            catch (Exception e) {
-                throw new EvaluationException("Unable to load connection properties from file <" + connectionPropertyFile + ">", e);
-            }
-            finally {
-                IOUtils.closeQuietly(is);
-            }
+	    if (StringUtils.isBlank(connectionPropertyFile)) {
+	        return Context.getRuntimeProperties();
+        }
+        File file = new File(OpenmrsUtil.getApplicationDataDirectory(), connectionPropertyFile);
+        long lastModified = file.lastModified();
+        ConnectionPropertyFile cached = connectionPropertyFiles.get(connectionPropertyFile);
+        if (cached != null && lastModified != 0 && cached.lastModified == lastModified) {
+            return cached.properties;
         }
+        Properties properties = new Properties();
+        InputStream is = null;
+        try {
+            is = new FileInputStream(file);
+            properties.load(is);
+        }
+        catch (Exception e) {
+            throw new EvaluationException("Unable to load connection properties from file <" + connectionPropertyFile + ">", e);
+        }
+        finally {
+            IOUtils.closeQuietly(is);
+        }
+        connectionPropertyFiles.put(connectionPropertyFile, new ConnectionPropertyFile(lastModified, properties));
         return properties;
     }
 
     /**
-     * @return a new connection given a set of connection properties
+     * @return the pool of connections for the given connection property file, or for the OpenMRS database if none is specified
+     */
+    protected SqlConnectionPool getConnectionPool(String connectionPropertyFile, Properties connectionProperties) {
+        String poolName = StringUtils.isNotBlank(connectionPropertyFile) ? connectionPropertyFile : SqlConnectionPool.DEFAULT_POOL_NAME;
+        return SqlConnectionPool.getPool(poolName, connectionProperties);
+    }
+
+    /**
+     * The properties loaded from a connection property file, and the time the file was last modified when they were loaded
      */
-    protected Connection createConnection(Properties connectionProperties) throws EvaluationException {
-	    try {
-            String driver = connectionProperties.getProperty("connection.driver_class", "com.mysql.jdbc.Driver");
-            String url = connectionProperties.getProperty("connection.url");
-            String user = connectionProperties.getProperty("connection.username");
-            String password = connectionProperties.getProperty("connection.password");
-            Context.loadClass(driver);
-            return DriverManager.getConnection(url, user, password);
+    private static class ConnectionPropertyFile {
+        private final long lastModified;
+        private final Properties properties;
+
+        private ConnectionPropertyFile(long lastModified, Properties properties) {
+            this.lastModified = lastModified;
+            this.properties = properties;
         }
-        catch (Exception e) {
-	        throw new EvaluationException("Unable to create a new connection to the database", e);
+    }
+
+    /**
+     * Adds each row to the data set as it is read, with the values in each row indexed by the columns of its result
+     */
+    protected static class DataSetRowHandler implements SqlRowHandler {
+
+        private SimpleDataSet data;
+        private SimpleDataSetMetaData metaData = new SimpleDataSetMetaData();
+        private DataSetColumn[] dataSetColumns;
+
+        public DataSetRowHandler(SimpleDataSet data) {
+            this.data = data;
+            data.setMetaData(metaData);
+        }
+
+        @Override
+        public void handleColumns(String[] columns) {
+            dataSetColumns = new DataSetColumn[columns.length];
+            for (int i = 0; i < columns.length; i++) {
+                dataSetColumns[i] = metaData.getColumn(columns[i]);
+                if (dataSetColumns[i] == null) {
+                    dataSetColumns[i] = new DataSetColumn(columns[i], columns[i], Object.class);
+                    metaData.addColumn(dataSetColumns[i]);
+                }
+            }
+        }
+
+        @Override
+        public void handleRow(String[] columns, Object[] values) {
+            DataSetRow row = new DataSetRow();
+            for (int i = 0; i < values.length; i++) {
+                row.addColumnValue(dataSetColumns[i], values[i]);
+            }
+            data.addRow(row);
         }
     }
 
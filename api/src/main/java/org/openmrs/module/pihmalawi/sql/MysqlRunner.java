@@ -9,30 +9,22 @@
  */
 package org.openmrs.module.pihmalawi.sql;
 
-import org.apache.commons.io.FileUtils;
-import org.apache.commons.io.IOUtils;
-import org.apache.commons.io.LineIterator;
-import org.apache.commons.lang.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.openmrs.OpenmrsObject;
-import org.openmrs.api.context.Context;
 import org.openmrs.module.reporting.common.DateUtil;
 import org.openmrs.module.reporting.report.util.ReportUtil;
-import org.openmrs.util.DatabaseUpdater;
-import org.openmrs.util.OpenmrsUtil;
 
-import java.io.File;
+import java.sql.Connection;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
-import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
 /**
- * Executes a MySQL script using the native process and returns results
+ * Executes a MySQL script over JDBC, using a pooled connection to the OpenMRS database, and returns results
+ * Scripts may change the delimiter in order to create stored procedures and functions
  */
 public class MysqlRunner {
 
@@ -67,86 +59,35 @@ public class MysqlRunner {
 
         log.info("Executing SQL...");
 
-        File toExecute = null;
+        SqlConnectionPool pool = SqlConnectionPool.getDefaultPool();
+        Connection connection = null;
         try {
-            // Writing SQL to temporary file for execution
-            toExecute = File.createTempFile("mysqlrunner", ".sql");
-
-            StringBuilder sqlToWrite = new StringBuilder();
-
-            if (parameterValues != null) {
-                for (String paramName : parameterValues.keySet()) {
-                    Object paramValue = parameterValues.get(paramName);
-                    sqlToWrite.append("set @").append(paramName);
-                    sqlToWrite.append("=").append(getParameterAssignmentString(paramValue)).append(";");
-                    sqlToWrite.append(System.getProperty("line.separator"));
-                }
-            }
-            sqlToWrite.append(sql);
-
-            FileUtils.writeStringToFile(toExecute, sqlToWrite.toString());
-            log.debug("Wrote SQL file for execution: " + toExecute.getAbsolutePath());
-            log.debug("Contents:\n" + sqlToWrite);
-
-            // Constructing command line elements to execute
-            List<String> commands = new ArrayList<String>();
-            commands.add("mysql");
-            commands.add("-u" + Context.getRuntimeProperties().getProperty("connection.username"));
-            commands.add("-p" + Context.getRuntimeProperties().getProperty("connection.password"));
-            commands.add("-esource " + toExecute.getAbsolutePath());
-
-            commands.add(DatabaseUpdater.getConnection().getCatalog()); // Database Name
-            log.debug("Constructed command to execute: \n" + OpenmrsUtil.join(commands, " "));
-
-            Process process = Runtime.getRuntime().exec(commands.toArray(new String[]{}));
-
-            SqlResult result = new SqlResult();
-            LineIterator successIterator = null;
-            try {
-                successIterator = IOUtils.lineIterator(process.getInputStream(), "UTF-8");
-                while (successIterator.hasNext()) {
-                    String line = successIterator.nextLine();
-                    String[] elements = StringUtils.splitPreserveAllTokens(line, '\t');
-                    if (result.getColumns().isEmpty()) {
-                        result.setColumns(Arrays.asList(elements));
-                    }
-                    else {
-                        Map<String, String> row = new LinkedHashMap<String, String>();
-                        for (int i=0; i<result.getColumns().size(); i++) {
-                            String value = elements[i].trim();
-                            if ("NULL".equals(value)) {
-                                value = null;
-                            }
-                            row.put(result.getColumns().get(i), value);
+            connection = pool.borrowConnection();
+            SqlRunner runner = new SqlRunner(connection) {
+                @Override
+                public List<String> parseParametersIntoStatements(Map<String, Object> parameterValues) {
+                    List<String> statements = new ArrayList<String>();
+                    if (parameterValues != null) {
+                        for (String paramName : parameterValues.keySet()) {
+                            statements.add("set @" + paramName + "=" + getParameterAssignmentString(parameterValues.get(paramName)));
                         }
                     }
+                    return statements;
                 }
-            }
-            finally {
-                successIterator.close();
-            }
-
-            LineIterator errorIterator = null;
-            try {
-                errorIterator = IOUtils.lineIterator(process.getErrorStream(), "UTF-8");
-                while (errorIterator.hasNext()) {
-                    String line = errorIterator.nextLine();
-                    if (!line.toLowerCase().startsWith("warning")) {
-                        result.getErrors().add(line);
-                    }
+            };
+            SqlResult result = runner.executeSql(sql, parameterValues);
+            if (log.isDebugEnabled()) {
+                for (SqlResult.StatementTiming timing : result.getStatementTimings()) {
+                    log.debug(timing);
                 }
             }
-            finally {
-                errorIterator.close();
-            }
-
             return result;
         }
         catch (Exception e) {
             throw new RuntimeException("An error occurred while executing a SQL file", e);
         }
         finally {
-            FileUtils.deleteQuietly(toExecute);
+            pool.returnConnection(connection);
         }
 	}
 
@@ -0,0 +1,368 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.pihmalawi.sql;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.context.Context;
+
+import java.lang.reflect.Method;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.Properties;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A simple pool of JDBC connections to a single database, so that scripts that are run repeatedly can reuse
+ * connections rather than opening a new one each time.  A connection that is borrowed must be returned to the pool
+ * rather than closed.  Idle connections are validated before they are reused, and are closed once they have been idle
+ * for longer than the idle timeout.  The session of each returned connection is reset, so that user variables,
+ * temporary tables and session settings left by one script are not seen by the next; connections whose session
+ * cannot be reset are closed rather than reused.  Pools are shared by name, and are closed when the module is stopped.
+ *
+ * The following optional properties may be included in the connection properties to configure the pool:
+ * connection.pool.max_size, connection.pool.idle_timeout_seconds, connection.pool.validation_timeout_seconds
+ */
+public class SqlConnectionPool {
+
+    private static Log log = LogFactory.getLog(SqlConnectionPool.class);
+
+    public static final String DEFAULT_POOL_NAME = "openmrs";
+
+    public static final String MAX_SIZE_PROPERTY = "connection.pool.max_size";
+    public static final String IDLE_TIMEOUT_PROPERTY = "connection.pool.idle_timeout_seconds";
+    public static final String VALIDATION_TIMEOUT_PROPERTY = "connection.pool.validation_timeout_seconds";
+
+    public static final int DEFAULT_MAX_SIZE = 5;
+    public static final int DEFAULT_IDLE_TIMEOUT_SECONDS = 10*60;
+    public static final int DEFAULT_VALIDATION_TIMEOUT_SECONDS = 5;
+    public static final long DEFAULT_MAX_WAIT_MILLIS = 5*60*1000;
+
+    private static final ConcurrentMap<String, SqlConnectionPool> pools = new ConcurrentHashMap<String, SqlConnectionPool>();
+
+    //*********** INSTANCE PROPERTIES ******************
+
+    private final String name;
+    private final Properties connectionProperties;
+    private final int maxSize;
+    private final long idleTimeoutMillis;
+    private final int validationTimeoutSeconds;
+    private final Semaphore permits;
+    private final BlockingDeque<IdleConnection> idleConnections = new LinkedBlockingDeque<IdleConnection>();
+    private volatile boolean closed = false;
+
+    private final AtomicLong numOpened = new AtomicLong(0);
+    private final AtomicLong numBorrowed = new AtomicLong(0);
+    private final AtomicLong numReused = new AtomicLong(0);
+    private final AtomicLong numInvalid = new AtomicLong(0);
+    private final AtomicLong numExpired = new AtomicLong(0);
+    private final AtomicLong totalWaitMillis = new AtomicLong(0);
+
+    //*********** CONSTRUCTORS ******************
+
+    public SqlConnectionPool(String name, Properties connectionProperties) {
+        this(name, connectionProperties,
+                getIntegerProperty(connectionProperties, MAX_SIZE_PROPERTY, DEFAULT_MAX_SIZE),
+                getIntegerProperty(connectionProperties, IDLE_TIMEOUT_PROPERTY, DEFAULT_IDLE_TIMEOUT_SECONDS),
+                getIntegerProperty(connectionProperties, VALIDATION_TIMEOUT_PROPERTY, DEFAULT_VALIDATION_TIMEOUT_SECONDS));
+    }
+
+    public SqlConnectionPool(String name, Properties connectionProperties, int maxSize, int idleTimeoutSeconds, int validationTimeoutSeconds) {
+        this.name = name;
+        this.connectionProperties = connectionProperties;
+        this.maxSize = maxSize;
+        this.idleTimeoutMillis = idleTimeoutSeconds*1000L;
+        this.validationTimeoutSeconds = validationTimeoutSeconds;
+        this.permits = new Semaphore(maxSize, true);
+    }
+
+    //*********** STATIC METHODS ******************
+
+    /**
+     * @return the pool of connections to the OpenMRS database, as configured in the runtime properties
+     */
+    public static SqlConnectionPool getDefaultPool() {
+        return getPool(DEFAULT_POOL_NAME, Context.getRuntimeProperties());
+    }
+
+    /**
+     * @return the pool with the given name, creating it with the given connection properties if it does not exist
+     * If the pool exists but its connection properties have changed, it is closed and replaced
+     */
+    public static SqlConnectionPool getPool(String name, Properties connectionProperties) {
+        SqlConnectionPool pool = pools.get(name);
+        if (pool != null && !pool.getConnectionProperties().equals(connectionProperties)) {
+            log.info("Connection properties for pool " + name + " have changed, replacing pool");
+            if (pools.remove(name, pool)) {
+                pool.close();
+            }
+            pool = null;
+        }
+        if (pool == null) {
+            SqlConnectionPool newPool = new SqlConnectionPool(name, connectionProperties);
+            pool = pools.putIfAbsent(name, newPool);
+            if (pool == null) {
+                pool = newPool;
+            }
+        }
+        return pool;
+    }
+
+    /**
+     * Closes all idle connections in all pools, and removes the pools
+     */
+    public static void closeAll() {
+        for (String name : pools.keySet()) {
+            SqlConnectionPool pool = pools.remove(name);
+            if (pool != null) {
+                log.info("Closing " + pool);
+                pool.close();
+            }
+        }
+    }
+
+    //*********** INSTANCE METHODS ******************
+
+    /**
+     * @return a connection from the pool, opening a new one if no valid connections are idle, waiting if the maximum are in use
+     */
+    public Connection borrowConnection() throws SQLException {
+        long startTime = System.currentTimeMillis();
+        try {
+            if (!permits.tryAcquire(DEFAULT_MAX_WAIT_MILLIS, TimeUnit.MILLISECONDS)) {
+                throw new SQLException("Timed out waiting for a connection from pool " + name);
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted waiting for a connection from pool " + name, e);
+        }
+        totalWaitMillis.addAndGet(System.currentTimeMillis() - startTime);
+        try {
+            closeExpiredConnections();
+            Connection connection = null;
+            IdleConnection idle = idleConnections.pollFirst();
+            while (connection == null && idle != null) {
+                if (isValid(idle.connection)) {
+                    connection = idle.connection;
+                    numReused.incrementAndGet();
+                }
+                else {
+                    numInvalid.incrementAndGet();
+                    closeConnection(idle.connection);
+                    idle = idleConnections.pollFirst();
+                }
+            }
+            if (connection == null) {
+                connection = openConnection();
+                numOpened.incrementAndGet();
+            }
+            numBorrowed.incrementAndGet();
+            return connection;
+        }
+        catch (SQLException e) {
+            permits.release();
+            throw e;
+        }
+        catch (RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns a borrowed connection to the pool, so that it can be reused once its session has been reset
+     * If the pool has been closed, for example because it was replaced, or the session cannot be reset, the connection is closed instead
+     */
+    public void returnConnection(Connection connection) {
+        if (connection != null) {
+            try {
+                if (closed || connection.isClosed() || !resetSession(connection)) {
+                    closeConnection(connection);
+                }
+                else {
+                    idleConnections.offerFirst(new IdleConnection(connection));
+                    if (closed) {
+                        close(); // The pool was closed while the connection was being returned
+                    }
+                }
+            }
+            catch (SQLException e) {
+                log.warn("Discarding connection from pool " + name, e);
+                closeConnection(connection);
+            }
+            finally {
+                permits.release();
+            }
+        }
+    }
+
+    /**
+     * Closes any idle connections that have been idle for longer than the idle timeout
+     */
+    public void closeExpiredConnections() {
+        long expiredBefore = System.currentTimeMillis() - idleTimeoutMillis;
+        for (IdleConnection idle = idleConnections.peekLast(); idle != null && idle.idleSince < expiredBefore; idle = idleConnections.peekLast()) {
+            if (idleConnections.removeLastOccurrence(idle)) {
+                numExpired.incrementAndGet();
+                closeConnection(idle.connection);
+            }
+        }
+    }
+
+    /**
+     * Closes all idle connections in this pool, and any connections that are returned to it from now on
+     */
+    public void close() {
+        closed = true;
+        for (IdleConnection idle = idleConnections.pollFirst(); idle != null; idle = idleConnections.pollFirst()) {
+            closeConnection(idle.connection);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "SqlConnectionPool[" + name + ": active=" + getNumActive() + ", idle=" + getNumIdle() + ", max=" + maxSize +
+                ", opened=" + getNumOpened() + ", borrowed=" + getNumBorrowed() + ", reused=" + getNumReused() +
+                ", invalid=" + getNumInvalid() + ", expired=" + getNumExpired() + ", totalWaitMillis=" + getTotalWaitMillis() + "]";
+    }
+
+    //*********** PRIVATE METHODS ******************
+
+    protected Connection openConnection() throws SQLException {
+        String driver = connectionProperties.getProperty("connection.driver_class", "com.mysql.jdbc.Driver");
+        String url = connectionProperties.getProperty("connection.url");
+        String user = connectionProperties.getProperty("connection.username");
+        String password = connectionProperties.getProperty("connection.password");
+        try {
+            Context.loadClass(driver);
+        }
+        catch (ClassNotFoundException e) {
+            throw new SQLException("Unable to load database driver " + driver, e);
+        }
+        log.debug("Opening new connection for pool " + name);
+        return DriverManager.getConnection(url, user, password);
+    }
+
+    protected boolean isValid(Connection connection) {
+        try {
+            return connection.isValid(validationTimeoutSeconds);
+        }
+        catch (Exception e) {
+            log.debug("Connection in pool " + name + " failed validation", e);
+            return false;
+        }
+    }
+
+    /**
+     * Resets the session of the given connection, discarding any user variables, temporary tables and session settings
+     * For MySQL connections this re-authenticates the session with the server, which clears all session state
+     * @return true if the session was reset, false if it could not be, in which case the connection should not be reused
+     */
+    protected boolean resetSession(Connection connection) {
+        try {
+            Method resetServerState = connection.getClass().getMethod("resetServerState");
+            resetServerState.invoke(connection);
+            return true;
+        }
+        catch (NoSuchMethodException e) {
+            log.debug("Connections in pool " + name + " do not support resetting their session, they will not be reused");
+            return false;
+        }
+        catch (Exception e) {
+            log.debug("Unable to reset the session of a connection in pool " + name, e);
+            return false;
+        }
+    }
+
+    protected void closeConnection(Connection connection) {
+        try {
+            connection.close();
+        }
+        catch (Exception e) {
+            log.warn("An error occurred while trying to close a connection in pool " + name, e);
+        }
+    }
+
+    private static int getIntegerProperty(Properties properties, String name, int defaultValue) {
+        String value = properties.getProperty(name);
+        return StringUtils.isNotBlank(value) ? Integer.parseInt(value.trim()) : defaultValue;
+    }
+
+    /**
+     * A connection in the pool that is not in use, and the time since which it has been idle
+     */
+    private static class IdleConnection {
+        private final Connection connection;
+        private final long idleSince = System.currentTimeMillis();
+
+        private IdleConnection(Connection connection) {
+            this.connection = connection;
+        }
+    }
+
+    //************* PROPERTY ACCESS *******************
+
+    public String getName() {
+        return name;
+    }
+
+    public Properties getConnectionProperties() {
+        return connectionProperties;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public int getNumActive() {
+        return maxSize - permits.availablePermits();
+    }
+
+    public int getNumIdle() {
+        return idleConnections.size();
+    }
+
+    public long getNumOpened() {
+        return numOpened.get();
+    }
+
+    public long getNumBorrowed() {
+        return numBorrowed.get();
+    }
+
+    public long getNumReused() {
+        return numReused.get();
+    }
+
+    public long getNumInvalid() {
+        return numInvalid.get();
+    }
+
+    public long getNumExpired() {
+        return numExpired.get();
+    }
+
+    public long getTotalWaitMillis() {
+        return totalWaitMillis.get();
+    }
+}
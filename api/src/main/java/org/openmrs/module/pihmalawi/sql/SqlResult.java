@@ -21,6 +21,7 @@ public class SqlResult {
     private List<String> columns;
     private List<Map<String, Object>> data;
     private List<String> errors;
+    private List<StatementTiming> statementTimings;
 
     public List<String> getColumns() {
         if (columns == null) {
@@ -66,4 +67,46 @@ public class SqlResult {
     public void addError(String error) {
         getErrors().add(error);
     }
+
+    public List<StatementTiming> getStatementTimings() {
+        if (statementTimings == null) {
+            statementTimings = new ArrayList<StatementTiming>();
+        }
+        return statementTimings;
+    }
+
+    public void setStatementTimings(List<StatementTiming> statementTimings) {
+        this.statementTimings = statementTimings;
+    }
+
+    public void addStatementTiming(String statement, long timeMillis) {
+        getStatementTimings().add(new StatementTiming(statement, timeMillis));
+    }
+
+    /**
+     * The time taken to execute, and read the results of, a single statement within a script
+     */
+    public static class StatementTiming {
+
+        private String statement;
+        private long timeMillis;
+
+        public StatementTiming(String statement, long timeMillis) {
+            this.statement = statement;
+            this.timeMillis = timeMillis;
+        }
+
+        public String getStatement() {
+            return statement;
+        }
+
+        public long getTimeMillis() {
+            return timeMillis;
+        }
+
+        @Override
+        public String toString() {
+            return timeMillis + "ms: " + statement;
+        }
+    }
 }
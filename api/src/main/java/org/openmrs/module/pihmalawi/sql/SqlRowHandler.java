@@ -0,0 +1,27 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.pihmalawi.sql;
+
+/**
+ * Receives the rows returned by a SqlRunner one at a time as they are read from the database,
+ * so that they do not all need to be held in memory in a SqlResult
+ */
+public interface SqlRowHandler {
+
+    /**
+     * Called at the start of each result set, with the column labels that apply to each of its rows
+     */
+    void handleColumns(String[] columns);
+
+    /**
+     * Called for each row in a result set.  The same columns array is passed for every row, and values are in the same order
+     */
+    void handleRow(String[] columns, Object[] values);
+}
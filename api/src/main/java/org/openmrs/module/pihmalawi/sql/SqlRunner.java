@@ -38,6 +38,11 @@ public class SqlRunner {
 
 	private static Log log = LogFactory.getLog(SqlRunner.class);
 
+    /**
+     * The fetch size that causes the MySQL driver to stream rows one at a time, rather than reading an entire result into memory
+     */
+    public static final int MYSQL_STREAMING_FETCH_SIZE = Integer.MIN_VALUE;
+
 	// Regular expression to identify a change in the delimiter.  This ignores spaces, allows delimiter in comment, allows an equals-sign
     private static final Pattern DELIMITER_PATTERN = Pattern.compile("^\\s*(--)?\\s*delimiter\\s*=?\\s*([^\\s]+)+\\s*.*$", Pattern.CASE_INSENSITIVE);
 
@@ -45,6 +50,7 @@ public class SqlRunner {
 
     private Connection connection;
     private String delimiter = ";";
+    private Integer fetchSize = null;
 
     //*********** CONSTRUCTORS ******************
 
@@ -78,12 +84,59 @@ public class SqlRunner {
         }
     }
 
+    /**
+     * Executes a Sql Script located under resources, passing each row returned to the given handler
+     */
+    public SqlResult executeSqlResource(String resourceName, Map<String, Object> parameterValues, SqlRowHandler rowHandler) {
+        String sql = ReportUtil.readStringFromResource(resourceName);
+        return executeSql(sql, parameterValues, rowHandler);
+    }
+
+    /**
+     * Executes a Sql Script located as a file, passing each row returned to the given handler
+     */
+    public SqlResult executeSqlFile(File sqlFile, Map<String, Object> parameterValues, SqlRowHandler rowHandler) {
+        try {
+            String sql = FileUtils.readFileToString(sqlFile, "UTF-8");
+            return executeSql(sql, parameterValues, rowHandler);
+        }
+        catch (IOException e) {
+            throw new IllegalArgumentException("Unable to load file: " + sqlFile, e);
+        }
+    }
+
 	/**
-     * Executes a Sql Script
+     * Executes a Sql Script, collecting all rows returned into the SqlResult
 	 */
 	public SqlResult executeSql(String sql, Map<String, Object> parameterValues) {
+	    final SqlResult result = new SqlResult();
+	    executeSql(sql, parameterValues, result, new SqlRowHandler() {
+            public void handleColumns(String[] columns) {}
+            public void handleRow(String[] columns, Object[] values) {
+                Map<String, Object> row = new HashMap<String, Object>();
+                for (int i = 0; i < columns.length; i++) {
+                    row.put(columns[i], values[i]);
+                }
+                result.addData(row);
+            }
+        });
+	    return result;
+    }
 
-	    SqlResult result = new SqlResult();
+    /**
+     * Executes a Sql Script, passing each row returned to the given handler as it is read rather than collecting it
+     * The returned SqlResult contains the columns and any errors, but no data
+     */
+    public SqlResult executeSql(String sql, Map<String, Object> parameterValues, SqlRowHandler rowHandler) {
+        SqlResult result = new SqlResult();
+        executeSql(sql, parameterValues, result, rowHandler);
+        return result;
+    }
+
+    /**
+     * Executes a Sql Script, streaming each row returned to the given handler
+     */
+    protected void executeSql(String sql, Map<String, Object> parameterValues, SqlResult result, SqlRowHandler rowHandler) {
 
         List<String> sqlStatements = new ArrayList<String>();
         sqlStatements.addAll(parseParametersIntoStatements(parameterValues));
@@ -97,8 +150,12 @@ public class SqlRunner {
 
             for (String sqlStatement : sqlStatements) {
                 Statement statement = null;
+                long startTime = System.currentTimeMillis();
                 try {
-                    statement = connection.createStatement();
+                    statement = connection.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+                    if (fetchSize != null) {
+                        statement.setFetchSize(fetchSize);
+                    }
                     log.debug("Executing: " + sqlStatement);
                     statement.execute(sqlStatement);
                     ResultSet resultSet = statement.getResultSet();
@@ -107,18 +164,19 @@ public class SqlRunner {
                         ResultSetMetaData rsmd = resultSet.getMetaData();
                         int numCols = rsmd.getColumnCount();
 
+                        String[] columns = new String[numCols];
                         for (int i = 1; i <= numCols; i++) {
-                            result.addColumn(rsmd.getColumnLabel(i));
+                            columns[i-1] = rsmd.getColumnLabel(i);
+                            result.addColumn(columns[i-1]);
                         }
+                        rowHandler.handleColumns(columns);
 
                         while (resultSet.next()) {
-                            Map<String, Object> row = new HashMap<String, Object>();
+                            Object[] values = new Object[numCols];
                             for (int i = 1; i <= numCols; i++) {
-                                String columnName = result.getColumns().get(i - 1);
-                                Object value = resultSet.getObject(i);
-                                row.put(columnName, value);
+                                values[i-1] = resultSet.getObject(i);
                             }
-                            result.addData(row);
+                            rowHandler.handleRow(columns, values);
                         }
                     }
                 }
@@ -130,6 +188,9 @@ public class SqlRunner {
                 }
                 finally {
                     closeStatement(statement);
+                    long timeMillis = System.currentTimeMillis() - startTime;
+                    result.addStatementTiming(sqlStatement, timeMillis);
+                    log.debug("Statement executed in " + timeMillis + "ms");
                 }
             }
             commit();
@@ -140,8 +201,6 @@ public class SqlRunner {
         finally {
             resetAutocommit(originalAutoCommit);
         }
-
-        return result;
 	}
 
     protected void closeStatement(Statement statement) {
@@ -319,4 +378,15 @@ public class SqlRunner {
     public void setDelimiter(String delimiter) {
         this.delimiter = delimiter;
     }
+
+    public Integer getFetchSize() {
+        return fetchSize;
+    }
+
+    /**
+     * @param fetchSize the fetch size hint to give the driver for each statement, or null to use the driver default
+     */
+    public void setFetchSize(Integer fetchSize) {
+        this.fetchSize = fetchSize;
+    }
 }
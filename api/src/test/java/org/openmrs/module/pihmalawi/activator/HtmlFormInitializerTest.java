@@ -0,0 +1,96 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.pihmalawi.activator;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.openmrs.Form;
+import org.openmrs.api.FormService;
+import org.openmrs.module.htmlformentry.HtmlForm;
+import org.openmrs.module.htmlformentry.HtmlFormEntryService;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests the HtmlFormInitializer
+ */
+public class HtmlFormInitializerTest {
+
+    @Test
+    public void shouldOnlySaveFormsWhoseContentDiffersFromTheStoredForm() throws Exception {
+        FormService formService = mock(FormService.class);
+        HtmlFormEntryService hfes = mock(HtmlFormEntryService.class);
+        HtmlFormInitializer.HtmlFormResource unchanged = getFormResource("unchanged.xml", "form-1", "Version 1");
+        HtmlFormInitializer.HtmlFormResource changed = getFormResource("changed.xml", "form-2", "Version 2");
+        HtmlFormInitializer.HtmlFormResource added = getFormResource("added.xml", "form-3", "Version 1");
+        mockStoredForm(formService, hfes, "form-1", unchanged.getXml());
+        mockStoredForm(formService, hfes, "form-2", getFormResource("changed.xml", "form-2", "Version 1").getXml());
+
+        TestHtmlFormInitializer initializer = new TestHtmlFormInitializer();
+        int numSaved = initializer.saveChangedForms(Arrays.asList(unchanged, changed, added), formService, hfes);
+        Assert.assertEquals(2, numSaved);
+        Assert.assertEquals(Arrays.asList("changed.xml", "added.xml"), initializer.saved);
+    }
+
+    @Test
+    public void shouldSaveOtherFormsIfOneFailsToSave() throws Exception {
+        FormService formService = mock(FormService.class);
+        HtmlFormEntryService hfes = mock(HtmlFormEntryService.class);
+        TestHtmlFormInitializer initializer = new TestHtmlFormInitializer();
+        initializer.failing = "invalid.xml";
+        List<HtmlFormInitializer.HtmlFormResource> forms = Arrays.asList(
+                getFormResource("invalid.xml", "form-1", "Version 1"),
+                getFormResource("valid.xml", "form-2", "Version 1"));
+        Assert.assertEquals(1, initializer.saveChangedForms(forms, formService, hfes));
+        Assert.assertEquals(Arrays.asList("valid.xml"), initializer.saved);
+    }
+
+    protected HtmlFormInitializer.HtmlFormResource getFormResource(String resource, String formUuid, String content) {
+        String xml = "<htmlform formUuid=\"" + formUuid + "\" formName=\"" + resource + "\">" + content + "</htmlform>";
+        return new HtmlFormInitializer.HtmlFormResource(resource, xml, FingerprintLedger.fingerprint(xml.trim()));
+    }
+
+    protected void mockStoredForm(FormService formService, HtmlFormEntryService hfes, String formUuid, String xml) {
+        Form form = new Form();
+        form.setUuid(formUuid);
+        HtmlForm htmlForm = new HtmlForm();
+        htmlForm.setForm(form);
+        htmlForm.setXmlData(xml);
+        when(formService.getFormByUuid(formUuid)).thenReturn(form);
+        when(hfes.getHtmlFormByForm(form)).thenReturn(htmlForm);
+    }
+
+    /**
+     * Records the forms that would be saved, rather than saving them
+     */
+    private static class TestHtmlFormInitializer extends HtmlFormInitializer {
+
+        private final List<String> saved = new ArrayList<String>();
+        private String failing;
+
+        @Override
+        protected void saveForm(HtmlFormResource formResource, FormService formService, HtmlFormEntryService hfes) throws Exception {
+            if (formResource.getResource().equals(failing)) {
+                throw new IllegalStateException("Unable to save " + failing);
+            }
+            saved.add(formResource.getResource());
+        }
+    }
+}
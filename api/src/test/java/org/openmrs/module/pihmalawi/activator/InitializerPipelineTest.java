@@ -0,0 +1,191 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+
+package org.openmrs.module.pihmalawi.activator;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.openmrs.module.DaemonToken;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.Mockito.mock;
+
+/**
+ * Tests the InitializerPipeline
+ */
+public class InitializerPipelineTest {
+
+    List<String> started = Collections.synchronizedList(new ArrayList<String>());
+    List<String> stopped = Collections.synchronizedList(new ArrayList<String>());
+    CountDownLatch slowStarting = new CountDownLatch(1);
+
+    @Test
+    public void shouldStartInitializersRequiredForLoginFirstAndAfterTheirDependencies() throws Exception {
+        InitializerPipeline pipeline = new InitializerPipeline(Arrays.<Initializer>asList(new Forms(), new Locations(), new Metadata()));
+        pipeline.startRequiredForLogin();
+        Assert.assertEquals(Arrays.asList("Metadata", "Locations"), started);
+        Assert.assertEquals(1, pipeline.startDeferred(null));
+        Assert.assertEquals(Arrays.asList("Metadata", "Locations", "Forms"), started);
+    }
+
+    @Test
+    public void shouldStartDeferredInitializersConcurrentlyAfterTheirDependencies() throws Exception {
+        TestInitializerPipeline pipeline = new TestInitializerPipeline(new Reports(Forms.class), new Forms(), new Metadata(), new Slow());
+        pipeline.startRequiredForLogin();
+        Assert.assertEquals(3, pipeline.startDeferred(mock(DaemonToken.class)));
+        Assert.assertTrue(pipeline.awaitDeferred(10, TimeUnit.SECONDS));
+        Assert.assertEquals(4, started.size());
+        Assert.assertEquals("Metadata", started.get(0));
+        Assert.assertTrue(started.indexOf("Forms") < started.indexOf("Reports"));
+        Assert.assertTrue(started.contains("Slow"));
+    }
+
+    @Test
+    public void shouldNotStartDeferredInitializersWhoseDependenciesFailToStart() throws Exception {
+        TestInitializerPipeline pipeline = new TestInitializerPipeline(new Reports(FailingForms.class), new FailingForms(), new Metadata(), new Slow());
+        pipeline.startRequiredForLogin();
+        pipeline.startDeferred(mock(DaemonToken.class));
+        Assert.assertTrue(pipeline.awaitDeferred(10, TimeUnit.SECONDS));
+        Assert.assertEquals(Arrays.asList("Metadata", "Slow"), started);
+    }
+
+    @Test
+    public void shouldWaitForInitializersThatAreStartingBeforeStoppingThem() throws Exception {
+        TestInitializerPipeline pipeline = new TestInitializerPipeline(new Metadata(), new Slow());
+        pipeline.startRequiredForLogin();
+        pipeline.startDeferred(mock(DaemonToken.class));
+        Assert.assertTrue(slowStarting.await(10, TimeUnit.SECONDS));
+        pipeline.stop();
+        Assert.assertEquals(Arrays.asList("Metadata", "Slow"), started);
+        Assert.assertEquals(Arrays.asList("Slow", "Metadata"), stopped);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void shouldFailIfADependencyIsMissing() throws Exception {
+        new InitializerPipeline(Arrays.<Initializer>asList(new Locations()));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void shouldFailIfAnInitializerRequiredForLoginDependsOnOneThatIsNot() throws Exception {
+        new InitializerPipeline(Arrays.<Initializer>asList(new Forms(), new Metadata(), new Login()));
+    }
+
+    class TestInitializer implements Initializer {
+
+        private boolean requiredForLogin;
+        private List<Class<? extends Initializer>> dependencies = new ArrayList<Class<? extends Initializer>>();
+
+        TestInitializer(boolean requiredForLogin, Class<? extends Initializer>... dependencies) {
+            this.requiredForLogin = requiredForLogin;
+            this.dependencies.addAll(Arrays.asList(dependencies));
+        }
+
+        @Override
+        public List<Class<? extends Initializer>> getDependencies() {
+            return dependencies;
+        }
+
+        @Override
+        public boolean isRequiredForLogin() {
+            return requiredForLogin;
+        }
+
+        @Override
+        public void started() {
+            started.add(getClass().getSimpleName());
+        }
+
+        @Override
+        public void stopped() {
+            stopped.add(getClass().getSimpleName());
+        }
+    }
+
+    /**
+     * Starts deferred initializers in the executor's threads, rather than in daemon threads
+     */
+    class TestInitializerPipeline extends InitializerPipeline {
+
+        TestInitializerPipeline(Initializer... initializers) {
+            super(Arrays.asList(initializers));
+        }
+
+        @Override
+        protected void startInDaemonThread(Initializer initializer, DaemonToken daemonToken) {
+            start(initializer);
+        }
+    }
+
+    class Metadata extends TestInitializer {
+        Metadata() {
+            super(true);
+        }
+    }
+
+    class Locations extends TestInitializer {
+        Locations() {
+            super(true, Metadata.class);
+        }
+    }
+
+    class Forms extends TestInitializer {
+        Forms() {
+            super(false, Metadata.class);
+        }
+    }
+
+    class FailingForms extends Forms {
+        @Override
+        public void started() {
+            throw new IllegalStateException("Unable to load forms");
+        }
+    }
+
+    class Reports extends TestInitializer {
+        Reports(Class<? extends Forms> formsType) {
+            super(false, formsType);
+        }
+    }
+
+    class Slow extends TestInitializer {
+        Slow() {
+            super(false);
+        }
+
+        @Override
+        public void started() {
+            slowStarting.countDown();
+            try {
+                Thread.sleep(200);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            super.started();
+        }
+    }
+
+    class Login extends TestInitializer {
+        Login() {
+            super(true, Forms.class);
+        }
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.pihmalawi.activator;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.openmrs.module.metadatadeploy.bundle.AbstractMetadataBundle;
+import org.openmrs.module.metadatadeploy.bundle.MetadataBundle;
+import org.openmrs.module.metadatadeploy.bundle.Requires;
+import org.openmrs.module.pihmalawi.metadata.deploy.bundle.EncounterTypeBundle;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tests the MetadataInitializer
+ */
+public class MetadataInitializerTest {
+
+    @Test
+    public void shouldOrderBundlesAfterTheBundlesTheyRequire() throws Exception {
+        BundleA a = new BundleA();
+        BundleB b = new BundleB();
+        BundleC c = new BundleC();
+        List<MetadataBundle> sorted = new MetadataInitializer().sortByRequirements(Arrays.<MetadataBundle>asList(c, b, a));
+        Assert.assertEquals(Arrays.<MetadataBundle>asList(a, b, c), sorted);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void shouldFailIfARequiredBundleIsMissing() throws Exception {
+        new MetadataInitializer().sortByRequirements(Arrays.<MetadataBundle>asList(new BundleC()));
+    }
+
+    @Test
+    public void shouldOnlyChangeFingerprintWhenBundleContentOrEnvironmentChanges() throws Exception {
+        MetadataInitializer initializer = new MetadataInitializer();
+        String fingerprint = initializer.getFingerprint(new BundleA(), "environment");
+        Assert.assertNotNull(fingerprint);
+        Assert.assertEquals(fingerprint, initializer.getFingerprint(new BundleA(), "environment"));
+        Assert.assertFalse(fingerprint.equals(initializer.getFingerprint(new BundleB(), "environment")));
+        Assert.assertFalse(fingerprint.equals(initializer.getFingerprint(new BundleA(), "changed environment")));
+    }
+
+    @Test
+    public void shouldIncludeTheDescriptorsABundleInstallsInItsFingerprint() throws Exception {
+        Map<String, byte[]> classBytes = FingerprintLedger.getClassBytesWithReferences(EncounterTypeBundle.class, MetadataInitializer.MODULE_PACKAGE);
+        Assert.assertNotNull(classBytes);
+        Assert.assertTrue(classBytes.containsKey("org/openmrs/module/pihmalawi/metadata/deploy/bundle/EncounterTypeBundle"));
+        Assert.assertTrue(classBytes.containsKey("org/openmrs/module/pihmalawi/metadata/EncounterTypes"));
+        Assert.assertTrue(classBytes.containsKey("org/openmrs/module/pihmalawi/metadata/EncounterTypes$1"));
+        for (String className : classBytes.keySet()) {
+            Assert.assertTrue(className, className.startsWith("org/openmrs/module/pihmalawi/"));
+        }
+    }
+
+    public static class BundleA extends AbstractMetadataBundle {
+        @Override
+        public void install() throws Exception {
+        }
+    }
+
+    @Requires({BundleA.class})
+    public static class BundleB extends AbstractMetadataBundle {
+        @Override
+        public void install() throws Exception {
+        }
+    }
+
+    @Requires({BundleA.class, BundleB.class})
+    public static class BundleC extends AbstractMetadataBundle {
+        @Override
+        public void install() throws Exception {
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.pihmalawi.activator;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.openmrs.module.pihmalawi.BaseMalawiTest;
+import org.openmrs.module.reporting.evaluation.parameter.Parameter;
+import org.openmrs.module.reporting.report.ReportDesign;
+import org.openmrs.module.reporting.report.definition.ReportDefinition;
+import org.openmrs.module.reporting.report.manager.BaseReportManager;
+import org.openmrs.module.reporting.report.manager.ReportManager;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Tests the ReportInitializer
+ */
+public class ReportInitializerTest extends BaseMalawiTest {
+
+    @After
+    public void clearReportsUpToDate() {
+        new ReportInitializer().stopped();
+    }
+
+    @Test
+    public void shouldSkipAReportThatIsUnchangedSinceItWasSetUp() throws Exception {
+        TestReportManager reportManager = new TestReportManager("1.0");
+        Set<String> existingUuids = new HashSet<String>();
+
+        TestReportInitializer initializer = new TestReportInitializer();
+        initializer.setupReportIfChanged(reportManager, existingUuids);
+        Assert.assertEquals(1, initializer.reportsSetUp.size());
+        Assert.assertTrue(ReportInitializer.isUpToDate(reportManager));
+
+        existingUuids.add(reportManager.getUuid());
+        initializer = new TestReportInitializer();
+        initializer.setupReportIfChanged(reportManager, existingUuids);
+        Assert.assertEquals(0, initializer.reportsSetUp.size());
+    }
+
+    @Test
+    public void shouldSetUpAReportAgainIfItHasChangedOrIsMissing() throws Exception {
+        Set<String> existingUuids = new HashSet<String>();
+        TestReportInitializer initializer = new TestReportInitializer();
+        initializer.setupReportIfChanged(new TestReportManager("1.0"), existingUuids);
+
+        existingUuids.add(TestReportManager.UUID);
+        initializer = new TestReportInitializer();
+        initializer.setupReportIfChanged(new TestReportManager("1.1"), existingUuids);
+        Assert.assertEquals(1, initializer.reportsSetUp.size());
+
+        existingUuids.clear();
+        initializer = new TestReportInitializer();
+        initializer.setupReportIfChanged(new TestReportManager("1.1"), existingUuids);
+        Assert.assertEquals(1, initializer.reportsSetUp.size());
+    }
+
+    /**
+     * Records the reports it would set up rather than setting them up
+     */
+    private static class TestReportInitializer extends ReportInitializer {
+
+        private List<ReportManager> reportsSetUp = new ArrayList<ReportManager>();
+
+        @Override
+        protected void setupReport(ReportManager reportManager, boolean deprecated) {
+            reportsSetUp.add(reportManager);
+        }
+    }
+
+    private static class TestReportManager extends BaseReportManager {
+
+        public static final String UUID = "9e4b1c52-3a0d-4f63-b1a8-6c1d2f0e7a41";
+
+        private String version;
+
+        public TestReportManager(String version) {
+            this.version = version;
+        }
+
+        @Override
+        public String getUuid() {
+            return UUID;
+        }
+
+        @Override
+        public String getName() {
+            return "Test Report";
+        }
+
+        @Override
+        public String getDescription() {
+            return "Test Report";
+        }
+
+        @Override
+        public List<Parameter> getParameters() {
+            return new ArrayList<Parameter>();
+        }
+
+        @Override
+        public ReportDefinition constructReportDefinition() {
+            ReportDefinition rd = new ReportDefinition();
+            rd.setUuid(getUuid());
+            rd.setName(getName());
+            return rd;
+        }
+
+        @Override
+        public List<ReportDesign> constructReportDesigns(ReportDefinition reportDefinition) {
+            return new ArrayList<ReportDesign>();
+        }
+
+        @Override
+        public String getVersion() {
+            return version;
+        }
+    }
+}
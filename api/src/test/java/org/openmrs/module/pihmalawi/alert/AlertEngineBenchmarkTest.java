@@ -0,0 +1,142 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.pihmalawi.alert;
+
+import org.apache.commons.lang.time.StopWatch;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.junit.Assert;
+import org.junit.Test;
+import org.openmrs.module.pihmalawi.common.JsonObject;
+import org.openmrs.module.reporting.common.DateUtil;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compares the results of evaluating alerts in a new script engine per patient with evaluating pre-compiled alerts,
+ * and logs the throughput of each
+ */
+public class AlertEngineBenchmarkTest {
+
+    private final static Log log = LogFactory.getLog(AlertEngineBenchmarkTest.class);
+
+    private static final int NUM_PATIENTS = 200;
+
+    @Test
+    public void shouldEvaluateCompiledAlertsWithSameResults() throws Exception {
+        List<AlertDefinition> alerts = getAlertDefinitions();
+        Map<Integer, JsonObject> cohortData = getCohortData(NUM_PATIENTS);
+
+        AlertEngine interpretedEngine = new AlertEngine();
+        interpretedEngine.setCompileConditions(false);
+        StopWatch sw = new StopWatch();
+        sw.start();
+        Map<Integer, List<AlertDefinition>> interpretedResults = interpretedEngine.evaluateMatchingAlertsForCohort(alerts, cohortData);
+        sw.stop();
+        long interpretedMs = Math.max(sw.getTime(), 1);
+
+        AlertEngine compiledEngine = new AlertEngine();
+        compiledEngine.getCompiledAlertDefinitions(alerts); // compile up-front, as is done at startup or on definition change
+        sw.reset();
+        sw.start();
+        Map<Integer, List<AlertDefinition>> compiledResults = compiledEngine.evaluateMatchingAlertsForCohort(alerts, cohortData);
+        sw.stop();
+        long compiledMs = Math.max(sw.getTime(), 1);
+
+        log.info("New engine per patient: " + NUM_PATIENTS + " patients in " + interpretedMs + "ms (" + (NUM_PATIENTS * 1000 / interpretedMs) + " patients/second)");
+        log.info("Compiled alerts: " + NUM_PATIENTS + " patients in " + compiledMs + "ms (" + (NUM_PATIENTS * 1000 / compiledMs) + " patients/second)");
+
+        Assert.assertEquals(NUM_PATIENTS, compiledResults.size());
+        for (Integer pId : interpretedResults.keySet()) {
+            Assert.assertEquals("Patient " + pId, interpretedResults.get(pId), compiledResults.get(pId));
+        }
+    }
+
+    @Test
+    public void shouldNotRetainVariablesBetweenPatients() throws Exception {
+        AlertDefinition alert = new AlertDefinition();
+        alert.setName("has-weight");
+        alert.setConditions(Arrays.asList("typeof current_weight !== 'undefined'"));
+        List<AlertDefinition> alerts = Arrays.asList(alert);
+
+        AlertEngine engine = new AlertEngine();
+        JsonObject withWeight = new JsonObject();
+        withWeight.put("current_weight", 50);
+        Assert.assertEquals(1, engine.evaluateMatchingAlerts(alerts, withWeight).size());
+        Assert.assertEquals(0, engine.evaluateMatchingAlerts(alerts, new JsonObject()).size());
+    }
+
+    protected List<AlertDefinition> getAlertDefinitions() {
+        List<AlertDefinition> l = new ArrayList<AlertDefinition>();
+        l.add(createAlert("eligible-for-bp-screening",
+                "age_years >= 18",
+                "missing(current_systolic_bp) || missing(current_diastolic_bp)"));
+        l.add(createAlert("critical-result-bp",
+                "!missing(current_systolic_bp)",
+                "!missing(current_diastolic_bp)",
+                "(current_systolic_bp < 80 || current_systolic_bp > 200) || (current_diastolic_bp > 120)"));
+        l.add(createAlert("eligible-for-blood-glucose-screening",
+                "missing(chronic_care_diagnoses) || (!missing(chronic_care_diagnoses) && !hasChronicCareDiagnosis(chronic_care_diagnoses, [diabetes, diabetes_type_1, diabetes_type_2]))",
+                "missing(last_blood_sugar_result_date) || (!missing(last_blood_sugar_result_date) && yearsBetween(today, last_blood_sugar_result_date) >= 1)",
+                "(age_years > 30) || (age_years > 18 && last_bmi > 25)"));
+        l.add(createAlert("due-for-confirmatory-viral-load",
+                "age_years >= 3",
+                "hiv_treatment_status == active_art",
+                "last_viral_load_numeric > 0",
+                "daysBetween(today, last_viral_load_date) >= 90"));
+        l.add(createAlert("eligible-for-htc",
+                "age_years >= 15",
+                "hiv_treatment_status !== active_art",
+                "missing(last_hiv_rapid_test_result_date) || monthsBetween(today, last_hiv_rapid_test_result_date) > 3"));
+        return l;
+    }
+
+    protected AlertDefinition createAlert(String name, String... conditions) {
+        AlertDefinition alert = new AlertDefinition();
+        alert.setName(name);
+        alert.setConditions(Arrays.asList(conditions));
+        alert.setEnabled(true);
+        return alert;
+    }
+
+    protected Map<Integer, JsonObject> getCohortData(int numPatients) {
+        Date today = DateUtil.getStartOfDay(new Date());
+        Map<Integer, JsonObject> ret = new LinkedHashMap<Integer, JsonObject>();
+        for (int i = 1; i <= numPatients; i++) {
+            Calendar cal = Calendar.getInstance();
+            cal.add(Calendar.DATE, -1 * i * 7);
+            JsonObject patientData = new JsonObject();
+            patientData.put("today", today);
+            patientData.put("age_years", i % 70);
+            patientData.put("last_bmi", 18 + (i % 12));
+            patientData.put("current_systolic_bp", (i % 3 == 0 ? null : 70 + (i % 150)));
+            patientData.put("current_diastolic_bp", (i % 3 == 0 ? null : 50 + (i % 80)));
+            patientData.put("chronic_care_diagnoses", null);
+            patientData.put("last_blood_sugar_result_date", (i % 2 == 0 ? null : cal.getTime()));
+            patientData.put("hiv_treatment_status", (i % 4 == 0 ? "6687fa7c-977f-11e1-8993-905e29aff6c1" : null));
+            patientData.put("last_viral_load_numeric", (i % 5) * 500);
+            patientData.put("last_viral_load_date", cal.getTime());
+            patientData.put("last_hiv_rapid_test_result_date", (i % 6 == 0 ? null : cal.getTime()));
+            ret.put(i, patientData);
+        }
+        return ret;
+    }
+}
@@ -794,4 +794,43 @@ public class AlertEngineTest {
         List<AlertDefinition> alertDefinitions = engine.getAlertDefinitions();
         Assert.assertTrue(alertDefinitions.size() > 0);
     }
+
+    @Test
+    public void shouldRetainLoadedAlertsUntilTheyChange() throws Exception {
+        AlertDefinitionRegistry registry = new AlertDefinitionRegistry();
+        registry.setCheckIntervalMillis(0);
+        AlertDefinitionRegistry.Snapshot snapshot = registry.getSnapshot();
+        Assert.assertSame(snapshot, registry.getSnapshot());
+        Assert.assertEquals("eligible-for-bp-screening", registry.getAlertDefinition("eligible-for-bp-screening").getName());
+        Assert.assertNull(registry.getAlertDefinition("not-an-alert"));
+        Assert.assertNotNull(registry.getConstants().get("active_art"));
+        registry.reload();
+        Assert.assertNotSame(snapshot, registry.getSnapshot());
+    }
+
+    @Test
+    public void shouldNotAllowLoadedAlertsOrConstantsToBeModified() throws Exception {
+        AlertDefinitionRegistry registry = new AlertDefinitionRegistry();
+        AlertDefinition alert = registry.getAlertDefinition("eligible-for-bp-screening");
+        try {
+            alert.setEnabled(false);
+            Assert.fail("Alert definition should not be modifiable");
+        }
+        catch (UnsupportedOperationException e) {
+        }
+        try {
+            alert.getConditions().clear();
+            Assert.fail("Alert conditions should not be modifiable");
+        }
+        catch (UnsupportedOperationException e) {
+        }
+        try {
+            registry.getConstants().put("active_art", "changed");
+            Assert.fail("Constants should not be modifiable");
+        }
+        catch (UnsupportedOperationException e) {
+        }
+        Assert.assertTrue(registry.getAlertDefinition("eligible-for-bp-screening").isEnabled());
+        Assert.assertSame(registry.getConstants(), registry.getConstants());
+    }
 }
@@ -0,0 +1,80 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.pihmalawi.data;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.openmrs.module.pihmalawi.common.JsonObject;
+import org.openmrs.module.reporting.common.DateUtil;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests the CompactPatientRow
+ */
+public class CompactPatientRowTest {
+
+    @Test
+    public void shouldMaterializeTheSameDataThatWasEncoded() throws Exception {
+        PatientDataSchema schema = new PatientDataSchema();
+
+        JsonObject viralLoad = new JsonObject();
+        viralLoad.put("specimenDate", DateUtil.getDateTime(2019, 2, 1));
+        viralLoad.put("resultNumeric", 1000.0);
+        viralLoad.put("resultLdl", null);
+        viralLoad.put("reasonForTest", "e0821812-955d-11e7-abc4-cec278b6b50a");
+
+        JsonObject data = new JsonObject();
+        data.put("internal_id", 12);
+        data.put("first_name", "Test");
+        data.put("birthdate", DateUtil.getDateTime(1980, 5, 20));
+        data.put("age_years", 38);
+        data.put("last_bmi", 22.65);
+        data.put("deceased", false);
+        data.put("hiv_treatment_status", "6687fa7c-977f-11e1-8993-905e29aff6c1");
+        data.put("current_systolic_bp", null);
+        data.put("current_symptoms", Arrays.asList("656f10da-977f-11e1-8993-905e29aff6c1", "654a56be-977f-11e1-8993-905e29aff6c1"));
+        data.put("viral_load_tests", Arrays.asList(viralLoad));
+
+        CompactPatientRow row = new CompactPatientRow(data, schema);
+        JsonObject materialized = row.toJsonObject();
+
+        Assert.assertEquals(data, materialized);
+        Assert.assertEquals(new ArrayList<String>(data.keySet()), new ArrayList<String>(materialized.keySet()));
+        Assert.assertEquals(38, row.get("age_years"));
+        Assert.assertNull(row.get("not_a_column"));
+    }
+
+    @Test
+    public void shouldShareColumnNamesAndUuidsAcrossRows() throws Exception {
+        PatientDataSchema schema = new PatientDataSchema();
+        JsonObject data1 = new JsonObject();
+        data1.put("hiv_treatment_status", new String("6687fa7c-977f-11e1-8993-905e29aff6c1"));
+        JsonObject data2 = new JsonObject();
+        data2.put("gender", "F");
+        data2.put("hiv_treatment_status", new String("6687fa7c-977f-11e1-8993-905e29aff6c1"));
+
+        CompactPatientRow row1 = new CompactPatientRow(data1, schema);
+        CompactPatientRow row2 = new CompactPatientRow(data2, schema);
+
+        Assert.assertEquals(2, schema.size());
+        Assert.assertSame(row1.get("hiv_treatment_status"), row2.get("hiv_treatment_status"));
+        Assert.assertFalse(row1.toJsonObject().containsKey("gender"));
+        List<String> keys = new ArrayList<String>(row2.toJsonObject().keySet());
+        Assert.assertEquals(Arrays.asList("hiv_treatment_status", "gender"), keys);
+    }
+}
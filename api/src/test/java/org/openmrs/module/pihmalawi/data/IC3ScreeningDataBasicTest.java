@@ -5,14 +5,17 @@ import org.apache.commons.logging.LogFactory;
 import org.hamcrest.CoreMatchers;
 import org.hamcrest.Matcher;
 import org.junit.Test;
+import org.openmrs.Cohort;
 import org.openmrs.Concept;
 import org.openmrs.Encounter;
+import org.openmrs.Location;
 import org.openmrs.Obs;
 import org.openmrs.Patient;
 import org.openmrs.PatientProgram;
 import org.openmrs.PatientState;
 import org.openmrs.Program;
 import org.openmrs.ProgramWorkflowState;
+import org.openmrs.Visit;
 import org.openmrs.api.context.Context;
 import org.openmrs.contrib.testdata.builder.ObsBuilder;
 import org.openmrs.module.pihmalawi.BaseMalawiTest;
@@ -20,13 +23,20 @@ import org.openmrs.module.pihmalawi.alert.AlertDefinition;
 import org.openmrs.module.pihmalawi.common.JsonObject;
 import org.openmrs.module.pihmalawi.common.ViralLoad;
 import org.openmrs.module.pihmalawi.metadata.IC3ScreeningMetadata;
+import org.openmrs.module.pihmalawi.metadata.deploy.bundle.VisitTypeBundle;
 import org.openmrs.module.reporting.common.DateUtil;
 import org.openmrs.test.SkipBaseSetup;
 import org.springframework.beans.factory.annotation.Autowired;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import static org.hamcrest.CoreMatchers.hasItem;
 import static org.hamcrest.Matchers.greaterThan;
@@ -35,6 +45,7 @@ import static org.hamcrest.Matchers.not;
 import static org.hamcrest.beans.HasPropertyWithValue.hasProperty;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertThat;
 
 @SkipBaseSetup
@@ -926,4 +937,190 @@ public class IC3ScreeningDataBasicTest extends BaseMalawiTest {
                 (Matcher) hasItem(hasProperty("name", is("abnormal-result-glucose-level"))));
 
     }
+
+    @Test
+    public void shouldReturnTheSameDataWithAndWithoutSharedObsScan() throws Exception {
+
+        Patient patient = createPatient().age(45).save();
+        Date today = DateUtil.getStartOfDay(new Date());
+
+        Encounter enc1 = createEncounter(patient, ccMetadata.getHtnDiabetesTestsEncounterType(), DateUtil.adjustDate(today, -60, Calendar.DATE)).save();
+        createObs(enc1, ccMetadata.getCreatinineConcept(), 1.2).save();
+        createObs(enc1, ccMetadata.getWeightConcept(), 70.0).save();
+
+        Encounter enc2 = createEncounter(patient, ccMetadata.getHtnDiabetesTestsEncounterType(), DateUtil.adjustDate(today, -10, Calendar.DATE)).save();
+        createObs(enc2, ccMetadata.getCreatinineConcept(), 1.6).save();
+
+        Encounter enc3 = createEncounter(patient, screeningMetadata.getBloodSugarScreeningEncounterType(), today).save();
+        createObs(enc3, ccMetadata.getWeightConcept(), 72.0).save();
+        createObs(enc3, ccMetadata.getSystolicBloodPressureConcept(), 150.0).save();
+
+        JsonObject expected;
+        JsonObject actual;
+        try {
+            screeningData.setUseSharedObsScan(false);
+            expected = screeningData.getDataForPatient(patient.getPatientId(), today, hivMetadata.getLocation("Neno District Hospital"), false);
+        }
+        finally {
+            screeningData.setUseSharedObsScan(true);
+        }
+        actual = screeningData.getDataForPatient(patient.getPatientId(), today, hivMetadata.getLocation("Neno District Hospital"), false);
+
+        for (String key : new String[] {"now", "alerts"}) {
+            expected.remove(key);
+            actual.remove(key);
+        }
+        assertEquals(72.0, actual.get("current_weight"));
+        assertEquals(1.6, actual.get("last_creatinine_result"));
+        assertEquals(expected, actual);
+    }
+
+    @Test
+    public void shouldStreamTheSameDataInBatches() throws Exception {
+
+        Date today = DateUtil.getStartOfDay(new Date());
+        Cohort cohort = new Cohort();
+        for (int i = 0; i < 5; i++) {
+            Patient patient = createPatient().age(30 + i).save();
+            Encounter enc = createEncounter(patient, ccMetadata.getHtnDiabetesTestsEncounterType(), DateUtil.adjustDate(today, -i, Calendar.DATE)).save();
+            createObs(enc, ccMetadata.getWeightConcept(), 60.0 + i).save();
+            cohort.addMember(patient.getPatientId());
+        }
+
+        Location location = hivMetadata.getLocation("Neno District Hospital");
+        Map<Integer, JsonObject> expected = screeningData.getDataForCohort(cohort, today, location, false);
+
+        final List<Integer> batchSizes = new ArrayList<Integer>();
+        final Map<Integer, JsonObject> actual = new HashMap<Integer, JsonObject>();
+        int numStreamed = screeningData.streamDataForCohort(cohort, today, location, false, 2, new PatientDataHandler() {
+            @Override
+            public void handleData(Map<Integer, JsonObject> data) {
+                batchSizes.add(data.size());
+                actual.putAll(data);
+            }
+        });
+
+        assertEquals(5, numStreamed);
+        assertEquals(Arrays.asList(2, 2, 1), batchSizes);
+        assertEquals(expected.keySet(), actual.keySet());
+        for (Integer pId : expected.keySet()) {
+            assertEquals(expected.get(pId).get("current_weight"), actual.get(pId).get("current_weight"));
+            assertEquals(pId, actual.get(pId).get(LivePatientDataSet.INTERNAL_ID));
+        }
+
+        // Once cached, patients are streamed from the cache
+        screeningData.getCache().clearPatients(Arrays.asList(cohort.getMemberIds().iterator().next()));
+        batchSizes.clear();
+        numStreamed = screeningData.streamDataForCohort(cohort, today, location, true, 10, new PatientDataHandler() {
+            @Override
+            public void handleData(Map<Integer, JsonObject> data) {
+                batchSizes.add(data.size());
+            }
+        });
+        assertEquals(5, numStreamed);
+        assertEquals(Arrays.asList(4, 1), batchSizes);
+    }
+
+    @Test
+    public void shouldReturnPatientsChangedOrAddedSinceSyncToken() throws Exception {
+        Map<Integer, Long> versions = new HashMap<Integer, Long>();
+        versions.put(1, 10L);
+        versions.put(2, 12L);
+        String syncToken = screeningData.getSyncToken(versions);
+
+        versions.put(2, 15L);
+        versions.put(3, 5L);
+        Set<Integer> changed = screeningData.getPatientsChangedSince(syncToken, versions);
+        assertEquals(new HashSet<Integer>(Arrays.asList(2, 3)), changed);
+        assertNull(screeningData.getPatientsChangedSince("unknown", versions));
+    }
+
+    @Test
+    public void shouldReturnPatientsChangedWithAVersionBelowTheHighestIssuedInASyncToken() throws Exception {
+        Map<Integer, Long> versions = new HashMap<Integer, Long>();
+        versions.put(1, 10L);
+        versions.put(2, 12L);
+        String syncToken = screeningData.getSyncToken(versions);
+
+        // Version 11 was assigned before version 12, but only became visible after the token was issued
+        versions.put(1, 11L);
+        Set<Integer> changed = screeningData.getPatientsChangedSince(syncToken, versions);
+        assertEquals(new HashSet<Integer>(Arrays.asList(1)), changed);
+    }
+
+    @Test
+    public void shouldIndexTheSameAppointmentCohortsAsEvaluatingEachDate() throws Exception {
+        Date today = DateUtil.getStartOfDay(new Date());
+        Date yesterday = DateUtil.adjustDate(today, -1, Calendar.DATE);
+        Date enrollmentDate = DateUtil.adjustDate(today, -100, Calendar.DATE);
+        Location location = hivMetadata.getLocation("Neno District Hospital");
+
+        Patient enrolledWithApptToday = createPatient().age(40).save();
+        createPatientProgram(enrolledWithApptToday, hivMetadata.getHivProgram(), enrollmentDate, null).location(location).save();
+        createAppointment(enrolledWithApptToday, today);
+
+        Patient completedYesterdayWithApptToday = createPatient().age(50).save();
+        createPatientProgram(completedYesterdayWithApptToday, ccMetadata.getChronicCareProgram(), enrollmentDate, yesterday).location(location).save();
+        createAppointment(completedYesterdayWithApptToday, today);
+
+        Patient completedAtStartOfApptDate = createPatient().age(45).save();
+        createPatientProgram(completedAtStartOfApptDate, hivMetadata.getHivProgram(), enrollmentDate, yesterday).location(location).save();
+        createAppointment(completedAtStartOfApptDate, yesterday);
+
+        Patient completedDuringApptDate = createPatient().age(55).save();
+        Date tenAmYesterday = DateUtil.adjustDate(yesterday, 10, Calendar.HOUR_OF_DAY);
+        createPatientProgram(completedDuringApptDate, hivMetadata.getHivProgram(), enrollmentDate, tenAmYesterday).location(location).save();
+        createAppointment(completedDuringApptDate, yesterday);
+
+        Patient notEnrolledWithApptToday = createPatient().age(60).save();
+        createAppointment(notEnrolledWithApptToday, today);
+
+        Patient withActiveVisit = createPatient().age(30).save();
+        createVisit(withActiveVisit, location, yesterday, null);
+
+        Patient withVisitStoppedYesterday = createPatient().age(31).save();
+        createVisit(withVisitStoppedYesterday, location, DateUtil.adjustDate(yesterday, -1, Calendar.DATE), DateUtil.adjustDate(yesterday, 9, Calendar.HOUR_OF_DAY));
+
+        Patient withOldVisit = createPatient().age(32).save();
+        createVisit(withOldVisit, location, DateUtil.adjustDate(today, -5, Calendar.DATE), DateUtil.adjustDate(today, -4, Calendar.DATE));
+
+        Patient withVisitElsewhere = createPatient().age(33).save();
+        createVisit(withVisitElsewhere, hivMetadata.getOutpatientLocation(), yesterday, null);
+
+        IC3CohortIndex index = screeningData.getCohortIndex(Arrays.asList(location), yesterday, today);
+        assertEquals(Arrays.asList(yesterday, today), index.getDates());
+        for (Date date : index.getDates()) {
+            Cohort expectedAppts = screeningData.getPatientsWithAppointmentsAtLocation(date, location);
+            assertEquals(expectedAppts.getMemberIds(), index.getPatientsWithAppointmentsAtLocation(location, date).getMemberIds());
+            Cohort expectedVisits = screeningData.getPatientsWithAVisitAtLocation(date, location);
+            assertEquals(expectedVisits.getMemberIds(), index.getPatientsWithAVisitAtLocation(location, date).getMemberIds());
+        }
+
+        Set<Integer> apptsYesterday = index.getPatientsWithAppointmentsAtLocation(location, yesterday).getMemberIds();
+        assertThat(apptsYesterday, not(hasItem(completedAtStartOfApptDate.getPatientId())));
+        assertThat(apptsYesterday, hasItem(completedDuringApptDate.getPatientId()));
+
+        Set<Integer> apptsToday = index.getPatientsWithAppointmentsAtLocation(location, today).getMemberIds();
+        assertThat(apptsToday, hasItem(enrolledWithApptToday.getPatientId()));
+        assertThat(apptsToday, not(hasItem(completedYesterdayWithApptToday.getPatientId())));
+        assertThat(apptsToday, not(hasItem(notEnrolledWithApptToday.getPatientId())));
+
+        Set<Integer> visitsYesterday = index.getPatientsWithAVisitAtLocation(location, yesterday).getMemberIds();
+        assertEquals(new HashSet<Integer>(Arrays.asList(withActiveVisit.getPatientId(), withVisitStoppedYesterday.getPatientId())), visitsYesterday);
+        Set<Integer> visitsToday = index.getPatientsWithAVisitAtLocation(location, today).getMemberIds();
+        assertEquals(new HashSet<Integer>(Arrays.asList(withActiveVisit.getPatientId())), visitsToday);
+    }
+
+    protected void createAppointment(Patient patient, Date appointmentDate) {
+        Date encounterDate = DateUtil.adjustDate(appointmentDate, -30, Calendar.DATE);
+        Encounter enc = createEncounter(patient, hivMetadata.getArtFollowupEncounterType(), encounterDate).save();
+        createObs(enc, hivMetadata.getAppointmentDateConcept(), appointmentDate).save();
+    }
+
+    protected Visit createVisit(Patient patient, Location location, Date startDatetime, Date stopDatetime) {
+        Visit visit = new Visit(patient, Context.getVisitService().getVisitTypeByUuid(VisitTypeBundle.VisitTypes.CLINIC_OR_HOSPITAL_VISIT), startDatetime);
+        visit.setLocation(location);
+        visit.setStopDatetime(stopDatetime);
+        return Context.getVisitService().saveVisit(visit);
+    }
 }
@@ -0,0 +1,107 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.pihmalawi.data;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.openmrs.Location;
+import org.openmrs.module.pihmalawi.PihMalawiConstants;
+import org.openmrs.module.reporting.common.DateUtil;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import static org.openmrs.module.pihmalawi.data.LivePatientDataTestUtil.getData;
+import static org.openmrs.module.pihmalawi.data.LivePatientDataTestUtil.getLocation;
+
+/**
+ * Tests the IC3ScreeningDataLoader
+ */
+public class IC3ScreeningDataLoaderTest {
+
+    private static final long MINUTE = 60*1000;
+
+    Date today = DateUtil.getStartOfDay(new Date());
+
+    @Test
+    public void shouldOnlyClearPatientsChangedSinceTheLastRefreshBetweenFullRefreshes() throws Exception {
+        TestDataLoader loader = new TestDataLoader(2);
+        LivePatientDataCache cache = loader.ic3ScreeningData.getCache();
+        Location location = getLocation("3c6f2a3e-1d4b-4bd2-9a6e-2f0f8f6e4a11");
+        cache.updateCache(1, getData(1), today, location);
+        cache.updateCache(2, getData(2), today, location);
+
+        Date firstRefresh = DateUtil.getDateTime(2020, 3, 1, 8, 0, 0, 0);
+        Assert.assertTrue(loader.prepareRefresh(firstRefresh));
+        Assert.assertEquals(2, cache.getSize());
+        loader.refreshCompleted(firstRefresh, true);
+
+        Date secondRefresh = new Date(firstRefresh.getTime() + 10*MINUTE);
+        Assert.assertFalse(loader.prepareRefresh(secondRefresh));
+        Assert.assertEquals(firstRefresh.getTime() - MINUTE, loader.changedSince.getTime());
+        Assert.assertEquals(1, cache.getSize());
+        Assert.assertEquals(1, cache.getCachedData(Arrays.asList(1), today, location).size());
+        Assert.assertEquals(0, cache.getCachedData(Arrays.asList(2), today, location).size());
+        loader.refreshCompleted(secondRefresh, false);
+
+        Date thirdRefresh = new Date(secondRefresh.getTime() + 10*MINUTE);
+        Assert.assertFalse(loader.prepareRefresh(thirdRefresh));
+        Assert.assertEquals(secondRefresh.getTime() - MINUTE, loader.changedSince.getTime());
+
+        int interval = PihMalawiConstants.IC3_SCREENING_DATA_FULL_REFRESH_INTERVAL_GP_VALUE;
+        Assert.assertTrue(loader.prepareRefresh(new Date(firstRefresh.getTime() + interval*MINUTE)));
+    }
+
+    @Test
+    public void shouldUseTheDefaultForAGlobalPropertyThatIsNotAnInteger() throws Exception {
+        TestDataLoader loader = new TestDataLoader();
+        String gp = PihMalawiConstants.IC3_SCREENING_DATA_FULL_REFRESH_INTERVAL_GP_NAME;
+        Assert.assertEquals(240, loader.getIntegerGlobalProperty(gp, 240));
+        loader.globalProperties.put(gp, " 30 ");
+        Assert.assertEquals(30, loader.getIntegerGlobalProperty(gp, 240));
+        loader.globalProperties.put(gp, "four hours");
+        Assert.assertEquals(240, loader.getIntegerGlobalProperty(gp, 240));
+    }
+
+    /**
+     * A loader whose global properties are set by the test, and whose change tracker returns the given patients
+     */
+    private static class TestDataLoader extends IC3ScreeningDataLoader {
+
+        private final Map<String, String> globalProperties = new HashMap<String, String>();
+        private Date changedSince;
+
+        private TestDataLoader(Integer... changedPatients) {
+            final Set<Integer> changed = new HashSet<Integer>(Arrays.asList(changedPatients));
+            ic3ScreeningData = new IC3ScreeningData();
+            changeTracker = new PatientDataChangeTracker() {
+                @Override
+                public Set<Integer> getPatientsChangedSince(Date since) {
+                    changedSince = since;
+                    return changed;
+                }
+            };
+        }
+
+        @Override
+        protected String getGlobalProperty(String name) {
+            return globalProperties.get(name);
+        }
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.pihmalawi.data;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.openmrs.Location;
+import org.openmrs.module.pihmalawi.alert.AlertNotification;
+import org.openmrs.module.pihmalawi.common.JsonObject;
+import org.openmrs.module.reporting.common.DateUtil;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.openmrs.module.pihmalawi.data.LivePatientDataTestUtil.getLocation;
+
+/**
+ * Tests the LivePatientDataCacheSnapshot
+ */
+public class LivePatientDataCacheSnapshotTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    Date today = DateUtil.getStartOfDay(new Date());
+
+    @Test
+    public void shouldRestoreTheDataThatWasWritten() throws Exception {
+        Location location = getLocation("6b2f4c48-6f59-4f60-9e46-6b4b0d1b2b3a");
+        LivePatientDataCache cache = new LivePatientDataCache();
+        cache.updateCache(1, getData(1), today, location);
+        cache.updateCache(2, getData(2), today, location);
+        cache.updateCache(3, getData(3), today, null);
+
+        LivePatientDataCacheSnapshot snapshot = new LivePatientDataCacheSnapshot(folder.getRoot());
+        Assert.assertEquals(3, snapshot.write(cache, new Date()));
+
+        LivePatientDataCache restored = new LivePatientDataCache();
+        Assert.assertEquals(3, snapshot.restore(restored, today, getChangeTracker()));
+        Map<Integer, JsonObject> data = restored.getDataCache(today, location);
+        Assert.assertEquals(2, data.size());
+        Assert.assertEquals(getData(1).get("birthdate"), data.get(1).get("birthdate"));
+        Assert.assertEquals(getData(1).get("current_symptoms"), data.get(1).get("current_symptoms"));
+        Assert.assertEquals(getData(1).get("viral_load_tests"), data.get(1).get("viral_load_tests"));
+        AlertNotification alert = ((List<AlertNotification>) data.get(1).get("alerts")).get(0);
+        Assert.assertEquals("routine-viral-load", alert.getName());
+        Assert.assertEquals(Arrays.asList("hiv"), alert.getCategories());
+        Assert.assertEquals(1, restored.getDataCache(today, null).size());
+    }
+
+    @Test
+    public void shouldNotRestorePatientsChangedSinceTheSnapshotWasWritten() throws Exception {
+        Location location = getLocation("6b2f4c48-6f59-4f60-9e46-6b4b0d1b2b3a");
+        LivePatientDataCache cache = new LivePatientDataCache();
+        cache.updateCache(1, getData(1), today, location);
+        cache.updateCache(2, getData(2), today, location);
+
+        LivePatientDataCacheSnapshot snapshot = new LivePatientDataCacheSnapshot(folder.getRoot());
+        snapshot.write(cache, new Date());
+
+        LivePatientDataCache restored = new LivePatientDataCache();
+        Assert.assertEquals(1, snapshot.restore(restored, today, getChangeTracker(2)));
+        Assert.assertEquals(1, restored.getCachedData(Arrays.asList(1, 2), today, location).size());
+    }
+
+    @Test
+    public void shouldRemoveSnapshotsForOtherDates() throws Exception {
+        Date yesterday = DateUtil.adjustDate(today, -1, Calendar.DATE);
+        LivePatientDataCache cache = new LivePatientDataCache();
+        cache.updateCache(1, getData(1), yesterday, getLocation("6b2f4c48-6f59-4f60-9e46-6b4b0d1b2b3a"));
+
+        LivePatientDataCacheSnapshot snapshot = new LivePatientDataCacheSnapshot(folder.getRoot());
+        snapshot.write(cache, new Date());
+        Assert.assertEquals(1, folder.getRoot().listFiles().length);
+
+        LivePatientDataCache restored = new LivePatientDataCache();
+        Assert.assertEquals(0, snapshot.restore(restored, today, getChangeTracker()));
+        Assert.assertEquals(0, restored.getSize());
+        Assert.assertEquals(0, folder.getRoot().listFiles().length);
+    }
+
+    @Test
+    public void shouldRemoveSnapshotsThatCannotBeRead() throws Exception {
+        File file = new File(folder.getRoot(), "corrupt.snapshot");
+        Assert.assertTrue(file.createNewFile());
+
+        LivePatientDataCache restored = new LivePatientDataCache();
+        Assert.assertEquals(0, new LivePatientDataCacheSnapshot(folder.getRoot()).restore(restored, today, getChangeTracker()));
+        Assert.assertFalse(file.exists());
+    }
+
+    protected PatientDataChangeTracker getChangeTracker(Integer... changedPatients) {
+        final Set<Integer> changed = new HashSet<Integer>(Arrays.asList(changedPatients));
+        return new PatientDataChangeTracker() {
+            @Override
+            public Set<Integer> getPatientsChangedSince(Date since) {
+                return changed;
+            }
+        };
+    }
+
+    protected JsonObject getData(int patientId) {
+        JsonObject viralLoad = new JsonObject();
+        viralLoad.put("specimenDate", DateUtil.getDateTime(2019, 2, 1));
+        viralLoad.put("resultNumeric", 1000.0);
+        viralLoad.put("resultLdl", null);
+
+        AlertNotification alert = new AlertNotification();
+        alert.setName("routine-viral-load");
+        alert.setCategories(Arrays.asList("hiv"));
+        alert.setAlert("Due for routine viral load");
+
+        JsonObject data = LivePatientDataTestUtil.getData(patientId);
+        data.put("birthdate", DateUtil.getDateTime(1980, 5, 20));
+        data.put("deceased", false);
+        data.put("hiv_treatment_status", "6687fa7c-977f-11e1-8993-905e29aff6c1");
+        data.put("current_symptoms", Arrays.asList("656f10da-977f-11e1-8993-905e29aff6c1", "654a56be-977f-11e1-8993-905e29aff6c1"));
+        data.put("viral_load_tests", Collections.singletonList(viralLoad));
+        data.put("alerts", Arrays.asList(alert));
+        return data;
+    }
+}
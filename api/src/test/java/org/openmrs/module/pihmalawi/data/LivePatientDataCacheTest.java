@@ -0,0 +1,183 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.pihmalawi.data;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.openmrs.Location;
+import org.openmrs.module.pihmalawi.common.JsonObject;
+import org.openmrs.module.reporting.common.DateUtil;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.openmrs.module.pihmalawi.data.LivePatientDataTestUtil.getData;
+import static org.openmrs.module.pihmalawi.data.LivePatientDataTestUtil.getLocation;
+
+/**
+ * Tests the LivePatientDataCache
+ */
+public class LivePatientDataCacheTest {
+
+    Date today = DateUtil.getStartOfDay(new Date());
+
+    @Test
+    public void shouldCountHitsAndMisses() throws Exception {
+        LivePatientDataCache cache = new LivePatientDataCache();
+        Location location = getLocation("location-1");
+        cache.updateCache(1, getData(1), today, location);
+        cache.updateCache(2, getData(2), today, location);
+
+        Map<Integer, JsonObject> data = cache.getCachedData(Arrays.asList(1, 2, 3), today, location);
+        Assert.assertEquals(2, data.size());
+        Assert.assertEquals(2, cache.getHits());
+        Assert.assertEquals(1, cache.getMisses());
+        Assert.assertEquals(2, cache.getSize());
+    }
+
+    @Test
+    public void shouldEvictLeastRecentlyAccessedPatientsWhenFull() throws Exception {
+        LivePatientDataCache cache = new LivePatientDataCache(10);
+        Location location1 = getLocation("location-1");
+        Location location2 = getLocation("location-2");
+        for (int i = 1; i <= 10; i++) {
+            cache.updateCache(i, getData(i), today, location1);
+        }
+        cache.getCachedData(Arrays.asList(1), today, location1);
+        cache.updateCache(11, getData(11), today, location2);
+
+        Assert.assertEquals(9, cache.getSize());
+        Assert.assertEquals(2, cache.getEvictions());
+        Assert.assertEquals(1, cache.getCachedData(Arrays.asList(1), today, location1).size());
+        Assert.assertEquals(1, cache.getCachedData(Arrays.asList(11), today, location2).size());
+        Assert.assertEquals(0, cache.getCachedData(Arrays.asList(2, 3), today, location1).size());
+        Assert.assertEquals(7, cache.getCachedData(Arrays.asList(4, 5, 6, 7, 8, 9, 10), today, location1).size());
+    }
+
+    @Test
+    public void shouldNotCountClearedPatientsTowardsTheMaximum() throws Exception {
+        LivePatientDataCache cache = new LivePatientDataCache(10);
+        Location location1 = getLocation("location-1");
+        Location location2 = getLocation("location-2");
+        for (int i = 1; i <= 10; i++) {
+            cache.updateCache(i, getData(i), today, location1);
+        }
+        cache.clearCache(today, location1);
+        for (int i = 1; i <= 5; i++) {
+            cache.updateCache(i, getData(i), today, location2);
+        }
+        cache.clearPatients(Arrays.asList(1, 2, 3, 4, 5));
+        for (int i = 1; i <= 10; i++) {
+            cache.updateCache(i, getData(i), today, location2);
+        }
+        Assert.assertEquals(10, cache.getSize());
+        Assert.assertEquals(0, cache.getEvictions());
+    }
+
+    @Test
+    public void shouldClearChangedPatientsFromAllCaches() throws Exception {
+        LivePatientDataCache cache = new LivePatientDataCache();
+        cache.updateCache(1, getData(1), today, getLocation("location-1"));
+        cache.updateCache(1, getData(1), today, getLocation("location-2"));
+        cache.updateCache(2, getData(2), today, getLocation("location-2"));
+        cache.clearPatients(Arrays.asList(1));
+        Assert.assertEquals(1, cache.getSize());
+        Assert.assertEquals(0, cache.getCachedData(Arrays.asList(1), today, getLocation("location-1")).size());
+    }
+
+    @Test
+    public void shouldSupportConcurrentReadsAndUpdates() throws Exception {
+        final LivePatientDataCache cache = new LivePatientDataCache(1000);
+        final Location location = getLocation("location-1");
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        for (int t = 0; t < 4; t++) {
+            final int offset = t * 500;
+            executor.submit(new Runnable() {
+                public void run() {
+                    for (int i = 1; i <= 500; i++) {
+                        cache.updateCache(offset + i, getData(offset + i), today, location);
+                        cache.getDataCache(today, location);
+                        cache.clearCaches(60);
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+        Assert.assertTrue(executor.awaitTermination(1, TimeUnit.MINUTES));
+        Assert.assertTrue(cache.getSize() <= 1000);
+        Assert.assertEquals(cache.getSize(), cache.getDataCache(today, location).size());
+    }
+
+    @Test
+    public void shouldKeepSizeConsistentWhenCachesAreClearedDuringUpdates() throws Exception {
+        final LivePatientDataCache cache = new LivePatientDataCache();
+        final Location location = getLocation("location-1");
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        for (int t = 0; t < 4; t++) {
+            final int offset = t * 500;
+            final boolean clearing = (t % 2 == 0);
+            executor.submit(new Runnable() {
+                public void run() {
+                    for (int i = 1; i <= 500; i++) {
+                        cache.updateCache(offset + i, getData(offset + i), today, location);
+                        if (clearing && i % 10 == 0) {
+                            cache.clearCache(today, location);
+                        }
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+        Assert.assertTrue(executor.awaitTermination(1, TimeUnit.MINUTES));
+        Assert.assertEquals(cache.getDataCache(today, location).size(), cache.getSize());
+        cache.clearAllCaches();
+        Assert.assertEquals(0, cache.getSize());
+    }
+
+    @Test
+    public void shouldOnlyChangeVersionWhenDataChanges() throws Exception {
+        LivePatientDataCache cache = new LivePatientDataCache();
+        Location location = getLocation("location-1");
+        cache.updateCache(1, getData(1), today, location);
+        cache.updateCache(2, getData(2), today, location);
+        Map<Integer, Long> versions = cache.getVersions(Arrays.asList(1, 2, 3), today, location);
+        Assert.assertEquals(2, versions.size());
+        Assert.assertEquals(cache.getCurrentVersion(), Math.max(versions.get(1), versions.get(2)));
+
+        JsonObject unchanged = getData(1);
+        unchanged.put("now", new Date(System.currentTimeMillis() + 1000));
+        cache.updateCache(1, unchanged, today, location);
+        JsonObject changed = getData(2);
+        changed.put("current_weight", 72.0);
+        cache.updateCache(2, changed, today, location);
+
+        Map<Integer, Long> newVersions = cache.getVersions(Arrays.asList(1, 2), today, location);
+        Assert.assertEquals(versions.get(1), newVersions.get(1));
+        Assert.assertTrue(newVersions.get(2) > versions.get(2));
+        Assert.assertEquals(0, cache.getHits());
+    }
+
+    @Test
+    public void shouldNotCreateACacheWhenGettingVersions() throws Exception {
+        LivePatientDataCache cache = new LivePatientDataCache();
+        Location location = getLocation("location-1");
+        Assert.assertEquals(0, cache.getVersions(Arrays.asList(1, 2), today, location).size());
+        Assert.assertFalse(cache.hasCache(today, location));
+    }
+}
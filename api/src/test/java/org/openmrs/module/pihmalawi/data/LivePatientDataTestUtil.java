@@ -0,0 +1,42 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.pihmalawi.data;
+
+import org.openmrs.Location;
+import org.openmrs.module.pihmalawi.common.JsonObject;
+
+/**
+ * Creates the locations and patient data used by tests of the live patient data cache
+ */
+public class LivePatientDataTestUtil {
+
+    /**
+     * @return a new, unsaved location with the given uuid
+     */
+    public static Location getLocation(String uuid) {
+        Location location = new Location();
+        location.setUuid(uuid);
+        return location;
+    }
+
+    /**
+     * @return patient data for the given patient, keyed as it is by LivePatientDataSet
+     */
+    public static JsonObject getData(Integer patientId) {
+        JsonObject data = new JsonObject();
+        data.put(LivePatientDataSet.INTERNAL_ID, patientId);
+        return data;
+    }
+}
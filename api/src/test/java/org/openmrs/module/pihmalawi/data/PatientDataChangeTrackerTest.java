@@ -0,0 +1,86 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.pihmalawi.data;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.openmrs.Encounter;
+import org.openmrs.Obs;
+import org.openmrs.Patient;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.pihmalawi.BaseMalawiTest;
+import org.openmrs.module.reporting.common.DateUtil;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import java.util.Date;
+import java.util.Set;
+
+/**
+ * Tests the PatientDataChangeTracker
+ */
+public class PatientDataChangeTrackerTest extends BaseMalawiTest {
+
+    @Autowired
+    PatientDataChangeTracker changeTracker;
+
+    @Test
+    public void shouldReturnPatientsWithDataCreatedChangedOrVoidedSinceTheGivenDate() throws Exception {
+        Patient unchanged = createOldPatient();
+        Patient withNewEncounter = createOldPatient();
+        Patient withVoidedObs = createOldPatient();
+
+        Encounter oldEncounter = createEncounter(withVoidedObs, ccMetadata.getHtnDiabetesFollowupEncounterType(), DateUtil.getDateTime(2015, 1, 10)).save();
+        Obs oldObs = createObs(oldEncounter, ccMetadata.getWeightConcept(), 60.0).save();
+        setDateCreated("encounter", "encounter_id", oldEncounter.getEncounterId());
+        setDateCreated("obs", "obs_id", oldObs.getObsId());
+
+        Date since = DateUtil.getDateTime(2015, 6, 1);
+        Set<Integer> changed = getPatientsChangedSince(since);
+        Assert.assertFalse(changed.contains(unchanged.getPatientId()));
+        Assert.assertFalse(changed.contains(withNewEncounter.getPatientId()));
+        Assert.assertFalse(changed.contains(withVoidedObs.getPatientId()));
+
+        createEncounter(withNewEncounter, ccMetadata.getHtnDiabetesFollowupEncounterType(), DateUtil.getDateTime(2018, 1, 10)).save();
+        voidObs(oldObs);
+
+        changed = getPatientsChangedSince(since);
+        Assert.assertFalse(changed.contains(unchanged.getPatientId()));
+        Assert.assertTrue(changed.contains(withNewEncounter.getPatientId()));
+        Assert.assertTrue(changed.contains(withVoidedObs.getPatientId()));
+
+        Patient newPatient = createPatient().save();
+        Assert.assertTrue(getPatientsChangedSince(since).contains(newPatient.getPatientId()));
+    }
+
+    /**
+     * @return a new patient whose person and identifiers appear to have been created long before the test
+     */
+    protected Patient createOldPatient() {
+        Patient p = createPatient().save();
+        setDateCreated("person", "person_id", p.getPatientId());
+        setDateCreated("patient_identifier", "patient_id", p.getPatientId());
+        return p;
+    }
+
+    protected void setDateCreated(String table, String idColumn, Integer id) {
+        Context.flushSession();
+        Context.getAdministrationService().executeSQL("update " + table + " set date_created = '2015-01-01 00:00:00' where " + idColumn + " = " + id, false);
+    }
+
+    protected Set<Integer> getPatientsChangedSince(Date since) {
+        Context.flushSession();
+        return changeTracker.getPatientsChangedSince(since);
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.pihmalawi.data;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.junit.Assert;
+import org.junit.Test;
+import org.openmrs.Cohort;
+import org.openmrs.Encounter;
+import org.openmrs.Patient;
+import org.openmrs.module.pihmalawi.BaseMalawiTest;
+import org.openmrs.module.pihmalawi.reporting.library.BasePatientDataLibrary;
+import org.openmrs.module.pihmalawi.reporting.library.DataFactory;
+import org.openmrs.module.reporting.common.DateUtil;
+import org.openmrs.module.reporting.data.patient.definition.PatientDataDefinition;
+import org.openmrs.module.reporting.evaluation.EvaluationContext;
+import org.openmrs.test.SkipBaseSetup;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Tests the SinglePatientDataLoader
+ */
+@SkipBaseSetup
+public class SinglePatientDataLoaderTest extends BaseMalawiTest {
+
+    private final static Log log = LogFactory.getLog(SinglePatientDataLoaderTest.class);
+
+    @Autowired
+    BasePatientDataLibrary baseData;
+
+    @Autowired
+    DataFactory df;
+
+    @Test
+    public void shouldLoadTheSameDataAsEvaluatingEachDefinition() throws Exception {
+
+        Patient patient = createPatient().age(50).save();
+        for (int i = 1; i <= 5; i++) {
+            Encounter e = createEncounter(patient, ccMetadata.getHtnDiabetesFollowupEncounterType(), DateUtil.getDateTime(2018, i, 10)).save();
+            createObs(e, ccMetadata.getWeightConcept(), 60.0 + i).save();
+            createObs(e, ccMetadata.getSystolicBloodPressureConcept(), 130.0 + i).save();
+            createObs(e, ccMetadata.getDiastolicBloodPressureConcept(), 80.0 + i).save();
+        }
+        Encounter initial = createEncounter(patient, ccMetadata.getHtnDiabetesInitialEncounterType(), DateUtil.getDateTime(2017, 12, 1)).save();
+        createObs(initial, ccMetadata.getHeightConcept(), 170.0).save();
+        createObs(initial, ccMetadata.getChronicCareDiagnosisConcept(), ccMetadata.getHypertensionConcept()).save();
+
+        Map<String, PatientDataDefinition> definitions = new LinkedHashMap<String, PatientDataDefinition>();
+        definitions.put("birthDate", baseData.getBirthdate());
+        definitions.put("weights", baseData.getAllWeightObservations());
+        definitions.put("height", baseData.getLatestHeightObs());
+        definitions.put("encounters", baseData.getAllEncounters());
+        definitions.put("ccDxObs", chronicCarePatientDataLibrary.getAllChronicCareDiagnosisObsByEndDate());
+        definitions.put("lastSystolicBp", df.getMostRecentObsByEndDate(ccMetadata.getSystolicBloodPressureConcept(), null, null));
+        definitions.put("lastDiastolicBp", df.getMostRecentObsByEndDate(ccMetadata.getDiastolicBloodPressureConcept(), null, null));
+        definitions.put("sbp", df.getAllObsByEndDate(ccMetadata.getSystolicBloodPressureConcept(), null, null));
+        definitions.put("dbp", df.getAllObsByEndDate(ccMetadata.getDiastolicBloodPressureConcept(), null, null));
+        definitions.put("viralLoads", hivPatientDataLibrary.getAllViralLoadsByEndDate());
+        definitions.put("weightOnDate", df.getMostRecentObsOnGivenDate(ccMetadata.getWeightConcept(), DateUtil.getDateTime(2018, 3, 10)));
+
+        long startTime = System.currentTimeMillis();
+        Map<String, Object> expected = new LinkedHashMap<String, Object>();
+        for (Map.Entry<String, PatientDataDefinition> e : definitions.entrySet()) {
+            EvaluationContext context = new EvaluationContext();
+            context.setBaseCohort(new Cohort());
+            context.getBaseCohort().addMember(patient.getPatientId());
+            expected.put(e.getKey(), patientDataService.evaluate(e.getValue(), context).getData().get(patient.getPatientId()));
+        }
+        long separateTime = System.currentTimeMillis() - startTime;
+
+        SinglePatientDataLoader loader = new SinglePatientDataLoader(patient.getPatientId());
+        for (Map.Entry<String, PatientDataDefinition> e : definitions.entrySet()) {
+            loader.add(e.getKey(), e.getValue());
+        }
+        loader.load();
+
+        log.info("Evaluated " + definitions.size() + " definitions separately in " + separateTime + " ms, and with the loader in " + loader.getLoadTimeMillis() + " ms");
+
+        for (String key : definitions.keySet()) {
+            Assert.assertEquals(key, expected.get(key), loader.get(key));
+        }
+        Assert.assertNotNull(loader.get("lastSystolicBp"));
+        Assert.assertNotNull(loader.get("weightOnDate"));
+    }
+
+    @Test
+    public void shouldLoadDefinitionsAddedAfterAPreviousLoad() throws Exception {
+        Patient patient = createPatient().age(30).save();
+        Encounter e = createEncounter(patient, ccMetadata.getHtnDiabetesFollowupEncounterType(), DateUtil.getDateTime(2018, 5, 10)).save();
+        createObs(e, ccMetadata.getWeightConcept(), 55.0).save();
+
+        SinglePatientDataLoader loader = new SinglePatientDataLoader(patient.getPatientId());
+        loader.add("latestEncounter", df.getMostRecentEncounterOfTypesByEndDate(ccMetadata.getHtnDiabetesEncounterTypes(), null));
+        loader.load();
+        Encounter latestEncounter = loader.get("latestEncounter");
+        Assert.assertEquals(e, latestEncounter);
+
+        loader.add("weightOnDate", df.getMostRecentObsOnGivenDate(ccMetadata.getWeightConcept(), latestEncounter.getEncounterDatetime()));
+        loader.load();
+        Assert.assertNotNull(loader.get("weightOnDate"));
+        Assert.assertEquals(2, loader.getNumLoads());
+    }
+
+    @Test
+    public void shouldReturnNullForDataLoadedForAPatientWithNoData() throws Exception {
+        SinglePatientDataLoader loader = new SinglePatientDataLoader(999999);
+        loader.add("birthDate", baseData.getBirthdate());
+        loader.load();
+        Assert.assertNull(loader.get("birthDate"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldFailToGetDataForAKeyThatWasNotAdded() throws Exception {
+        Patient patient = createPatient().age(30).save();
+        SinglePatientDataLoader loader = new SinglePatientDataLoader(patient.getPatientId());
+        loader.add("birthDate", baseData.getBirthdate());
+        loader.load();
+        loader.get("notAdded");
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.pihmalawi.metadata;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.openmrs.Concept;
+import org.openmrs.EncounterType;
+import org.openmrs.Program;
+import org.openmrs.ProgramWorkflow;
+
+/**
+ * Tests the MetadataCache
+ */
+public class MetadataCacheTest {
+
+    @Test
+    public void shouldReturnCachedValuesByRegionAndKey() throws Exception {
+        MetadataCache cache = new MetadataCache();
+        EncounterType encounterType = new EncounterType();
+        cache.put(EncounterType.class, "ART_FOLLOWUP", encounterType);
+
+        Assert.assertSame(encounterType, cache.get(EncounterType.class, "ART_FOLLOWUP"));
+        Assert.assertNull(cache.get(Program.class, "ART_FOLLOWUP"));
+        Assert.assertNull(cache.get(EncounterType.class, "ART_INITIAL"));
+    }
+
+    @Test
+    public void shouldTrackTheHitRateOfEachRegion() throws Exception {
+        MetadataCache cache = new MetadataCache();
+        Assert.assertEquals(0, cache.getHitRate(Concept.class), 0);
+
+        cache.get(Concept.class, "CD4 count");
+        cache.put(Concept.class, "CD4 count", new Concept());
+        cache.get(Concept.class, "CD4 count");
+        cache.get(Concept.class, "CD4 count");
+        cache.get(Concept.class, "CD4 count");
+
+        Assert.assertEquals(0.75, cache.getHitRate(Concept.class), 0);
+        Assert.assertEquals("1 cached, 3 hits of 4 lookups", cache.getStatistics().get("Concept"));
+    }
+
+    @Test
+    public void shouldClearOnlyTheGivenRegions() throws Exception {
+        MetadataCache cache = new MetadataCache();
+        cache.put(Program.class, "HIV PROGRAM", new Program());
+        cache.put(ProgramWorkflow.class, "HIV PROGRAM|TREATMENT STATUS", new ProgramWorkflow());
+        cache.put(EncounterType.class, "ART_FOLLOWUP", new EncounterType());
+
+        cache.clear(MetadataCache.INVALIDATED_REGIONS.get(Program.class).toArray(new Class<?>[0]));
+        Assert.assertNull(cache.get(Program.class, "HIV PROGRAM"));
+        Assert.assertNull(cache.get(ProgramWorkflow.class, "HIV PROGRAM|TREATMENT STATUS"));
+        Assert.assertNotNull(cache.get(EncounterType.class, "ART_FOLLOWUP"));
+
+        cache.clearAll();
+        Assert.assertNull(cache.get(EncounterType.class, "ART_FOLLOWUP"));
+    }
+
+    @Test
+    public void shouldNotCacheValuesWhileDisabled() throws Exception {
+        MetadataCache cache = new MetadataCache();
+        cache.put(EncounterType.class, "ART_FOLLOWUP", new EncounterType());
+
+        cache.setEnabled(false);
+        Assert.assertFalse(cache.isEnabled());
+        Assert.assertNull(cache.get(EncounterType.class, "ART_FOLLOWUP"));
+        cache.put(EncounterType.class, "ART_FOLLOWUP", new EncounterType());
+        Assert.assertNull(cache.get(EncounterType.class, "ART_FOLLOWUP"));
+
+        cache.setEnabled(true);
+        cache.put(EncounterType.class, "ART_FOLLOWUP", new EncounterType());
+        Assert.assertNotNull(cache.get(EncounterType.class, "ART_FOLLOWUP"));
+    }
+}
@@ -0,0 +1,122 @@
+package org.openmrs.module.pihmalawi.reporting.definition.cohort.evaluator;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.Cohort;
+import org.openmrs.Location;
+import org.openmrs.Patient;
+import org.openmrs.PatientIdentifier;
+import org.openmrs.PatientProgram;
+import org.openmrs.PatientState;
+import org.openmrs.ProgramWorkflowState;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.pihmalawi.BaseMalawiTest;
+import org.openmrs.module.pihmalawi.reporting.definition.cohort.definition.HccCohortDefinition;
+import org.openmrs.module.reporting.cohort.definition.service.CohortDefinitionService;
+import org.openmrs.module.reporting.common.DateUtil;
+import org.openmrs.module.reporting.evaluation.EvaluationContext;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Set;
+
+public class HccCohortDefinitionEvaluatorTest extends BaseMalawiTest {
+
+	@Autowired
+	CohortDefinitionService cohortDefinitionService;
+
+	Date enrollmentDate = DateUtil.getDateTime(2018, 1, 15);
+	Date endDate = DateUtil.getDateTime(2018, 6, 30);
+	Date afterEndDate = DateUtil.getDateTime(2018, 7, 15);
+
+	Location neno;
+	Location outpatient;
+
+	Patient preArtWithHccAtNeno;
+	Patient preArtWithHccElsewhere;
+	Patient exposedChildWithHccAtOutpatient;
+	Patient preArtAfterEndDate;
+	Patient preArtInVoidedState;
+	Patient preArtWithVoidedHcc;
+
+	@Before
+	public void setup() throws Exception {
+		neno = hivMetadata.getNenoHospital();
+		outpatient = hivMetadata.getOutpatientLocation();
+		ProgramWorkflowState preArt = hivMetadata.getPreArtState();
+		ProgramWorkflowState exposedChild = hivMetadata.getExposedChildState();
+
+		preArtWithHccAtNeno = createHivPatient(preArt, neno, enrollmentDate, neno);
+		preArtWithHccElsewhere = createHivPatient(preArt, neno, enrollmentDate, outpatient);
+		exposedChildWithHccAtOutpatient = createHivPatient(exposedChild, outpatient, enrollmentDate, outpatient);
+		preArtAfterEndDate = createHivPatient(preArt, neno, afterEndDate, neno);
+
+		preArtInVoidedState = createHivPatient(preArt, neno, enrollmentDate, neno);
+		PatientProgram pp = tdm.getProgramWorkflowService().getPatientPrograms(preArtInVoidedState, hivMetadata.getHivProgram(), null, null, null, null, false).get(0);
+		for (PatientState ps : pp.getStates()) {
+			ps.setVoided(true);
+			ps.setVoidReason("Testing");
+			ps.setVoidedBy(Context.getAuthenticatedUser());
+			ps.setDateVoided(new Date());
+		}
+		tdm.getProgramWorkflowService().savePatientProgram(pp);
+
+		preArtWithVoidedHcc = createHivPatient(preArt, neno, enrollmentDate, neno);
+		PatientIdentifier hcc = preArtWithVoidedHcc.getPatientIdentifier(hivMetadata.getHccNumberIdentifierType());
+		Context.getPatientService().voidPatientIdentifier(hcc, "Testing");
+	}
+
+	@Test
+	public void shouldReturnTheSameCohortWhetherOrNotPartitionedByLocation() throws Exception {
+		EvaluationContext partitionedContext = new EvaluationContext();
+		EvaluationContext locationContext = new EvaluationContext();
+		for (Location location : Arrays.asList(neno, outpatient, null)) {
+			for (boolean includeOld : new boolean[] {false, true}) {
+				Cohort partitioned = evaluate(location, includeOld, true, partitionedContext);
+				Cohort expected = evaluate(location, includeOld, false, locationContext);
+				Assert.assertEquals(location + (includeOld ? " including old patients" : ""), expected.getMemberIds(), partitioned.getMemberIds());
+			}
+		}
+	}
+
+	@Test
+	public void shouldReturnPatientsWithAnHccNumberAtTheLocationOfTheirState() throws Exception {
+		for (boolean partitionByLocation : new boolean[] {true, false}) {
+			EvaluationContext context = new EvaluationContext();
+			assertCohort(evaluate(neno, false, partitionByLocation, context), preArtWithHccAtNeno);
+			assertCohort(evaluate(outpatient, false, partitionByLocation, context), exposedChildWithHccAtOutpatient);
+			assertCohort(evaluate(neno, true, partitionByLocation, context), preArtWithHccAtNeno, preArtWithHccElsewhere, preArtWithVoidedHcc);
+		}
+	}
+
+	protected Cohort evaluate(Location location, boolean includeOld, boolean partitionByLocation, EvaluationContext context) throws Exception {
+		HccCohortDefinition cd = new HccCohortDefinition();
+		cd.setEndDate(endDate);
+		cd.setLocation(location);
+		cd.setIncludeOldPreArtPatients(includeOld);
+		cd.setPartitionByLocation(partitionByLocation);
+		return cohortDefinitionService.evaluate(cd, context);
+	}
+
+	protected Patient createHivPatient(ProgramWorkflowState state, Location programLocation, Date stateStartDate, Location hccLocation) {
+		Patient p = createPatient().save();
+		PatientIdentifier hcc = new PatientIdentifier("NNO " + p.getPatientId() + " HCC", hivMetadata.getHccNumberIdentifierType(), hccLocation);
+		p.addIdentifier(hcc);
+		Context.getPatientService().savePatientIdentifier(hcc);
+		PatientProgram pp = createPatientProgram(p, hivMetadata.getHivProgram(), stateStartDate, null).save();
+		pp.setLocation(programLocation);
+		createState(pp, state, stateStartDate);
+		return p;
+	}
+
+	protected void assertCohort(Cohort actual, Patient... expected) {
+		Set<Integer> expectedIds = new HashSet<Integer>();
+		for (Patient p : expected) {
+			expectedIds.add(p.getPatientId());
+		}
+		Assert.assertEquals(expectedIds, actual.getMemberIds());
+	}
+}
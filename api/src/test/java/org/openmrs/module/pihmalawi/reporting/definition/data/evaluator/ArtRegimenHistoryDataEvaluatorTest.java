@@ -10,18 +10,27 @@ import org.openmrs.Patient;
 import org.openmrs.module.pihmalawi.BaseMalawiTest;
 import org.openmrs.module.pihmalawi.common.ArtRegimen;
 import org.openmrs.module.pihmalawi.metadata.HivMetadata;
+import org.openmrs.module.pihmalawi.reporting.definition.data.converter.ArvLineRegimenChangeConverter;
 import org.openmrs.module.pihmalawi.reporting.definition.data.converter.RegimenChangeConverter;
 import org.openmrs.module.pihmalawi.reporting.definition.data.definition.ArtRegimenHistoryDataDefinition;
+import org.openmrs.module.pihmalawi.reporting.library.DataFactory;
+import org.openmrs.module.reporting.common.BeanPropertyComparator;
 import org.openmrs.module.reporting.common.DateUtil;
+import org.openmrs.module.reporting.data.converter.DataConverter;
 import org.openmrs.module.reporting.data.patient.PatientData;
+import org.openmrs.module.reporting.data.patient.definition.PatientDataDefinition;
 import org.openmrs.module.reporting.evaluation.EvaluationContext;
 import org.openmrs.module.reporting.evaluation.EvaluationException;
 import org.openmrs.test.SkipBaseSetup;
 import org.springframework.beans.factory.annotation.Autowired;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 @SkipBaseSetup
 public class ArtRegimenHistoryDataEvaluatorTest extends BaseMalawiTest {
@@ -29,6 +38,9 @@ public class ArtRegimenHistoryDataEvaluatorTest extends BaseMalawiTest {
     @Autowired
     HivMetadata hivMetadata;
 
+    @Autowired
+    DataFactory df;
+
 	@Test
 	public void shouldTestArtRegimenHistory() throws Exception {
 
@@ -82,6 +94,112 @@ public class ArtRegimenHistoryDataEvaluatorTest extends BaseMalawiTest {
         check(changes, 3, d5, reg3);
 	}
 
+	@Test
+	public void shouldReturnTheSameRegimensAsEvaluatingEachObsDefinitionSeparately() throws Exception {
+
+		Date endDate = DateUtil.getDateTime(2018, 7, 1);
+		Cohort cohort = new Cohort();
+
+		Patient p1 = createPatient().save();
+		Encounter p1Initial = createEncounter(p1, hivMetadata.getArtInitialEncounterType(), DateUtil.getDateTime(2012, 3, 1)).save();
+		createObs(p1Initial, hivMetadata.getArvDrugsChange1Concept(), hivMetadata.getArvRegimen2aConcept()).save();
+		createObs(p1Initial, hivMetadata.getDateOfStartingFirstLineArvsConcept(), DateUtil.getDateTime(2012, 2, 20)).save();
+		createObs(p1Initial, hivMetadata.getArvDrugsChange3Concept(), hivMetadata.getArvRegimen6aConcept()).save();
+		createFollowup(p1, hivMetadata.getArvRegimen2aConcept(), DateUtil.getDateTime(2012, 6, 1));
+		createFollowup(p1, hivMetadata.getArvRegimen4aConcept(), DateUtil.getDateTime(2014, 6, 1));
+		createFollowup(p1, hivMetadata.getArvRegimen6aConcept(), DateUtil.getDateTime(2019, 1, 1));
+		cohort.addMember(p1.getPatientId());
+
+		Patient p2 = createPatient().save();
+		Encounter p2Initial = createEncounter(p2, hivMetadata.getArtInitialEncounterType(), DateUtil.getDateTime(2016, 1, 10)).save();
+		createObs(p2Initial, hivMetadata.getArvDrugsChange2Concept(), hivMetadata.getArvRegimen4aConcept()).save();
+		createObs(p2Initial, hivMetadata.getDateOfStartingAlternativeFirstLineArvsConcept(), DateUtil.getDateTime(2016, 1, 10)).save();
+		createObs(p2Initial, hivMetadata.getDateOfStartingSecondLineArvsConcept(), DateUtil.getDateTime(2017, 5, 5)).save();
+		createFollowup(p2, hivMetadata.getArvRegimen4aConcept(), DateUtil.getDateTime(2016, 1, 10));
+		createFollowup(p2, hivMetadata.getArvRegimen6aConcept(), DateUtil.getDateTime(2017, 9, 1));
+		cohort.addMember(p2.getPatientId());
+
+		Patient p3 = createPatient().save();
+		createEncounter(p3, hivMetadata.getArtInitialEncounterType(), DateUtil.getDateTime(2017, 1, 1)).save();
+		cohort.addMember(p3.getPatientId());
+
+		EvaluationContext context = new EvaluationContext();
+		context.setBaseCohort(cohort);
+		context.addParameterValue("endDate", endDate);
+
+		Map<Integer, List<ArtRegimen>> expected = evaluateEachObsDefinitionSeparately(context);
+		ArtRegimenHistoryDataDefinition def = new ArtRegimenHistoryDataDefinition();
+		def.setEndDate(endDate);
+		Map<Integer, Object> actual = patientDataService.evaluate(def, context).getData();
+
+		Assert.assertEquals(expected.keySet(), actual.keySet());
+		Assert.assertFalse(actual.containsKey(p3.getPatientId()));
+		for (Integer pId : expected.keySet()) {
+			List<ArtRegimen> expectedRegimens = expected.get(pId);
+			List<ArtRegimen> actualRegimens = (List<ArtRegimen>) actual.get(pId);
+			Assert.assertEquals(expectedRegimens.size(), actualRegimens.size());
+			for (int i = 0; i < expectedRegimens.size(); i++) {
+				Assert.assertEquals(expectedRegimens.get(i).getRegimenDate(), actualRegimens.get(i).getRegimenDate());
+				Assert.assertEquals(expectedRegimens.get(i).getRegimen(), actualRegimens.get(i).getRegimen());
+				Assert.assertEquals(expectedRegimens.get(i).getDateObs(), actualRegimens.get(i).getDateObs());
+			}
+		}
+
+		// The IC3 screening columns built on the regimen history
+		checkLatestChange(hivPatientDataLibrary.getLatestArtRegimenChangeByEndDate("regimenDate"), new RegimenChangeConverter(), expected, context);
+		checkLatestChange(hivPatientDataLibrary.getLatestArtLineRegimenChangeByEndDate("regimenDate"), new ArvLineRegimenChangeConverter(), expected, context);
+	}
+
+	protected void checkLatestChange(PatientDataDefinition def, DataConverter changeConverter, Map<Integer, List<ArtRegimen>> regimens, EvaluationContext context) throws EvaluationException {
+		Map<Integer, Object> actual = patientDataService.evaluate(def, context).getData();
+		for (Integer pId : regimens.keySet()) {
+			List<ArtRegimen> changes = (List<ArtRegimen>) changeConverter.convert(regimens.get(pId));
+			Date expected = (changes == null || changes.isEmpty() ? null : changes.get(changes.size() - 1).getRegimenDate());
+			Assert.assertEquals(expected, actual.get(pId));
+		}
+	}
+
+	/**
+	 * The regimen history as it was built before all obs were loaded in a single query
+	 */
+	protected Map<Integer, List<ArtRegimen>> evaluateEachObsDefinitionSeparately(EvaluationContext context) throws EvaluationException {
+		Map<Integer, List<ArtRegimen>> ret = new HashMap<Integer, List<ArtRegimen>>();
+		addRegimens(ret, hivMetadata.getArvDrugsReceivedConcept(), null, context);
+		addRegimens(ret, hivMetadata.getArvDrugsChange1Concept(), hivMetadata.getDateOfStartingFirstLineArvsConcept(), context);
+		addRegimens(ret, hivMetadata.getArvDrugsChange2Concept(), hivMetadata.getDateOfStartingAlternativeFirstLineArvsConcept(), context);
+		addRegimens(ret, hivMetadata.getArvDrugsChange3Concept(), hivMetadata.getDateOfStartingSecondLineArvsConcept(), context);
+		for (List<ArtRegimen> regimens : ret.values()) {
+			Collections.sort(regimens, new BeanPropertyComparator("regimenDate asc"));
+		}
+		return ret;
+	}
+
+	protected void addRegimens(Map<Integer, List<ArtRegimen>> ret, Concept regimenQuestion, Concept dateQuestion, EvaluationContext context) throws EvaluationException {
+		Map<Integer, Object> regimenObsData = patientDataService.evaluate(df.getAllObsByEndDate(regimenQuestion, null, null), context).getData();
+		Map<Integer, Object> dateObsData = new HashMap<Integer, Object>();
+		if (dateQuestion != null) {
+			dateObsData = patientDataService.evaluate(df.getAllObsByEndDate(dateQuestion, null, null), context).getData();
+		}
+		for (Integer pId : regimenObsData.keySet()) {
+			Map<Integer, ArtRegimen> regimenForEncounter = new LinkedHashMap<Integer, ArtRegimen>();
+			for (Obs regimenObs : (List<Obs>) regimenObsData.get(pId)) {
+				regimenForEncounter.put(regimenObs.getEncounter().getEncounterId(), new ArtRegimen(regimenObs));
+			}
+			if (dateObsData.get(pId) != null) {
+				for (Obs dateObs : (List<Obs>) dateObsData.get(pId)) {
+					ArtRegimen regimen = regimenForEncounter.get(dateObs.getEncounter().getEncounterId());
+					if (regimen != null) {
+						regimen.setDateObs(dateObs);
+					}
+				}
+			}
+			if (!ret.containsKey(pId)) {
+				ret.put(pId, new ArrayList<ArtRegimen>());
+			}
+			ret.get(pId).addAll(regimenForEncounter.values());
+		}
+	}
+
 	protected void check(List<ArtRegimen> regimenData, int whichRegimen, Date regimenDate, Concept regimenConcept) {
 	    ArtRegimen regimen = regimenData.get(whichRegimen-1);
 	    Assert.assertEquals(regimenDate, regimen.getRegimenDate());
@@ -63,7 +63,7 @@ public class HivTestResultPatientDataEvaluatorTest extends BaseMalawiTest {
             int expectedIndex = results.size()-i-1;
             Concept expectedType = (expectedTypes[expectedIndex] == null ? null : hivMetadata.getConcept(expectedTypes[expectedIndex]));
             Concept expectedResult = hivMetadata.getConcept(expectedResults[expectedIndex]);
-            testResult(r, r.getTestResultObs().getObsDatetime(), expectedType, expectedResult);
+            testResult(r, r.getTestResultObsDatetime(), expectedType, expectedResult);
         }
 
         // Test limiting by endDate
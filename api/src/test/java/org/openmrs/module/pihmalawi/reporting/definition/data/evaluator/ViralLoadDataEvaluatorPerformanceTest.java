@@ -0,0 +1,317 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.pihmalawi.reporting.definition.data.evaluator;
+
+import org.apache.commons.lang.time.StopWatch;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.junit.Assert;
+import org.openmrs.Cohort;
+import org.openmrs.Concept;
+import org.openmrs.Obs;
+import org.openmrs.module.pihmalawi.StandaloneContextSensitiveTest;
+import org.openmrs.module.pihmalawi.common.JsonObject;
+import org.openmrs.module.pihmalawi.common.ViralLoad;
+import org.openmrs.module.pihmalawi.metadata.HivMetadata;
+import org.openmrs.module.pihmalawi.reporting.definition.data.definition.ViralLoadDataDefinition;
+import org.openmrs.module.reporting.common.BeanPropertyComparator;
+import org.openmrs.module.reporting.common.ObjectUtil;
+import org.openmrs.module.reporting.data.patient.EvaluatedPatientData;
+import org.openmrs.module.reporting.data.patient.service.PatientDataService;
+import org.openmrs.module.reporting.evaluation.EvaluationContext;
+import org.openmrs.module.reporting.evaluation.EvaluationException;
+import org.openmrs.module.reporting.evaluation.querybuilder.HqlQueryBuilder;
+import org.openmrs.module.reporting.evaluation.service.EvaluationService;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Compares the ViralLoadDataEvaluator against the previous implementation, which used a separate query for
+ * each type of viral load observation, for all patients with a viral load in a standalone database
+ */
+public class ViralLoadDataEvaluatorPerformanceTest extends StandaloneContextSensitiveTest {
+
+	private final static Log log = LogFactory.getLog(ViralLoadDataEvaluatorPerformanceTest.class);
+
+	@Autowired
+	HivMetadata hivMetadata;
+
+	@Autowired
+	EvaluationService evaluationService;
+
+	@Autowired
+	PatientDataService patientDataService;
+
+	@Override
+	protected boolean isEnabled() {
+		return false;
+	}
+
+	@Override
+	protected void performTest() throws Exception {
+		HqlQueryBuilder patientQuery = new HqlQueryBuilder();
+		patientQuery.select("distinct o.personId");
+		patientQuery.from(Obs.class, "o");
+		patientQuery.whereEqual("o.concept", hivMetadata.getHivViralLoadConcept());
+
+		EvaluationContext context = new EvaluationContext();
+		context.setBaseCohort(new Cohort(evaluationService.evaluateToList(patientQuery, Integer.class, context)));
+		ViralLoadDataDefinition def = new ViralLoadDataDefinition();
+		def.setEndDate(new Date());
+		log.warn("Evaluating viral loads for " + context.getBaseCohort().size() + " patients");
+
+		StopWatch sw = new StopWatch();
+		sw.start();
+		EvaluatedPatientData previous = evaluateWithSeparateQueries(def, context.shallowCopy());
+		sw.stop();
+		long previousTime = sw.getTime();
+		log.warn("Separate queries: " + sw.toString());
+
+		sw.reset();
+		sw.start();
+		EvaluatedPatientData current = patientDataService.evaluate(def, context.shallowCopy());
+		sw.stop();
+		log.warn("Single query: " + sw.toString() + " (previously " + previousTime + "ms)");
+
+		// The previous implementation merged all ungrouped viral load obs for a patient, regardless of encounter,
+		// so only patients whose viral loads are all within obs groups are expected to be identical
+		int numCompared = 0;
+		int numUngrouped = 0;
+		for (Integer pId : context.getBaseCohort().getMemberIds()) {
+			List<ViralLoad> expected = (List<ViralLoad>) previous.getData().get(pId);
+			List<ViralLoad> actual = (List<ViralLoad>) current.getData().get(pId);
+			if (hasUngroupedViralLoad(expected) || hasUngroupedViralLoad(actual)) {
+				numUngrouped++;
+			}
+			else {
+				Assert.assertEquals("Viral loads for patient " + pId, toJson(expected), toJson(actual));
+				numCompared++;
+			}
+		}
+		log.warn("Compared " + numCompared + " patients, skipped " + numUngrouped + " patients with ungrouped viral loads");
+	}
+
+	protected boolean hasUngroupedViralLoad(List<ViralLoad> viralLoads) {
+		if (viralLoads != null) {
+			for (ViralLoad vl : viralLoads) {
+				if (vl.getGroupId() == null) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	protected Set<JsonObject> toJson(List<ViralLoad> viralLoads) {
+		Set<JsonObject> ret = new HashSet<JsonObject>();
+		if (viralLoads != null) {
+			for (ViralLoad vl : viralLoads) {
+				ret.add(vl.toJsonObject());
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * The previous implementation of ViralLoadDataEvaluator
+	 */
+	protected EvaluatedPatientData evaluateWithSeparateQueries(ViralLoadDataDefinition def, EvaluationContext context) throws EvaluationException {
+		EvaluatedPatientData c = new EvaluatedPatientData(def, context);
+
+		// Viral Load Specimen Date (Bled)
+
+        {
+            HqlQueryBuilder q = new HqlQueryBuilder();
+            q.select("o.personId", "e.encounterId", "g.obsId", "e.encounterDatetime");
+            q.from(Obs.class, "o");
+            q.innerJoin("o.encounter", "e");
+            q.leftOuterJoin("o.obsGroup", "g");
+            q.wherePersonIn("o.personId", context);
+            q.whereEqual("o.concept", hivMetadata.getHivViralLoadSpecimenCollectedConcept());
+            q.whereEqual("o.valueCoded", hivMetadata.getTrueConcept());
+            q.whereLessOrEqualTo("o.obsDatetime", def.getEndDate());
+            q.orderAsc("o.obsDatetime");
+
+            List<Object[]> results = evaluationService.evaluateToList(q, context);
+            for (Object[] row : results) {
+                ViralLoad vl = getViralLoadForPatient(c.getData(), (Integer) row[0], (Integer) row[1], (Integer) row[2]);
+                vl.setSpecimenDate((Date) row[3]);
+            }
+        }
+
+        // Numeric Viral Load Results
+
+        {
+            HqlQueryBuilder q = new HqlQueryBuilder();
+            q.select("o.personId", "e.encounterId", "g.obsId", "o.obsDatetime", "o.valueNumeric", "e.encounterDatetime");
+            q.from(Obs.class, "o");
+            q.innerJoin("o.encounter", "e");
+            q.leftOuterJoin("o.obsGroup", "g");
+            q.wherePersonIn("o.personId", context);
+            q.whereEqual("o.concept", hivMetadata.getHivViralLoadConcept());
+            q.whereLessOrEqualTo("o.obsDatetime", def.getEndDate());
+            q.orderAsc("o.obsDatetime");
+
+            List<Object[]> results = evaluationService.evaluateToList(q, context);
+            for (Object[] row : results) {
+                ViralLoad vl = getViralLoadForPatient(c.getData(), (Integer) row[0], (Integer) row[1], (Integer) row[2]);
+                vl.setResultDate((Date) row[3]);
+                vl.setResultNumeric((Double) row[4]);
+                if (vl.getSpecimenDate() == null) {
+                    vl.setSpecimenDate((Date) row[5]); // If result does not match up with a collection obs, use encounter date as specimen collection date
+                }
+            }
+        }
+
+
+        // Numeric Less Than Viral Load Results
+
+        {
+            HqlQueryBuilder q = new HqlQueryBuilder();
+            q.select("o.personId", "e.encounterId", "g.obsId", "o.obsDatetime", "o.valueNumeric", "e.encounterDatetime");
+            q.from(Obs.class, "o");
+            q.innerJoin("o.encounter", "e");
+            q.leftOuterJoin("o.obsGroup", "g");
+            q.wherePersonIn("o.personId", context);
+            q.whereEqual("o.concept", hivMetadata.getHivLessThanViralLoadConcept());
+            q.whereLessOrEqualTo("o.obsDatetime", def.getEndDate());
+            q.orderAsc("o.obsDatetime");
+
+            List<Object[]> results = evaluationService.evaluateToList(q, context);
+            for (Object[] row : results) {
+                ViralLoad vl = getViralLoadForPatient(c.getData(), (Integer) row[0], (Integer) row[1], (Integer) row[2]);
+                vl.setResultDate((Date) row[3]);
+                vl.setLessThanResultNumeric((Double) row[4]);
+                if (vl.getSpecimenDate() == null) {
+                    vl.setSpecimenDate((Date) row[5]); // If result does not match up with a collection obs, use encounter date as specimen collection date
+                }
+            }
+        }
+
+        // LDL Viral Load Results
+
+        {
+            HqlQueryBuilder q = new HqlQueryBuilder();
+            q.select("o.personId", "e.encounterId", "g.obsId", "o.obsDatetime", "e.encounterDatetime");
+            q.from(Obs.class, "o");
+            q.innerJoin("o.encounter", "e");
+            q.leftOuterJoin("o.obsGroup", "g");
+            q.wherePersonIn("o.personId", context);
+            q.whereEqual("o.concept", hivMetadata.getHivLDLConcept());
+            q.whereEqual("o.valueCoded", hivMetadata.getTrueConcept());
+            q.whereLessOrEqualTo("o.obsDatetime", def.getEndDate());
+            q.orderAsc("o.obsDatetime");
+
+            List<Object[]> results = evaluationService.evaluateToList(q, context);
+            for (Object[] row : results) {
+                ViralLoad vl = getViralLoadForPatient(c.getData(), (Integer) row[0], (Integer) row[1], (Integer) row[2]);
+                vl.setResultDate((Date) row[3]);
+                vl.setResultLdl(true);
+                if (vl.getSpecimenDate() == null) {
+                    vl.setSpecimenDate((Date) row[4]); // If result does not match up with a collection obs, use encounter date as specimen collection date
+                }
+            }
+        }
+
+        // Reason For Test and Reason No Result
+
+        Concept reasonForTest = hivMetadata.getReasonForTestingConcept();
+		Concept reasonNoResult = hivMetadata.getReasonNoResultConcept();
+
+        {
+            HqlQueryBuilder q = new HqlQueryBuilder();
+            q.select("o.personId", "e.encounterId", "g.obsId", "o.concept", "o.valueCoded", "o.obsDatetime");
+            q.from(Obs.class, "o");
+            q.innerJoin("o.encounter", "e");
+            q.leftOuterJoin("o.obsGroup", "g");
+            q.wherePersonIn("o.personId", context);
+            q.whereIn("o.concept", Arrays.asList(hivMetadata.getReasonForTestingConcept(), hivMetadata.getReasonNoResultConcept()));
+            q.whereNotNull("o.obsGroup");
+            q.whereEqual("o.obsGroup.concept", hivMetadata.getHivViralLoadTestSetConcept());
+            q.whereLessOrEqualTo("o.obsDatetime", def.getEndDate());
+            q.orderAsc("o.obsDatetime");
+
+            List<Object[]> results = evaluationService.evaluateToList(q, context);
+            for (Object[] row : results) {
+                ViralLoad vl = getViralLoadForPatient(c.getData(), (Integer) row[0], (Integer) row[1], (Integer) row[2]);
+                Concept question = (Concept)row[3];
+                Concept answer = (Concept)row[4];
+                if (question.equals(reasonForTest)) {
+                    vl.setReasonForTest(answer);
+                }
+                else if (question.equals(reasonNoResult)) {
+                    vl.setReasonNoResult(answer);
+                    vl.setResultDate((Date)row[5]);
+                }
+                else {
+                    throw new EvaluationException("Unhandled question: " + question.getUuid());
+                }
+            }
+        }
+
+        for (Integer pId : c.getData().keySet()) {
+		    List<ViralLoad> l = (List<ViralLoad>) c.getData().get(pId);
+		    if (l != null) {
+                for (Iterator<ViralLoad> i = l.iterator(); i.hasNext();) {
+                    ViralLoad vl = i.next();
+                    if (vl.getSpecimenDate() == null && vl.getResultDate() == null) {
+                        log.debug("Dangling viral load obs group found: " + vl.getGroupId());
+                        i.remove();  // Remove any viral loads that have neither a collection nor any result data
+                    }
+                }
+                Collections.sort(l, new BeanPropertyComparator("effectiveDate asc"));
+            }
+        }
+
+		return c;
+	}
+
+	protected ViralLoad getViralLoadForPatient(Map<Integer, Object> data, Integer pId, Integer encId, Integer groupId) {
+        List<ViralLoad> l = (List<ViralLoad>) data.get(pId);
+        if (l == null) {
+            l = new ArrayList<ViralLoad>();
+            data.put(pId, l);
+        }
+        ViralLoad vl = getMatchingViralLoad(l, encId, groupId);
+        if (vl == null) {
+            vl = new ViralLoad();
+            l.add(vl);
+        }
+        vl.setEncounterId(encId);
+        vl.setGroupId(groupId);
+        return vl;
+    }
+
+    protected ViralLoad getMatchingViralLoad(List<ViralLoad> viralLoads, Integer encId, Integer obsGroupId) {
+	    for (ViralLoad vl : viralLoads) {
+	        if (ObjectUtil.areEqual(vl.getGroupId(), obsGroupId)) {
+	            return vl;
+            }
+            if (vl.getGroupId() == null && obsGroupId == null && ObjectUtil.areEqual(vl.getEncounterId(), encId)) {
+                return vl;
+            }
+        }
+        return null;
+    }
+}
@@ -97,6 +97,39 @@ public class ViralLoadDataEvaluatorTest extends BaseMalawiTest {
 
     }
 
+    @Test
+    public void shouldTestViralLoadsInSeparateEncountersAndGroups() throws Exception {
+
+        Patient patient = createPatient().save();
+        Date effectiveDate = new Date();
+
+        // An ungrouped result in the first encounter
+        Encounter encounter1 = createEncounter(patient, hivMetadata.getArtFollowupEncounterType(), DateUtil.getDateTime(2016, 8, 3)).save();
+        createObs(encounter1, hivMetadata.getHivViralLoadSpecimenCollectedConcept(), hivMetadata.getTrueConcept()).save();
+        Obs ldlResult = createObs(encounter1, hivMetadata.getHivLDLConcept(), hivMetadata.getTrueConcept()).save();
+
+        // An ungrouped result in the second encounter
+        Encounter encounter2 = createEncounter(patient, hivMetadata.getArtFollowupEncounterType(), DateUtil.getDateTime(2017, 2, 10)).save();
+        Obs numericResult = createObs(encounter2, hivMetadata.getHivViralLoadConcept(), 1500L).save();
+
+        ViralLoad expectedVl1 = new ViralLoad();
+        expectedVl1.setEncounterId(encounter1.getId());
+        expectedVl1.setSpecimenDate(encounter1.getEncounterDatetime());
+        expectedVl1.setResultLdl(true);
+        expectedVl1.setResultDate(ldlResult.getObsDatetime());
+        testViralLoad(patient.getId(), 2, 1, effectiveDate, expectedVl1);
+
+        ViralLoad expectedVl2 = new ViralLoad();
+        expectedVl2.setEncounterId(encounter2.getId());
+        expectedVl2.setSpecimenDate(encounter2.getEncounterDatetime());
+        expectedVl2.setResultNumeric(numericResult.getValueNumeric());
+        expectedVl2.setResultDate(numericResult.getObsDatetime());
+        testViralLoad(patient.getId(), 2, 2, effectiveDate, expectedVl2);
+
+        // Only viral loads on or before the end date are included
+        testViralLoad(patient.getId(), 1, 1, DateUtil.getDateTime(2016, 12, 31), expectedVl1);
+    }
+
     protected void testViralLoad(Integer pId, int totalNum, Integer whichNum, Date endDate, ViralLoad expectedVl) {
         EvaluationContext context = new EvaluationContext();
         context.setBaseCohort(new Cohort());
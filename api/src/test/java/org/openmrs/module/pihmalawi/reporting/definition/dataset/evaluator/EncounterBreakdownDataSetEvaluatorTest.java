@@ -0,0 +1,132 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.pihmalawi.reporting.definition.dataset.evaluator;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.Encounter;
+import org.openmrs.EncounterType;
+import org.openmrs.Location;
+import org.openmrs.Patient;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.pihmalawi.BaseMalawiTest;
+import org.openmrs.module.pihmalawi.reporting.definition.dataset.definition.EncounterBreakdownDataSetDefinition;
+import org.openmrs.module.reporting.common.DateUtil;
+import org.openmrs.module.reporting.dataset.DataSetRow;
+import org.openmrs.module.reporting.dataset.MapDataSet;
+import org.openmrs.module.reporting.dataset.definition.service.DataSetDefinitionService;
+import org.openmrs.module.reporting.evaluation.EvaluationContext;
+import org.openmrs.test.SkipBaseSetup;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import java.util.Date;
+
+@SkipBaseSetup
+public class EncounterBreakdownDataSetEvaluatorTest extends BaseMalawiTest {
+
+    @Autowired
+    DataSetDefinitionService dataSetDefinitionService;
+
+    Patient patient;
+    Location neno;
+    Location otherLocation;
+    String nenoKey;
+
+    @Before
+    public void setup() throws Exception {
+        patient = createPatient().save();
+        neno = hivMetadata.getNenoHospital();
+        int nenoIndex = hivMetadata.getSystemLocations().indexOf(neno);
+        Assert.assertTrue(nenoIndex >= 0);
+        nenoKey = "loc" + (nenoIndex + 1);
+
+        otherLocation = new Location();
+        otherLocation.setName("Encounter Breakdown Test Clinic");
+        otherLocation = Context.getLocationService().saveLocation(otherLocation);
+
+        EncounterType artInitial = hivMetadata.getArtInitialEncounterType();
+        EncounterType artFollowup = hivMetadata.getArtFollowupEncounterType();
+        EncounterType otherType = ccMetadata.getHtnDiabetesInitialEncounterType();
+
+        // The last week of the report, ending on the last day in full
+        createEncounter(artInitial, neno, DateUtil.getDateTime(2019, 6, 30, 15, 0, 0, 0));
+        createEncounter(artFollowup, hivMetadata.getOutpatientLocation(), DateUtil.getDateTime(2019, 6, 24, 8, 0, 0, 0));
+
+        // The week before, starting at the start of its first day
+        createEncounter(artFollowup, neno, DateUtil.getDateTime(2019, 6, 23, 12, 0, 0, 0));
+        createEncounter(otherType, neno, DateUtil.getDateTime(2019, 6, 20, 9, 0, 0, 0));
+        createEncounter(artFollowup, otherLocation, DateUtil.getDateTime(2019, 6, 17, 0, 30, 0, 0));
+
+        // Outside of the report period
+        createEncounter(artInitial, neno, DateUtil.getDateTime(2019, 6, 16, 23, 0, 0, 0));
+        createEncounter(artInitial, neno, DateUtil.getDateTime(2019, 7, 1, 8, 0, 0, 0));
+    }
+
+    @Test
+    public void shouldCountEncountersByWeekTypeAndLocation() throws Exception {
+        DataSetRow row = evaluate(EncounterBreakdownDataSetDefinition.Grouping.Location);
+        Assert.assertEquals(neno.getName(), row.getColumnValue(nenoKey + "name"));
+
+        assertCount(row, nenoKey + "enc1ago0", 1);
+        assertCount(row, nenoKey + "enc2ago0", 1);
+        assertCount(row, nenoKey + "otherencago0", 0);
+        assertCount(row, nenoKey + "enc1ago1", 0);
+        assertCount(row, nenoKey + "enc2ago1", 1);
+        assertCount(row, nenoKey + "otherencago1", 1);
+        assertCount(row, "locotherenc2ago0", 0);
+        assertCount(row, "locotherenc2ago1", 1);
+        Assert.assertNull(row.getColumnValue(nenoKey + "enc1ago2"));
+    }
+
+    @Test
+    public void shouldCountEncountersByWeekTypeAndUser() throws Exception {
+        DataSetRow row = evaluate(EncounterBreakdownDataSetDefinition.Grouping.User);
+        Assert.assertEquals(Context.getAuthenticatedUser().getUsername(), row.getColumnValue("user1name"));
+
+        assertCount(row, "user1enc1ago0", 1);
+        assertCount(row, "user1enc2ago0", 1);
+        assertCount(row, "user1otherencago0", 0);
+        assertCount(row, "user1enc1ago1", 0);
+        assertCount(row, "user1enc2ago1", 2);
+        assertCount(row, "user1otherencago1", 1);
+        assertCount(row, "userotherenc2ago1", 0);
+    }
+
+    protected DataSetRow evaluate(EncounterBreakdownDataSetDefinition.Grouping grouping) throws Exception {
+        EncounterBreakdownDataSetDefinition dsd = new EncounterBreakdownDataSetDefinition();
+        dsd.setEndDate(DateUtil.getDateTime(2019, 6, 30));
+        dsd.setNumberOfWeeks(2);
+        dsd.addType(hivMetadata.getArtInitialEncounterType());
+        dsd.addType(hivMetadata.getArtFollowupEncounterType());
+        dsd.setGrouping(grouping);
+        MapDataSet data = (MapDataSet) dataSetDefinitionService.evaluate(dsd, new EvaluationContext());
+        return data.getData();
+    }
+
+    protected void assertCount(DataSetRow row, String column, int expected) {
+        Assert.assertEquals(column, expected, row.getColumnValue(column));
+    }
+
+    /**
+     * Saves an encounter, and then sets the date it was created, which the breakdown is based on
+     */
+    protected Encounter createEncounter(EncounterType type, Location location, Date dateCreated) {
+        Encounter e = createEncounter(patient, type, dateCreated).location(location).save();
+        String dateCreatedStr = DateUtil.formatDate(dateCreated, "yyyy-MM-dd HH:mm:ss");
+        Context.getAdministrationService().executeSQL("update encounter set date_created = '" + dateCreatedStr + "' where encounter_id = " + e.getEncounterId(), false);
+        return e;
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.pihmalawi.sql;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Properties;
+
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests the SqlConnectionPool class
+ */
+public class SqlConnectionPoolTest {
+
+    @Test
+    public void shouldReuseAReturnedConnection() throws Exception {
+        TestSqlConnectionPool pool = new TestSqlConnectionPool(5, 600);
+        Connection connection = pool.borrowConnection();
+        Assert.assertEquals(1, pool.getNumActive());
+        pool.returnConnection(connection);
+        Assert.assertEquals(0, pool.getNumActive());
+        Assert.assertEquals(1, pool.getNumIdle());
+
+        Assert.assertSame(connection, pool.borrowConnection());
+        Assert.assertEquals(1, pool.getNumOpened());
+        Assert.assertEquals(2, pool.getNumBorrowed());
+        Assert.assertEquals(1, pool.getNumReused());
+        verify(connection, never()).close();
+    }
+
+    @Test
+    public void shouldOpenANewConnectionWhenAllAreInUse() throws Exception {
+        TestSqlConnectionPool pool = new TestSqlConnectionPool(5, 600);
+        Connection first = pool.borrowConnection();
+        Connection second = pool.borrowConnection();
+        Assert.assertNotSame(first, second);
+        Assert.assertEquals(2, pool.getNumActive());
+        Assert.assertEquals(2, pool.getNumOpened());
+        Assert.assertEquals(0, pool.getNumReused());
+    }
+
+    @Test
+    public void shouldCloseAndReplaceAnInvalidConnection() throws Exception {
+        TestSqlConnectionPool pool = new TestSqlConnectionPool(5, 600);
+        Connection connection = pool.borrowConnection();
+        pool.returnConnection(connection);
+        when(connection.isValid(anyInt())).thenReturn(false);
+
+        Connection replacement = pool.borrowConnection();
+        Assert.assertNotSame(connection, replacement);
+        verify(connection).close();
+        Assert.assertEquals(1, pool.getNumInvalid());
+        Assert.assertEquals(2, pool.getNumOpened());
+        Assert.assertEquals(0, pool.getNumReused());
+    }
+
+    @Test
+    public void shouldCloseConnectionsThatHaveBeenIdleLongerThanTheIdleTimeout() throws Exception {
+        TestSqlConnectionPool pool = new TestSqlConnectionPool(5, 0);
+        Connection connection = pool.borrowConnection();
+        pool.returnConnection(connection);
+        Thread.sleep(10);
+
+        pool.closeExpiredConnections();
+        verify(connection).close();
+        Assert.assertEquals(0, pool.getNumIdle());
+        Assert.assertEquals(1, pool.getNumExpired());
+        Assert.assertNotSame(connection, pool.borrowConnection());
+    }
+
+    @Test
+    public void shouldResetTheSessionOfAReturnedConnection() throws Exception {
+        TestSqlConnectionPool pool = new TestSqlConnectionPool(5, 600);
+        Connection connection = pool.borrowConnection();
+        pool.returnConnection(connection);
+        Assert.assertEquals(1, pool.sessionsReset);
+    }
+
+    @Test
+    public void shouldCloseAConnectionWhoseSessionCannotBeReset() throws Exception {
+        TestSqlConnectionPool pool = new TestSqlConnectionPool(5, 600);
+        pool.canResetSession = false;
+        Connection connection = pool.borrowConnection();
+        pool.returnConnection(connection);
+        verify(connection).close();
+        Assert.assertEquals(0, pool.getNumIdle());
+        Assert.assertEquals(0, pool.getNumActive());
+        Assert.assertNotSame(connection, pool.borrowConnection());
+    }
+
+    @Test
+    public void shouldNotResetTheSessionOfAConnectionThatDoesNotSupportIt() throws Exception {
+        SqlConnectionPool pool = new SqlConnectionPool("test", new Properties());
+        Assert.assertFalse(pool.resetSession(mock(Connection.class)));
+    }
+
+    @Test
+    public void shouldNotReturnAClosedConnectionToThePool() throws Exception {
+        TestSqlConnectionPool pool = new TestSqlConnectionPool(5, 600);
+        Connection connection = pool.borrowConnection();
+        when(connection.isClosed()).thenReturn(true);
+        pool.returnConnection(connection);
+        Assert.assertEquals(0, pool.getNumIdle());
+        Assert.assertEquals(0, pool.getNumActive());
+    }
+
+    @Test
+    public void shouldCloseAConnectionWhoseStateCannotBeChecked() throws Exception {
+        TestSqlConnectionPool pool = new TestSqlConnectionPool(5, 600);
+        Connection connection = pool.borrowConnection();
+        when(connection.isClosed()).thenThrow(new SQLException("Communications link failure"));
+        pool.returnConnection(connection);
+        verify(connection).close();
+        Assert.assertEquals(0, pool.getNumIdle());
+        Assert.assertEquals(0, pool.getNumActive());
+    }
+
+    @Test
+    public void shouldCloseAConnectionReturnedAfterThePoolIsClosed() throws Exception {
+        TestSqlConnectionPool pool = new TestSqlConnectionPool(5, 600);
+        Connection idle = pool.borrowConnection();
+        Connection borrowed = pool.borrowConnection();
+        pool.returnConnection(idle);
+
+        pool.close();
+        Assert.assertTrue(pool.isClosed());
+        verify(idle).close();
+        verify(borrowed, never()).close();
+
+        pool.returnConnection(borrowed);
+        verify(borrowed).close();
+        Assert.assertEquals(0, pool.getNumIdle());
+        Assert.assertEquals(0, pool.getNumActive());
+    }
+
+    @Test(expected = SQLException.class)
+    public void shouldReleaseThePermitIfAConnectionCannotBeOpened() throws Exception {
+        TestSqlConnectionPool pool = new TestSqlConnectionPool(1, 600);
+        pool.failToOpen = true;
+        try {
+            pool.borrowConnection();
+        }
+        finally {
+            Assert.assertEquals(0, pool.getNumActive());
+        }
+    }
+
+    /**
+     * A pool that opens mock connections, which are valid unless stubbed otherwise, and whose sessions can be reset
+     */
+    private static class TestSqlConnectionPool extends SqlConnectionPool {
+
+        private boolean failToOpen = false;
+        private boolean canResetSession = true;
+        private int sessionsReset = 0;
+
+        public TestSqlConnectionPool(int maxSize, int idleTimeoutSeconds) {
+            super("test", new Properties(), maxSize, idleTimeoutSeconds, 1);
+        }
+
+        @Override
+        protected Connection openConnection() throws SQLException {
+            if (failToOpen) {
+                throw new SQLException("Unable to open connection");
+            }
+            Connection connection = mock(Connection.class);
+            when(connection.isValid(anyInt())).thenReturn(true);
+            return connection;
+        }
+
+        @Override
+        protected boolean resetSession(Connection connection) {
+            if (canResetSession) {
+                sessionsReset++;
+            }
+            return canResetSession;
+        }
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.pihmalawi.sql;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.List;
+
+/**
+ * Tests the SqlRunner class
+ */
+public class SqlRunnerTest {
+
+    @Test
+    public void shouldParseProcedureDefinedWithinDelimiterBlock() throws Exception {
+        StringBuilder sql = new StringBuilder();
+        sql.append("-- Create a procedure\n");
+        sql.append("DROP PROCEDURE IF EXISTS create_test;\n");
+        sql.append("DELIMITER $$\n");
+        sql.append("CREATE PROCEDURE create_test()\n");
+        sql.append("BEGIN\n");
+        sql.append("  DROP TABLE IF EXISTS test;\n");
+        sql.append("  CREATE TABLE test (id INT);\n");
+        sql.append("END\n");
+        sql.append("$$\n");
+        sql.append("DELIMITER ;\n");
+        sql.append("/* Call it */\n");
+        sql.append("CALL create_test();\n");
+
+        List<String> statements = new SqlRunner(null).parseSqlIntoStatements(sql.toString());
+
+        Assert.assertEquals(3, statements.size());
+        Assert.assertEquals("DROP PROCEDURE IF EXISTS create_test", statements.get(0));
+        Assert.assertTrue(statements.get(1).startsWith("CREATE PROCEDURE create_test()"));
+        Assert.assertTrue(statements.get(1).contains("CREATE TABLE test (id INT);"));
+        Assert.assertEquals("CALL create_test()", statements.get(2));
+    }
+}
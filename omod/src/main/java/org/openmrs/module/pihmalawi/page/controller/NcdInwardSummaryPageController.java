@@ -16,7 +16,6 @@ package org.openmrs.module.pihmalawi.page.controller;
 import org.apache.commons.collections.comparators.ReverseComparator;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.openmrs.Cohort;
 import org.openmrs.Concept;
 import org.openmrs.Encounter;
 import org.openmrs.EncounterType;
@@ -24,6 +23,7 @@ import org.openmrs.Obs;
 import org.openmrs.Patient;
 import org.openmrs.api.context.Context;
 import org.openmrs.module.emrapi.patient.PatientDomainWrapper;
+import org.openmrs.module.pihmalawi.data.SinglePatientDataLoader;
 import org.openmrs.module.pihmalawi.metadata.ChronicCareMetadata;
 import org.openmrs.module.pihmalawi.reporting.library.BasePatientDataLibrary;
 import org.openmrs.module.pihmalawi.reporting.library.ChronicCarePatientDataLibrary;
@@ -77,42 +77,78 @@ public class NcdInwardSummaryPageController {
         model.addAttribute("patient", patientDomainWrapper);
         model.addAttribute("dateUtil", new DateUtil());
 
-        EvaluationContext context = new EvaluationContext();
-        context.setBaseCohort(new Cohort(Arrays.asList(patient.getPatientId())));
-
         try {
 
+            // Evaluate everything the page needs for this patient together, rather than one definition at a time
+
+            SinglePatientDataLoader loader = new SinglePatientDataLoader(patient.getPatientId());
+
             // Demographics, identifiers
 
-            model.addAttribute("firstName", evaluate(builtInData.getPreferredGivenName(), context));
-            model.addAttribute( "lastName", evaluate(builtInData.getPreferredFamilyName(), context));
-            model.addAttribute( "birthDate", evaluate(baseData.getBirthdate(), context));
-            model.addAttribute( "village", evaluate(baseData.getVillage(), context));
-            model.addAttribute( "chw", evaluate(baseData.getChw(), context));
-            model.addAttribute( "ageYears", evaluate(baseData.getAgeAtEndInYears(), context));
-            model.addAttribute( "ageMonths", evaluate(baseData.getAgeAtEndInMonths(), context));
-            model.addAttribute( "gender", evaluate(builtInData.getGender(), context));
-            model.addAttribute( "hccNumber", evaluate(hivData.getHccNumberAtLocation(), context));
-            model.addAttribute( "arvNumber", evaluate(hivData.getArvNumberAtLocation(), context));
-            model.addAttribute( "ccNumber", evaluate(ccData.getChronicCareNumberAtLocation(), context));
+            loader.add("firstName", builtInData.getPreferredGivenName());
+            loader.add("lastName", builtInData.getPreferredFamilyName());
+            loader.add("birthDate", baseData.getBirthdate());
+            loader.add("village", baseData.getVillage());
+            loader.add("chw", baseData.getChw());
+            loader.add("ageYears", baseData.getAgeAtEndInYears());
+            loader.add("ageMonths", baseData.getAgeAtEndInMonths());
+            loader.add("gender", builtInData.getGender());
+            loader.add("hccNumber", hivData.getHccNumberAtLocation());
+            loader.add("arvNumber", hivData.getArvNumberAtLocation());
+            loader.add("ccNumber", ccData.getChronicCareNumberAtLocation());
 
             // Program enrollment status
 
-            model.addAttribute("hivEnrollmentDate", evaluate(hivData.getEarliestHivProgramEnrollmentDateByEndDate(), context));
-            model.addAttribute( "hivTxStatus", evaluate(hivData.getMostRecentHivTreatmentStatusStateNameByEndDate(), context));
-            model.addAttribute( "hivTxStatusDate", evaluate(hivData.getMostRecentHivTreatmentStatusStateStartDateByEndDate(), context));
-            model.addAttribute( "hivFirstVisitDate", evaluate(hivData.getFirstHivEncounterDateByEndDate(), context));
-            model.addAttribute( "hivLastVisitDate", evaluate(hivData.getMostRecentHivEncounterDateByEndDate(), context));
-            model.addAttribute( "artAppointmentStatus", evaluate(hivData.getArtAppointmentStatus(), context));
-            model.addAttribute( "ccTxStatus", evaluate(ccData.getMostRecentChronicCareTreatmentStatusStateAtLocationByEndDate(), context));
-            model.addAttribute( "ccTxStatusDate", evaluate(ccData.getMostRecentChronicCareTreatmentStatusStateStartDateAtLocationByEndDate(), context));
-            model.addAttribute( "ccDxObs", evaluate(ccData.getAllChronicCareDiagnosisObsByEndDate(), context));
+            loader.add("hivEnrollmentDate", hivData.getEarliestHivProgramEnrollmentDateByEndDate());
+            loader.add("hivTxStatus", hivData.getMostRecentHivTreatmentStatusStateNameByEndDate());
+            loader.add("hivTxStatusDate", hivData.getMostRecentHivTreatmentStatusStateStartDateByEndDate());
+            loader.add("hivFirstVisitDate", hivData.getFirstHivEncounterDateByEndDate());
+            loader.add("hivLastVisitDate", hivData.getMostRecentHivEncounterDateByEndDate());
+            loader.add("artAppointmentStatus", hivData.getArtAppointmentStatus());
+            loader.add("ccTxStatus", ccData.getMostRecentChronicCareTreatmentStatusStateAtLocationByEndDate());
+            loader.add("ccTxStatusDate", ccData.getMostRecentChronicCareTreatmentStatusStateStartDateAtLocationByEndDate());
+            loader.add("ccDxObs", ccData.getAllChronicCareDiagnosisObsByEndDate());
+
+            // Weight, height, blood pressure, blood sugar, seizures
+
+            loader.add("weights", baseData.getAllWeightObservations());
+            loader.add("height", baseData.getLatestHeightObs());
+            loader.add("lastSystolicBp", df.getMostRecentObsByEndDate(ccMetadata.getSystolicBloodPressureConcept(), null, null));
+            loader.add("lastDiastolicBp", df.getMostRecentObsByEndDate(ccMetadata.getDiastolicBloodPressureConcept(), null, null));
+            loader.add("lastHba1cResult", df.getMostRecentObsByEndDate(ccMetadata.getHbA1cConcept(), null, null));
+            loader.add("lastBloodSugarResult", df.getMostRecentObsByEndDate(ccMetadata.getBloodSugarTestResultConcept(), null, null));
+            loader.add("sbp", df.getAllObsByEndDate(ccMetadata.getSystolicBloodPressureConcept(), null, null));
+            loader.add("dbp", df.getAllObsByEndDate(ccMetadata.getDiastolicBloodPressureConcept(), null, null));
+            loader.add("bs", df.getAllObsByEndDate(ccMetadata.getBloodSugarTestResultConcept(), null, null));
+            loader.add("bst", df.getAllObsByEndDate(ccMetadata.getBloodSugarTestTypeConcept(), null, null));
+            loader.add("seizures", df.getAllObsByEndDate(ccMetadata.getNumberOfSeizuresConcept(), null, null));
+
+            // Encounters for each diagnosis section
+
+            DiagnosisSection htnSection = new DiagnosisSection("htn", "Hypertension", ccMetadata.getHtnDiabetesEncounterTypes());
+            DiagnosisSection diabetesSection = new DiagnosisSection("diabetes", "Diabetes", ccMetadata.getHtnDiabetesEncounterTypes());
+            DiagnosisSection epilepsySection = new DiagnosisSection("epilepsy", "Epilepsy", ccMetadata.getEpilepsyEncounterTypes());
+            DiagnosisSection asthmaSection = new DiagnosisSection("asthma", "Asthma / COPD", ccMetadata.getAsthmaEncounterTypes());
+            DiagnosisSection mhSection = new DiagnosisSection("mh", "Mental Health", ccMetadata.getMentalHealthEncounterTypes());
+
+            List<DiagnosisSection> diagnosisSections = Arrays.asList(htnSection, diabetesSection, epilepsySection, asthmaSection, mhSection);
+            for (DiagnosisSection section : diagnosisSections) {
+                loader.add(section.getKey() + "EarliestEncounterDate", ccData.getFirstEncounterDateByEndDate(section.getTypes()));
+                loader.add(section.getKey() + "LatestEncounter", df.getMostRecentEncounterOfTypesByEndDate(section.getTypes(), null));
+            }
+
+            loader.load();
+
+            for (String key : new String[] {"firstName", "lastName", "birthDate", "village", "chw", "ageYears", "ageMonths", "gender", "hccNumber", "arvNumber", "ccNumber",
+                    "hivEnrollmentDate", "hivTxStatus", "hivTxStatusDate", "hivFirstVisitDate", "hivLastVisitDate", "artAppointmentStatus", "ccTxStatus", "ccTxStatusDate", "ccDxObs"}) {
+                model.addAttribute(key, loader.get(key));
+            }
 
             // Weight, height, BMI
 
-            List<Obs> weights = (List<Obs>) evaluate(baseData.getAllWeightObservations(), context);
+            List<Obs> weights = loader.get("weights");
             Obs weight = getLastValue(weights, Obs.class);
-            Obs height = (Obs) evaluate(baseData.getLatestHeightObs(), context);
+            Obs height = loader.get("height");
             model.addAttribute("weights", weights);
             model.addAttribute("height", height);
             model.addAttribute("weight", weight);
@@ -127,13 +163,6 @@ public class NcdInwardSummaryPageController {
 
             List<Obs> dxObs = (List<Obs>)model.getAttribute("ccDxObs");
 
-            DiagnosisSection htnSection = new DiagnosisSection("htn", "Hypertension", ccMetadata.getHtnDiabetesEncounterTypes());
-            DiagnosisSection diabetesSection = new DiagnosisSection("diabetes", "Diabetes", ccMetadata.getHtnDiabetesEncounterTypes());
-            DiagnosisSection epilepsySection = new DiagnosisSection("epilepsy", "Epilepsy", ccMetadata.getEpilepsyEncounterTypes());
-            DiagnosisSection asthmaSection = new DiagnosisSection("asthma", "Asthma / COPD", ccMetadata.getAsthmaEncounterTypes());
-            DiagnosisSection mhSection = new DiagnosisSection("mh", "Mental Health", ccMetadata.getMentalHealthEncounterTypes());
-
-            List<DiagnosisSection> diagnosisSections = Arrays.asList(htnSection, diabetesSection, epilepsySection, asthmaSection, mhSection);
             if (dxObs != null) {
                 for (DiagnosisSection section : diagnosisSections) {
                     for (Obs o : dxObs) {
@@ -152,31 +181,42 @@ public class NcdInwardSummaryPageController {
                 }
             }
 
+            // The next appointment and medications depend on the date of each section's latest encounter, so are loaded afterwards
+
+            for (DiagnosisSection section : diagnosisSections) {
+                Encounter latestEncounter = loader.get(section.getKey() + "LatestEncounter");
+                if (section.getRows().size() > 0 && latestEncounter != null) {
+                    loader.add(section.getKey() + "NextApptDateObs", df.getMostRecentObsOnGivenDate(ccMetadata.getAppointmentDateConcept(), latestEncounter.getEncounterDatetime()));
+                    loader.add(section.getKey() + "Meds", df.getAllObsOnGivenDate(ccMetadata.getCurrentDrugsUsedConcept(), latestEncounter.getEncounterDatetime()));
+                }
+            }
+            loader.load();
+
             for (DiagnosisSection section : diagnosisSections) {
                 if (section.getRows().size() > 0) {
-                    section.setEarliestEncounterDate((Date)evaluate(ccData.getFirstEncounterDateByEndDate(section.getTypes()), context));
-                    Encounter latestEncounter = (Encounter)evaluate(df.getMostRecentEncounterOfTypesByEndDate(section.getTypes(), null), context);
+                    section.setEarliestEncounterDate((Date)loader.get(section.getKey() + "EarliestEncounterDate"));
+                    Encounter latestEncounter = loader.get(section.getKey() + "LatestEncounter");
                     if (latestEncounter != null) {
                         section.setLatestEncounterDate(latestEncounter.getEncounterDatetime());
-                        Obs nextApptDateObs = (Obs) evaluate(df.getMostRecentObsOnGivenDate(ccMetadata.getAppointmentDateConcept(), latestEncounter.getEncounterDatetime()), context);
+                        Obs nextApptDateObs = loader.get(section.getKey() + "NextApptDateObs");
                         if (nextApptDateObs != null) {
                             section.setNextAppointmentDate(nextApptDateObs.getValueDatetime());
                         }
 
                         if (section.getKey().equals("htn") || section.getKey().equals("diabetes")) {
                             String bp = "None recorded";
-                            Obs lastSystolicBp = (Obs) evaluate(df.getMostRecentObsByEndDate(ccMetadata.getSystolicBloodPressureConcept(), null, null), context);
-                            Obs lastDiastolicBp = (Obs) evaluate(df.getMostRecentObsByEndDate(ccMetadata.getDiastolicBloodPressureConcept(), null, null), context);
+                            Obs lastSystolicBp = loader.get("lastSystolicBp");
+                            Obs lastDiastolicBp = loader.get("lastDiastolicBp");
                             if (lastSystolicBp != null && lastDiastolicBp != null) {
                                 bp = lastSystolicBp.getValueNumeric().intValue() + " / " + lastDiastolicBp.getValueNumeric().intValue();
                             }
                             section.addObsValue("Last Blood Pressure", bp);
                         }
                         if (section.getKey().equals("diabetes")) {
-                            Obs lastHba1cResult = (Obs) evaluate(df.getMostRecentObsByEndDate(ccMetadata.getHbA1cConcept(), null, null), context);
+                            Obs lastHba1cResult = loader.get("lastHba1cResult");
                             section.addObsValue("Last HbA1c result", ui.format(lastHba1cResult));
 
-                            Obs bloodSugarResult = (Obs) evaluate(df.getMostRecentObsByEndDate(ccMetadata.getBloodSugarTestResultConcept(), null, null), context);
+                            Obs bloodSugarResult = loader.get("lastBloodSugarResult");
                             if (bloodSugarResult != null) {
                                 Obs bloodSugarTestType = getSibling(bloodSugarResult, ccMetadata.getBloodSugarTestTypeConcept());
                                 String resultStr = ui.format(bloodSugarResult) + " on " + ui.format(bloodSugarResult.getObsDatetime());
@@ -187,7 +227,7 @@ public class NcdInwardSummaryPageController {
                             }
                         }
 
-                        List<Obs> meds = (List<Obs>)evaluate(df.getAllObsOnGivenDate(ccMetadata.getCurrentDrugsUsedConcept(), latestEncounter.getEncounterDatetime()), context);
+                        List<Obs> meds = loader.get(section.getKey() + "Meds");
                         section.setCurrentMedications(meds);
                     }
                 }
@@ -207,14 +247,15 @@ public class NcdInwardSummaryPageController {
             model.addAttribute("sectionLayout", sectionLayout);
 
             Map<Date, Map<String, Obs>> bpTable = new TreeMap<Date, Map<String, Obs>>(new ReverseComparator());
-            addObsToTable(bpTable, "sbp", (List<Obs>)evaluate(df.getAllObsByEndDate(ccMetadata.getSystolicBloodPressureConcept(), null, null), context));
-            addObsToTable(bpTable, "dbp", (List<Obs>)evaluate(df.getAllObsByEndDate(ccMetadata.getDiastolicBloodPressureConcept(), null, null), context));
-            addObsToTable(bpTable, "bs", (List<Obs>) evaluate(df.getAllObsByEndDate(ccMetadata.getBloodSugarTestResultConcept(), null, null), context));
-            addObsToTable(bpTable, "bst", (List<Obs>) evaluate(df.getAllObsByEndDate(ccMetadata.getBloodSugarTestTypeConcept(), null, null), context));
+            for (String key : new String[] {"sbp", "dbp", "bs", "bst"}) {
+                addObsToTable(bpTable, key, (List<Obs>) loader.get(key));
+            }
             model.addAttribute("bpTable", bpTable);
 
-            List<Obs> seizures = (List<Obs>) evaluate(df.getAllObsByEndDate(ccMetadata.getNumberOfSeizuresConcept(), null, null), context);
+            List<Obs> seizures = loader.get("seizures");
             model.addAttribute("seizures", seizures);
+
+            log.debug("Loaded NCD inward summary data for patient " + patient.getId() + " in " + loader.getLoadTimeMillis() + " ms");
         }
         catch (Exception e) {
             model.addAttribute("errors", e.getMessage());
@@ -26,6 +26,7 @@ import org.openmrs.api.context.Context;
 import org.openmrs.module.emrapi.patient.PatientDomainWrapper;
 import org.openmrs.module.pihmalawi.common.AppointmentInfo;
 import org.openmrs.module.pihmalawi.common.ViralLoad;
+import org.openmrs.module.pihmalawi.data.SinglePatientDataLoader;
 import org.openmrs.module.pihmalawi.metadata.ChronicCareMetadata;
 import org.openmrs.module.pihmalawi.metadata.HivMetadata;
 import org.openmrs.module.pihmalawi.reporting.library.BasePatientDataLibrary;
@@ -41,11 +42,9 @@ import org.openmrs.module.reporting.common.ObjectUtil;
 import org.openmrs.module.reporting.common.TimeQualifier;
 import org.openmrs.module.reporting.data.converter.DataConverter;
 import org.openmrs.module.reporting.data.converter.ObsValueConverter;
-import org.openmrs.module.reporting.data.patient.PatientData;
 import org.openmrs.module.reporting.data.patient.definition.PatientDataDefinition;
 import org.openmrs.module.reporting.data.patient.definition.PersonToPatientDataDefinition;
 import org.openmrs.module.reporting.data.patient.library.BuiltInPatientDataLibrary;
-import org.openmrs.module.reporting.data.patient.service.PatientDataService;
 import org.openmrs.module.reporting.data.person.definition.ObsForPersonDataDefinition;
 import org.openmrs.module.reporting.dataset.definition.PatientDataSetDefinition;
 import org.openmrs.module.reporting.dataset.definition.service.DataSetDefinitionService;
@@ -65,7 +64,6 @@ import java.util.Date;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 
 public class PrintableSummaryPageController {
 
@@ -92,26 +90,56 @@ public class PrintableSummaryPageController {
         Date today = new Date();
 
         try {
-            EvaluationContext context = getSinglePatientEvaluationContext(patient.getPatientId());
-            model.addAttribute("firstName", getData(builtInData.getPreferredGivenName(), context));
-            model.addAttribute("lastName", getData(builtInData.getPreferredFamilyName(), context));
-            model.addAttribute("birthDate", getData(baseData.getBirthdate(), context));
-            model.addAttribute("ageYears", getData(baseData.getAgeAtEndInYears(), context));
-            model.addAttribute("ageMonths", getData(baseData.getAgeAtEndInMonths(), context));
-            model.addAttribute("gender", getData(builtInData.getGender(), context));
-            model.addAttribute("hccNumber", getData(hivData.getHccNumberAtLocation(), context));
-            model.addAttribute("arvNumber", getData(hivData.getArvNumberAtLocation(), context));
-            model.addAttribute("ccNumber", getData(ccData.getChronicCareNumberAtLocation(), context));
-            model.addAttribute("hivTxStatus", getData(hivData.getMostRecentHivTreatmentStatusStateNameByEndDate(), context));
-            model.addAttribute("hivTxStatusDate", getData(hivData.getMostRecentHivTreatmentStatusStateStartDateByEndDate(), context));
-            model.addAttribute("ccTxStatus", getData(ccData.getMostRecentChronicCareTreatmentStatusStateAtLocationByEndDate(), context));
-            model.addAttribute("ccTxStatusDate", getData(ccData.getMostRecentChronicCareTreatmentStatusStateStartDateAtLocationByEndDate(), context));
-            model.addAttribute("artStartDate", getData(hivData.getEarliestOnArvsStateStartDateByEndDate(), context));
-            model.addAttribute("artRegimens", getData(hivData.getArvRegimenChangesByEndDate(), context));
-            model.addAttribute("cd4s", getData(hivData.getCd4CountObservations(), context));
-            model.addAttribute("tbStatus", getData(hivData.getLatestTbStatusObs(), context));
+            // Evaluate everything the page needs for this patient together, rather than one definition at a time
+            SinglePatientDataLoader loader = new SinglePatientDataLoader(patient.getPatientId());
+            loader.add("firstName", builtInData.getPreferredGivenName());
+            loader.add("lastName", builtInData.getPreferredFamilyName());
+            loader.add("birthDate", baseData.getBirthdate());
+            loader.add("ageYears", baseData.getAgeAtEndInYears());
+            loader.add("ageMonths", baseData.getAgeAtEndInMonths());
+            loader.add("gender", builtInData.getGender());
+            loader.add("hccNumber", hivData.getHccNumberAtLocation());
+            loader.add("arvNumber", hivData.getArvNumberAtLocation());
+            loader.add("ccNumber", ccData.getChronicCareNumberAtLocation());
+            loader.add("hivTxStatus", hivData.getMostRecentHivTreatmentStatusStateNameByEndDate());
+            loader.add("hivTxStatusDate", hivData.getMostRecentHivTreatmentStatusStateStartDateByEndDate());
+            loader.add("ccTxStatus", ccData.getMostRecentChronicCareTreatmentStatusStateAtLocationByEndDate());
+            loader.add("ccTxStatusDate", ccData.getMostRecentChronicCareTreatmentStatusStateStartDateAtLocationByEndDate());
+            loader.add("artStartDate", hivData.getEarliestOnArvsStateStartDateByEndDate());
+            loader.add("artRegimens", hivData.getArvRegimenChangesByEndDate());
+            loader.add("cd4s", hivData.getCd4CountObservations());
+            loader.add("tbStatus", hivData.getLatestTbStatusObs());
+            loader.add("viralLoads", hivData.getAllViralLoadsByEndDate());
+            loader.add("height", baseData.getLatestHeightObs());
+            loader.add("weights", baseData.getAllWeightObservations());
+            loader.add("artInitialDate", hivData.getFirstArtInitialEncounterDateByEndDate());
+            loader.add("encounters", baseData.getAllEncounters());
+            loader.add("eidAppointment", hivData.getEidAppointmentStatus());
+            loader.add("artAppointment", hivData.getArtAppointmentStatus());
 
-            List<ViralLoad> viralLoads = getData(hivData.getAllViralLoadsByEndDate(), context);
+            List<ProgramWorkflowState> activeNcdStates = ccMetadata.getActiveChronicCareStates();
+
+            List<EncounterType> ncdTypes = new ArrayList<EncounterType>();
+            ncdTypes.add(ccMetadata.getHtnDiabetesFollowupEncounterType());
+            ncdTypes.add(ccMetadata.getEpilepsyFollowupEncounterType());
+            ncdTypes.add(ccMetadata.getAsthmaFollowupEncounterType());
+            ncdTypes.add(ccMetadata.getCkdFollowupEncounterType());
+            ncdTypes.add(ccMetadata.getPalliativeCareFollowupEncounterType());
+            ncdTypes.add(ccMetadata.getChfFollowupEncounterType());
+            ncdTypes.add(ccMetadata.getNcdOtherFollowupEncounterType());
+            ncdTypes.add(ccMetadata.getMentalHealthFollowupEncounterType());
+            for (EncounterType et : ncdTypes) {
+                loader.add("ncdAppointment-" + et.getUuid(), df.getAppointmentStatus(activeNcdStates, et));
+            }
+
+            loader.load();
+
+            for (String key : new String[] {"firstName", "lastName", "birthDate", "ageYears", "ageMonths", "gender", "hccNumber", "arvNumber", "ccNumber",
+                    "hivTxStatus", "hivTxStatusDate", "ccTxStatus", "ccTxStatusDate", "artStartDate", "artRegimens", "cd4s", "tbStatus"}) {
+                model.addAttribute(key, loader.get(key));
+            }
+
+            List<ViralLoad> viralLoads = loader.get("viralLoads");
             String lastViralLoadValue = null;
             Date lastViralLoadDate = null;
             Boolean highViralLoad = false;
@@ -141,10 +169,10 @@ public class PrintableSummaryPageController {
             model.addAttribute("lastViralLoadDate", lastViralLoadDate);
             model.addAttribute("highViralLoad", highViralLoad);
 
-            Obs ht = getData(baseData.getLatestHeightObs(), context);
+            Obs ht = loader.get("height");
             model.addAttribute("height", ht);
 
-            List<Obs> weights = getData(baseData.getAllWeightObservations(), context);
+            List<Obs> weights = loader.get("weights");
             Obs wt = getLastValue(weights);
             Obs oneYearWt = getValueAtLeastXMonthsBeforeLastValue(weights, 12);
             model.addAttribute("weights", weights);
@@ -159,48 +187,46 @@ public class PrintableSummaryPageController {
                 model.put("bmiValue", bmi);
             }
 
-            Date aid = getData(hivData.getFirstArtInitialEncounterDateByEndDate(), context);
-            model.addAttribute("reasonCd4", getObsValueOnDate(hivMetadata.getCd4CountConcept(), aid, context));
-            model.addAttribute("reasonCd4Pct", getObsValueOnDate(hivMetadata.getCd4PercentConcept(), aid, context));
-            model.addAttribute("reasonCd4Date", getObsValueOnDate(hivMetadata.getCd4DateConcept(), aid, context));
-            model.addAttribute("reasonKs", getObsValueOnDate(hivMetadata.getKsSideEffectsWorseningOnArvsConcept(), aid, context));
-            model.addAttribute("reasonTb", getObsValueOnDate(hivMetadata.getTbTreatmentStatusConcept(), aid, context));
-            model.addAttribute("reasonStage", getObsValueOnDate(hivMetadata.getWhoStageConcept(), aid, context));
-            model.addAttribute("reasonPshd", getObsValueOnDate(hivMetadata.getPresumedSevereHivCriteriaPresentConcept(), aid, context));
-            model.addAttribute("reasonConditions", getObsValueOnDate(hivMetadata.getWhoClinicalConditionsConcept(), aid, context));
-            model.addAttribute("reasonPregnantLactating", getObsValueOnDate(hivMetadata.getPregnantOrLactatingConcept(), aid, context));
+            // The reasons for starting ART depend on the date of the ART initial encounter, so are loaded afterwards
+            Date aid = loader.get("artInitialDate");
+            Map<String, Concept> reasonConcepts = new LinkedHashMap<String, Concept>();
+            reasonConcepts.put("reasonCd4", hivMetadata.getCd4CountConcept());
+            reasonConcepts.put("reasonCd4Pct", hivMetadata.getCd4PercentConcept());
+            reasonConcepts.put("reasonCd4Date", hivMetadata.getCd4DateConcept());
+            reasonConcepts.put("reasonKs", hivMetadata.getKsSideEffectsWorseningOnArvsConcept());
+            reasonConcepts.put("reasonTb", hivMetadata.getTbTreatmentStatusConcept());
+            reasonConcepts.put("reasonStage", hivMetadata.getWhoStageConcept());
+            reasonConcepts.put("reasonPshd", hivMetadata.getPresumedSevereHivCriteriaPresentConcept());
+            reasonConcepts.put("reasonConditions", hivMetadata.getWhoClinicalConditionsConcept());
+            reasonConcepts.put("reasonPregnantLactating", hivMetadata.getPregnantOrLactatingConcept());
+            for (Map.Entry<String, Concept> e : reasonConcepts.entrySet()) {
+                loader.add(e.getKey(), getObsOnDate(e.getValue(), aid));
+            }
+            loader.load();
+            ObsValueConverter converter = new ObsValueConverter();
+            for (String key : reasonConcepts.keySet()) {
+                model.addAttribute(key, converter.convert(loader.get(key)));
+            }
 
-            List<Encounter> encounters = getData(baseData.getAllEncounters(), context);
+            List<Encounter> encounters = loader.get("encounters");
             Collections.reverse(encounters);
             model.addAttribute("encounters", encounters);
 
             Map<String, List<AppointmentInfo>> appts = new LinkedHashMap<String, List<AppointmentInfo>>();
 
-            AppointmentInfo eidApp = getData(hivData.getEidAppointmentStatus(), context);
+            AppointmentInfo eidApp = loader.get("eidAppointment");
             if (eidApp.isCurrentlyEnrolled()) {
                 appts.put("EID", Arrays.asList(eidApp));
             }
 
-            AppointmentInfo artApp = getData(hivData.getArtAppointmentStatus(), context);
+            AppointmentInfo artApp = loader.get("artAppointment");
             if (artApp.isCurrentlyEnrolled()) {
                 appts.put("ART", Arrays.asList(artApp));
             }
 
             List<AppointmentInfo> ncdList = new ArrayList<AppointmentInfo>();
-
-            List<ProgramWorkflowState> activeNcdStates = ccMetadata.getActiveChronicCareStates();
-
-            List<EncounterType> ncdTypes = new ArrayList<EncounterType>();
-            ncdTypes.add(ccMetadata.getHtnDiabetesFollowupEncounterType());
-            ncdTypes.add(ccMetadata.getEpilepsyFollowupEncounterType());
-            ncdTypes.add(ccMetadata.getAsthmaFollowupEncounterType());
-            ncdTypes.add(ccMetadata.getCkdFollowupEncounterType());
-            ncdTypes.add(ccMetadata.getPalliativeCareFollowupEncounterType());
-            ncdTypes.add(ccMetadata.getChfFollowupEncounterType());
-            ncdTypes.add(ccMetadata.getNcdOtherFollowupEncounterType());
-            ncdTypes.add(ccMetadata.getMentalHealthFollowupEncounterType());
             for (EncounterType et : ncdTypes) {
-                AppointmentInfo ncdApp = getData(df.getAppointmentStatus(activeNcdStates, et), context);
+                AppointmentInfo ncdApp = loader.get("ncdAppointment-" + et.getUuid());
                 if (ncdApp.isCurrentlyEnrolled() && ncdApp.getLastEncounterDate() != null) {
                     ncdList.add(ncdApp);
                 }
@@ -208,6 +234,8 @@ public class PrintableSummaryPageController {
             appts.put("CCC", ncdList);
 
             model.addAttribute("appointmentStatuses", appts);
+
+            log.debug("Loaded printable summary data for patient " + patient.getId() + " in " + loader.getLoadTimeMillis() + " ms");
         }
         catch (Exception e) {
             model.addAttribute("errors", e.getMessage());
@@ -235,22 +263,13 @@ public class PrintableSummaryPageController {
         return null;
     }
 
-    protected EvaluationContext getSinglePatientEvaluationContext(Integer patientId) {
-        EvaluationContext context = new EvaluationContext();
-        context.setBaseCohort(new Cohort());
-        context.getBaseCohort().addMember(patientId);
-        return context;
-    }
-
-    protected <T> T getObsValueOnDate(Concept question, Date date, EvaluationContext context) {
+    protected PatientDataDefinition getObsOnDate(Concept question, Date date) {
         ObsForPersonDataDefinition def = new ObsForPersonDataDefinition();
         def.setWhich(TimeQualifier.LAST);
         def.setQuestion(question);
         def.setOnOrAfter(date);
         def.setOnOrBefore(date);
-        Obs o = getData(new PersonToPatientDataDefinition(def), context);
-        ObsValueConverter converter = new ObsValueConverter();
-        return (T)converter.convert(o);
+        return new PersonToPatientDataDefinition(def);
     }
 
     protected boolean isInCohort(CohortDefinition cd, EvaluationContext context) {
@@ -263,23 +282,6 @@ public class PrintableSummaryPageController {
         }
     }
 
-    /**
-     * @return the result of evaluating the given definition against the given patient, cast to the given type
-     */
-    protected <T> T getData(PatientDataDefinition definition, EvaluationContext context) {
-        Set<Integer> baseCohort = context.getBaseCohort().getMemberIds();
-        if (baseCohort == null || baseCohort.size() != 1) {
-            throw new IllegalArgumentException("Single patient base cohort expected");
-        }
-        try {
-            PatientData data = Context.getService(PatientDataService.class).evaluate(definition, context);
-            return (T)data.getData().get(baseCohort.iterator().next());
-        }
-        catch (EvaluationException e) {
-            throw new IllegalArgumentException("Unable to evaluate definition for patient", e);
-        }
-    }
-
     protected void add(PatientDataSetDefinition dsd, String columnName, PatientDataDefinition pdd, DataConverter... converters) {
         dsd.addColumn(columnName, pdd, Mapped.straightThroughMappings(pdd), converters);
     }
@@ -1,5 +1,6 @@
 package org.openmrs.module.pihmalawi.rest.controller;
 
+import org.openmrs.module.pihmalawi.activator.ReportInitializer;
 import org.openmrs.module.pihmalawi.reporting.reports.IC3DataEntry;
 import org.openmrs.module.reporting.ReportingConstants;
 import org.openmrs.module.reporting.common.DateUtil;
@@ -9,7 +10,6 @@ import org.openmrs.module.reporting.evaluation.EvaluationContext;
 import org.openmrs.module.reporting.report.ReportData;
 import org.openmrs.module.reporting.report.definition.ReportDefinition;
 import org.openmrs.module.reporting.report.definition.service.ReportDefinitionService;
-import org.openmrs.module.reporting.report.manager.ReportManagerUtil;
 import org.openmrs.module.reporting.report.util.ReportUtil;
 import org.openmrs.module.webservices.rest.SimpleObject;
 import org.openmrs.module.webservices.rest.web.RestConstants;
@@ -56,7 +56,7 @@ public class IC3DataEntryRestController {
                 return new ResponseEntity<SimpleObject>(message, HttpStatus.BAD_REQUEST);
 
             }
-            ReportManagerUtil.setupReport(ic3DataEntry);
+            ReportInitializer.setupReportIfChanged(ic3DataEntry);
             ReportUtil.updateGlobalProperty(ReportingConstants.GLOBAL_PROPERTY_DATA_EVALUATION_BATCH_SIZE, "-1");
             ReportUtil.updateGlobalProperty(ReportingConstants.DEFAULT_LOCALE_GP_NAME, "en");
             ReportDefinition rd = reportDefinitionService.getDefinitionByUuid(ic3DataEntry.getUuid());
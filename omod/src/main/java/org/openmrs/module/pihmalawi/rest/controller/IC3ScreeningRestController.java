@@ -1,5 +1,6 @@
 package org.openmrs.module.pihmalawi.rest.controller;
 
+import org.codehaus.jackson.map.ObjectMapper;
 import org.openmrs.Cohort;
 import org.openmrs.Location;
 import org.openmrs.Patient;
@@ -7,6 +8,7 @@ import org.openmrs.api.PatientService;
 import org.openmrs.api.context.Context;
 import org.openmrs.module.pihmalawi.common.JsonObject;
 import org.openmrs.module.pihmalawi.data.IC3ScreeningData;
+import org.openmrs.module.pihmalawi.data.PatientDataHandler;
 import org.openmrs.module.pihmalawi.reporting.library.BaseCohortDefinitionLibrary;
 import org.openmrs.module.pihmalawi.reporting.library.DataFactory;
 import org.openmrs.module.reporting.cohort.CohortUtil;
@@ -18,14 +20,26 @@ import org.openmrs.module.reporting.evaluation.service.EvaluationService;
 import org.openmrs.module.webservices.rest.web.RestConstants;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.ResponseBody;
 
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.Writer;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
 
 @Controller
 public class IC3ScreeningRestController {
@@ -38,6 +52,14 @@ public class IC3ScreeningRestController {
     public static final String PATIENTS_WITH_APPOINTMENT = "patientsWithAppointment";
     public static final String PATIENTS_WITH_VISIT = "patientsWithVisit";
 
+    public static final String FORMAT_JSON = "json";
+    public static final String FORMAT_NDJSON = "ndjson";
+    public static final String FORMAT_STREAM = "stream";
+
+    public static final int STREAM_BATCH_SIZE = 250;
+
+    public static final String SYNC_TOKEN_HEADER = "X-Sync-Token";
+
     @Autowired
     IC3ScreeningData ic3ScreeningData;
 
@@ -56,7 +78,10 @@ public class IC3ScreeningRestController {
             @RequestParam(value="patients") String[] patientUuids,
             @RequestParam(required = false, value="location") Location location,
             @RequestParam(required = false, value="endDate") String endDateStr,
-            @RequestParam(required = false, value = "useCachedValues") Boolean useCachedValues) {
+            @RequestParam(required = false, value = "useCachedValues") Boolean useCachedValues,
+            @RequestParam(required = false, value = "format") String format,
+            @RequestParam(required = false, value = "fields") String[] fields,
+            HttpServletResponse response) throws IOException {
 
         Date endDate = getEndDate(endDateStr);
         boolean useCache = useCachedValues == null || useCachedValues;
@@ -64,8 +89,7 @@ public class IC3ScreeningRestController {
             throw new IllegalArgumentException("You must specify which patients you wish to retrieve data for");
         }
         Cohort cohort = getCohort(patientUuids);
-        Map<Integer, JsonObject> data =  ic3ScreeningData.getDataForCohort(cohort, endDate, location, useCache);
-        return data.values();
+        return getData(cohort, endDate, location, useCache, format, fields, response);
     }
 
     @RequestMapping(method = RequestMethod.GET, value="/rest/" + RestConstants.VERSION_1 + PIHMALAWI + IC3_APPOINTMENTS)
@@ -73,13 +97,17 @@ public class IC3ScreeningRestController {
     public Object getAppointments(
             @RequestParam(required = false, value="endDate") String endDateStr,
             @RequestParam(required = false, value="location") Location location,
-            @RequestParam(required = false, value = "useCachedValues") Boolean useCachedValues) {
+            @RequestParam(required = false, value = "useCachedValues") Boolean useCachedValues,
+            @RequestParam(required = false, value = "format") String format,
+            @RequestParam(required = false, value = "fields") String[] fields,
+            @RequestParam(required = false, value = "since") String since,
+            @RequestHeader(required = false, value = "If-None-Match") String ifNoneMatch,
+            HttpServletResponse response) throws IOException {
 
         Date endDate = getEndDate(endDateStr);
         boolean useCache = useCachedValues == null || useCachedValues;
         Cohort activeWithAppt = ic3ScreeningData.getPatientsWithAppointmentsAtLocation(endDate, location);
-        Map<Integer, JsonObject> data = ic3ScreeningData.getDataForCohort(activeWithAppt, endDate, location, useCache);
-        return data.values();
+        return getSyncedData(activeWithAppt, endDate, location, useCache, format, fields, since, ifNoneMatch, response);
     }
 
     @RequestMapping(method = RequestMethod.GET, value="/rest/" + RestConstants.VERSION_1 + PIHMALAWI + IC3_PATIENTS)
@@ -88,7 +116,12 @@ public class IC3ScreeningRestController {
             @RequestParam(required = false, value="endDate") String endDateStr,
             @RequestParam(required = false, value="location") Location location,
             @RequestParam(required = false, value="cohorts") List<String> cohorts,
-            @RequestParam(required = false, value = "useCachedValues") Boolean useCachedValues) {
+            @RequestParam(required = false, value = "useCachedValues") Boolean useCachedValues,
+            @RequestParam(required = false, value = "format") String format,
+            @RequestParam(required = false, value = "fields") String[] fields,
+            @RequestParam(required = false, value = "since") String since,
+            @RequestHeader(required = false, value = "If-None-Match") String ifNoneMatch,
+            HttpServletResponse response) throws IOException {
 
         Date endDate = getEndDate(endDateStr);
         boolean useCache = useCachedValues == null || useCachedValues;
@@ -102,10 +135,182 @@ public class IC3ScreeningRestController {
             Cohort c = ic3ScreeningData.getPatientsWithAVisitAtLocation(endDate, location);
             baseCohort = (baseCohort == null ? c : CohortUtil.union(baseCohort, c));
         }
-        Map<Integer, JsonObject> data = ic3ScreeningData.getDataForCohort(baseCohort, endDate, location, useCache);
-        return data.values();
+        return getSyncedData(baseCohort, endDate, location, useCache, format, fields, since, ifNoneMatch, response);
    }
 
+    /**
+     * For the default json format, the response is given an ETag, which changes whenever the data for any patient
+     * in the cohort changes, so that a request with a matching If-None-Match header receives a 304 with no content.
+     * The response is also given a sync token.  If this is passed back as the since parameter, only the data for those
+     * patients that have changed or joined the cohort since the token was issued are returned, along with the internal
+     * ids of all patients in the cohort, so that clients can remove those that are no longer included.  If the token is
+     * no longer known, for example because the server has restarted, the data for all patients is returned and full is
+     * set to true.
+     * Other formats are streamed as they are evaluated, and so do not support either.
+     */
+    protected Object getSyncedData(Cohort cohort, Date endDate, Location location, boolean useCache, String format,
+                                   String[] fields, String since, String ifNoneMatch, HttpServletResponse response) throws IOException {
+
+        if (!ObjectUtil.isNull(format) && !FORMAT_JSON.equalsIgnoreCase(format)) {
+            if (!ObjectUtil.isNull(since)) {
+                throw new IllegalArgumentException("The since parameter is only supported for the " + FORMAT_JSON + " format");
+            }
+            return getData(cohort, endDate, location, useCache, format, fields, response);
+        }
+
+        Map<Integer, Long> versions = ic3ScreeningData.getVersionsForCohort(cohort, endDate, location, useCache);
+        String etag = getETag(versions, fields, since);
+        response.setHeader("ETag", etag);
+        if (matchesETag(ifNoneMatch, etag)) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return null;
+        }
+        String syncToken = ic3ScreeningData.getSyncToken(versions);
+        response.setHeader(SYNC_TOKEN_HEADER, syncToken);
+
+        // The data for all patients in the cohort has now been cached
+        if (ObjectUtil.isNull(since)) {
+            return getData(cohort, endDate, location, true, format, fields, response);
+        }
+
+        Set<Integer> changedSince = ic3ScreeningData.getPatientsChangedSince(since, versions);
+        Cohort changed = new Cohort();
+        for (Integer pId : cohort.getMemberIds()) {
+            if (changedSince == null || !versions.containsKey(pId) || changedSince.contains(pId)) {
+                changed.addMember(pId);
+            }
+        }
+        Map<Integer, JsonObject> data = ic3ScreeningData.getDataForCohort(changed, endDate, location, true);
+
+        JsonObject ret = new JsonObject();
+        ret.put("syncToken", syncToken);
+        ret.put("full", changedSince == null);
+        ret.put("internalIds", new ArrayList<Integer>(cohort.getMemberIds()));
+        ret.put("changed", project(data.values(), getFields(fields)));
+        return ret;
+    }
+
+    /**
+     * By default, or if the format is json, the data for the whole cohort is returned to be serialized as a single array
+     * If the format is ndjson, each patient's data is instead written to the response as a line of json as soon as it is
+     * available, either from the cache or from a newly evaluated batch of patients.  If the format is stream, the data is
+     * written in the same way, but as the elements of a single json array.
+     * If fields are specified, only those properties of each patient's data are included
+     */
+    protected Object getData(Cohort cohort, Date endDate, Location location, boolean useCache, String format,
+                             String[] fields, HttpServletResponse response) throws IOException {
+
+        final Set<String> fieldsToInclude = getFields(fields);
+
+        if (ObjectUtil.isNull(format) || FORMAT_JSON.equalsIgnoreCase(format)) {
+            Map<Integer, JsonObject> data = ic3ScreeningData.getDataForCohort(cohort, endDate, location, useCache);
+            return project(data.values(), fieldsToInclude);
+        }
+
+        final boolean ndjson = FORMAT_NDJSON.equalsIgnoreCase(format);
+        if (!ndjson && !FORMAT_STREAM.equalsIgnoreCase(format)) {
+            throw new IllegalArgumentException("Unknown format " + format + ", expected one of " + FORMAT_JSON + ", " + FORMAT_NDJSON + ", " + FORMAT_STREAM);
+        }
+
+        response.setContentType(ndjson ? "application/x-ndjson" : "application/json");
+        response.setCharacterEncoding("UTF-8");
+        final Writer writer = response.getWriter();
+        final ObjectMapper mapper = new ObjectMapper();
+        final boolean[] first = {true};
+
+        if (!ndjson) {
+            writer.write("[");
+        }
+        ic3ScreeningData.streamDataForCohort(cohort, endDate, location, useCache, STREAM_BATCH_SIZE, new PatientDataHandler() {
+            @Override
+            public void handleData(Map<Integer, JsonObject> data) throws IOException {
+                for (JsonObject patientData : project(data.values(), fieldsToInclude)) {
+                    if (ndjson) {
+                        writer.write(mapper.writeValueAsString(patientData));
+                        writer.write("\n");
+                    }
+                    else {
+                        writer.write(first[0] ? "" : ",");
+                        writer.write(mapper.writeValueAsString(patientData));
+                        first[0] = false;
+                    }
+                }
+                writer.flush();
+            }
+        });
+        if (!ndjson) {
+            writer.write("]");
+        }
+        writer.flush();
+        return null;
+    }
+
+    /**
+     * @return an ETag for a response containing the given versions of patient data, limited to the given fields and since token
+     */
+    protected String getETag(Map<Integer, Long> versions, String[] fields, String since) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(ic3ScreeningData.getCache().getEpoch());
+        for (Map.Entry<Integer, Long> e : new TreeMap<Integer, Long>(versions).entrySet()) {
+            sb.append(",").append(e.getKey()).append(":").append(e.getValue());
+        }
+        sb.append("|").append(fields == null ? "" : Arrays.asList(fields));
+        sb.append("|").append(ObjectUtil.nvl(since, ""));
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(sb.toString().getBytes("UTF-8"));
+            return "\"" + new BigInteger(1, digest).toString(16) + "\"";
+        }
+        catch (Exception e) {
+            throw new IllegalStateException("Unable to compute ETag", e);
+        }
+    }
+
+    /**
+     * @return true if the given If-None-Match header value includes the given ETag
+     */
+    protected boolean matchesETag(String ifNoneMatch, String etag) {
+        if (ObjectUtil.isNull(ifNoneMatch)) {
+            return false;
+        }
+        for (String candidate : ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.startsWith("W/")) {
+                candidate = candidate.substring(2);
+            }
+            if (candidate.equals("*") || candidate.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the fields to include, or null if all fields should be included
+     */
+    protected Set<String> getFields(String[] fields) {
+        return (fields == null || fields.length == 0 ? null : new HashSet<String>(Arrays.asList(fields)));
+    }
+
+    /**
+     * @return the given patient data, limited to the given fields, or unchanged if no fields are given
+     */
+    protected Collection<JsonObject> project(Collection<JsonObject> data, Set<String> fields) {
+        if (fields == null) {
+            return data;
+        }
+        List<JsonObject> ret = new ArrayList<JsonObject>();
+        for (JsonObject patientData : data) {
+            JsonObject projected = new JsonObject();
+            for (Map.Entry<String, Object> e : patientData.entrySet()) {
+                if (fields.contains(e.getKey())) {
+                    projected.put(e.getKey(), e.getValue());
+                }
+            }
+            ret.add(projected);
+        }
+        return ret;
+    }
+
    protected Date getEndDate(String endDateStr) {
         if (ObjectUtil.isNull(endDateStr)) {
             return DateUtil.getStartOfDay(new Date());
@@ -1,5 +1,6 @@
 package org.openmrs.module.pihmalawi.rest.controller;
 
+import org.openmrs.module.pihmalawi.activator.ReportInitializer;
 import org.openmrs.module.pihmalawi.location.LocationUuidHandler;
 import org.openmrs.module.pihmalawi.reporting.reports.MedicMobileIC3TraceReport;
 import org.openmrs.module.reporting.ReportingConstants;
@@ -10,7 +11,6 @@ import org.openmrs.module.reporting.evaluation.EvaluationContext;
 import org.openmrs.module.reporting.report.ReportData;
 import org.openmrs.module.reporting.report.definition.ReportDefinition;
 import org.openmrs.module.reporting.report.definition.service.ReportDefinitionService;
-import org.openmrs.module.reporting.report.manager.ReportManagerUtil;
 import org.openmrs.module.reporting.report.util.ReportUtil;
 import org.openmrs.module.webservices.rest.SimpleObject;
 import org.openmrs.module.webservices.rest.web.RestConstants;
@@ -59,7 +59,7 @@ public class IC3TraceReportRestController  {
                 return new ResponseEntity<SimpleObject>(message, HttpStatus.BAD_REQUEST);
 
             }
-            ReportManagerUtil.setupReport(medicMobileIC3TraceReport);
+            ReportInitializer.setupReportIfChanged(medicMobileIC3TraceReport);
             ReportUtil.updateGlobalProperty(ReportingConstants.GLOBAL_PROPERTY_DATA_EVALUATION_BATCH_SIZE, "-1");
             ReportUtil.updateGlobalProperty(ReportingConstants.DEFAULT_LOCALE_GP_NAME, "en");
             ReportDefinition rd = reportDefinitionService.getDefinitionByUuid(medicMobileIC3TraceReport.getUuid());
@@ -0,0 +1,143 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.pihmalawi.rest.controller;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.Cohort;
+import org.openmrs.Location;
+import org.openmrs.module.pihmalawi.common.JsonObject;
+import org.openmrs.module.pihmalawi.data.IC3ScreeningData;
+import org.openmrs.module.pihmalawi.data.LivePatientDataSet;
+import org.openmrs.module.reporting.common.DateUtil;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import javax.servlet.http.HttpServletResponse;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Tests the ETag and sync token support of the IC3ScreeningRestController
+ */
+public class IC3ScreeningRestControllerTest {
+
+    Date today = DateUtil.getStartOfDay(new Date());
+
+    IC3ScreeningRestController controller;
+    TestScreeningData screeningData;
+
+    @Before
+    public void setup() {
+        screeningData = new TestScreeningData();
+        controller = new IC3ScreeningRestController();
+        controller.ic3ScreeningData = screeningData;
+    }
+
+    @Test
+    public void shouldReturnNotModifiedIfTheETagMatches() throws Exception {
+        Cohort cohort = new Cohort(Arrays.asList(1, 2));
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        Object data = getSyncedData(cohort, null, null, response);
+        String etag = response.getHeader("ETag");
+        Assert.assertNotNull(etag);
+        Assert.assertEquals(2, ((Collection) data).size());
+
+        response = new MockHttpServletResponse();
+        Assert.assertNull(getSyncedData(cohort, null, etag, response));
+        Assert.assertEquals(HttpServletResponse.SC_NOT_MODIFIED, response.getStatus());
+        Assert.assertEquals(etag, response.getHeader("ETag"));
+
+        screeningData.refresh(2, 70.0);
+        response = new MockHttpServletResponse();
+        Assert.assertNotNull(getSyncedData(cohort, null, etag, response));
+        Assert.assertEquals(HttpServletResponse.SC_OK, response.getStatus());
+        Assert.assertFalse(etag.equals(response.getHeader("ETag")));
+    }
+
+    @Test
+    public void shouldReturnOnlyPatientsChangedOrAddedSinceTheSyncToken() throws Exception {
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        getSyncedData(new Cohort(Arrays.asList(1, 2)), null, null, response);
+        String syncToken = response.getHeader(IC3ScreeningRestController.SYNC_TOKEN_HEADER);
+        Assert.assertNotNull(syncToken);
+
+        screeningData.refresh(2, 70.0);
+        response = new MockHttpServletResponse();
+        JsonObject ret = (JsonObject) getSyncedData(new Cohort(Arrays.asList(1, 2, 3)), syncToken, null, response);
+        Assert.assertEquals(false, ret.get("full"));
+        Assert.assertEquals(new HashSet<Integer>(Arrays.asList(1, 2, 3)), new HashSet<Object>((Collection) ret.get("internalIds")));
+        Assert.assertEquals(new HashSet<Integer>(Arrays.asList(2, 3)), getInternalIds(ret.get("changed")));
+        Assert.assertEquals(response.getHeader(IC3ScreeningRestController.SYNC_TOKEN_HEADER), ret.get("syncToken"));
+    }
+
+    @Test
+    public void shouldReturnAllPatientsIfTheSyncTokenIsUnknown() throws Exception {
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        JsonObject ret = (JsonObject) getSyncedData(new Cohort(Arrays.asList(1, 2)), "unknown", null, response);
+        Assert.assertEquals(true, ret.get("full"));
+        Assert.assertEquals(new HashSet<Integer>(Arrays.asList(1, 2)), getInternalIds(ret.get("changed")));
+    }
+
+    protected Object getSyncedData(Cohort cohort, String since, String ifNoneMatch, MockHttpServletResponse response) throws Exception {
+        return controller.getSyncedData(cohort, today, null, true, null, null, since, ifNoneMatch, response);
+    }
+
+    protected Set<Integer> getInternalIds(Object data) {
+        Set<Integer> ret = new HashSet<Integer>();
+        for (Object patientData : (Collection) data) {
+            ret.add((Integer) ((JsonObject) patientData).get(LivePatientDataSet.INTERNAL_ID));
+        }
+        return ret;
+    }
+
+    /**
+     * Generates a weight for each patient, rather than evaluating the IC3 data set
+     */
+    private class TestScreeningData extends IC3ScreeningData {
+
+        private final Map<Integer, Double> weights = new HashMap<Integer, Double>();
+
+        @Override
+        protected Map<Integer, JsonObject> generateData(Cohort cohort, Date effectiveDate, Location location) {
+            Map<Integer, JsonObject> data = new HashMap<Integer, JsonObject>();
+            for (Integer pId : cohort.getMemberIds()) {
+                data.put(pId, getData(pId));
+            }
+            getCache().updateCache(data, effectiveDate, location);
+            return data;
+        }
+
+        /**
+         * Changes the weight of the given patient, and updates the cache as a background refresh would
+         */
+        public void refresh(Integer patientId, Double weight) {
+            weights.put(patientId, weight);
+            getCache().updateCache(patientId, getData(patientId), today, null);
+        }
+
+        private JsonObject getData(Integer patientId) {
+            JsonObject data = new JsonObject();
+            data.put(INTERNAL_ID, patientId);
+            data.put("current_weight", weights.containsKey(patientId) ? weights.get(patientId) : 60.0);
+            return data;
+        }
+    }
+}